@@ -0,0 +1,82 @@
+package main
+
+import (
+	"flag"
+	"fmt"
+	"os"
+	"strconv"
+	"strings"
+
+	"offline-client-wails/mpc_core/clog"
+	"offline-client-wails/mpc_core/smoke"
+)
+
+func main() {
+	var opts smoke.BenchOptions
+	var levels string
+	var workload string
+	var sizes string
+
+	flag.StringVar(&opts.ReaderName, "reader", "", "reader name substring; empty uses the first available reader")
+	flag.StringVar(&opts.AppletAID, "aid", smoke.DefaultAppletAID, "applet AID hex")
+	flag.StringVar(&opts.PrivateKeyPath, "private-key", "", "ECDSA private key PEM path; default auto-detects the local development key")
+	flag.StringVar(&levels, "levels", "10,25,50,100", "comma separated record counts to measure")
+	flag.IntVar(&opts.Iterations, "iterations", smoke.DefaultBenchIterations, "timed operations per level")
+	flag.StringVar(&workload, "workload", "lookup", "bench to run: lookup (overwrite latency by occupancy), arena (variable-length fragmentation), wear (slot wear under store/delete churn) or cipher (share encryption throughput)")
+	flag.IntVar(&opts.ArenaOps, "ops", smoke.DefaultArenaOps, "arena workload: random insert/overwrite/delete operations")
+	flag.IntVar(&opts.ArenaLive, "live", smoke.DefaultArenaLive, "arena workload: maximum live records")
+	flag.IntVar(&opts.WearCycles, "cycles", smoke.DefaultWearCycles, "wear workload: store/delete cycles")
+	flag.StringVar(&sizes, "sizes", "1024,5120,16384,32000", "cipher workload: comma separated share sizes in bytes")
+	flag.BoolVar(&opts.Debug, "debug", false, "enable mpc_core/seclient debug logs")
+	flag.Parse()
+
+	for _, value := range strings.Split(levels, ",") {
+		level, err := strconv.Atoi(strings.TrimSpace(value))
+		if err != nil {
+			fmt.Fprintf(os.Stderr, "invalid -levels value %q\n", value)
+			os.Exit(2)
+		}
+		opts.Levels = append(opts.Levels, level)
+	}
+	for _, value := range strings.Split(sizes, ",") {
+		size, err := strconv.Atoi(strings.TrimSpace(value))
+		if err != nil {
+			fmt.Fprintf(os.Stderr, "invalid -sizes value %q\n", value)
+			os.Exit(2)
+		}
+		opts.Sizes = append(opts.Sizes, size)
+	}
+
+	if opts.Debug {
+		_ = clog.Init(clog.Config{
+			Level:         clog.DebugLevel,
+			Format:        clog.FormatConsole,
+			Filename:      "logs/se-bench.log",
+			Name:          "default",
+			ConsoleOutput: true,
+			EnableCaller:  false,
+			EnableColor:   false,
+		})
+		defer clog.Sync()
+	}
+
+	run := smoke.RunLookupBench
+	switch workload {
+	case "lookup":
+	case "arena":
+		run = smoke.RunArenaBench
+	case "wear":
+		run = smoke.RunWearBench
+	case "cipher":
+		run = smoke.RunCipherBench
+	default:
+		fmt.Fprintf(os.Stderr, "invalid -workload value %q\n", workload)
+		os.Exit(2)
+	}
+
+	opts.Output = os.Stdout
+	if err := run(opts); err != nil {
+		fmt.Fprintf(os.Stderr, "\n[FAIL] %v\n", err)
+		os.Exit(1)
+	}
+}
@@ -17,6 +17,8 @@ type Config struct {
 	KeygenBin      string `mapstructure:"keygen_bin"`
 	SigningBin     string `mapstructure:"signing_bin"`
 	ManagerAddr    string `mapstructure:"manager_addr"`
+	ExtendedLength bool   `mapstructure:"extended_length"` // 读卡器支持扩展长度APDU，长命令和数据块读取一次收发
+	ShareOnCard    bool   `mapstructure:"share_on_card"`   // 加密的本地分片同时写入安全芯片数据块，签名时不再需要服务器下发
 	// 日志配置
 	LogDir        string `mapstructure:"log_dir"`         // 日志目录
 	LogFile       string `mapstructure:"log_file"`        // 日志文件名
@@ -43,6 +45,8 @@ func LoadConfig() (*Config, error) {
 	viper.SetDefault("keygen_bin", "gg20_keygen")
 	viper.SetDefault("signing_bin", "gg20_signing")
 	viper.SetDefault("manager_addr", "http://127.0.0.1:8000")
+	viper.SetDefault("extended_length", false)
+	viper.SetDefault("share_on_card", false)
 	// 日志默认值
 	viper.SetDefault("log_dir", "./logs")
 	viper.SetDefault("log_file", "web-se.log")
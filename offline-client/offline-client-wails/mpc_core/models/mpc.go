@@ -29,7 +29,7 @@ type SignRequest struct {
 	SigningIndex   int    `json:"signing_index" binding:"required,min=1"` // 本方在 parties 中的位置
 	MessageHash    string `json:"message_hash" binding:"required"`        // d: 签名数据
 	Filename       string `json:"filename" binding:"required"`            // l: 本地密钥文件
-	EncryptedShard string `json:"encrypted_shard" binding:"required"`     // 加密后的分片 (base64编码)
+	EncryptedShard string `json:"encrypted_shard"`                        // 加密后的分片 (base64编码)，为空时从安全芯片数据块读取
 	RecordID       string `json:"record_id" binding:"required"`           // SE 记录编号
 	Address        string `json:"address" binding:"required"`             // 地址 (0x前缀)
 	Signature      string `json:"signature" binding:"required"`           // SE 授权签名 (base64编码)
@@ -0,0 +1,104 @@
+package seclient
+
+import (
+	"encoding/binary"
+	"errors"
+	"fmt"
+
+	"offline-client-wails/mpc_core/clog"
+)
+
+// ErrArenaNeedsCompaction 变长消息区末尾空间不足，整理后可以写入
+var ErrArenaNeedsCompaction = errors.New("变长消息区需要整理 (状态码: 0x6985)")
+
+// ErrVariableLengthRecord 批量读取或按地址读取遇到变长消息，这些命令只返回定长条目，需改用 ReadData 逐条读取
+var ErrVariableLengthRecord = errors.New("包含变长消息，请改用单条读取 (状态码: 0x6981)")
+
+// ArenaStatus 芯片变长消息区的使用情况
+// 非32字节的消息追加在消息区末尾，删除或改变长度留下的空洞由 COMPACT_ARENA 回收
+type ArenaStatus struct {
+	Size    int // 消息区字节数，0表示芯片未启用变长消息
+	Top     int // 已使用区域的末尾
+	Garbage int // 已使用区域中空洞的字节数 (含块头)
+	Epoch   int // 整理完成次数，整理授权签名须覆盖当前值
+}
+
+// Free 返回末尾可直接分配的字节数
+func (a *ArenaStatus) Free() int {
+	return a.Size - a.Top
+}
+
+// Fragmentation 返回已使用区域中空洞的比例
+func (a *ArenaStatus) Fragmentation() float64 {
+	if a.Top == 0 {
+		return 0
+	}
+	return float64(a.Garbage) / float64(a.Top)
+}
+
+// parseArenaStatus 解析 [size(2)][top(2)][garbage(2)][epoch(2)]
+func parseArenaStatus(value []byte) *ArenaStatus {
+	return &ArenaStatus{
+		Size:    int(binary.BigEndian.Uint16(value[0:2])),
+		Top:     int(binary.BigEndian.Uint16(value[2:4])),
+		Garbage: int(binary.BigEndian.Uint16(value[4:6])),
+		Epoch:   int(binary.BigEndian.Uint16(value[6:8])),
+	}
+}
+
+// CompactArena 整理芯片的变长消息区，signature 为服务器对 0x43||epoch 的签名
+// 芯片每条命令移动的字节数受事务缓冲区限制，未整理完时重发同一命令，重发命中芯片授权缓存
+// 返回整理后的消息区状态，其中 epoch 已加1
+func (r *CardReader) CompactArena(epoch int, signature []byte) (*ArenaStatus, error) {
+	if epoch < 0 || epoch > 0xFFFF {
+		return nil, fmt.Errorf("epoch错误: %d", epoch)
+	}
+	if len(signature) < 8 || len(signature) > MAX_SIGNATURE_LENGTH {
+		return nil, fmt.Errorf("签名长度错误: 应为 8-%d 字节", MAX_SIGNATURE_LENGTH)
+	}
+
+	fullData := make([]byte, 0, 2+len(signature))
+	fullData = append(fullData, byte(epoch>>8), byte(epoch))
+	fullData = append(fullData, signature...)
+
+	status := &ArenaStatus{}
+	moved, commands := 0, 0
+	for more := true; more; {
+		data, sw, err := r.TransmitCommand(INS_COMPACT_ARENA, 0x00, 0x00, fullData)
+		if err != nil {
+			return nil, err
+		}
+		if sw == SW_SIGNATURE_INVALID {
+			return nil, fmt.Errorf("签名无效 (状态码: 0x%04X)", sw)
+		} else if sw == SW_WRONG_DATA {
+			return nil, fmt.Errorf("epoch已过期 (状态码: 0x%04X)", sw)
+		} else if sw != SW_SUCCESS {
+			return nil, fmt.Errorf("整理变长消息区返回错误状态码: 0x%04X", sw)
+		}
+
+		// 解析响应: [moved(2)][more(1)][arenaTop(2)][garbage(2)][epoch(2)]
+		if len(data) != 9 {
+			return nil, fmt.Errorf("整理变长消息区响应长度错误: %d", len(data))
+		}
+		moved += int(binary.BigEndian.Uint16(data[0:2]))
+		more = data[2] != 0
+		status.Top = int(binary.BigEndian.Uint16(data[3:5]))
+		status.Garbage = int(binary.BigEndian.Uint16(data[5:7]))
+		status.Epoch = int(binary.BigEndian.Uint16(data[7:9]))
+		commands++
+	}
+	if r.capabilities != nil && r.capabilities.Arena != nil {
+		status.Size = r.capabilities.Arena.Size
+		*r.capabilities.Arena = *status
+	}
+
+	if r.debug {
+		clog.Info("❕整理变长消息区成功❕",
+			clog.Int("移动块数", moved),
+			clog.Int("命令数", commands),
+			clog.Int("已使用", status.Top),
+		)
+	}
+
+	return status, nil
+}
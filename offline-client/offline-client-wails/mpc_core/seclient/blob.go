@@ -0,0 +1,245 @@
+package seclient
+
+import (
+	"bytes"
+	"crypto/sha256"
+	"encoding/binary"
+	"encoding/hex"
+	"errors"
+	"fmt"
+
+	"offline-client-wails/mpc_core/clog"
+)
+
+// ErrBlobSealed 同键数据块已封存，覆盖须携带与 DeleteBlob 相同的授权
+var ErrBlobSealed = errors.New("数据块已封存，覆盖需要删除授权 (状态码: 0x6982)")
+
+// BlobInfo 芯片数据块的长度、状态和摘要
+type BlobInfo struct {
+	Length int    // 数据块字节数
+	State  byte   // BLOB_STATE_WRITING 或 BLOB_STATE_SEALED
+	Digest []byte // 封存时芯片计算的SHA-256摘要，写入中的数据块为nil
+}
+
+// blobKey 校验并拼接数据块键 record_id||addr
+func blobKey(recordID []byte, addr []byte) ([]byte, error) {
+	if len(recordID) != RECORD_ID_LENGTH {
+		return nil, fmt.Errorf("record_id长度错误: 应为 %d 字节", RECORD_ID_LENGTH)
+	}
+	if len(addr) != ADDR_LENGTH {
+		return nil, fmt.Errorf("地址长度错误: 应为 %d 字节", ADDR_LENGTH)
+	}
+	key := make([]byte, 0, BLOB_KEY_LENGTH)
+	key = append(key, recordID...)
+	return append(key, addr...), nil
+}
+
+// blobWriteChunk 返回每条写入命令携带的数据字节数，按芯片报告的单条命令数据上限扣除键长度
+func (r *CardReader) blobWriteChunk() int {
+	if r.capabilities != nil && r.capabilities.MaxCommandData > BLOB_KEY_LENGTH {
+		return r.capabilities.MaxCommandData - BLOB_KEY_LENGTH
+	}
+	return SHORT_APDU_MAX_DATA - BLOB_KEY_LENGTH
+}
+
+// blobReadChunk 返回每条读取命令返回的字节数上限
+func (r *CardReader) blobReadChunk() int {
+	if r.capabilities != nil && r.capabilities.BlobReadChunk > 0 {
+		return r.capabilities.BlobReadChunk
+	}
+	return BLOB_DEFAULT_CHUNK
+}
+
+// WriteBlob 把数据写入芯片数据块并封存，返回芯片计算的SHA-256摘要
+// 同一 record_id||addr 已有已封存的数据块时，覆盖须传入与 DeleteBlob 相同的授权 overwriteAuth，
+// 否则返回 ErrBlobSealed；新建时 overwriteAuth 可为nil。数据按单条命令上限分段写入，启用扩展长度时每段约1KB；
+// 封存时携带主机计算的摘要，芯片比对不一致时返回错误，数据块保持写入状态
+func (r *CardReader) WriteBlob(recordID []byte, addr []byte, data []byte, overwriteAuth []byte) ([]byte, error) {
+	key, err := blobKey(recordID, addr)
+	if err != nil {
+		return nil, err
+	}
+	if len(data) == 0 || len(data) > BLOB_MAX_SIZE {
+		return nil, fmt.Errorf("数据块长度错误: 应为 1-%d 字节", BLOB_MAX_SIZE)
+	}
+	if len(overwriteAuth) > 0 && (len(overwriteAuth) < 8 || len(overwriteAuth) > MAX_AUTH_BLOCK_LENGTH) {
+		return nil, fmt.Errorf("签名长度错误: 应为 8-%d 字节", MAX_AUTH_BLOCK_LENGTH)
+	}
+
+	// 创建: [key(52)][length(2)][auth(覆盖已封存的数据块时)]
+	create := append(append([]byte(nil), key...), byte(len(data)>>8), byte(len(data)))
+	create = append(create, overwriteAuth...)
+	resp, sw, err := r.TransmitCommand(INS_BLOB_CREATE, 0x00, 0x00, create)
+	if err != nil {
+		return nil, err
+	}
+	if sw == SW_FILE_FULL {
+		return nil, fmt.Errorf("创建数据块失败: 数据块已满或存储空间不足 (状态码: 0x%04X)", sw)
+	} else if sw == SW_SIGNATURE_INVALID && len(overwriteAuth) == 0 {
+		return nil, ErrBlobSealed
+	} else if sw == SW_SIGNATURE_INVALID {
+		return nil, fmt.Errorf("覆盖数据块的签名无效 (状态码: 0x%04X)", sw)
+	} else if sw != SW_SUCCESS {
+		return nil, fmt.Errorf("创建数据块返回错误状态码: 0x%04X", sw)
+	}
+	if len(resp) != 2 {
+		return nil, fmt.Errorf("创建数据块响应长度错误: %d", len(resp))
+	}
+
+	// 写入: P1P2为偏移，[key(52)][chunk]
+	chunk := r.blobWriteChunk()
+	commands := 0
+	for offset := 0; offset < len(data); offset += chunk {
+		end := offset + chunk
+		if end > len(data) {
+			end = len(data)
+		}
+		update := append(append(make([]byte, 0, BLOB_KEY_LENGTH+end-offset), key...), data[offset:end]...)
+		_, sw, err := r.TransmitCommand(INS_BLOB_UPDATE, byte(offset>>8), byte(offset), update)
+		if err != nil {
+			return nil, err
+		}
+		if sw != SW_SUCCESS {
+			return nil, fmt.Errorf("写入数据块返回错误状态码: 0x%04X (偏移 %d)", sw, offset)
+		}
+		commands++
+	}
+
+	// 封存: [key(52)][expectedDigest(32)]
+	expected := sha256.Sum256(data)
+	digest, sw, err := r.TransmitCommand(INS_BLOB_FINALIZE, 0x00, 0x00, append(append([]byte(nil), key...), expected[:]...))
+	if err != nil {
+		return nil, err
+	}
+	if sw == SW_WRONG_DATA {
+		return nil, fmt.Errorf("封存数据块失败: 芯片计算的摘要不一致 (状态码: 0x%04X)", sw)
+	} else if sw != SW_SUCCESS {
+		return nil, fmt.Errorf("封存数据块返回错误状态码: 0x%04X", sw)
+	}
+	if !bytes.Equal(digest, expected[:]) {
+		return nil, fmt.Errorf("封存数据块响应的摘要不一致")
+	}
+
+	if r.debug {
+		clog.Info("❕写入数据块成功❕",
+			clog.String("record_id", hex.EncodeToString(recordID)),
+			clog.Int("字节数", len(data)),
+			clog.Int("写入命令数", commands),
+			clog.String("digest", hex.EncodeToString(digest)),
+		)
+	}
+
+	return digest, nil
+}
+
+// GetBlobInfo 查询数据块的长度、状态和摘要，不需要授权
+func (r *CardReader) GetBlobInfo(recordID []byte, addr []byte) (*BlobInfo, error) {
+	key, err := blobKey(recordID, addr)
+	if err != nil {
+		return nil, err
+	}
+	data, sw, err := r.TransmitCommand(INS_BLOB_INFO, 0x00, 0x00, key)
+	if err != nil {
+		return nil, err
+	}
+	if sw == SW_RECORD_NOT_FOUND {
+		return nil, fmt.Errorf("数据块未找到 (状态码: 0x%04X)", sw)
+	} else if sw != SW_SUCCESS {
+		return nil, fmt.Errorf("查询数据块返回错误状态码: 0x%04X", sw)
+	}
+
+	// 解析响应: [length(2)][state(1)][digest(32，仅已封存)]
+	if len(data) != 3 && len(data) != 3+BLOB_DIGEST_LENGTH {
+		return nil, fmt.Errorf("查询数据块响应长度错误: %d", len(data))
+	}
+	info := &BlobInfo{
+		Length: int(binary.BigEndian.Uint16(data[0:2])),
+		State:  data[2],
+	}
+	if len(data) > 3 {
+		info.Digest = append([]byte(nil), data[3:]...)
+	}
+	return info, nil
+}
+
+// ReadBlob 读取已封存的数据块并校验摘要
+// signature 与 ReadData 相同，为 record_id||addr 的签名、会话标签或Merkle证明；
+// 各段重发同一签名，芯片只在第一段验签。启用扩展长度时每段约1KB一次返回
+func (r *CardReader) ReadBlob(recordID []byte, addr []byte, signature []byte) ([]byte, error) {
+	if len(signature) < 8 || len(signature) > MAX_AUTH_BLOCK_LENGTH {
+		return nil, fmt.Errorf("签名长度错误: 应为 8-%d 字节", MAX_AUTH_BLOCK_LENGTH)
+	}
+	info, err := r.GetBlobInfo(recordID, addr)
+	if err != nil {
+		return nil, err
+	}
+	if info.State != BLOB_STATE_SEALED {
+		return nil, fmt.Errorf("数据块尚未封存")
+	}
+
+	key, _ := blobKey(recordID, addr)
+	request := append(append(make([]byte, 0, BLOB_KEY_LENGTH+len(signature)), key...), signature...)
+	data := make([]byte, 0, info.Length)
+	commands := 0
+	for len(data) < info.Length {
+		offset := len(data)
+		chunk, sw, err := r.TransmitLongResponse(INS_BLOB_READ, byte(offset>>8), byte(offset), request)
+		if err != nil {
+			return nil, err
+		}
+		if sw == SW_SIGNATURE_INVALID {
+			return nil, fmt.Errorf("签名无效 (状态码: 0x%04X)", sw)
+		} else if sw == SW_RECORD_NOT_FOUND {
+			return nil, fmt.Errorf("数据块未找到 (状态码: 0x%04X)", sw)
+		} else if sw != SW_SUCCESS {
+			return nil, fmt.Errorf("读取数据块返回错误状态码: 0x%04X (偏移 %d)", sw, offset)
+		}
+		if len(chunk) == 0 || len(chunk) > info.Length-offset {
+			return nil, fmt.Errorf("读取数据块响应长度错误: %d (偏移 %d)", len(chunk), offset)
+		}
+		data = append(data, chunk...)
+		commands++
+	}
+
+	digest := sha256.Sum256(data)
+	if !bytes.Equal(digest[:], info.Digest) {
+		return nil, fmt.Errorf("数据块摘要校验失败")
+	}
+
+	if r.debug {
+		clog.Info("❕读取数据块成功❕",
+			clog.String("record_id", hex.EncodeToString(recordID)),
+			clog.Int("字节数", len(data)),
+			clog.Int("读取命令数", commands),
+		)
+	}
+
+	return data, nil
+}
+
+// DeleteBlob 删除数据块，signature 与 DeleteData 相同，返回芯片上剩余的数据块数
+func (r *CardReader) DeleteBlob(recordID []byte, addr []byte, signature []byte) (int, error) {
+	key, err := blobKey(recordID, addr)
+	if err != nil {
+		return 0, err
+	}
+	if len(signature) < 8 || len(signature) > MAX_AUTH_BLOCK_LENGTH {
+		return 0, fmt.Errorf("签名长度错误: 应为 8-%d 字节", MAX_AUTH_BLOCK_LENGTH)
+	}
+
+	data, sw, err := r.TransmitCommand(INS_BLOB_DELETE, 0x00, 0x00, append(key, signature...))
+	if err != nil {
+		return 0, err
+	}
+	if sw == SW_RECORD_NOT_FOUND {
+		return 0, fmt.Errorf("数据块未找到 (状态码: 0x%04X)", sw)
+	} else if sw == SW_SIGNATURE_INVALID {
+		return 0, fmt.Errorf("签名无效 (状态码: 0x%04X)", sw)
+	} else if sw != SW_SUCCESS {
+		return 0, fmt.Errorf("删除数据块返回错误状态码: 0x%04X", sw)
+	}
+	if len(data) != 1 {
+		return 0, fmt.Errorf("删除数据块响应长度错误: %d", len(data))
+	}
+	return int(data[0]), nil
+}
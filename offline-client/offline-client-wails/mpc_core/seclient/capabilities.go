@@ -0,0 +1,114 @@
+package seclient
+
+import (
+	"encoding/binary"
+	"fmt"
+)
+
+// Capabilities SELECT响应中的能力与状态，旧版Applet不返回时为nil
+type Capabilities struct {
+	VersionMajor    int
+	VersionMinor    int
+	Instructions    []byte       // 芯片支持的INS
+	BatchStoreLimit int          // 批量存储单条命令的记录数上限
+	BatchReadLimit  int          // 批量读取单条命令的记录数上限
+	ListPageSize    int          // 记录目录每页条目上限
+	RecordCount     int          // 当前记录数
+	Capacity        int          // 记录容量
+	FreeMemory      uint32       // 剩余持久化存储字节数，可用于判断能否再分配新分段
+	MaxCommandData  int          // 单条命令拼接后的最大数据长度
+	DenseStorage    bool         // 紧凑存储模式，删除后记录可能换到其他槽位
+	RotateSlots     bool         // 轮转分配，写入分散到全部容量
+	Arena           *ArenaStatus // 变长消息区状态，旧版Applet为nil
+	BlobSlots       int          // 数据块数量上限，0表示芯片不支持数据块
+	BlobsUsed       int          // 已创建的数据块数量
+	BlobReadChunk   int          // 每条读取数据块命令返回的字节数上限
+}
+
+// Supports 判断芯片是否支持指定指令
+func (c *Capabilities) Supports(ins byte) bool {
+	for _, supported := range c.Instructions {
+		if supported == ins {
+			return true
+		}
+	}
+	return false
+}
+
+// FreeSlots 返回剩余可新增的记录数
+func (c *Capabilities) FreeSlots() int {
+	return c.Capacity - c.RecordCount
+}
+
+// parseCapabilities 解析SELECT响应中的TLV，每项为 [tag(1)][length(1)][value]，未知tag跳过
+func parseCapabilities(data []byte) (*Capabilities, error) {
+	if len(data) == 0 {
+		return nil, nil
+	}
+
+	caps := &Capabilities{}
+	for offset := 0; offset < len(data); {
+		if offset+2 > len(data) {
+			return nil, fmt.Errorf("能力TLV不完整")
+		}
+		tag := data[offset]
+		length := int(data[offset+1])
+		offset += 2
+		if offset+length > len(data) {
+			return nil, fmt.Errorf("能力TLV长度错误: tag 0x%02X", tag)
+		}
+		value := data[offset : offset+length]
+		offset += length
+
+		switch {
+		case tag == CAP_TAG_VERSION && length == 2:
+			caps.VersionMajor = int(value[0])
+			caps.VersionMinor = int(value[1])
+		case tag == CAP_TAG_INSTRUCTIONS:
+			caps.Instructions = append([]byte(nil), value...)
+		case tag == CAP_TAG_BATCH_LIMITS && length >= 3:
+			caps.BatchStoreLimit = int(value[0])
+			caps.BatchReadLimit = int(value[1])
+			caps.ListPageSize = int(value[2])
+		case tag == CAP_TAG_RECORD_COUNT && length == 2:
+			caps.RecordCount = int(binary.BigEndian.Uint16(value))
+		case tag == CAP_TAG_CAPACITY && length == 2:
+			caps.Capacity = int(binary.BigEndian.Uint16(value))
+		case tag == CAP_TAG_FREE_MEMORY && length == 4:
+			caps.FreeMemory = binary.BigEndian.Uint32(value)
+		case tag == CAP_TAG_MAX_DATA && length == 2:
+			caps.MaxCommandData = int(binary.BigEndian.Uint16(value))
+		case tag == CAP_TAG_STORAGE_FLAGS && length == 1:
+			caps.DenseStorage = value[0]&STORAGE_FLAG_DENSE != 0
+			caps.RotateSlots = value[0]&STORAGE_FLAG_ROTATE != 0
+		case tag == CAP_TAG_ARENA && length == 8:
+			caps.Arena = parseArenaStatus(value)
+		case tag == CAP_TAG_BLOBS && length == 4:
+			caps.BlobSlots = int(value[0])
+			caps.BlobsUsed = int(value[1])
+			caps.BlobReadChunk = int(binary.BigEndian.Uint16(value[2:4]))
+		}
+	}
+	return caps, nil
+}
+
+// Capabilities 返回最近一次选择Applet时芯片报告的能力，旧版Applet返回nil
+func (r *CardReader) Capabilities() *Capabilities {
+	return r.capabilities
+}
+
+// batchStoreLimit 返回批量存储每条命令的记录数，芯片未报告时使用默认值
+func (r *CardReader) batchStoreLimit() int {
+	if r.capabilities != nil && r.capabilities.BatchStoreLimit > 0 {
+		return r.capabilities.BatchStoreLimit
+	}
+	return MAX_BATCH_STORE_PER_COMMAND
+}
+
+// batchReadLimit 返回批量读取每条命令的记录数上限，芯片未报告时使用默认值
+func (r *CardReader) batchReadLimit() int {
+	if r.capabilities != nil && r.capabilities.BatchReadLimit > 0 {
+		return r.capabilities.BatchReadLimit
+	}
+	return MAX_BATCH_READ_PER_COMMAND
+}
@@ -11,11 +11,15 @@ import (
 
 // CardReader 结构体封装了与卡片交互的功能
 type CardReader struct {
-	context  *scard.Context
-	card     *scard.Card
-	protocol scard.Protocol
-	debug    bool   // 调试模式
-	cplcData []byte // 缓存CPLC数据
+	context        *scard.Context
+	card           *scard.Card
+	protocol       scard.Protocol
+	debug          bool          // 调试模式
+	cplcData       []byte        // 缓存CPLC数据
+	readerName     string        // 已连接的读卡器名称
+	slotHints      *SlotHints    // 槽位提示缓存，nil表示不使用
+	extendedLength bool          // 读卡器支持扩展长度APDU，否则长命令使用命令链
+	capabilities   *Capabilities // SELECT响应中的芯片能力，旧版Applet为nil
 }
 
 // CardReaderOption 是配置 CardReader 的选项函数类型
@@ -28,6 +32,20 @@ func WithDebug(debug bool) CardReaderOption {
 	}
 }
 
+// WithSlotHints 使用槽位提示缓存，READ/DELETE 会在 P1P2 携带 STORE 返回的槽位
+func WithSlotHints(hints *SlotHints) CardReaderOption {
+	return func(r *CardReader) {
+		r.slotHints = hints
+	}
+}
+
+// WithExtendedLength 长命令使用扩展长度APDU发送，读卡器不支持时保持默认的命令链方式
+func WithExtendedLength(enabled bool) CardReaderOption {
+	return func(r *CardReader) {
+		r.extendedLength = enabled
+	}
+}
+
 // NewCardReader 初始化读卡器
 func NewCardReader(opts ...CardReaderOption) (*CardReader, error) {
 	// 建立上下文
@@ -129,6 +147,7 @@ func (r *CardReader) Connect(readerName string) error {
 
 	r.card = card
 	r.protocol = card.ActiveProtocol()
+	r.readerName = selectedReader
 	if r.debug {
 		clog.Infof("成功连接到读卡器，使用协议: %v", r.protocol)
 	}
@@ -139,6 +158,7 @@ func (r *CardReader) Connect(readerName string) error {
 // SelectApplet 选择Applet
 func (r *CardReader) SelectApplet(aid []byte) error {
 	selectCmd := append([]byte{0x00, 0xA4, 0x04, 0x00, byte(len(aid))}, aid...)
+	selectCmd = append(selectCmd, 0x00) // Le: 取回能力TLV
 
 	if r.debug {
 		clog.Info("=== 选择Applet命令 ===")
@@ -150,6 +170,7 @@ func (r *CardReader) SelectApplet(aid []byte) error {
 		clog.Info("  P2: 0x00 (首次选择)")
 		clog.Infof("  Lc: 0x%02X (AID长度)", len(aid))
 		clog.Infof("  Data: %X (AID)", aid)
+		clog.Info("  Le: 0x00 (能力TLV)")
 	}
 
 	resp, err := r.card.Transmit(selectCmd)
@@ -158,9 +179,18 @@ func (r *CardReader) SelectApplet(aid []byte) error {
 	}
 
 	sw, data := extractResponseAndSW(resp)
+	data, sw, err = r.getRemainingResponse(data, sw)
+	if err != nil {
+		return err
+	}
 	if sw != SW_SUCCESS {
 		return fmt.Errorf("选择Applet返回错误状态码: 0x%04X", sw)
 	}
+	caps, err := parseCapabilities(data)
+	if err != nil {
+		return fmt.Errorf("解析Applet能力失败: %v", err)
+	}
+	r.capabilities = caps
 
 	if r.debug {
 		clog.Info("=== 选择Applet响应 ===")
@@ -168,11 +198,16 @@ func (r *CardReader) SelectApplet(aid []byte) error {
 		clog.Infof("状态码: 0x%04X (成功)", sw)
 		clog.Infof("数据: %X", data)
 		clog.Infof("成功选择Applet, AID: %X", aid)
+		if caps != nil {
+			clog.Infof("Applet版本: %d.%d, 记录数: %d/%d, 剩余存储: %d 字节",
+				caps.VersionMajor, caps.VersionMinor, caps.RecordCount, caps.Capacity, caps.FreeMemory)
+		}
 	}
 	return nil
 }
 
 // TransmitAPDU 直接发送APDU命令并返回响应
+// 芯片返回 61xx 时自动发送 GET RESPONSE 取回剩余数据并拼接
 func (r *CardReader) TransmitAPDU(command []byte) ([]byte, uint16, error) {
 	if r.debug {
 		clog.Info("=== 发送APDU命令 ===")
@@ -185,6 +220,10 @@ func (r *CardReader) TransmitAPDU(command []byte) ([]byte, uint16, error) {
 	}
 
 	sw, data := extractResponseAndSW(resp)
+	data, sw, err = r.getRemainingResponse(data, sw)
+	if err != nil {
+		return nil, 0, err
+	}
 
 	if r.debug {
 		clog.Infof("响应状态码: 0x%04X", sw)
@@ -193,3 +232,67 @@ func (r *CardReader) TransmitAPDU(command []byte) ([]byte, uint16, error) {
 
 	return data, sw, nil
 }
+
+// getRemainingResponse 状态码为 61xx 时循环发送 GET RESPONSE，返回拼接后的数据和最终状态码
+func (r *CardReader) getRemainingResponse(data []byte, sw uint16) ([]byte, uint16, error) {
+	for sw&0xFF00 == SW_BYTES_REMAINING {
+		getResponse := []byte{0x00, INS_GET_RESPONSE, 0x00, 0x00, byte(sw & 0xFF)}
+		resp, err := r.card.Transmit(getResponse)
+		if err != nil {
+			return nil, 0, fmt.Errorf("发送GET RESPONSE命令失败: %v", err)
+		}
+		var more []byte
+		sw, more = extractResponseAndSW(resp)
+		data = append(data, more...)
+	}
+	return data, sw, nil
+}
+
+// TransmitCommand 发送任意长度数据的命令
+// 数据不超过255字节时使用短APDU；更长的数据在启用扩展长度时用一条扩展APDU发送，
+// 否则按ISO 7816命令链拆分 (CLA位0x10)，中间分段芯片只返回9000
+func (r *CardReader) TransmitCommand(ins, p1, p2 byte, data []byte) ([]byte, uint16, error) {
+	if r.capabilities != nil && r.capabilities.MaxCommandData > 0 && len(data) > r.capabilities.MaxCommandData {
+		return nil, 0, fmt.Errorf("命令数据过长: %d 字节，芯片上限 %d 字节", len(data), r.capabilities.MaxCommandData)
+	}
+	if len(data) <= SHORT_APDU_MAX_DATA {
+		command := append([]byte{CLA, ins, p1, p2, byte(len(data))}, data...)
+		return r.TransmitAPDU(command)
+	}
+
+	if r.extendedLength {
+		return r.transmitExtended(ins, p1, p2, data)
+	}
+
+	for len(data) > SHORT_APDU_MAX_DATA {
+		block := append([]byte{CLA | CLA_CHAINING, ins, p1, p2, SHORT_APDU_MAX_DATA}, data[:SHORT_APDU_MAX_DATA]...)
+		_, sw, err := r.TransmitAPDU(block)
+		if err != nil {
+			return nil, 0, err
+		}
+		if sw != SW_SUCCESS {
+			return nil, sw, nil
+		}
+		data = data[SHORT_APDU_MAX_DATA:]
+	}
+	command := append([]byte{CLA, ins, p1, p2, byte(len(data))}, data...)
+	return r.TransmitAPDU(command)
+}
+
+// TransmitLongResponse 发送响应可能超过256字节的命令
+// 启用扩展长度时即使数据很短也使用扩展APDU，芯片一次返回整段响应，不需要 GET RESPONSE 往返
+func (r *CardReader) TransmitLongResponse(ins, p1, p2 byte, data []byte) ([]byte, uint16, error) {
+	if r.extendedLength && len(data) > 0 {
+		return r.transmitExtended(ins, p1, p2, data)
+	}
+	return r.TransmitCommand(ins, p1, p2, data)
+}
+
+// transmitExtended 用一条扩展长度APDU发送命令
+func (r *CardReader) transmitExtended(ins, p1, p2 byte, data []byte) ([]byte, uint16, error) {
+	// [CLA][INS][P1][P2][00][Lc(2)][data][Le(2)=0000 表示最多65536字节]
+	command := []byte{CLA, ins, p1, p2, 0x00, byte(len(data) >> 8), byte(len(data))}
+	command = append(command, data...)
+	command = append(command, 0x00, 0x00)
+	return r.TransmitAPDU(command)
+}
@@ -0,0 +1,252 @@
+package seclient
+
+import (
+	"bytes"
+	"encoding/hex"
+	"errors"
+	"fmt"
+
+	"offline-client-wails/mpc_core/clog"
+)
+
+// SealedShareMagic 芯片加密分片的格式标记，旧的主机AES-GCM分片以随机nonce开头
+var SealedShareMagic = []byte{'S', 'E', 'C', 0x01}
+
+// ErrCipherNotSupported 芯片不支持分片加解密 (没有AES或为旧版Applet)
+var ErrCipherNotSupported = errors.New("安全芯片不支持分片加解密 (状态码: 0x6A81)")
+
+// ErrShareTagMismatch 分片标签校验失败，密文被篡改或不属于该记录
+var ErrShareTagMismatch = errors.New("分片标签校验失败 (状态码: 0x6982)")
+
+// ErrShareAuthRequired 省略授权加密的记录不是刚以 GenerateAndStoreSecret 生成、尚未完成过加密的记录
+var ErrShareAuthRequired = errors.New("记录不是未封装的生成记录，加密需要授权 (状态码: 0x6982)")
+
+// sealedShareOverhead 芯片加密分片除密文外的字节数 [magic(4)][iv(16)] ... [tag(32)]
+const sealedShareOverhead = 4 + CIPHER_IV_LENGTH + CIPHER_TAG_LENGTH
+
+// IsSealedShare 判断数据是否为芯片加密的分片 [magic(4)][iv(16)][密文(16的整数倍)][tag(32)]
+func IsSealedShare(data []byte) bool {
+	cipherLength := len(data) - sealedShareOverhead
+	return bytes.HasPrefix(data, SealedShareMagic) && cipherLength > 0 && cipherLength%CIPHER_BLOCK_SIZE == 0
+}
+
+// CipherChunk 返回每条 CIPHER_UPDATE 携带的字节数
+// 启用扩展长度时按芯片报告的单条命令数据上限对齐到分组，否则取短APDU能一次收发的240字节
+func (r *CardReader) CipherChunk() int {
+	if r.extendedLength && r.capabilities != nil && r.capabilities.MaxCommandData >= CIPHER_BLOCK_SIZE {
+		return r.capabilities.MaxCommandData / CIPHER_BLOCK_SIZE * CIPHER_BLOCK_SIZE
+	}
+	return SHORT_APDU_MAX_DATA / CIPHER_BLOCK_SIZE * CIPHER_BLOCK_SIZE
+}
+
+// requireCipher 检查芯片是否列出分片加解密指令
+func (r *CardReader) requireCipher() error {
+	if caps := r.Capabilities(); caps == nil || !caps.Supports(INS_CIPHER_INIT) {
+		return ErrCipherNotSupported
+	}
+	return nil
+}
+
+// EncryptShare 用 record_id 和地址对应记录的消息派生的密钥，在芯片内加密分片
+// 主机按PKCS#7填充后分段发送，芯片原地返回密文，最后返回HMAC-SHA256标签。
+// signature 与 DecryptShare 相同；刚以 GenerateAndStoreSecret 生成的记录在第一次加密完成前可传 nil，
+// 其他记录省略授权时返回 ErrShareAuthRequired。
+// 返回 [magic(4)][iv(16)][密文][tag(32)]，只能由芯片经授权的 DecryptShare 解开
+func (r *CardReader) EncryptShare(recordID []byte, addr []byte, plaintext []byte, signature []byte) ([]byte, error) {
+	key, err := blobKey(recordID, addr)
+	if err != nil {
+		return nil, err
+	}
+	if len(plaintext) == 0 {
+		return nil, fmt.Errorf("分片不能为空")
+	}
+	if len(signature) != 0 && (len(signature) < 8 || len(signature) > MAX_AUTH_BLOCK_LENGTH) {
+		return nil, fmt.Errorf("签名长度错误: 应为 8-%d 字节", MAX_AUTH_BLOCK_LENGTH)
+	}
+	if err := r.requireCipher(); err != nil {
+		return nil, err
+	}
+
+	iv, sw, err := r.TransmitCommand(INS_CIPHER_INIT, CIPHER_ENCRYPT, 0x00, append(key, signature...))
+	if err != nil {
+		return nil, err
+	}
+	if sw == SW_SIGNATURE_INVALID && len(signature) == 0 {
+		return nil, ErrShareAuthRequired
+	}
+	if err := cipherStatus(sw); err != nil {
+		return nil, err
+	}
+	if len(iv) != CIPHER_IV_LENGTH {
+		return nil, fmt.Errorf("加密初始化响应长度错误: %d", len(iv))
+	}
+
+	padded := padShare(plaintext)
+	sealed := make([]byte, 0, len(padded)+sealedShareOverhead)
+	sealed = append(append(sealed, SealedShareMagic...), iv...)
+	chunk := r.CipherChunk()
+	commands := 1
+	for offset := 0; offset < len(padded); offset += chunk {
+		end := min(offset+chunk, len(padded))
+		out, sw, err := r.TransmitLongResponse(INS_CIPHER_UPDATE, 0x00, 0x00, padded[offset:end])
+		if err != nil {
+			return nil, err
+		}
+		if err := cipherStatus(sw); err != nil {
+			return nil, err
+		}
+		sealed = append(sealed, out...)
+		commands++
+	}
+
+	// 最后一段: [剩余密文][tag(32)]
+	tail, sw, err := r.TransmitCommand(INS_CIPHER_FINAL, 0x00, 0x00, nil)
+	if err != nil {
+		return nil, err
+	}
+	if err := cipherStatus(sw); err != nil {
+		return nil, err
+	}
+	sealed = append(sealed, tail...)
+	if len(sealed) != len(padded)+sealedShareOverhead {
+		return nil, fmt.Errorf("加密输出长度错误: %d，应为 %d", len(sealed), len(padded)+sealedShareOverhead)
+	}
+
+	if r.debug {
+		clog.Info("❕芯片内加密分片成功❕",
+			clog.String("record_id", hex.EncodeToString(recordID)),
+			clog.Int("字节数", len(plaintext)),
+			clog.Int("命令数", commands+1),
+		)
+	}
+	return sealed, nil
+}
+
+// DecryptShare 在芯片内解密 EncryptShare 生成的分片，记录的消息不离开芯片
+// signature 与 ReadData 相同，为 record_id||addr 的签名、会话标签 (对INS 0x86计算) 或Merkle证明。
+// 密文发送两遍: 第一遍芯片只校验标签，篡改的分片在此返回 ErrShareTagMismatch 且不会收到任何明文；
+// 第二遍返回明文并再次校验，两遍密文不一致时同样返回 ErrShareTagMismatch 并丢弃已收到的明文
+func (r *CardReader) DecryptShare(recordID []byte, addr []byte, sealed []byte, signature []byte) ([]byte, error) {
+	key, err := blobKey(recordID, addr)
+	if err != nil {
+		return nil, err
+	}
+	if !IsSealedShare(sealed) {
+		return nil, fmt.Errorf("分片格式错误: 不是芯片加密的分片")
+	}
+	if len(signature) < 8 || len(signature) > MAX_AUTH_BLOCK_LENGTH {
+		return nil, fmt.Errorf("签名长度错误: 应为 8-%d 字节", MAX_AUTH_BLOCK_LENGTH)
+	}
+	if err := r.requireCipher(); err != nil {
+		return nil, err
+	}
+
+	body := sealed[len(SealedShareMagic):]
+	iv := body[:CIPHER_IV_LENGTH]
+	ciphertext := body[CIPHER_IV_LENGTH : len(body)-CIPHER_TAG_LENGTH]
+	tag := body[len(body)-CIPHER_TAG_LENGTH:]
+
+	request := make([]byte, 0, BLOB_KEY_LENGTH+CIPHER_IV_LENGTH+len(signature))
+	request = append(append(append(request, key...), iv...), signature...)
+	_, sw, err := r.TransmitCommand(INS_CIPHER_INIT, CIPHER_DECRYPT, 0x00, request)
+	if err != nil {
+		return nil, err
+	}
+	if err := cipherStatus(sw); err != nil {
+		return nil, err
+	}
+
+	// 校验遍的响应为空，第二遍的响应是明文
+	if _, err := r.cipherPass(ciphertext, tag); err != nil {
+		return nil, err
+	}
+	padded, err := r.cipherPass(ciphertext, tag)
+	if err != nil {
+		return nil, err
+	}
+	if len(padded) != len(ciphertext) {
+		return nil, fmt.Errorf("解密输出长度错误: %d，应为 %d", len(padded), len(ciphertext))
+	}
+
+	// 标签已通过，填充错误只可能来自加密端
+	plaintext, err := unpadShare(padded)
+	if err != nil {
+		return nil, err
+	}
+
+	if r.debug {
+		clog.Info("❕芯片内解密分片成功❕",
+			clog.String("record_id", hex.EncodeToString(recordID)),
+			clog.Int("字节数", len(plaintext)),
+		)
+	}
+	return plaintext, nil
+}
+
+// cipherPass 分段发送一遍密文并以标签结束，返回这一遍收到的全部输出
+func (r *CardReader) cipherPass(ciphertext []byte, tag []byte) ([]byte, error) {
+	output := make([]byte, 0, len(ciphertext))
+	chunk := r.CipherChunk()
+	for offset := 0; offset < len(ciphertext); offset += chunk {
+		end := min(offset+chunk, len(ciphertext))
+		out, sw, err := r.TransmitLongResponse(INS_CIPHER_UPDATE, 0x00, 0x00, ciphertext[offset:end])
+		if err != nil {
+			return nil, err
+		}
+		if err := cipherStatus(sw); err != nil {
+			return nil, err
+		}
+		output = append(output, out...)
+	}
+
+	tail, sw, err := r.TransmitCommand(INS_CIPHER_FINAL, 0x00, 0x00, tag)
+	if err != nil {
+		return nil, err
+	}
+	if sw == SW_SIGNATURE_INVALID {
+		return nil, ErrShareTagMismatch
+	}
+	if err := cipherStatus(sw); err != nil {
+		return nil, err
+	}
+	return append(output, tail...), nil
+}
+
+// cipherStatus 把分片加解密命令的状态码转换为错误
+func cipherStatus(sw uint16) error {
+	switch sw {
+	case SW_SUCCESS:
+		return nil
+	case SW_SIGNATURE_INVALID:
+		return fmt.Errorf("签名无效 (状态码: 0x%04X)", sw)
+	case SW_RECORD_NOT_FOUND:
+		return fmt.Errorf("记录未找到 (状态码: 0x%04X)", sw)
+	case SW_FUNC_NOT_SUPPORTED:
+		return ErrCipherNotSupported
+	case SW_WRONG_DATA:
+		return fmt.Errorf("记录消息不是 %d 字节，不能用于分片加解密 (状态码: 0x%04X)", MESSAGE_LENGTH, sw)
+	case SW_CONDITIONS_NOT_MET:
+		return fmt.Errorf("分片加解密未初始化或已被中断 (状态码: 0x%04X)", sw)
+	}
+	return fmt.Errorf("分片加解密返回错误状态码: 0x%04X", sw)
+}
+
+// padShare PKCS#7填充到分组整数倍，整除时补一个完整分组
+func padShare(data []byte) []byte {
+	n := CIPHER_BLOCK_SIZE - len(data)%CIPHER_BLOCK_SIZE
+	padded := make([]byte, len(data), len(data)+n)
+	copy(padded, data)
+	return append(padded, bytes.Repeat([]byte{byte(n)}, n)...)
+}
+
+// unpadShare 去除PKCS#7填充
+func unpadShare(data []byte) ([]byte, error) {
+	if len(data) == 0 || len(data)%CIPHER_BLOCK_SIZE != 0 {
+		return nil, fmt.Errorf("分片填充错误")
+	}
+	n := int(data[len(data)-1])
+	if n == 0 || n > CIPHER_BLOCK_SIZE || !bytes.Equal(data[len(data)-n:], bytes.Repeat([]byte{byte(n)}, n)) {
+		return nil, fmt.Errorf("分片填充错误")
+	}
+	return data[:len(data)-n], nil
+}
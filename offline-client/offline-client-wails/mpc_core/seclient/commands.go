@@ -1,12 +1,16 @@
 package seclient
 
 import (
+	"encoding/binary"
 	"encoding/hex"
+	"errors"
 	"fmt"
 	"offline-client-wails/mpc_core/clog"
 )
 
 // StoreData 存储数据 - 简化接口，直接接收数据
+// 32字节的消息存放在槽位内；1-255字节的其他长度存放在芯片的变长消息区，
+// 消息区末尾空间不足但整理后足够时返回 ErrArenaNeedsCompaction
 func (r *CardReader) StoreData(recordID []byte, addr []byte, message []byte) (int, int, error) {
 	// 验证输入数据长度
 	if len(recordID) != RECORD_ID_LENGTH {
@@ -15,12 +19,12 @@ func (r *CardReader) StoreData(recordID []byte, addr []byte, message []byte) (in
 	if len(addr) != ADDR_LENGTH {
 		return 0, 0, fmt.Errorf("地址长度错误: 应为 %d 字节", ADDR_LENGTH)
 	}
-	if len(message) != MESSAGE_LENGTH {
-		return 0, 0, fmt.Errorf("消息长度错误: 应为 %d 字节", MESSAGE_LENGTH)
+	if len(message) == 0 || len(message) > MAX_VALUE_LENGTH {
+		return 0, 0, fmt.Errorf("消息长度错误: 应为 1-%d 字节", MAX_VALUE_LENGTH)
 	}
 
 	// 构造完整数据
-	fullData := make([]byte, 0, RECORD_ID_LENGTH+ADDR_LENGTH+MESSAGE_LENGTH)
+	fullData := make([]byte, 0, RECORD_ID_LENGTH+ADDR_LENGTH+len(message))
 	fullData = append(fullData, recordID...)
 	fullData = append(fullData, addr...)
 	fullData = append(fullData, message...)
@@ -33,12 +37,8 @@ func (r *CardReader) StoreData(recordID []byte, addr []byte, message []byte) (in
 		)
 	}
 
-	// 构建APDU命令
-	command := []byte{CLA, INS_STORE_DATA, 0x00, 0x00, byte(len(fullData))}
-	command = append(command, fullData...)
-
 	// 发送命令
-	data, sw, err := r.TransmitAPDU(command)
+	data, sw, err := r.TransmitCommand(INS_STORE_DATA, 0x00, 0x00, fullData)
 	if err != nil {
 		return 0, 0, err
 	}
@@ -47,6 +47,8 @@ func (r *CardReader) StoreData(recordID []byte, addr []byte, message []byte) (in
 	if sw != SW_SUCCESS {
 		if sw == SW_FILE_FULL {
 			return 0, 0, fmt.Errorf("存储失败: 存储空间已满 (状态码: 0x%04X)", sw)
+		} else if sw == SW_NEEDS_COMPACTION {
+			return 0, 0, ErrArenaNeedsCompaction
 		} else if sw == SW_WRONG_LENGTH {
 			return 0, 0, fmt.Errorf("存储失败: 数据长度错误 (状态码: 0x%04X)", sw)
 		}
@@ -54,12 +56,12 @@ func (r *CardReader) StoreData(recordID []byte, addr []byte, message []byte) (in
 	}
 
 	// 解析响应数据
-	if len(data) < 2 {
-		return 0, 0, fmt.Errorf("响应数据不完整")
+	recordIndex, recordCount, err := parseIndexAndCount(data)
+	if err != nil {
+		return 0, 0, err
 	}
 
-	recordIndex := int(data[0])
-	recordCount := int(data[1])
+	r.rememberSlot(recordID, addr, recordIndex)
 
 	if r.debug {
 		clog.Info("❕存储数据成功❕",
@@ -71,6 +73,194 @@ func (r *CardReader) StoreData(recordID []byte, addr []byte, message []byte) (in
 	return recordIndex, recordCount, nil
 }
 
+// ErrGenerateNotSupported 芯片没有随机数发生器或为旧版Applet，需由主机生成消息后用 StoreData 存储
+var ErrGenerateNotSupported = errors.New("安全芯片不支持卡内生成消息 (状态码: 0x6A81)")
+
+// ErrRecordExists 已存在相同 record_id 和地址的记录，GenerateAndStore 不覆盖已有消息
+var ErrRecordExists = errors.New("记录已存在 (状态码: 0x6A89)")
+
+// GenerateAndStore 由芯片的随机数发生器生成32字节消息并存为新记录，返回生成的消息、记录索引和记录总数
+// 消息只在本次响应中返回一次，之后与其他记录一样需要授权才能读取
+func (r *CardReader) GenerateAndStore(recordID []byte, addr []byte) ([]byte, int, int, error) {
+	return r.generateAndStore(recordID, addr, 0x00)
+}
+
+// GenerateAndStoreSecret 与 GenerateAndStore 相同，但芯片不返回生成的消息
+// 消息只用于芯片内的分片加解密 (EncryptShare / DecryptShare)，主机不经手密钥
+func (r *CardReader) GenerateAndStoreSecret(recordID []byte, addr []byte) (int, int, error) {
+	_, recordIndex, recordCount, err := r.generateAndStore(recordID, addr, GENERATE_KEEP_SECRET)
+	return recordIndex, recordCount, err
+}
+
+// generateAndStore 发送 GENERATE_AND_STORE，P1 为 GENERATE_KEEP_SECRET 时返回的消息为nil
+func (r *CardReader) generateAndStore(recordID []byte, addr []byte, p1 byte) ([]byte, int, int, error) {
+	if len(recordID) != RECORD_ID_LENGTH {
+		return nil, 0, 0, fmt.Errorf("record_id长度错误: 应为 %d 字节", RECORD_ID_LENGTH)
+	}
+	if len(addr) != ADDR_LENGTH {
+		return nil, 0, 0, fmt.Errorf("地址长度错误: 应为 %d 字节", ADDR_LENGTH)
+	}
+	if caps := r.Capabilities(); caps == nil || !caps.Supports(INS_GENERATE_AND_STORE) {
+		return nil, 0, 0, ErrGenerateNotSupported
+	}
+
+	fullData := make([]byte, 0, RECORD_ID_LENGTH+ADDR_LENGTH)
+	fullData = append(fullData, recordID...)
+	fullData = append(fullData, addr...)
+
+	if r.debug {
+		clog.Info("❕在安全芯片内生成并存储数据❕",
+			clog.String("record_id", hex.EncodeToString(recordID)),
+			clog.String("addr", hex.EncodeToString(addr)),
+		)
+	}
+
+	data, sw, err := r.TransmitCommand(INS_GENERATE_AND_STORE, p1, 0x00, fullData)
+	if err != nil {
+		return nil, 0, 0, err
+	}
+
+	if sw != SW_SUCCESS {
+		if sw == SW_RECORD_EXISTS {
+			return nil, 0, 0, ErrRecordExists
+		} else if sw == SW_FUNC_NOT_SUPPORTED {
+			return nil, 0, 0, ErrGenerateNotSupported
+		} else if sw == SW_FILE_FULL {
+			return nil, 0, 0, fmt.Errorf("存储失败: 存储空间已满 (状态码: 0x%04X)", sw)
+		} else if sw == SW_WRONG_LENGTH {
+			return nil, 0, 0, fmt.Errorf("存储失败: 数据长度错误 (状态码: 0x%04X)", sw)
+		}
+		return nil, 0, 0, fmt.Errorf("存储失败: 未知错误 (状态码: 0x%04X)", sw)
+	}
+
+	// 响应: [recordIndex(2)][recordCount(2)]，返回消息时后接 [message(32)]
+	var message []byte
+	if p1&GENERATE_KEEP_SECRET == 0 {
+		if len(data) < 4+MESSAGE_LENGTH {
+			return nil, 0, 0, fmt.Errorf("响应数据不完整")
+		}
+		message = make([]byte, MESSAGE_LENGTH)
+		copy(message, data[4:4+MESSAGE_LENGTH])
+	} else if len(data) < 4 {
+		return nil, 0, 0, fmt.Errorf("响应数据不完整")
+	}
+	recordIndex := int(binary.BigEndian.Uint16(data[0:2]))
+	recordCount := int(binary.BigEndian.Uint16(data[2:4]))
+
+	r.rememberSlot(recordID, addr, recordIndex)
+
+	if r.debug {
+		clog.Info("❕卡内生成并存储成功❕",
+			clog.Int("记录索引", recordIndex),
+			clog.Int("记录总数", recordCount),
+		)
+	}
+
+	return message, recordIndex, recordCount, nil
+}
+
+// BatchRecord 批量存储的一条记录
+type BatchRecord struct {
+	RecordID []byte
+	Addr     []byte
+	Message  []byte
+}
+
+// BatchStoreResult 批量存储中单条记录的结果
+type BatchStoreResult struct {
+	RecordIndex int  // 记录所在槽位，Full时无意义
+	Overwritten bool // 是否覆盖了已有记录
+	Full        bool // 存储空间已满，记录未写入
+}
+
+// BatchStoreData 批量存储数据 - 每条命令携带多条记录，芯片在一个事务中写入
+// 超过短APDU长度的命令通过扩展长度或命令链发送；芯片的单条命令上限较小时自动减少每条命令的记录数
+// 返回每条记录的结果和最后的记录总数；空间不足的记录以Full标记返回，不作为错误
+func (r *CardReader) BatchStoreData(records []BatchRecord) ([]BatchStoreResult, int, error) {
+	for i, rec := range records {
+		if len(rec.RecordID) != RECORD_ID_LENGTH {
+			return nil, 0, fmt.Errorf("第 %d 条记录 record_id长度错误: 应为 %d 字节", i, RECORD_ID_LENGTH)
+		}
+		if len(rec.Addr) != ADDR_LENGTH {
+			return nil, 0, fmt.Errorf("第 %d 条记录地址长度错误: 应为 %d 字节", i, ADDR_LENGTH)
+		}
+		if len(rec.Message) != MESSAGE_LENGTH {
+			return nil, 0, fmt.Errorf("第 %d 条记录消息长度错误: 应为 %d 字节", i, MESSAGE_LENGTH)
+		}
+	}
+
+	results := make([]BatchStoreResult, 0, len(records))
+	recordCount := 0
+	perCommand := r.batchStoreLimit()
+	for start := 0; start < len(records); start += perCommand {
+		end := start + perCommand
+		if end > len(records) {
+			end = len(records)
+		}
+		chunk := records[start:end]
+
+		// 构造数据: [count][record]*count
+		fullData := make([]byte, 0, 1+len(chunk)*RECORD_LENGTH)
+		fullData = append(fullData, byte(len(chunk)))
+		for _, rec := range chunk {
+			fullData = append(fullData, rec.RecordID...)
+			fullData = append(fullData, rec.Addr...)
+			fullData = append(fullData, rec.Message...)
+		}
+
+		if r.debug {
+			clog.Info("❕批量存储数据到安全芯片❕",
+				clog.Int("起始序号", start),
+				clog.Int("记录数", len(chunk)),
+			)
+		}
+
+		data, sw, err := r.TransmitCommand(INS_BATCH_STORE_DATA, 0x00, 0x00, fullData)
+		if err != nil {
+			return results, recordCount, err
+		}
+		if sw == SW_WRONG_DATA && len(chunk) > 1 {
+			// 超过芯片的单条命令上限，减半后重发本段
+			perCommand = len(chunk) / 2
+			start -= perCommand
+			continue
+		}
+		if sw != SW_SUCCESS {
+			if sw == SW_WRONG_LENGTH {
+				return results, recordCount, fmt.Errorf("批量存储失败: 数据长度错误 (状态码: 0x%04X)", sw)
+			}
+			return results, recordCount, fmt.Errorf("批量存储失败: 未知错误 (状态码: 0x%04X)", sw)
+		}
+
+		// 解析响应: [recordCount(2)] + [recordIndex(2)][status(1)] * count
+		if len(data) != 2+3*len(chunk) {
+			return results, recordCount, fmt.Errorf("批量存储响应长度错误: %d", len(data))
+		}
+		recordCount = int(binary.BigEndian.Uint16(data[0:2]))
+		for i, rec := range chunk {
+			item := data[2+3*i : 5+3*i]
+			result := BatchStoreResult{
+				RecordIndex: int(binary.BigEndian.Uint16(item[0:2])),
+				Overwritten: item[2] == BATCH_STATUS_OVERWRITTEN,
+				Full:        item[2] == BATCH_STATUS_FULL,
+			}
+			if !result.Full {
+				r.rememberSlot(rec.RecordID, rec.Addr, result.RecordIndex)
+			}
+			results = append(results, result)
+		}
+	}
+
+	if r.debug {
+		clog.Info("❕批量存储数据成功❕",
+			clog.Int("记录数", len(records)),
+			clog.Int("记录总数", recordCount),
+		)
+	}
+
+	return results, recordCount, nil
+}
+
 // ReadData 读取数据 - 简化接口，接收外部生成的签名
 func (r *CardReader) ReadData(recordID []byte, addr []byte, signature []byte) ([]byte, error) {
 	// 验证输入数据长度
@@ -80,8 +270,8 @@ func (r *CardReader) ReadData(recordID []byte, addr []byte, signature []byte) ([
 	if len(addr) != ADDR_LENGTH {
 		return nil, fmt.Errorf("地址长度错误: 应为 %d 字节", ADDR_LENGTH)
 	}
-	if len(signature) < 8 || len(signature) > MAX_SIGNATURE_LENGTH {
-		return nil, fmt.Errorf("签名长度错误: 应为 8-%d 字节", MAX_SIGNATURE_LENGTH)
+	if len(signature) < 8 || len(signature) > MAX_AUTH_BLOCK_LENGTH {
+		return nil, fmt.Errorf("签名长度错误: 应为 8-%d 字节", MAX_AUTH_BLOCK_LENGTH)
 	}
 
 	// 构造完整数据 - 包含签名
@@ -98,18 +288,16 @@ func (r *CardReader) ReadData(recordID []byte, addr []byte, signature []byte) ([
 		)
 	}
 
-	// 构建APDU命令
-	command := []byte{CLA, INS_READ_DATA, 0x00, 0x00, byte(len(fullData))}
-	command = append(command, fullData...)
-
-	// 发送命令
-	data, sw, err := r.TransmitAPDU(command)
+	// 构建APDU命令，P1P2为槽位提示
+	p1, p2 := r.slotHintP1P2(recordID, addr)
+	data, sw, err := r.TransmitCommand(INS_READ_DATA, p1, p2, fullData)
 	if err != nil {
 		return nil, err
 	}
 
 	// 处理响应状态
 	if sw == SW_RECORD_NOT_FOUND {
+		r.forgetSlot(recordID, addr)
 		return nil, fmt.Errorf("记录未找到 (状态码: 0x%04X)", sw)
 	} else if sw == SW_SIGNATURE_INVALID {
 		return nil, fmt.Errorf("签名无效 (状态码: 0x%04X)", sw)
@@ -125,6 +313,77 @@ func (r *CardReader) ReadData(recordID []byte, addr []byte, signature []byte) ([
 	return data, nil
 }
 
+// RecordKey 标识一条记录的 record_id 和地址
+type RecordKey struct {
+	RecordID []byte
+	Addr     []byte
+}
+
+// BatchReadData 批量读取数据 - 服务器对所有 record_id||addr 按顺序拼接后签名一次，芯片只验签一次
+// 签名覆盖整个列表，无法拆分到多条命令，记录数不能超过芯片报告的上限 (默认 MAX_BATCH_READ_PER_COMMAND)
+// 任意一条记录为变长消息时返回 ErrVariableLengthRecord，调用方改用 ReadData 逐条读取
+func (r *CardReader) BatchReadData(keys []RecordKey, signature []byte) ([][]byte, error) {
+	if limit := r.batchReadLimit(); len(keys) == 0 || len(keys) > limit {
+		return nil, fmt.Errorf("批量读取记录数错误: 应为 1-%d 条", limit)
+	}
+	for i, key := range keys {
+		if len(key.RecordID) != RECORD_ID_LENGTH {
+			return nil, fmt.Errorf("第 %d 条记录 record_id长度错误: 应为 %d 字节", i, RECORD_ID_LENGTH)
+		}
+		if len(key.Addr) != ADDR_LENGTH {
+			return nil, fmt.Errorf("第 %d 条记录地址长度错误: 应为 %d 字节", i, ADDR_LENGTH)
+		}
+	}
+	if len(signature) < 8 || len(signature) > MAX_SIGNATURE_LENGTH {
+		return nil, fmt.Errorf("签名长度错误: 应为 8-%d 字节", MAX_SIGNATURE_LENGTH)
+	}
+
+	// 构造数据: [count][record_id||addr]*count[signature]
+	fullData := make([]byte, 0, 1+len(keys)*(RECORD_ID_LENGTH+ADDR_LENGTH)+len(signature))
+	fullData = append(fullData, byte(len(keys)))
+	for _, key := range keys {
+		fullData = append(fullData, key.RecordID...)
+		fullData = append(fullData, key.Addr...)
+	}
+	fullData = append(fullData, signature...)
+
+	if r.debug {
+		clog.Info("❕批量读取数据从安全芯片❕",
+			clog.Int("记录数", len(keys)),
+			clog.String("signature", hex.EncodeToString(signature)),
+		)
+	}
+
+	data, sw, err := r.TransmitCommand(INS_BATCH_READ_DATA, 0x00, 0x00, fullData)
+	if err != nil {
+		return nil, err
+	}
+
+	if sw == SW_RECORD_NOT_FOUND {
+		return nil, fmt.Errorf("记录未找到 (状态码: 0x%04X)", sw)
+	} else if sw == SW_SIGNATURE_INVALID {
+		return nil, fmt.Errorf("签名无效 (状态码: 0x%04X)", sw)
+	} else if sw == SW_VARIABLE_LENGTH {
+		return nil, ErrVariableLengthRecord
+	} else if sw != SW_SUCCESS {
+		return nil, fmt.Errorf("批量读取数据返回错误状态码: 0x%04X", sw)
+	}
+
+	if len(data) != len(keys)*MESSAGE_LENGTH {
+		return nil, fmt.Errorf("批量读取响应长度错误: %d", len(data))
+	}
+	messages := make([][]byte, len(keys))
+	for i := range keys {
+		messages[i] = data[i*MESSAGE_LENGTH : (i+1)*MESSAGE_LENGTH]
+	}
+
+	if r.debug {
+		clog.Info("❕批量读取数据成功❕", clog.Int("记录数", len(keys)))
+	}
+
+	return messages, nil
+}
+
 // DeleteData 删除数据 - 简化接口，接收外部生成的签名
 func (r *CardReader) DeleteData(recordID []byte, addr []byte, signature []byte) (int, int, error) {
 	// 验证输入数据长度
@@ -134,8 +393,8 @@ func (r *CardReader) DeleteData(recordID []byte, addr []byte, signature []byte)
 	if len(addr) != ADDR_LENGTH {
 		return 0, 0, fmt.Errorf("地址长度错误: 应为 %d 字节", ADDR_LENGTH)
 	}
-	if len(signature) < 8 || len(signature) > MAX_SIGNATURE_LENGTH {
-		return 0, 0, fmt.Errorf("签名长度错误: 应为 8-%d 字节", MAX_SIGNATURE_LENGTH)
+	if len(signature) < 8 || len(signature) > MAX_AUTH_BLOCK_LENGTH {
+		return 0, 0, fmt.Errorf("签名长度错误: 应为 8-%d 字节", MAX_AUTH_BLOCK_LENGTH)
 	}
 
 	// 构造完整数据 - 包含签名
@@ -152,18 +411,16 @@ func (r *CardReader) DeleteData(recordID []byte, addr []byte, signature []byte)
 		)
 	}
 
-	// 构建APDU命令
-	command := []byte{CLA, INS_DELETE_DATA, 0x00, 0x00, byte(len(fullData))}
-	command = append(command, fullData...)
-
-	// 发送命令
-	data, sw, err := r.TransmitAPDU(command)
+	// 构建APDU命令，P1P2为槽位提示
+	p1, p2 := r.slotHintP1P2(recordID, addr)
+	data, sw, err := r.TransmitCommand(INS_DELETE_DATA, p1, p2, fullData)
 	if err != nil {
 		return 0, 0, err
 	}
 
 	// 处理响应状态
 	if sw == SW_RECORD_NOT_FOUND {
+		r.forgetSlot(recordID, addr)
 		return 0, 0, fmt.Errorf("记录未找到 (状态码: 0x%04X)", sw)
 	} else if sw == SW_SIGNATURE_INVALID {
 		return 0, 0, fmt.Errorf("签名无效 (状态码: 0x%04X)", sw)
@@ -171,14 +428,14 @@ func (r *CardReader) DeleteData(recordID []byte, addr []byte, signature []byte)
 		return 0, 0, fmt.Errorf("删除数据返回错误状态码: 0x%04X", sw)
 	}
 
+	r.forgetSlot(recordID, addr)
+
 	// 解析响应数据
-	if len(data) < 2 {
-		return 0, 0, fmt.Errorf("响应数据不完整")
+	recordIndex, remainingCount, err := parseIndexAndCount(data)
+	if err != nil {
+		return 0, 0, err
 	}
 
-	recordIndex := int(data[0])
-	remainingCount := int(data[1])
-
 	if r.debug {
 		clog.Info("❕删除数据成功❕",
 			clog.Int("记录索引", recordIndex),
@@ -188,6 +445,359 @@ func (r *CardReader) DeleteData(recordID []byte, addr []byte, signature []byte)
 	return recordIndex, remainingCount, nil
 }
 
+// RecordEntry 记录目录中的一条，不含消息数据
+type RecordEntry struct {
+	Slot     int
+	RecordID []byte
+	Addr     []byte
+}
+
+// ListRecords 列出一页记录目录，cursor 为开始查找的槽位 (首页为0)，maxEntries 为0时由芯片决定每页条数
+// 返回本页条目和下一页的游标，列完时游标为 LIST_END_CURSOR
+func (r *CardReader) ListRecords(cursor int, maxEntries int) ([]RecordEntry, int, error) {
+	if cursor < 0 || cursor >= LIST_END_CURSOR {
+		return nil, 0, fmt.Errorf("目录游标错误: %d", cursor)
+	}
+	if maxEntries < 0 || maxEntries > 0xFF {
+		return nil, 0, fmt.Errorf("每页条数错误: %d", maxEntries)
+	}
+
+	var payload []byte
+	if maxEntries > 0 {
+		payload = []byte{byte(maxEntries)}
+	}
+	data, sw, err := r.TransmitCommand(INS_LIST_RECORDS, byte(cursor>>8), byte(cursor), payload)
+	if err != nil {
+		return nil, 0, err
+	}
+	if sw != SW_SUCCESS {
+		return nil, 0, fmt.Errorf("列出记录目录返回错误状态码: 0x%04X", sw)
+	}
+
+	// 解析响应: [nextCursor(2)][count(1)] + [slot(2)][record_id(32)][addr(20)] * count
+	if len(data) < LIST_HEADER_LENGTH {
+		return nil, 0, fmt.Errorf("记录目录响应长度错误: %d", len(data))
+	}
+	next := int(binary.BigEndian.Uint16(data[0:2]))
+	count := int(data[2])
+	if len(data) != LIST_HEADER_LENGTH+count*LIST_ENTRY_LENGTH {
+		return nil, 0, fmt.Errorf("记录目录响应长度错误: %d", len(data))
+	}
+	entries := make([]RecordEntry, count)
+	for i := range entries {
+		item := data[LIST_HEADER_LENGTH+i*LIST_ENTRY_LENGTH : LIST_HEADER_LENGTH+(i+1)*LIST_ENTRY_LENGTH]
+		entries[i] = RecordEntry{
+			Slot:     int(binary.BigEndian.Uint16(item[0:2])),
+			RecordID: item[2 : 2+RECORD_ID_LENGTH],
+			Addr:     item[2+RECORD_ID_LENGTH:],
+		}
+		r.rememberSlot(entries[i].RecordID, entries[i].Addr, entries[i].Slot)
+	}
+
+	if r.debug {
+		clog.Info("❕列出记录目录❕",
+			clog.Int("游标", cursor),
+			clog.Int("条目数", count),
+			clog.Int("下一页游标", next),
+		)
+	}
+
+	return entries, next, nil
+}
+
+// ListAllRecords 逐页列出芯片上的全部记录目录
+func (r *CardReader) ListAllRecords() ([]RecordEntry, error) {
+	var all []RecordEntry
+	cursor := 0
+	for cursor != LIST_END_CURSOR {
+		entries, next, err := r.ListRecords(cursor, 0)
+		if err != nil {
+			return all, err
+		}
+		all = append(all, entries...)
+		cursor = next
+	}
+	return all, nil
+}
+
+// ListSortedRecords 按 record_id||addr 的无符号字节序列出一页以 prefix 开头的记录目录
+// after 为上一页最后一条的 record_id||addr，首页传 nil；maxEntries 为0时由芯片决定每页条数
+// 返回本页条目和本页之后仍匹配的记录数
+func (r *CardReader) ListSortedRecords(prefix []byte, after []byte, maxEntries int) ([]RecordEntry, int, error) {
+	if len(prefix) > LIST_KEY_LENGTH {
+		return nil, 0, fmt.Errorf("前缀过长: %d 字节，上限 %d 字节", len(prefix), LIST_KEY_LENGTH)
+	}
+	if len(after) != 0 && len(after) != LIST_KEY_LENGTH {
+		return nil, 0, fmt.Errorf("续传键长度错误: 应为 %d 字节", LIST_KEY_LENGTH)
+	}
+	if maxEntries < 0 || maxEntries > 0xFF {
+		return nil, 0, fmt.Errorf("每页条数错误: %d", maxEntries)
+	}
+
+	payload := make([]byte, 0, 2+len(prefix)+len(after))
+	payload = append(payload, byte(maxEntries), byte(len(prefix)))
+	payload = append(payload, prefix...)
+	payload = append(payload, after...)
+	data, sw, err := r.TransmitCommand(INS_LIST_SORTED, 0x00, 0x00, payload)
+	if err != nil {
+		return nil, 0, err
+	}
+	if sw != SW_SUCCESS {
+		return nil, 0, fmt.Errorf("有序列出记录目录返回错误状态码: 0x%04X", sw)
+	}
+
+	// 解析响应: [remaining(2)][count(1)] + [slot(2)][record_id(32)][addr(20)] * count
+	if len(data) < LIST_HEADER_LENGTH || len(data) != LIST_HEADER_LENGTH+int(data[2])*LIST_ENTRY_LENGTH {
+		return nil, 0, fmt.Errorf("记录目录响应长度错误: %d", len(data))
+	}
+	remaining := int(binary.BigEndian.Uint16(data[0:2]))
+	entries := make([]RecordEntry, int(data[2]))
+	for i := range entries {
+		item := data[LIST_HEADER_LENGTH+i*LIST_ENTRY_LENGTH : LIST_HEADER_LENGTH+(i+1)*LIST_ENTRY_LENGTH]
+		entries[i] = RecordEntry{
+			Slot:     int(binary.BigEndian.Uint16(item[0:2])),
+			RecordID: item[2 : 2+RECORD_ID_LENGTH],
+			Addr:     item[2+RECORD_ID_LENGTH:],
+		}
+		r.rememberSlot(entries[i].RecordID, entries[i].Addr, entries[i].Slot)
+	}
+
+	if r.debug {
+		clog.Info("❕有序列出记录目录❕",
+			clog.String("prefix", hex.EncodeToString(prefix)),
+			clog.Int("条目数", len(entries)),
+			clog.Int("剩余条目数", remaining),
+		)
+	}
+
+	return entries, remaining, nil
+}
+
+// ListRecordsByPrefix 按顺序列出 record_id||addr 以 prefix 开头的全部记录目录
+// 续传使用上一页最后一条的键，翻页期间有记录增删也不会重复或遗漏未变化的记录
+func (r *CardReader) ListRecordsByPrefix(prefix []byte) ([]RecordEntry, error) {
+	var all []RecordEntry
+	var after []byte
+	for {
+		entries, remaining, err := r.ListSortedRecords(prefix, after, 0)
+		if err != nil {
+			return all, err
+		}
+		all = append(all, entries...)
+		if remaining == 0 || len(entries) == 0 {
+			return all, nil
+		}
+		last := entries[len(entries)-1]
+		after = append(append([]byte{}, last.RecordID...), last.Addr...)
+	}
+}
+
+// AddrRecord 按地址读取返回的一条记录
+type AddrRecord struct {
+	Slot     int
+	RecordID []byte
+	Message  []byte
+}
+
+// ReadByAddr 读取某地址下的全部记录，signature 为服务器对 INS_READ_BY_ADDR||addr 的签名
+// 记录较多时芯片分页返回，同一签名重发命中芯片授权缓存，只需一次ECDSA验证
+// 本页遇到变长消息时返回已读到的记录和 ErrVariableLengthRecord
+func (r *CardReader) ReadByAddr(addr []byte, signature []byte) ([]AddrRecord, error) {
+	if len(addr) != ADDR_LENGTH {
+		return nil, fmt.Errorf("地址长度错误: 应为 %d 字节", ADDR_LENGTH)
+	}
+	if len(signature) < 8 || len(signature) > MAX_SIGNATURE_LENGTH {
+		return nil, fmt.Errorf("签名长度错误: 应为 8-%d 字节", MAX_SIGNATURE_LENGTH)
+	}
+
+	fullData := make([]byte, 0, ADDR_LENGTH+len(signature))
+	fullData = append(fullData, addr...)
+	fullData = append(fullData, signature...)
+
+	var records []AddrRecord
+	skip := 0
+	for skip != LIST_END_CURSOR {
+		data, sw, err := r.TransmitCommand(INS_READ_BY_ADDR, byte(skip>>8), byte(skip), fullData)
+		if err != nil {
+			return records, err
+		}
+		if sw == SW_RECORD_NOT_FOUND {
+			return records, fmt.Errorf("记录未找到 (状态码: 0x%04X)", sw)
+		} else if sw == SW_SIGNATURE_INVALID {
+			return records, fmt.Errorf("签名无效 (状态码: 0x%04X)", sw)
+		} else if sw == SW_VARIABLE_LENGTH {
+			return records, ErrVariableLengthRecord
+		} else if sw != SW_SUCCESS {
+			return records, fmt.Errorf("按地址读取返回错误状态码: 0x%04X", sw)
+		}
+
+		// 解析响应: [nextSkip(2)][count(1)] + [slot(2)][record_id(32)][message(32)] * count
+		if len(data) < LIST_HEADER_LENGTH || len(data) != LIST_HEADER_LENGTH+int(data[2])*ADDR_READ_ENTRY_LENGTH {
+			return records, fmt.Errorf("按地址读取响应长度错误: %d", len(data))
+		}
+		for offset := LIST_HEADER_LENGTH; offset < len(data); offset += ADDR_READ_ENTRY_LENGTH {
+			item := data[offset : offset+ADDR_READ_ENTRY_LENGTH]
+			record := AddrRecord{
+				Slot:     int(binary.BigEndian.Uint16(item[0:2])),
+				RecordID: item[2 : 2+RECORD_ID_LENGTH],
+				Message:  item[2+RECORD_ID_LENGTH:],
+			}
+			r.rememberSlot(record.RecordID, addr, record.Slot)
+			records = append(records, record)
+		}
+		skip = int(binary.BigEndian.Uint16(data[0:2]))
+	}
+
+	if r.debug {
+		clog.Info("❕按地址读取成功❕",
+			clog.String("addr", hex.EncodeToString(addr)),
+			clog.Int("记录数", len(records)),
+		)
+	}
+
+	return records, nil
+}
+
+// DeleteByAddr 删除某地址下的全部记录，signature 为服务器对 INS_DELETE_BY_ADDR||addr 的签名
+// 芯片每条命令在一个事务内最多删除批量上限条，有剩余时重发同一命令
+// 返回删除的记录数和剩余记录数
+func (r *CardReader) DeleteByAddr(addr []byte, signature []byte) (int, int, error) {
+	if len(addr) != ADDR_LENGTH {
+		return 0, 0, fmt.Errorf("地址长度错误: 应为 %d 字节", ADDR_LENGTH)
+	}
+	if len(signature) < 8 || len(signature) > MAX_SIGNATURE_LENGTH {
+		return 0, 0, fmt.Errorf("签名长度错误: 应为 8-%d 字节", MAX_SIGNATURE_LENGTH)
+	}
+
+	fullData := make([]byte, 0, ADDR_LENGTH+len(signature))
+	fullData = append(fullData, addr...)
+	fullData = append(fullData, signature...)
+
+	deleted, remaining := 0, 0
+	for more := true; more; {
+		data, sw, err := r.TransmitCommand(INS_DELETE_BY_ADDR, 0x00, 0x00, fullData)
+		if err != nil {
+			return deleted, remaining, err
+		}
+		if sw == SW_RECORD_NOT_FOUND && deleted == 0 {
+			return 0, 0, fmt.Errorf("记录未找到 (状态码: 0x%04X)", sw)
+		} else if sw == SW_SIGNATURE_INVALID {
+			return deleted, remaining, fmt.Errorf("签名无效 (状态码: 0x%04X)", sw)
+		} else if sw != SW_SUCCESS {
+			return deleted, remaining, fmt.Errorf("按地址删除返回错误状态码: 0x%04X", sw)
+		}
+
+		// 解析响应: [deleted(1)][more(1)][recordCount(2)]
+		if len(data) != 4 {
+			return deleted, remaining, fmt.Errorf("按地址删除响应长度错误: %d", len(data))
+		}
+		deleted += int(data[0])
+		more = data[1] != 0
+		remaining = int(binary.BigEndian.Uint16(data[2:4]))
+	}
+
+	if r.debug {
+		clog.Info("❕按地址删除成功❕",
+			clog.String("addr", hex.EncodeToString(addr)),
+			clog.Int("删除记录数", deleted),
+			clog.Int("剩余记录数", remaining),
+		)
+	}
+
+	return deleted, remaining, nil
+}
+
+// OpenSessionChallenge 建立会话第一步 - 芯片生成临时EC密钥对并返回公钥 (65字节)
+// 公钥需转交服务器，由服务器返回其临时公钥和签名
+func (r *CardReader) OpenSessionChallenge() ([]byte, error) {
+	command := []byte{CLA, INS_OPEN_SESSION, SESSION_STEP_CHALLENGE, 0x00, 0x00}
+
+	data, sw, err := r.TransmitAPDU(command)
+	if err != nil {
+		return nil, err
+	}
+	if sw == SW_FUNC_NOT_SUPPORTED {
+		return nil, fmt.Errorf("芯片不支持会话授权 (状态码: 0x%04X)", sw)
+	} else if sw != SW_SUCCESS {
+		return nil, fmt.Errorf("获取会话挑战返回错误状态码: 0x%04X", sw)
+	}
+	if len(data) != EC_POINT_LENGTH {
+		return nil, fmt.Errorf("芯片临时公钥长度错误: %d", len(data))
+	}
+
+	if r.debug {
+		clog.Info("❕获取会话挑战成功❕", clog.String("card_public_key", hex.EncodeToString(data)))
+	}
+	return data, nil
+}
+
+// OpenSessionGrant 建立会话第二步 - 提交服务器临时公钥和对 cardPublicKey||serverPublicKey 的签名
+// 成功后返回会话允许的最大操作数，之后的读取和删除可以使用服务器生成的会话授权块代替签名
+func (r *CardReader) OpenSessionGrant(serverPublicKey []byte, signature []byte) (int, error) {
+	if len(serverPublicKey) != EC_POINT_LENGTH {
+		return 0, fmt.Errorf("服务器临时公钥长度错误: 应为 %d 字节", EC_POINT_LENGTH)
+	}
+	if len(signature) < 8 || len(signature) > MAX_SIGNATURE_LENGTH {
+		return 0, fmt.Errorf("签名长度错误: 应为 8-%d 字节", MAX_SIGNATURE_LENGTH)
+	}
+
+	fullData := make([]byte, 0, EC_POINT_LENGTH+len(signature))
+	fullData = append(fullData, serverPublicKey...)
+	fullData = append(fullData, signature...)
+
+	data, sw, err := r.TransmitCommand(INS_OPEN_SESSION, SESSION_STEP_GRANT, 0x00, fullData)
+	if err != nil {
+		return 0, err
+	}
+	if sw == SW_SIGNATURE_INVALID {
+		return 0, fmt.Errorf("会话授权签名无效 (状态码: 0x%04X)", sw)
+	} else if sw == SW_CONDITIONS_NOT_MET {
+		return 0, fmt.Errorf("未获取会话挑战 (状态码: 0x%04X)", sw)
+	} else if sw != SW_SUCCESS {
+		return 0, fmt.Errorf("建立会话返回错误状态码: 0x%04X", sw)
+	}
+	if len(data) < 2 {
+		return 0, fmt.Errorf("响应数据不完整")
+	}
+	maxOps := int(binary.BigEndian.Uint16(data[0:2]))
+
+	if r.debug {
+		clog.Info("❕建立会话成功❕", clog.Int("最大操作数", maxOps))
+	}
+	return maxOps, nil
+}
+
+// LoadAuthRoot 加载服务器签名的Merkle授权根，签名数据为 0x4D||ops||root
+// 成功后本次选择期间的读取和删除可以使用服务器生成的包含证明代替签名
+func (r *CardReader) LoadAuthRoot(ops byte, root []byte, signature []byte) error {
+	if len(root) != MERKLE_ROOT_LENGTH {
+		return fmt.Errorf("根哈希长度错误: 应为 %d 字节", MERKLE_ROOT_LENGTH)
+	}
+	if len(signature) < 8 || len(signature) > MAX_SIGNATURE_LENGTH {
+		return fmt.Errorf("签名长度错误: 应为 8-%d 字节", MAX_SIGNATURE_LENGTH)
+	}
+
+	fullData := make([]byte, 0, 1+MERKLE_ROOT_LENGTH+len(signature))
+	fullData = append(fullData, ops)
+	fullData = append(fullData, root...)
+	fullData = append(fullData, signature...)
+
+	_, sw, err := r.TransmitCommand(INS_LOAD_AUTH_ROOT, 0x00, 0x00, fullData)
+	if err != nil {
+		return err
+	}
+	if sw == SW_SIGNATURE_INVALID {
+		return fmt.Errorf("授权根签名无效 (状态码: 0x%04X)", sw)
+	} else if sw != SW_SUCCESS {
+		return fmt.Errorf("加载授权根返回错误状态码: 0x%04X", sw)
+	}
+
+	if r.debug {
+		clog.Info("❕加载授权根成功❕", clog.String("root", hex.EncodeToString(root)))
+	}
+	return nil
+}
+
 // GetCPLC 获取CPLC数据
 func (r *CardReader) GetCPLC() ([]byte, error) {
 	if r.cplcData != nil {
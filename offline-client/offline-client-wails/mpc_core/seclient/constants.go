@@ -2,25 +2,141 @@ package seclient
 
 // APDU指令常量
 const (
-	CLA             = 0x80 // 命令类
-	INS_STORE_DATA  = 0x10 // 存储数据命令
-	INS_READ_DATA   = 0x20 // 读取数据命令
-	INS_DELETE_DATA = 0x30 // 删除数据命令
-	INS_GET_CPLC    = 0xCA // 获取CPLC命令
+	CLA                    = 0x80 // 命令类
+	INS_STORE_DATA         = 0x10 // 存储数据命令
+	INS_BATCH_STORE_DATA   = 0x11 // 批量存储数据命令
+	INS_GENERATE_AND_STORE = 0x12 // 在芯片内生成随机消息并存储命令
+	INS_READ_DATA          = 0x20 // 读取数据命令
+	INS_BATCH_READ_DATA    = 0x21 // 批量读取数据命令
+	INS_READ_BY_ADDR       = 0x23 // 按地址读取全部记录命令，P1P2为跳过条数
+	INS_DELETE_DATA        = 0x30 // 删除数据命令
+	INS_DELETE_BY_ADDR     = 0x33 // 按地址删除全部记录命令
+	INS_OPEN_SESSION       = 0x40 // 建立会话命令，P1区分步骤
+	INS_LOAD_AUTH_ROOT     = 0x42 // 加载签名的Merkle授权根命令
+	INS_LIST_RECORDS       = 0x50 // 分页列出记录目录命令，P1P2为游标
+	INS_LIST_SORTED        = 0x51 // 按 record_id||addr 顺序列出记录目录命令
+	INS_GET_METRICS        = 0x60 // 读取运行计数命令
+	INS_RESET_METRICS      = 0x61 // 清零运行计数命令 (需签名)
+	INS_GET_SLOT_WEAR      = 0x62 // 分页读取各槽位写入次数命令，P1P2为起始槽位
+	INS_COMPACT_ARENA      = 0x70 // 整理变长消息区命令 (需签名)
+	INS_BLOB_CREATE        = 0x80 // 创建数据块命令
+	INS_BLOB_UPDATE        = 0x81 // 按偏移写入数据块命令，P1P2为偏移
+	INS_BLOB_FINALIZE      = 0x82 // 封存数据块并计算摘要命令
+	INS_BLOB_READ          = 0x83 // 按偏移读取数据块命令，P1P2为偏移 (需授权)
+	INS_BLOB_DELETE        = 0x84 // 删除数据块命令 (需授权)
+	INS_BLOB_INFO          = 0x85 // 查询数据块长度、状态和摘要命令
+	INS_CIPHER_INIT        = 0x86 // 开始分片加解密命令，P1区分方向 (解密需授权)
+	INS_CIPHER_UPDATE      = 0x87 // 加解密一段分片数据命令
+	INS_CIPHER_FINAL       = 0x88 // 结束分片加解密并生成或校验标签命令
+	INS_GET_CPLC           = 0xCA // 获取CPLC命令
+	INS_GET_RESPONSE       = 0xC0 // 取回剩余响应数据命令
+	CLA_CHAINING           = 0x10 // CLA命令链位，表示后面还有分段
 
 	// 状态码
-	SW_SUCCESS           = 0x9000 // 成功
-	SW_RECORD_NOT_FOUND  = 0x6A83 // 记录未找到
-	SW_FILE_FULL         = 0x6A84 // 文件已满
-	SW_WRONG_LENGTH      = 0x6700 // 长度错误
-	SW_SIGNATURE_INVALID = 0x6982 // 签名无效
+	SW_SUCCESS            = 0x9000 // 成功
+	SW_RECORD_NOT_FOUND   = 0x6A83 // 记录未找到
+	SW_FILE_FULL          = 0x6A84 // 文件已满
+	SW_WRONG_LENGTH       = 0x6700 // 长度错误
+	SW_SIGNATURE_INVALID  = 0x6982 // 签名无效
+	SW_CONDITIONS_NOT_MET = 0x6985 // 使用条件不满足
+	SW_NEEDS_COMPACTION   = 0x6985 // STORE_DATA: 变长消息区末尾空间不足，需先整理
+	SW_VARIABLE_LENGTH    = 0x6981 // 批量读取/按地址读取遇到变长消息，需改用单条读取
+	SW_FUNC_NOT_SUPPORTED = 0x6A81 // 功能不支持
+	SW_WRONG_DATA         = 0x6A80 // 数据错误，批量命令记录数超过芯片上限时返回
+	SW_BYTES_REMAINING    = 0x6100 // 61xx: 还有xx字节待GET RESPONSE取回
+	SW_WRONG_P1P2         = 0x6B00 // P1P2错误，数据块偏移越界时返回
+	SW_RECORD_EXISTS      = 0x6A89 // 记录已存在，卡内生成命令不覆盖已有记录
 
 	// 固定长度常量
-	RECORD_ID_LENGTH     = 32 // record_id长度
-	ADDR_LENGTH          = 20 // 地址长度
-	MESSAGE_LENGTH       = 32 // 消息长度
-	MAX_SIGNATURE_LENGTH = 72 // DER格式签名最大长度
-	MIN_SIGNATURE_LENGTH = 70 // DER格式签名最小长度
+	RECORD_ID_LENGTH      = 32                        // record_id长度
+	ADDR_LENGTH           = 20                        // 地址长度
+	MESSAGE_LENGTH        = 32                        // 定长消息长度，批量命令只支持此长度
+	MAX_VALUE_LENGTH      = 255                       // 变长消息最大长度，需芯片启用变长消息区
+	MAX_SIGNATURE_LENGTH  = 72                        // DER格式签名最大长度
+	MIN_SIGNATURE_LENGTH  = 70                        // DER格式签名最小长度
+	MAX_AUTH_BLOCK_LENGTH = 4 + 16*MERKLE_ROOT_LENGTH // 读取/删除授权块最大长度，16层Merkle证明
+	RECORD_LENGTH         = RECORD_ID_LENGTH + ADDR_LENGTH + MESSAGE_LENGTH
+
+	// 长命令常量
+	SHORT_APDU_MAX_DATA = 255 // 短APDU单条命令的最大数据长度，超过时使用扩展长度或命令链
+
+	// 批量存储常量
+	MAX_BATCH_STORE_PER_COMMAND = 12 // 批量存储单条命令的记录数，芯片事务缓冲区较小时按 SW_WRONG_DATA 减半重试
+	MAX_BATCH_READ_PER_COMMAND  = 16 // 批量读取单条命令可容纳的记录数
+
+	// 会话授权常量
+	SESSION_STEP_CHALLENGE = 0x00 // OPEN_SESSION P1: 获取芯片临时公钥
+	SESSION_STEP_GRANT     = 0x01 // OPEN_SESSION P1: 提交服务器签名的会话授权
+	EC_POINT_LENGTH        = 65   // 未压缩EC公钥长度
+	SESSION_AUTH_TAG       = 0xA1 // 会话授权块类型
+	SESSION_AUTH_LENGTH    = 35   // 会话授权块长度 [0xA1][counter(2)][tag(32)]
+
+	// Merkle授权常量
+	MERKLE_OP_READ     = 0x01 // 根授权操作位: 读取
+	MERKLE_OP_DELETE   = 0x02 // 根授权操作位: 删除
+	MERKLE_ROOT_LENGTH = 32   // 根哈希长度
+
+	// SELECT响应能力TLV标签
+	CAP_TAG_VERSION       = 0x80 // 版本 [major(1)][minor(1)]
+	CAP_TAG_INSTRUCTIONS  = 0x81 // 支持的INS列表
+	CAP_TAG_BATCH_LIMITS  = 0x82 // [batchStore(1)][batchRead(1)][listPage(1)]
+	CAP_TAG_RECORD_COUNT  = 0x83 // 当前记录数(2)
+	CAP_TAG_CAPACITY      = 0x84 // 记录容量(2)
+	CAP_TAG_FREE_MEMORY   = 0x85 // 剩余持久化存储字节数(4)
+	CAP_TAG_MAX_DATA      = 0x86 // 单条命令拼接后的最大数据长度(2)
+	CAP_TAG_STORAGE_FLAGS = 0x87 // 存储模式标志(1)
+	CAP_TAG_ARENA         = 0x88 // 变长消息区 [size(2)][top(2)][garbage(2)][epoch(2)]
+	CAP_TAG_BLOBS         = 0x89 // 数据块 [slots(1)][used(1)][readChunk(2)]
+
+	STORAGE_FLAG_DENSE  = 0x01 // 紧凑存储模式，删除会移动最后一条记录，旧槽位提示可能失效
+	STORAGE_FLAG_ROTATE = 0x02 // 轮转分配，整个容量写过一轮后才复用释放的槽位
+
+	// 变长消息区常量
+	ARENA_COMPACT_DOMAIN = 0x43 // 整理签名数据的首字节
+
+	// 数据块常量
+	BLOB_KEY_LENGTH    = RECORD_ID_LENGTH + ADDR_LENGTH // 数据块键 record_id||addr 长度
+	BLOB_MAX_SIZE      = 32767                          // 单个数据块字节数上限
+	BLOB_STATE_WRITING = 0x01                           // 数据块状态: 写入中
+	BLOB_STATE_SEALED  = 0x02                           // 数据块状态: 已封存，摘要有效
+	BLOB_DIGEST_LENGTH = 32                             // 数据块SHA-256摘要长度
+	BLOB_DEFAULT_CHUNK = 1024                           // 芯片未报告时每条读取命令返回的字节数上限
+
+	// 分片加解密常量
+	CIPHER_ENCRYPT       = 0x01 // CIPHER_INIT P1: 加密，芯片生成IV
+	CIPHER_DECRYPT       = 0x02 // CIPHER_INIT P1: 解密，需授权
+	CIPHER_BLOCK_SIZE    = 16   // AES分组长度，分段和填充后的明文按此对齐
+	CIPHER_IV_LENGTH     = 16   // CBC初始向量长度
+	CIPHER_TAG_LENGTH    = 32   // HMAC-SHA256标签长度
+	GENERATE_KEEP_SECRET = 0x01 // GENERATE_AND_STORE P1位: 芯片不返回生成的消息
+
+	// 记录目录常量
+	LIST_HEADER_LENGTH = 3      // 目录响应头 [nextCursor(2)][count(1)]
+	LIST_ENTRY_LENGTH  = 54     // 目录条目 [slot(2)][record_id(32)][addr(20)]
+	LIST_END_CURSOR    = 0xFFFF // nextCursor: 已列完
+	LIST_KEY_LENGTH    = 52     // 有序列出的前缀和续传键上限 record_id||addr
+
+	// 槽位写入次数常量
+	WEAR_ENTRY_LENGTH = 2      // 条目 [writes(2)]，按槽位号连续排列
+	WEAR_SATURATED    = 0xFFFF // 写入次数达到此值后不再增长
+
+	// 按地址读取常量
+	ADDR_READ_ENTRY_LENGTH = 66 // 条目 [slot(2)][record_id(32)][message(32)]
+
+	// GET_METRICS 条目id，其余条目的id为指令INS
+	METRIC_VERIFY_OK       = 0x01 // ECDSA验证通过次数
+	METRIC_VERIFY_FAILED   = 0x02 // ECDSA验证失败次数
+	METRIC_AUTH_CACHE_HITS = 0x03 // 授权缓存命中次数
+	METRIC_NVM_BYTES       = 0x04 // 写入记录数据的字节数
+	METRIC_INSERTS         = 0x05 // 新增记录次数
+	METRIC_OVERWRITES      = 0x06 // 覆盖已有记录次数
+	METRIC_OTHER_INS       = 0x07 // 不支持的指令和GET RESPONSE次数
+	METRIC_UNCHANGED       = 0x08 // 覆盖时消息未变、跳过写入的次数
+
+	// 批量存储条目状态
+	BATCH_STATUS_INSERTED    = 0x00 // 新增
+	BATCH_STATUS_OVERWRITTEN = 0x01 // 覆盖已有记录
+	BATCH_STATUS_FULL        = 0x02 // 存储空间已满，未写入
 )
 
 // CPLC命令数据
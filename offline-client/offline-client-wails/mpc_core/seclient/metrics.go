@@ -0,0 +1,149 @@
+package seclient
+
+import (
+	"encoding/binary"
+	"fmt"
+
+	"offline-client-wails/mpc_core/clog"
+)
+
+// Metrics 芯片上的持久化运行计数
+// 计数增量先累计在芯片RAM中，每16条命令和取消选择时写回，拔卡时最多丢失最近16条命令的计数
+type Metrics struct {
+	Epoch  int             // 清零次数，清零授权签名须覆盖当前值
+	Values map[byte]uint32 // 条目id -> 计数，id为 METRIC_* 或指令INS；达到最大值后不再增长
+}
+
+// Instruction 返回指定指令的执行次数
+func (m *Metrics) Instruction(ins byte) uint32 {
+	return m.Values[ins]
+}
+
+// GetMetrics 读取芯片的运行计数
+func (r *CardReader) GetMetrics() (*Metrics, error) {
+	data, sw, err := r.TransmitCommand(INS_GET_METRICS, 0x00, 0x00, nil)
+	if err != nil {
+		return nil, err
+	}
+	if sw != SW_SUCCESS {
+		return nil, fmt.Errorf("读取运行计数返回错误状态码: 0x%04X", sw)
+	}
+
+	// 解析响应: [epoch(2)][count(1)] + [id(1)][value(4)] * count
+	if len(data) < 3 || len(data) != 3+5*int(data[2]) {
+		return nil, fmt.Errorf("运行计数响应长度错误: %d", len(data))
+	}
+	metrics := &Metrics{
+		Epoch:  int(binary.BigEndian.Uint16(data[0:2])),
+		Values: make(map[byte]uint32, int(data[2])),
+	}
+	for offset := 3; offset < len(data); offset += 5 {
+		metrics.Values[data[offset]] = binary.BigEndian.Uint32(data[offset+1 : offset+5])
+	}
+
+	if r.debug {
+		clog.Info("❕读取运行计数成功❕",
+			clog.Int("epoch", metrics.Epoch),
+			clog.Int("条目数", len(metrics.Values)),
+		)
+	}
+
+	return metrics, nil
+}
+
+// ResetMetrics 清零芯片的运行计数，signature 为服务器对 0x52||epoch 的签名
+// 返回清零后的 epoch
+func (r *CardReader) ResetMetrics(epoch int, signature []byte) (int, error) {
+	if epoch < 0 || epoch > 0xFFFF {
+		return 0, fmt.Errorf("epoch错误: %d", epoch)
+	}
+	if len(signature) < 8 || len(signature) > MAX_SIGNATURE_LENGTH {
+		return 0, fmt.Errorf("签名长度错误: 应为 8-%d 字节", MAX_SIGNATURE_LENGTH)
+	}
+
+	fullData := make([]byte, 0, 2+len(signature))
+	fullData = append(fullData, byte(epoch>>8), byte(epoch))
+	fullData = append(fullData, signature...)
+
+	data, sw, err := r.TransmitCommand(INS_RESET_METRICS, 0x00, 0x00, fullData)
+	if err != nil {
+		return 0, err
+	}
+	if sw == SW_SIGNATURE_INVALID {
+		return 0, fmt.Errorf("签名无效 (状态码: 0x%04X)", sw)
+	} else if sw == SW_WRONG_DATA {
+		return 0, fmt.Errorf("epoch已过期 (状态码: 0x%04X)", sw)
+	} else if sw != SW_SUCCESS {
+		return 0, fmt.Errorf("清零运行计数返回错误状态码: 0x%04X", sw)
+	}
+	if len(data) != 2 {
+		return 0, fmt.Errorf("清零运行计数响应长度错误: %d", len(data))
+	}
+	return int(binary.BigEndian.Uint16(data)), nil
+}
+
+// SlotWear 芯片各槽位的写入次数，下标为槽位号，只包含已分配分段中的槽位
+type SlotWear struct {
+	Writes []int // 达到 WEAR_SATURATED 后不再增长
+}
+
+// Max 返回写入次数最多的槽位及其次数，没有槽位时返回 -1, 0
+func (w *SlotWear) Max() (slot int, writes int) {
+	slot = -1
+	for i, value := range w.Writes {
+		if value > writes || slot < 0 {
+			slot, writes = i, value
+		}
+	}
+	return slot, writes
+}
+
+// Mean 返回各槽位写入次数的平均值
+func (w *SlotWear) Mean() float64 {
+	if len(w.Writes) == 0 {
+		return 0
+	}
+	total := 0
+	for _, value := range w.Writes {
+		total += value
+	}
+	return float64(total) / float64(len(w.Writes))
+}
+
+// GetSlotWear 分页读取芯片全部槽位的写入次数
+func (r *CardReader) GetSlotWear() (*SlotWear, error) {
+	wear := &SlotWear{}
+	for cursor := 0; cursor != LIST_END_CURSOR; {
+		data, sw, err := r.TransmitCommand(INS_GET_SLOT_WEAR, byte(cursor>>8), byte(cursor), nil)
+		if err != nil {
+			return nil, err
+		}
+		if sw != SW_SUCCESS {
+			return nil, fmt.Errorf("读取槽位写入次数返回错误状态码: 0x%04X", sw)
+		}
+
+		// 解析响应: [nextCursor(2)][count(1)] + [writes(2)] * count
+		if len(data) < LIST_HEADER_LENGTH || len(data) != LIST_HEADER_LENGTH+int(data[2])*WEAR_ENTRY_LENGTH {
+			return nil, fmt.Errorf("槽位写入次数响应长度错误: %d", len(data))
+		}
+		next := int(binary.BigEndian.Uint16(data[0:2]))
+		if next != LIST_END_CURSOR && next <= cursor {
+			return nil, fmt.Errorf("槽位写入次数游标未前进: %d", next)
+		}
+		for offset := LIST_HEADER_LENGTH; offset < len(data); offset += WEAR_ENTRY_LENGTH {
+			wear.Writes = append(wear.Writes, int(binary.BigEndian.Uint16(data[offset:offset+WEAR_ENTRY_LENGTH])))
+		}
+		cursor = next
+	}
+
+	if r.debug {
+		slot, writes := wear.Max()
+		clog.Info("❕读取槽位写入次数成功❕",
+			clog.Int("槽位数", len(wear.Writes)),
+			clog.Int("最多写入槽位", slot),
+			clog.Int("最多写入次数", writes),
+		)
+	}
+
+	return wear, nil
+}
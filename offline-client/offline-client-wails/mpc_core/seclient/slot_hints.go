@@ -0,0 +1,80 @@
+package seclient
+
+import (
+	"encoding/hex"
+	"sync"
+)
+
+// SlotHints 记录各芯片上 record_id||addr 所在的槽位
+// READ_DATA/DELETE_DATA 在 P1P2 携带"槽位+1"作为提示，芯片命中时只比对该槽位，
+// 提示过期时芯片退回哈希查找，因此缓存不要求与芯片严格一致
+type SlotHints struct {
+	mu    sync.Mutex
+	slots map[string]int
+}
+
+// NewSlotHints 创建空的槽位提示缓存
+func NewSlotHints() *SlotHints {
+	return &SlotHints{slots: make(map[string]int)}
+}
+
+// Get 查询槽位提示
+func (h *SlotHints) Get(cardID string, recordID []byte, addr []byte) (int, bool) {
+	h.mu.Lock()
+	defer h.mu.Unlock()
+	slot, ok := h.slots[slotHintKey(cardID, recordID, addr)]
+	return slot, ok
+}
+
+// Put 记录槽位提示
+func (h *SlotHints) Put(cardID string, recordID []byte, addr []byte, slot int) {
+	h.mu.Lock()
+	defer h.mu.Unlock()
+	h.slots[slotHintKey(cardID, recordID, addr)] = slot
+}
+
+// Forget 删除槽位提示
+func (h *SlotHints) Forget(cardID string, recordID []byte, addr []byte) {
+	h.mu.Lock()
+	defer h.mu.Unlock()
+	delete(h.slots, slotHintKey(cardID, recordID, addr))
+}
+
+func slotHintKey(cardID string, recordID []byte, addr []byte) string {
+	return cardID + "|" + hex.EncodeToString(recordID) + "|" + hex.EncodeToString(addr)
+}
+
+// hintCardID 返回区分芯片的标识，已获取CPLC时使用CPLC，否则使用读卡器名称
+func (r *CardReader) hintCardID() string {
+	if r.cplcData != nil {
+		return hex.EncodeToString(r.cplcData)
+	}
+	return r.readerName
+}
+
+// slotHintP1P2 返回 READ/DELETE 命令的 P1P2，没有提示时为 0x0000
+func (r *CardReader) slotHintP1P2(recordID []byte, addr []byte) (byte, byte) {
+	if r.slotHints == nil {
+		return 0x00, 0x00
+	}
+	slot, ok := r.slotHints.Get(r.hintCardID(), recordID, addr)
+	if !ok {
+		return 0x00, 0x00
+	}
+	hint := slot + 1
+	return byte(hint >> 8), byte(hint)
+}
+
+// rememberSlot 记录 STORE 返回的槽位
+func (r *CardReader) rememberSlot(recordID []byte, addr []byte, slot int) {
+	if r.slotHints != nil {
+		r.slotHints.Put(r.hintCardID(), recordID, addr, slot)
+	}
+}
+
+// forgetSlot 删除已失效的槽位提示
+func (r *CardReader) forgetSlot(recordID []byte, addr []byte) {
+	if r.slotHints != nil {
+		r.slotHints.Forget(r.hintCardID(), recordID, addr)
+	}
+}
@@ -1,5 +1,10 @@
 package seclient
 
+import (
+	"encoding/binary"
+	"fmt"
+)
+
 // 辅助函数: 从APDU响应中提取状态码和数据
 func extractResponseAndSW(resp []byte) (uint16, []byte) {
 	if len(resp) < 2 {
@@ -9,3 +14,15 @@ func extractResponseAndSW(resp []byte) (uint16, []byte) {
 	data := resp[:len(resp)-2]
 	return sw, data
 }
+
+// 辅助函数: 解析STORE/DELETE响应中的记录索引和记录数
+// 当前Applet返回各2字节，兼容旧版Applet各1字节的响应
+func parseIndexAndCount(data []byte) (int, int, error) {
+	if len(data) >= 4 {
+		return int(binary.BigEndian.Uint16(data[0:2])), int(binary.BigEndian.Uint16(data[2:4])), nil
+	}
+	if len(data) >= 2 {
+		return int(data[0]), int(data[1]), nil
+	}
+	return 0, 0, fmt.Errorf("响应数据不完整")
+}
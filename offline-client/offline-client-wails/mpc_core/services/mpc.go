@@ -2,12 +2,14 @@ package services
 
 import (
 	"context"
+	"errors"
 	"fmt"
 	"path/filepath"
 	"strings"
 
 	"offline-client-wails/mpc_core/clog"
 	"offline-client-wails/mpc_core/config"
+	"offline-client-wails/mpc_core/seclient"
 	"offline-client-wails/mpc_core/utils"
 )
 
@@ -125,11 +127,48 @@ func (s *MPCService) KeyGeneration(ctx context.Context, managerAddr, room string
 	}
 	clog.Debug("压缩后数据大小", clog.Int("size", len(compressedData)))
 
-	// 生成32字节的随机数作为加密密钥
-	randomKey, err := utils.GenerateRandomBytes(32)
+	// 优先由安全芯片生成密钥并在芯片内加密分片，密钥不离开芯片；芯片不支持时在主机加密
+	clog.Info("在安全芯片内生成密钥并加密分片")
+	encryptedData, err := s.securityService.GenerateAndSeal(recordID, address, compressedData)
+	if errors.Is(err, seclient.ErrCipherNotSupported) {
+		encryptedData, err = s.encryptShareOnHost(recordID, address, compressedData)
+	} else if err != nil {
+		clog.Error("卡内加密分片失败", clog.Err(err))
+		err = fmt.Errorf("在安全芯片内加密分片失败: %w", err)
+	}
 	if err != nil {
-		clog.Error("生成随机密钥失败", clog.Err(err))
-		return "", "", nil, fmt.Errorf("生成随机密钥失败: %w", err)
+		return "", "", nil, err
+	}
+	clog.Debug("加密后数据大小", clog.Int("size", len(encryptedData)))
+
+	// 离线部署时加密分片也写入安全芯片，签名时可不经服务器下发
+	if s.cfg.ShareOnCard {
+		clog.Info("存储加密分片到安全芯片")
+		if _, err := s.securityService.StoreBlob(recordID, address, encryptedData, nil); err != nil {
+			clog.Error("存储加密分片失败", clog.Err(err))
+			return "", "", nil, fmt.Errorf("存储加密分片到安全芯片失败: %w", err)
+		}
+	}
+
+	clog.Debug("密钥生成完成", clog.String("addr", address))
+	return address, publicKey, encryptedData, nil
+}
+
+// encryptShareOnHost 在主机用AES-GCM加密分片，用于不支持芯片内加密的安全芯片。
+// 32字节密钥优先由安全芯片生成并直接存储，芯片不支持时由主机生成，加密后再存储。
+func (s *MPCService) encryptShareOnHost(recordID, address string, compressedData []byte) ([]byte, error) {
+	clog.Info("在安全芯片内生成密钥")
+	randomKey, err := s.securityService.GenerateAndStore(recordID, address)
+	keyFromHost := errors.Is(err, seclient.ErrGenerateNotSupported)
+	if keyFromHost {
+		randomKey, err = utils.GenerateRandomBytes(32)
+		if err != nil {
+			clog.Error("生成随机密钥失败", clog.Err(err))
+			return nil, fmt.Errorf("生成随机密钥失败: %w", err)
+		}
+	} else if err != nil {
+		clog.Error("卡内生成密钥失败", clog.Err(err))
+		return nil, fmt.Errorf("在安全芯片内生成密钥失败: %w", err)
 	}
 
 	// 使用随机数加密压缩后的JSON文件
@@ -137,23 +176,23 @@ func (s *MPCService) KeyGeneration(ctx context.Context, managerAddr, room string
 	encryptedData, err := utils.EncryptAES(compressedData, randomKey)
 	if err != nil {
 		clog.Error("加密数据失败", clog.Err(err))
-		return "", "", nil, fmt.Errorf("加密数据失败: %w", err)
+		return nil, fmt.Errorf("加密数据失败: %w", err)
 	}
-	clog.Debug("加密后数据大小", clog.Int("size", len(encryptedData)))
 
-	// 将随机数存储到安全芯片
-	clog.Info("存储密钥到安全芯片")
-	if err := s.securityService.StoreData(recordID, address, randomKey); err != nil {
-		clog.Error("存储密钥失败", clog.Err(err))
-		return "", "", nil, fmt.Errorf("存储密钥到安全芯片失败: %w", err)
+	// 主机生成的随机数存储到安全芯片
+	if keyFromHost {
+		clog.Info("存储密钥到安全芯片")
+		if err := s.securityService.StoreData(recordID, address, randomKey); err != nil {
+			clog.Error("存储密钥失败", clog.Err(err))
+			return nil, fmt.Errorf("存储密钥到安全芯片失败: %w", err)
+		}
 	}
 
-	clog.Debug("密钥生成完成", clog.String("addr", address))
-	return address, publicKey, encryptedData, nil
+	return encryptedData, nil
 }
 
 // SignMessage 使用MPC执行消息签名流程。
-// 从安全芯片获取密钥，解密数据后进行签名操作。
+// 通过安全芯片解密本地分片后进行签名操作。
 //
 // 参数:
 //   - ctx: 上下文，用于控制操作超时或取消
@@ -162,7 +201,7 @@ func (s *MPCService) KeyGeneration(ctx context.Context, managerAddr, room string
 //   - filename: 临时文件名
 //   - recordID: SE 记录编号
 //   - address: 以太坊地址
-//   - encryptedShard: 加密后的本地分片数据
+//   - encryptedShard: 加密后的本地分片数据，为空时从安全芯片数据块读取
 //   - signature: 安全芯片读取操作的授权签名
 //
 // 返回:
@@ -197,20 +236,13 @@ func (s *MPCService) SignMessage(ctx context.Context, managerAddr, room string,
 		}
 	}()
 
-	// 从安全芯片读取随机数
-	clog.Info("从安全芯片读取密钥")
-	randomKey, err := s.securityService.ReadData(recordID, address, signature)
-	if err != nil {
-		clog.Error("读取密钥失败", clog.Err(err))
-		return "", fmt.Errorf("从安全芯片读取密钥失败: %w", err)
-	}
-
-	// 使用随机数解密数据
-	clog.Info("解密密钥数据")
-	decryptedData, err := utils.DecryptAES(encryptedShard, randomKey)
+	// 通过安全芯片解密分片，请求未带加密分片时读取芯片数据块中的分片
+	// 芯片加密的分片在芯片内解密，旧分片读取密钥后在主机解密
+	clog.Info("通过安全芯片解密分片")
+	decryptedData, err := s.securityService.OpenShare(recordID, address, encryptedShard, signature)
 	if err != nil {
-		clog.Error("解密数据失败", clog.Err(err))
-		return "", fmt.Errorf("解密数据失败: %w", err)
+		clog.Error("解密分片失败", clog.Err(err))
+		return "", fmt.Errorf("通过安全芯片解密分片失败: %w", err)
 	}
 	clog.Debug("解密后数据大小", clog.Int("size", len(decryptedData)))
 
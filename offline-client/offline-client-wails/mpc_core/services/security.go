@@ -10,10 +10,14 @@ import (
 	"offline-client-wails/mpc_core/clog"
 	"offline-client-wails/mpc_core/config"
 	"offline-client-wails/mpc_core/seclient"
+	"offline-client-wails/mpc_core/utils"
 )
 
 var seOperationMu sync.Mutex
 
+// seSlotHints 在各次连接之间共享槽位提示，读取和删除可直接命中STORE返回的槽位
+var seSlotHints = seclient.NewSlotHints()
+
 // SecurityService 提供与安全芯片通信的服务接口。
 type SecurityService struct {
 	cfg *config.Config
@@ -36,7 +40,8 @@ func (s *SecurityService) connectAndSelect() (*seclient.CardReader, error) {
 		return nil, fmt.Errorf("无效的Applet AID配置: %v", err)
 	}
 
-	reader, err := seclient.NewCardReader(seclient.WithDebug(s.cfg.Debug))
+	reader, err := seclient.NewCardReader(seclient.WithDebug(s.cfg.Debug), seclient.WithSlotHints(seSlotHints),
+		seclient.WithExtendedLength(s.cfg.ExtendedLength))
 	if err != nil {
 		return nil, err
 	}
@@ -89,6 +94,67 @@ func (s *SecurityService) StoreData(recordID, addr string, key []byte) error {
 	return nil
 }
 
+// GenerateAndStore 由安全芯片生成 record_id 对应的 32 字节 AES key 并直接存储，返回生成的 key。
+// 芯片不支持时返回 seclient.ErrGenerateNotSupported，调用方可改由主机生成后调用 StoreData；
+// 已有相同 record_id 和地址的记录时返回 seclient.ErrRecordExists，不覆盖。
+func (s *SecurityService) GenerateAndStore(recordID, addr string) ([]byte, error) {
+	if recordID == "" {
+		return nil, errors.New("record_id不能为空")
+	}
+	if addr == "" {
+		return nil, errors.New("地址不能为空")
+	}
+
+	recordBytes, err := parseRecordID(recordID)
+	if err != nil {
+		return nil, err
+	}
+	addrBytes, err := parseAddress(addr)
+	if err != nil {
+		return nil, err
+	}
+
+	seOperationMu.Lock()
+	defer seOperationMu.Unlock()
+
+	reader, err := s.connectAndSelect()
+	if err != nil {
+		return nil, err
+	}
+	defer reader.Close()
+
+	key, index, count, err := reader.GenerateAndStore(recordBytes, addrBytes)
+	if err != nil {
+		return nil, err
+	}
+	clog.Debug("SE卡内生成并存储成功", clog.Int("记录索引", index), clog.Int("记录总数", count))
+	return key, nil
+}
+
+// StoreDataBatch 在安全芯片中批量存储记录，芯片按每条APDU一个事务写入。
+// 返回的每条结果与输入顺序一致，存储空间不足的记录以 Full 标记返回。
+func (s *SecurityService) StoreDataBatch(records []seclient.BatchRecord) ([]seclient.BatchStoreResult, error) {
+	if len(records) == 0 {
+		return nil, errors.New("记录列表不能为空")
+	}
+
+	seOperationMu.Lock()
+	defer seOperationMu.Unlock()
+
+	reader, err := s.connectAndSelect()
+	if err != nil {
+		return nil, err
+	}
+	defer reader.Close()
+
+	results, count, err := reader.BatchStoreData(records)
+	if err != nil {
+		return results, err
+	}
+	clog.Debug("SE批量存储成功", clog.Int("记录数", len(records)), clog.Int("记录总数", count))
+	return results, nil
+}
+
 // ReadData 从安全芯片中读取 record_id 对应数据。
 func (s *SecurityService) ReadData(recordID, addr string, signature []byte) ([]byte, error) {
 	if recordID == "" {
@@ -127,6 +193,41 @@ func (s *SecurityService) ReadData(recordID, addr string, signature []byte) ([]b
 	return data, nil
 }
 
+// ReadDataBatch 用一个服务器签名从安全芯片读取多条记录，签名覆盖所有 record_id||addr 的顺序拼接。
+// 签名由 offline-server/ws 的 SignBatchData 生成，目前服务器还没有下发批量签名的消息，暂无调用方。
+func (s *SecurityService) ReadDataBatch(recordIDs, addrs []string, signature []byte) ([][]byte, error) {
+	if len(recordIDs) == 0 || len(recordIDs) != len(addrs) {
+		return nil, errors.New("record_id与地址数量不匹配")
+	}
+	if len(signature) == 0 {
+		return nil, errors.New("签名不能为空")
+	}
+
+	keys := make([]seclient.RecordKey, len(recordIDs))
+	for i := range recordIDs {
+		recordBytes, err := parseRecordID(recordIDs[i])
+		if err != nil {
+			return nil, err
+		}
+		addrBytes, err := parseAddress(addrs[i])
+		if err != nil {
+			return nil, err
+		}
+		keys[i] = seclient.RecordKey{RecordID: recordBytes, Addr: addrBytes}
+	}
+
+	seOperationMu.Lock()
+	defer seOperationMu.Unlock()
+
+	reader, err := s.connectAndSelect()
+	if err != nil {
+		return nil, err
+	}
+	defer reader.Close()
+
+	return reader.BatchReadData(keys, signature)
+}
+
 // DeleteData 从安全芯片中删除 record_id 对应数据。
 func (s *SecurityService) DeleteData(recordID, addr string, signature []byte) error {
 	if recordID == "" {
@@ -165,6 +266,469 @@ func (s *SecurityService) DeleteData(recordID, addr string, signature []byte) er
 	return nil
 }
 
+// ReadDataByAddr 用一个服务器签名读取某地址下的全部记录，签名覆盖 0x23||addr。
+// 签名由 offline-server/ws 的 SignAddressRead 生成，目前服务器还没有下发按地址签名的消息，暂无调用方。
+func (s *SecurityService) ReadDataByAddr(addr string, signature []byte) ([]seclient.AddrRecord, error) {
+	if addr == "" {
+		return nil, errors.New("地址不能为空")
+	}
+	if len(signature) == 0 {
+		return nil, errors.New("签名不能为空")
+	}
+	addrBytes, err := parseAddress(addr)
+	if err != nil {
+		return nil, err
+	}
+
+	seOperationMu.Lock()
+	defer seOperationMu.Unlock()
+
+	reader, err := s.connectAndSelect()
+	if err != nil {
+		return nil, err
+	}
+	defer reader.Close()
+
+	return reader.ReadByAddr(addrBytes, signature)
+}
+
+// DeleteDataByAddr 用一个服务器签名删除某地址下的全部记录，签名覆盖 0x33||addr，返回删除的记录数。
+// 签名由 SignAddressDelete 生成，同样暂无调用方。
+func (s *SecurityService) DeleteDataByAddr(addr string, signature []byte) (int, error) {
+	if addr == "" {
+		return 0, errors.New("地址不能为空")
+	}
+	if len(signature) == 0 {
+		return 0, errors.New("签名不能为空")
+	}
+	addrBytes, err := parseAddress(addr)
+	if err != nil {
+		return 0, err
+	}
+
+	seOperationMu.Lock()
+	defer seOperationMu.Unlock()
+
+	reader, err := s.connectAndSelect()
+	if err != nil {
+		return 0, err
+	}
+	defer reader.Close()
+
+	deleted, count, err := reader.DeleteByAddr(addrBytes, signature)
+	if err != nil {
+		return deleted, err
+	}
+	clog.Debug("SE按地址删除成功", clog.Int("删除记录数", deleted), clog.Int("记录总数", count))
+	return deleted, nil
+}
+
+// ListRecords 列出安全芯片上保存的全部 (record_id, 地址)，不读取消息数据，也不需要服务器签名。
+func (s *SecurityService) ListRecords() ([]seclient.RecordEntry, error) {
+	seOperationMu.Lock()
+	defer seOperationMu.Unlock()
+
+	reader, err := s.connectAndSelect()
+	if err != nil {
+		return nil, err
+	}
+	defer reader.Close()
+
+	return reader.ListAllRecords()
+}
+
+// ListRecordsByPrefix 按 record_id 顺序列出 record_id 以 prefix (hex，可为空) 开头的记录，不需要服务器签名。
+func (s *SecurityService) ListRecordsByPrefix(prefix string) ([]seclient.RecordEntry, error) {
+	prefixBytes, err := hex.DecodeString(strings.TrimPrefix(prefix, "0x"))
+	if err != nil {
+		return nil, fmt.Errorf("前缀格式错误: %v", err)
+	}
+	if len(prefixBytes) > seclient.RECORD_ID_LENGTH {
+		return nil, fmt.Errorf("前缀过长: 最多 %d 字节", seclient.RECORD_ID_LENGTH)
+	}
+
+	seOperationMu.Lock()
+	defer seOperationMu.Unlock()
+
+	reader, err := s.connectAndSelect()
+	if err != nil {
+		return nil, err
+	}
+	defer reader.Close()
+
+	return reader.ListRecordsByPrefix(prefixBytes)
+}
+
+// SessionGrantFunc 把芯片临时公钥交给服务器，返回服务器临时公钥和会话授权签名。
+type SessionGrantFunc func(cardPublicKey []byte) (serverPublicKey []byte, signature []byte, err error)
+
+// WithSession 在同一次连接中建立会话并执行 fn。
+// 会话状态在芯片取消选择时清除，因此 fn 中的读取和删除必须使用传入的 reader，
+// 授权参数使用服务器按会话生成的授权块，芯片不再逐条做 ECDSA 验证。
+// 服务器端对应 offline-server/ws 的 NewSESession，目前两边都还没有接入消息处理，暂无调用方。
+func (s *SecurityService) WithSession(grant SessionGrantFunc, fn func(reader *seclient.CardReader) error) error {
+	if grant == nil || fn == nil {
+		return errors.New("会话参数不能为空")
+	}
+
+	seOperationMu.Lock()
+	defer seOperationMu.Unlock()
+
+	reader, err := s.connectAndSelect()
+	if err != nil {
+		return err
+	}
+	defer reader.Close()
+
+	cardPublicKey, err := reader.OpenSessionChallenge()
+	if err != nil {
+		return err
+	}
+	serverPublicKey, signature, err := grant(cardPublicKey)
+	if err != nil {
+		return fmt.Errorf("获取会话授权失败: %w", err)
+	}
+	maxOps, err := reader.OpenSessionGrant(serverPublicKey, signature)
+	if err != nil {
+		return err
+	}
+	clog.Debug("SE会话已建立", clog.Int("最大操作数", maxOps))
+
+	return fn(reader)
+}
+
+// WithAuthRoot 在同一次连接中加载服务器签名的Merkle授权根并执行 fn。
+// 授权根在芯片取消选择时清除，fn 中的读取和删除使用服务器提供的包含证明作为授权参数。
+// 服务器端对应 offline-server/ws 的 NewSEMerkleTree，目前两边都还没有接入消息处理，暂无调用方。
+func (s *SecurityService) WithAuthRoot(ops byte, root, signature []byte, fn func(reader *seclient.CardReader) error) error {
+	if fn == nil {
+		return errors.New("回调不能为空")
+	}
+
+	seOperationMu.Lock()
+	defer seOperationMu.Unlock()
+
+	reader, err := s.connectAndSelect()
+	if err != nil {
+		return err
+	}
+	defer reader.Close()
+
+	if err := reader.LoadAuthRoot(ops, root, signature); err != nil {
+		return err
+	}
+	return fn(reader)
+}
+
+// GetCapabilities 选择Applet并返回芯片报告的版本、支持的指令、批量上限、记录数、容量和剩余存储。
+// 旧版Applet的SELECT不返回能力信息，此时返回nil。
+func (s *SecurityService) GetCapabilities() (*seclient.Capabilities, error) {
+	seOperationMu.Lock()
+	defer seOperationMu.Unlock()
+
+	reader, err := s.connectAndSelect()
+	if err != nil {
+		return nil, err
+	}
+	defer reader.Close()
+
+	return reader.Capabilities(), nil
+}
+
+// GetMetrics 读取安全芯片的运行计数。
+func (s *SecurityService) GetMetrics() (*seclient.Metrics, error) {
+	seOperationMu.Lock()
+	defer seOperationMu.Unlock()
+
+	reader, err := s.connectAndSelect()
+	if err != nil {
+		return nil, err
+	}
+	defer reader.Close()
+
+	return reader.GetMetrics()
+}
+
+// GetSlotWear 读取安全芯片各槽位的写入次数，用于检查EEPROM磨损是否集中在少数槽位。
+func (s *SecurityService) GetSlotWear() (*seclient.SlotWear, error) {
+	seOperationMu.Lock()
+	defer seOperationMu.Unlock()
+
+	reader, err := s.connectAndSelect()
+	if err != nil {
+		return nil, err
+	}
+	defer reader.Close()
+
+	return reader.GetSlotWear()
+}
+
+// MetricsResetFunc 由服务器对 0x52||epoch 签名，授权清零运行计数
+type MetricsResetFunc func(epoch uint16) (signature []byte, err error)
+
+// ResetMetrics 在同一次连接中读取当前 epoch、取得服务器签名并清零运行计数，返回清零前的计数。
+func (s *SecurityService) ResetMetrics(sign MetricsResetFunc) (*seclient.Metrics, error) {
+	seOperationMu.Lock()
+	defer seOperationMu.Unlock()
+
+	reader, err := s.connectAndSelect()
+	if err != nil {
+		return nil, err
+	}
+	defer reader.Close()
+
+	metrics, err := reader.GetMetrics()
+	if err != nil {
+		return nil, err
+	}
+	signature, err := sign(uint16(metrics.Epoch))
+	if err != nil {
+		return nil, fmt.Errorf("获取清零授权失败: %v", err)
+	}
+	if _, err := reader.ResetMetrics(metrics.Epoch, signature); err != nil {
+		return nil, err
+	}
+	return metrics, nil
+}
+
+// ArenaCompactFunc 由服务器对 0x43||epoch 签名，授权整理变长消息区
+type ArenaCompactFunc func(epoch uint16) (signature []byte, err error)
+
+// CompactArena 在同一次连接中读取变长消息区的 epoch、取得服务器签名并整理，返回整理后的状态。
+// 芯片未启用变长消息区或没有空洞时不整理，直接返回当前状态。
+func (s *SecurityService) CompactArena(sign ArenaCompactFunc) (*seclient.ArenaStatus, error) {
+	seOperationMu.Lock()
+	defer seOperationMu.Unlock()
+
+	reader, err := s.connectAndSelect()
+	if err != nil {
+		return nil, err
+	}
+	defer reader.Close()
+
+	caps := reader.Capabilities()
+	if caps == nil || caps.Arena == nil || caps.Arena.Size == 0 {
+		return nil, fmt.Errorf("安全芯片不支持变长消息")
+	}
+	if caps.Arena.Garbage == 0 {
+		return caps.Arena, nil
+	}
+	signature, err := sign(uint16(caps.Arena.Epoch))
+	if err != nil {
+		return nil, fmt.Errorf("获取整理授权失败: %v", err)
+	}
+	return reader.CompactArena(caps.Arena.Epoch, signature)
+}
+
+// StoreBlob 把加密的本地分片写入安全芯片数据块，芯片封存时计算SHA-256摘要并与主机计算的比对，返回该摘要。
+// 新建时 signature 为nil；同一 record_id 和地址已有封存的数据块时，覆盖须传入与 DeleteBlob 相同的授权，
+// 否则返回 seclient.ErrBlobSealed，原数据块不受影响。
+func (s *SecurityService) StoreBlob(recordID, addr string, data []byte, signature []byte) ([]byte, error) {
+	recordBytes, err := parseRecordID(recordID)
+	if err != nil {
+		return nil, err
+	}
+	addrBytes, err := parseAddress(addr)
+	if err != nil {
+		return nil, err
+	}
+
+	seOperationMu.Lock()
+	defer seOperationMu.Unlock()
+
+	reader, err := s.connectAndSelect()
+	if err != nil {
+		return nil, err
+	}
+	defer reader.Close()
+
+	if caps := reader.Capabilities(); caps == nil || caps.BlobSlots == 0 {
+		return nil, fmt.Errorf("安全芯片不支持数据块")
+	}
+	digest, err := reader.WriteBlob(recordBytes, addrBytes, data, signature)
+	if err != nil {
+		return nil, err
+	}
+	clog.Debug("SE数据块写入成功", clog.Int("字节数", len(data)))
+	return digest, nil
+}
+
+// ReadDataAndBlob 在同一次连接中读取 record_id 对应的密钥和数据块。
+// 两者使用同一个授权，数据块各段的读取命中芯片授权缓存，整个过程只验签一次。
+// signature 为会话标签时每条命令须使用新计数，不能用于本方法。
+func (s *SecurityService) ReadDataAndBlob(recordID, addr string, signature []byte) ([]byte, []byte, error) {
+	if len(signature) == 0 {
+		return nil, nil, errors.New("签名不能为空")
+	}
+	recordBytes, err := parseRecordID(recordID)
+	if err != nil {
+		return nil, nil, err
+	}
+	addrBytes, err := parseAddress(addr)
+	if err != nil {
+		return nil, nil, err
+	}
+
+	seOperationMu.Lock()
+	defer seOperationMu.Unlock()
+
+	reader, err := s.connectAndSelect()
+	if err != nil {
+		return nil, nil, err
+	}
+	defer reader.Close()
+
+	key, err := reader.ReadData(recordBytes, addrBytes, signature)
+	if err != nil {
+		return nil, nil, err
+	}
+	blob, err := reader.ReadBlob(recordBytes, addrBytes, signature)
+	if err != nil {
+		return nil, nil, err
+	}
+	clog.Debug("SE密钥和数据块读取成功", clog.Int("数据块字节数", len(blob)))
+	return key, blob, nil
+}
+
+// GenerateAndSeal 由安全芯片生成 record_id 对应的密钥并用它在芯片内加密分片，密钥不返回主机。
+// 芯片不支持卡内生成或分片加解密时返回 seclient.ErrCipherNotSupported，此时不会创建记录，
+// 调用方可改用 GenerateAndStore 或主机加密。
+// 生成后加密失败时记录留在芯片中，芯片在它第一次加密完成前仍允许不经授权加密，
+// 因此用相同参数重试即可继续使用该记录；已有的记录不是这样留下的时返回 seclient.ErrRecordExists。
+func (s *SecurityService) GenerateAndSeal(recordID, addr string, plaintext []byte) ([]byte, error) {
+	if len(plaintext) == 0 {
+		return nil, errors.New("分片不能为空")
+	}
+	recordBytes, err := parseRecordID(recordID)
+	if err != nil {
+		return nil, err
+	}
+	addrBytes, err := parseAddress(addr)
+	if err != nil {
+		return nil, err
+	}
+
+	seOperationMu.Lock()
+	defer seOperationMu.Unlock()
+
+	reader, err := s.connectAndSelect()
+	if err != nil {
+		return nil, err
+	}
+	defer reader.Close()
+
+	// 先确认两条指令都可用，避免生成了主机拿不到的密钥却无法加密
+	caps := reader.Capabilities()
+	if caps == nil || !caps.Supports(seclient.INS_GENERATE_AND_STORE) || !caps.Supports(seclient.INS_CIPHER_INIT) {
+		return nil, seclient.ErrCipherNotSupported
+	}
+	index, count, err := reader.GenerateAndStoreSecret(recordBytes, addrBytes)
+	resumed := errors.Is(err, seclient.ErrRecordExists)
+	if err != nil && !resumed {
+		return nil, err
+	}
+	sealed, err := reader.EncryptShare(recordBytes, addrBytes, plaintext, nil)
+	if resumed && errors.Is(err, seclient.ErrShareAuthRequired) {
+		return nil, seclient.ErrRecordExists
+	}
+	if err != nil {
+		return nil, fmt.Errorf("记录已生成但加密分片失败，重试将继续使用该记录: %w", err)
+	}
+	if resumed {
+		clog.Debug("SE沿用上次生成的密钥加密分片成功", clog.Int("字节数", len(sealed)))
+		return sealed, nil
+	}
+	clog.Debug("SE卡内生成密钥并加密分片成功",
+		clog.Int("记录索引", index),
+		clog.Int("记录总数", count),
+		clog.Int("字节数", len(sealed)))
+	return sealed, nil
+}
+
+// OpenShare 在同一次连接中解密 record_id 对应的加密分片。
+// shard 为空时从芯片数据块读取；芯片加密的分片在芯片内解密，旧的主机AES-GCM分片读取密钥后在主机解密。
+// 各命令使用同一个授权并命中芯片授权缓存，signature 为会话标签时不能用于本方法。
+func (s *SecurityService) OpenShare(recordID, addr string, shard, signature []byte) ([]byte, error) {
+	if len(signature) == 0 {
+		return nil, errors.New("签名不能为空")
+	}
+	recordBytes, err := parseRecordID(recordID)
+	if err != nil {
+		return nil, err
+	}
+	addrBytes, err := parseAddress(addr)
+	if err != nil {
+		return nil, err
+	}
+
+	seOperationMu.Lock()
+	defer seOperationMu.Unlock()
+
+	reader, err := s.connectAndSelect()
+	if err != nil {
+		return nil, err
+	}
+	defer reader.Close()
+
+	if len(shard) == 0 {
+		shard, err = reader.ReadBlob(recordBytes, addrBytes, signature)
+		if err != nil {
+			return nil, err
+		}
+	}
+
+	if seclient.IsSealedShare(shard) {
+		plaintext, err := reader.DecryptShare(recordBytes, addrBytes, shard, signature)
+		if err != nil {
+			return nil, err
+		}
+		clog.Debug("SE芯片内解密分片成功", clog.Int("字节数", len(plaintext)))
+		return plaintext, nil
+	}
+
+	key, err := reader.ReadData(recordBytes, addrBytes, signature)
+	if err != nil {
+		return nil, err
+	}
+	plaintext, err := utils.DecryptAES(shard, key)
+	if err != nil {
+		return nil, fmt.Errorf("解密数据失败: %w", err)
+	}
+	clog.Debug("SE密钥读取成功，主机解密分片", clog.Int("字节数", len(plaintext)))
+	return plaintext, nil
+}
+
+// DeleteBlob 删除安全芯片中的数据块，授权与 DeleteData 相同。
+func (s *SecurityService) DeleteBlob(recordID, addr string, signature []byte) error {
+	if len(signature) == 0 {
+		return errors.New("签名不能为空")
+	}
+	recordBytes, err := parseRecordID(recordID)
+	if err != nil {
+		return err
+	}
+	addrBytes, err := parseAddress(addr)
+	if err != nil {
+		return err
+	}
+
+	seOperationMu.Lock()
+	defer seOperationMu.Unlock()
+
+	reader, err := s.connectAndSelect()
+	if err != nil {
+		return err
+	}
+	defer reader.Close()
+
+	remaining, err := reader.DeleteBlob(recordBytes, addrBytes, signature)
+	if err != nil {
+		return err
+	}
+	clog.Debug("SE数据块删除成功", clog.Int("剩余数据块", remaining))
+	return nil
+}
+
 // GetCPLC 获取安全芯片的CPLC信息。
 func (s *SecurityService) GetCPLC() ([]byte, error) {
 	seOperationMu.Lock()
@@ -0,0 +1,473 @@
+package smoke
+
+import (
+	"bytes"
+	"crypto/ecdsa"
+	crand "crypto/rand"
+	"crypto/sha256"
+	"errors"
+	"fmt"
+	"io"
+	"math/rand"
+	"sort"
+	"strings"
+	"time"
+
+	"offline-client-wails/mpc_core/seclient"
+)
+
+const DefaultBenchIterations = 20
+
+const (
+	DefaultArenaOps     = 2000 // 变长消息基准的操作数
+	DefaultArenaLive    = 60   // 变长消息基准同时保留的记录数上限
+	arenaReportInterval = 200  // 每隔多少次操作输出一次碎片率
+	DefaultWearCycles   = 500  // 磨损基准的生成-销毁循环次数
+)
+
+var DefaultBenchLevels = []int{10, 25, 50, 100}
+
+// DefaultCipherSizes 分片加解密基准的明文字节数，覆盖常见的压缩后分片大小
+var DefaultCipherSizes = []int{1024, 5120, 16384, 32000}
+
+// BenchOptions 配置安全芯片性能基准。
+type BenchOptions struct {
+	ReaderName     string
+	AppletAID      string
+	PrivateKeyPath string
+	Levels         []int
+	Iterations     int
+	ArenaOps       int   // 变长消息基准的操作数
+	ArenaLive      int   // 变长消息基准同时保留的记录数上限
+	WearCycles     int   // 磨损基准的生成-销毁循环次数
+	Sizes          []int // 分片加解密基准的明文字节数
+	Debug          bool
+	Output         io.Writer
+}
+
+// RunLookupBench 逐级填充记录，测量不同占用率下 STORE 覆盖写的耗时。
+// 覆盖写需要先在卡内定位已有记录，且不触发 ECDSA 验签，能直接反映查找开销。
+// 消息不变的覆盖写芯片不写EEPROM，只含查找；改动1字节的覆盖写多出一次事务和1字节写入。
+func RunLookupBench(opts BenchOptions) (err error) {
+	out := opts.Output
+	if out == nil {
+		out = io.Discard
+	}
+	if opts.AppletAID == "" {
+		opts.AppletAID = DefaultAppletAID
+	}
+	if len(opts.Levels) == 0 {
+		opts.Levels = DefaultBenchLevels
+	}
+	if opts.Iterations <= 0 {
+		opts.Iterations = DefaultBenchIterations
+	}
+	levels := append([]int(nil), opts.Levels...)
+	sort.Ints(levels)
+	if levels[0] <= 0 {
+		return errors.New("bench levels must be positive")
+	}
+
+	reader, _, privateKey, err := openBenchReader(opts)
+	if err != nil {
+		return err
+	}
+	defer reader.Close()
+
+	records, err := generateRecords(levels[len(levels)-1])
+	if err != nil {
+		return err
+	}
+	defer func() {
+		if cleanupErr := cleanupDirectRecords(io.Discard, reader, privateKey, records); cleanupErr != nil && err == nil {
+			err = cleanupErr
+		}
+	}()
+
+	fmt.Fprintf(out, "SE lookup bench\n")
+	fmt.Fprintf(out, "Applet AID: %s\n", strings.ToUpper(strings.TrimPrefix(opts.AppletAID, "0x")))
+	fmt.Fprintf(out, "Reader: %s\n", valueOrDefault(opts.ReaderName, "<first available reader>"))
+	fmt.Fprintf(out, "Iterations per level: %d\n\n", opts.Iterations)
+	fmt.Fprintf(out, "%8s %12s %12s %12s %12s\n", "records", "same avg", "changed avg", "changed min", "changed max")
+
+	stored := 0
+	for _, level := range levels {
+		for ; stored < level; stored++ {
+			if _, _, err := reader.StoreData(records[stored].RecordID, records[stored].Address, records[stored].Message); err != nil {
+				return fmt.Errorf("fill record %d: %w", stored, err)
+			}
+			records[stored].Active = true
+		}
+
+		var same, total, min, max time.Duration
+		for i := 0; i < opts.Iterations; i++ {
+			record := &records[rand.Intn(stored)]
+			start := time.Now()
+			if _, _, err := reader.StoreData(record.RecordID, record.Address, record.Message); err != nil {
+				return fmt.Errorf("overwrite at level %d: %w", level, err)
+			}
+			same += time.Since(start)
+
+			record.Message[len(record.Message)-1] ^= 0x01
+			start = time.Now()
+			if _, _, err := reader.StoreData(record.RecordID, record.Address, record.Message); err != nil {
+				return fmt.Errorf("changed overwrite at level %d: %w", level, err)
+			}
+			elapsed := time.Since(start)
+			total += elapsed
+			if i == 0 || elapsed < min {
+				min = elapsed
+			}
+			if elapsed > max {
+				max = elapsed
+			}
+		}
+		iterations := time.Duration(opts.Iterations)
+		fmt.Fprintf(out, "%8d %12s %12s %12s %12s\n", level, same/iterations, total/iterations, min, max)
+	}
+	return nil
+}
+
+// RunArenaBench 在变长消息区上执行长时间的随机插入、改长度覆盖和删除，输出碎片率变化。
+// 末尾空间不足时按芯片要求签名整理后重试，统计整理次数；结束时读回全部记录校验内容。
+func RunArenaBench(opts BenchOptions) (err error) {
+	out := opts.Output
+	if out == nil {
+		out = io.Discard
+	}
+	if opts.AppletAID == "" {
+		opts.AppletAID = DefaultAppletAID
+	}
+	if opts.ArenaOps <= 0 {
+		opts.ArenaOps = DefaultArenaOps
+	}
+	if opts.ArenaLive <= 0 {
+		opts.ArenaLive = DefaultArenaLive
+	}
+
+	reader, aid, privateKey, err := openBenchReader(opts)
+	if err != nil {
+		return err
+	}
+	defer reader.Close()
+	if caps := reader.Capabilities(); caps == nil || caps.Arena == nil || caps.Arena.Size == 0 {
+		return errors.New("applet does not support variable-length messages")
+	}
+
+	var live []smokeRecord
+	defer func() {
+		if cleanupErr := cleanupDirectRecords(io.Discard, reader, privateKey, live); cleanupErr != nil && err == nil {
+			err = cleanupErr
+		}
+	}()
+
+	fmt.Fprintf(out, "SE arena bench\n")
+	fmt.Fprintf(out, "Applet AID: %s\n", strings.ToUpper(strings.TrimPrefix(opts.AppletAID, "0x")))
+	fmt.Fprintf(out, "Operations: %d, live records <= %d\n\n", opts.ArenaOps, opts.ArenaLive)
+	fmt.Fprintf(out, "%8s %8s %8s %8s %10s %12s\n", "ops", "live", "used", "garbage", "frag", "compactions")
+
+	compactions := 0
+	store := func(record smokeRecord) error {
+		_, _, err := reader.StoreData(record.RecordID, record.Address, record.Message)
+		if !errors.Is(err, seclient.ErrArenaNeedsCompaction) {
+			return err
+		}
+		if err := compactBenchArena(reader, aid, privateKey); err != nil {
+			return err
+		}
+		compactions++
+		_, _, err = reader.StoreData(record.RecordID, record.Address, record.Message)
+		return err
+	}
+
+	for op := 1; op <= opts.ArenaOps; op++ {
+		switch choice := rand.Intn(10); {
+		case choice < 5 && len(live) < opts.ArenaLive:
+			records, err := generateRecords(1)
+			if err != nil {
+				return err
+			}
+			records[0].Message = mustRandomBytes(randomArenaLength())
+			if err := store(records[0]); err != nil {
+				return fmt.Errorf("insert at op %d: %w", op, err)
+			}
+			records[0].Active = true
+			live = append(live, records[0])
+		case choice < 7 && len(live) > 0:
+			i := rand.Intn(len(live))
+			live[i].Message = mustRandomBytes(randomArenaLength())
+			if err := store(live[i]); err != nil {
+				return fmt.Errorf("overwrite at op %d: %w", op, err)
+			}
+		case len(live) > 0:
+			i := rand.Intn(len(live))
+			if _, _, err := reader.DeleteData(live[i].RecordID, live[i].Address, mustSignRecord(privateKey, live[i])); err != nil {
+				return fmt.Errorf("delete at op %d: %w", op, err)
+			}
+			live = append(live[:i], live[i+1:]...)
+		}
+
+		if op%arenaReportInterval == 0 || op == opts.ArenaOps {
+			if err := reader.SelectApplet(aid); err != nil {
+				return fmt.Errorf("select applet: %w", err)
+			}
+			arena := reader.Capabilities().Arena
+			fmt.Fprintf(out, "%8d %8d %8d %8d %9.1f%% %12d\n",
+				op, len(live), arena.Top, arena.Garbage, arena.Fragmentation()*100, compactions)
+		}
+	}
+
+	for i, record := range live {
+		message, err := reader.ReadData(record.RecordID, record.Address, mustSignRecord(privateKey, record))
+		if err != nil {
+			return fmt.Errorf("verify record %d: %w", i, err)
+		}
+		if !bytes.Equal(message, record.Message) {
+			return fmt.Errorf("verify record %d: message mismatch", i)
+		}
+	}
+	fmt.Fprintf(out, "\nVerified %d live records\n", len(live))
+	return nil
+}
+
+// RunWearBench 模拟频繁生成并销毁分片: 每个循环新增一条记录后立即删除。
+// 前后各读一次槽位写入次数，输出写入分散到的槽位数和最热槽位的增量；旧的后进先出分配下全部落在同一个槽位。
+func RunWearBench(opts BenchOptions) (err error) {
+	out := opts.Output
+	if out == nil {
+		out = io.Discard
+	}
+	if opts.AppletAID == "" {
+		opts.AppletAID = DefaultAppletAID
+	}
+	if opts.WearCycles <= 0 {
+		opts.WearCycles = DefaultWearCycles
+	}
+
+	reader, _, privateKey, err := openBenchReader(opts)
+	if err != nil {
+		return err
+	}
+	defer reader.Close()
+	caps := reader.Capabilities()
+	if caps == nil || !caps.Supports(seclient.INS_GET_SLOT_WEAR) {
+		return errors.New("applet does not report slot wear")
+	}
+
+	var pending []smokeRecord
+	defer func() {
+		if cleanupErr := cleanupDirectRecords(io.Discard, reader, privateKey, pending); cleanupErr != nil && err == nil {
+			err = cleanupErr
+		}
+	}()
+
+	before, err := reader.GetSlotWear()
+	if err != nil {
+		return fmt.Errorf("read slot wear: %w", err)
+	}
+
+	allocation := "default"
+	if caps.DenseStorage {
+		allocation = "dense"
+	} else if caps.RotateSlots {
+		allocation = "rotate"
+	}
+	fmt.Fprintf(out, "SE wear bench\n")
+	fmt.Fprintf(out, "Applet AID: %s\n", strings.ToUpper(strings.TrimPrefix(opts.AppletAID, "0x")))
+	fmt.Fprintf(out, "Allocation: %s, records: %d/%d\n", allocation, caps.RecordCount, caps.Capacity)
+	fmt.Fprintf(out, "Cycles: %d (store + delete)\n\n", opts.WearCycles)
+
+	start := time.Now()
+	for cycle := 1; cycle <= opts.WearCycles; cycle++ {
+		records, err := generateRecords(1)
+		if err != nil {
+			return err
+		}
+		if _, _, err := reader.StoreData(records[0].RecordID, records[0].Address, records[0].Message); err != nil {
+			return fmt.Errorf("store at cycle %d: %w", cycle, err)
+		}
+		records[0].Active = true
+		pending = records
+		if _, _, err := reader.DeleteData(records[0].RecordID, records[0].Address, mustSignRecord(privateKey, records[0])); err != nil {
+			return fmt.Errorf("delete at cycle %d: %w", cycle, err)
+		}
+		pending = nil
+	}
+	elapsed := time.Since(start)
+
+	after, err := reader.GetSlotWear()
+	if err != nil {
+		return fmt.Errorf("read slot wear: %w", err)
+	}
+	touched, hottest, hotSlot := 0, 0, -1
+	for slot, writes := range after.Writes {
+		if slot < len(before.Writes) {
+			writes -= before.Writes[slot]
+		}
+		if writes > 0 {
+			touched++
+		}
+		if writes > hottest {
+			hottest, hotSlot = writes, slot
+		}
+	}
+	_, lifetime := after.Max()
+
+	fmt.Fprintf(out, "%8s %8s %8s %10s %10s %14s %12s\n", "cycles", "slots", "touched", "hot slot", "hot delta", "hot lifetime", "avg cycle")
+	fmt.Fprintf(out, "%8d %8d %8d %10d %10d %14d %12s\n", opts.WearCycles, len(after.Writes), touched, hotSlot, hottest,
+		lifetime, elapsed/time.Duration(opts.WearCycles))
+	return nil
+}
+
+// RunCipherBench 存储一条记录后，按不同分片大小在芯片内加密再解密，输出吞吐量和APDU条数。
+// 每个大小重复 Iterations 次取平均，解密使用同一个签名，芯片授权缓存命中后只验签一次。
+func RunCipherBench(opts BenchOptions) (err error) {
+	out := opts.Output
+	if out == nil {
+		out = io.Discard
+	}
+	if opts.AppletAID == "" {
+		opts.AppletAID = DefaultAppletAID
+	}
+	if opts.Iterations <= 0 {
+		opts.Iterations = DefaultBenchIterations
+	}
+	if len(opts.Sizes) == 0 {
+		opts.Sizes = DefaultCipherSizes
+	}
+
+	reader, _, privateKey, err := openBenchReader(opts)
+	if err != nil {
+		return err
+	}
+	defer reader.Close()
+	caps := reader.Capabilities()
+	if caps == nil || !caps.Supports(seclient.INS_CIPHER_INIT) {
+		return errors.New("applet does not support share encryption")
+	}
+
+	records, err := generateRecords(1)
+	if err != nil {
+		return err
+	}
+	record := records[0]
+	if _, _, err := reader.StoreData(record.RecordID, record.Address, record.Message); err != nil {
+		return fmt.Errorf("store bench record: %w", err)
+	}
+	record.Active = true
+	defer func() {
+		if cleanupErr := cleanupDirectRecords(io.Discard, reader, privateKey, []smokeRecord{record}); cleanupErr != nil && err == nil {
+			err = cleanupErr
+		}
+	}()
+	signature := mustSignRecord(privateKey, record)
+
+	chunk := reader.CipherChunk()
+	fmt.Fprintf(out, "SE cipher bench\n")
+	fmt.Fprintf(out, "Applet AID: %s\n", strings.ToUpper(strings.TrimPrefix(opts.AppletAID, "0x")))
+	fmt.Fprintf(out, "Chunk: %d bytes per CIPHER_UPDATE, iterations: %d\n\n", chunk, opts.Iterations)
+	fmt.Fprintf(out, "%8s %9s %9s %12s %12s %12s %12s\n", "bytes", "enc APDUs", "dec APDUs", "encrypt", "enc KB/s", "decrypt", "dec KB/s")
+
+	for _, size := range opts.Sizes {
+		if size <= 0 {
+			return fmt.Errorf("invalid share size: %d", size)
+		}
+		plaintext := make([]byte, size)
+		if _, err := crand.Read(plaintext); err != nil {
+			return fmt.Errorf("generate share: %w", err)
+		}
+
+		var encryptTime, decryptTime time.Duration
+		for i := 0; i < opts.Iterations; i++ {
+			start := time.Now()
+			sealed, err := reader.EncryptShare(record.RecordID, record.Address, plaintext, signature)
+			if err != nil {
+				return fmt.Errorf("encrypt %d bytes: %w", size, err)
+			}
+			encryptTime += time.Since(start)
+
+			start = time.Now()
+			opened, err := reader.DecryptShare(record.RecordID, record.Address, sealed, signature)
+			if err != nil {
+				return fmt.Errorf("decrypt %d bytes: %w", size, err)
+			}
+			decryptTime += time.Since(start)
+			if !bytes.Equal(opened, plaintext) {
+				return fmt.Errorf("decrypted share mismatch at %d bytes", size)
+			}
+		}
+
+		// 加密 INIT + UPDATE... + FINAL；解密 INIT 后校验遍和第二遍各发送一次密文并以 FINAL 结束
+		// 明文按PKCS#7填充到16字节整数倍
+		padded := size/seclient.CIPHER_BLOCK_SIZE*seclient.CIPHER_BLOCK_SIZE + seclient.CIPHER_BLOCK_SIZE
+		updates := (padded + chunk - 1) / chunk
+		encryptAvg := encryptTime / time.Duration(opts.Iterations)
+		decryptAvg := decryptTime / time.Duration(opts.Iterations)
+		fmt.Fprintf(out, "%8d %9d %9d %12s %12.1f %12s %12.1f\n", size, 2+updates, 3+2*updates,
+			encryptAvg, kilobytesPerSecond(size, encryptAvg), decryptAvg, kilobytesPerSecond(size, decryptAvg))
+	}
+	return nil
+}
+
+// kilobytesPerSecond 按明文字节数计算吞吐量
+func kilobytesPerSecond(size int, elapsed time.Duration) float64 {
+	if elapsed <= 0 {
+		return 0
+	}
+	return float64(size) / 1024 / elapsed.Seconds()
+}
+
+// randomArenaLength 四分之一为定长32字节，其余在1-96字节之间均匀分布
+func randomArenaLength() int {
+	if rand.Intn(4) == 0 {
+		return seclient.MESSAGE_LENGTH
+	}
+	return 1 + rand.Intn(96)
+}
+
+// compactBenchArena 用基准私钥对当前 epoch 签名并整理变长消息区
+func compactBenchArena(reader *seclient.CardReader, aid []byte, privateKey *ecdsa.PrivateKey) error {
+	if err := reader.SelectApplet(aid); err != nil {
+		return fmt.Errorf("select applet: %w", err)
+	}
+	epoch := reader.Capabilities().Arena.Epoch
+	hash := sha256.Sum256([]byte{seclient.ARENA_COMPACT_DOMAIN, byte(epoch >> 8), byte(epoch)})
+	signature, err := ecdsa.SignASN1(crand.Reader, privateKey, hash[:])
+	if err != nil {
+		return fmt.Errorf("sign compaction: %w", err)
+	}
+	if _, err := reader.CompactArena(epoch, signature); err != nil {
+		return fmt.Errorf("compact arena: %w", err)
+	}
+	return nil
+}
+
+// openBenchReader 加载私钥、连接读卡器并选择Applet
+func openBenchReader(opts BenchOptions) (*seclient.CardReader, []byte, *ecdsa.PrivateKey, error) {
+	aid, err := parseHexBytes(opts.AppletAID, -1, "applet AID")
+	if err != nil {
+		return nil, nil, nil, err
+	}
+	privateKeyPath, err := resolvePrivateKeyPath(opts.PrivateKeyPath)
+	if err != nil {
+		return nil, nil, nil, err
+	}
+	privateKey, err := loadPrivateKey(privateKeyPath)
+	if err != nil {
+		return nil, nil, nil, err
+	}
+
+	reader, err := seclient.NewCardReader(seclient.WithDebug(opts.Debug))
+	if err != nil {
+		return nil, nil, nil, fmt.Errorf("create card reader: %w", err)
+	}
+	if err := reader.Connect(opts.ReaderName); err != nil {
+		reader.Close()
+		return nil, nil, nil, fmt.Errorf("connect reader: %w", err)
+	}
+	if err := reader.SelectApplet(aid); err != nil {
+		reader.Close()
+		return nil, nil, nil, fmt.Errorf("select applet: %w", err)
+	}
+	return reader, aid, privateKey, nil
+}
@@ -151,6 +151,26 @@ func runDirectSuite(out io.Writer, opts Options, aid []byte, privateKey *ecdsa.P
 		fmt.Fprintf(out, "[OK] read #%d\n", i)
 	}
 
+	// 批量读取的签名 S 覆盖 K1||K2，拆成 K1 加"签名" K2||S 后不能命中芯片授权缓存
+	if caps := reader.Capabilities(); len(records) >= 2 && caps != nil && caps.Supports(seclient.INS_BATCH_READ_DATA) {
+		fmt.Fprintf(out, "\nBatch signature reuse check\n")
+		first, second := records[0], records[1]
+		batchSignature, err := signRecord(privateKey, append(append([]byte{}, first.RecordID...), first.Address...),
+			append(append([]byte{}, second.RecordID...), second.Address...))
+		if err != nil {
+			return err
+		}
+		keys := []seclient.RecordKey{{RecordID: first.RecordID, Addr: first.Address}, {RecordID: second.RecordID, Addr: second.Address}}
+		if _, err := reader.BatchReadData(keys, batchSignature); err != nil {
+			return fmt.Errorf("batch read records 0-1: %w", err)
+		}
+		forged := append(append(append([]byte{}, second.RecordID...), second.Address...), batchSignature...)
+		if _, err := reader.ReadData(first.RecordID, first.Address, forged); err == nil {
+			return errors.New("batch signature accepted for single read")
+		}
+		fmt.Fprintf(out, "[OK] batch signature rejected for single read\n")
+	}
+
 	deleteCount := opts.RecordCount - 2
 	if deleteCount < 1 {
 		deleteCount = 1
@@ -8,9 +8,32 @@
  * 3. 支持覆盖已存在的(recordId, Addr)对的数据
  * 4. 支持删除已存在的数据
  * 5. 使用ECDSA签名验证操作的安全性
+ * 6. 通过持久化哈希索引定位记录，查找开销不随记录数量增长
+ * 7. 记录按分段存储，分段在首次使用时才分配
+ * 8. 支持一条命令批量存储多条记录，并在同一事务中提交
+ * 9. 支持用一个签名授权批量读取多条记录
+ * 10. 支持会话授权: 一次ECDSA验证建立会话，之后的读取和删除使用HMAC-SHA256标签
+ * 11. 支持Merkle根授权: 一次ECDSA验证缓存根哈希，之后的读取和删除使用SHA-256包含证明
+ * 12. 读取和删除可在P1P2携带STORE返回的槽位提示，命中时直接比对该槽位
+ * 13. 缓存最近验证通过的签名摘要，重发相同的授权时跳过ECDSA验证
+ * 14. 支持扩展长度APDU、命令链接(CLA位0x10)和GET RESPONSE(61xx)分段响应
+ * 15. 支持分页列出记录目录(槽位、record_id、地址)，不返回消息数据
+ * 16. SELECT响应返回能力与状态TLV(版本、支持的指令、批量上限、记录数、容量、剩余存储)
+ * 17. 持久化运行计数(各指令次数、验签成功/失败、记录写入字节、新增/覆盖)，可读取并经签名清零
+ * 18. 按地址建立二级索引，一个签名即可读取或删除某地址下的全部记录
+ * 19. 地址去重存放在带引用计数的地址表中，记录只保存2字节地址引用
+ * 20. 维护按 record_id||addr 排序的槽位索引，支持按前缀二分定位和按键续传的有序列出
+ * 21. 可选紧凑存储模式: 删除时把最后一条记录移入空槽，有效记录始终占据 [0, recordCount)
+ * 22. 支持1-255字节的变长消息，非32字节的消息存放在变长消息区，经签名授权整理碎片
+ * 23. 数据块存储: 按偏移分块写入和读取数KB的数据(如加密的本地分片)，封存时计算SHA-256摘要
+ * 24. 排序索引的更新先在记录事务中写入日志，再按块在多个小事务中移动，掉电后在SELECT时从日志记下的交界补完
+ * 25. 槽位磨损均衡: 优先使用从未写过的槽位，释放的槽位按先进先出复用，可选轮转整个容量；每个槽位记录写入次数
+ * 26. 在卡内用随机数发生器生成32字节消息并直接存储，消息只随存储结果返回一次，不经主机生成
+ * 27. 分片加解密: 以记录消息派生的密钥对主机数据流做AES-256-CBC加密或解密并计算HMAC-SHA256，密钥不离开芯片
+ * 28. 分片加解密都需授权 (刚生成未封装的记录加密除外)，解密先校验整个密文的标签再返回明文
  * 
  * @author Security Chip Team
- * @version 2.3 
+ * @version 3.0 
  */
 
 package securitychip;
@@ -18,25 +41,236 @@ package securitychip;
 import javacard.framework.*;
 import javacard.security.*;
 import javacardx.crypto.*;
+import javacardx.apdu.ExtendedLength;
 
-public class SecurityChipApplet extends Applet {
+public class SecurityChipApplet extends Applet implements ExtendedLength {
     // APDU指令常量
     private static final byte INS_STORE_DATA = (byte) 0x10; // 存储数据命令
+    private static final byte INS_BATCH_STORE_DATA = (byte) 0x11; // 批量存储数据命令
+    private static final byte INS_GENERATE_AND_STORE = (byte) 0x12; // 在卡内生成随机消息并存储命令
     private static final byte INS_READ_DATA = (byte) 0x20; // 读取数据命令
+    private static final byte INS_BATCH_READ_DATA = (byte) 0x21; // 批量读取数据命令
+    private static final byte INS_READ_BY_ADDR = (byte) 0x23; // 按地址读取全部记录命令
     private static final byte INS_DELETE_DATA = (byte) 0x30; // 删除数据命令
+    private static final byte INS_DELETE_BY_ADDR = (byte) 0x33; // 按地址删除全部记录命令
+    private static final byte INS_OPEN_SESSION = (byte) 0x40; // 建立会话命令，P1区分步骤
+    private static final byte INS_LOAD_AUTH_ROOT = (byte) 0x42; // 加载签名的Merkle授权根命令
+    private static final byte INS_LIST_RECORDS = (byte) 0x50; // 分页列出记录目录命令
+    private static final byte INS_LIST_SORTED = (byte) 0x51; // 按键顺序列出记录目录命令
+    private static final byte INS_GET_METRICS = (byte) 0x60; // 读取运行计数命令
+    private static final byte INS_RESET_METRICS = (byte) 0x61; // 清零运行计数命令 (需签名)
+    private static final byte INS_GET_SLOT_WEAR = (byte) 0x62; // 分页读取各槽位写入次数命令，P1P2为起始槽位
+    private static final byte INS_COMPACT_ARENA = (byte) 0x70; // 整理变长消息区命令 (需签名)
+    private static final byte INS_BLOB_CREATE = (byte) 0x80; // 创建数据块命令
+    private static final byte INS_BLOB_UPDATE = (byte) 0x81; // 按偏移写入数据块命令，P1P2为偏移
+    private static final byte INS_BLOB_FINALIZE = (byte) 0x82; // 封存数据块并计算摘要命令
+    private static final byte INS_BLOB_READ = (byte) 0x83; // 按偏移读取数据块命令，P1P2为偏移 (需授权)
+    private static final byte INS_BLOB_DELETE = (byte) 0x84; // 删除数据块命令 (需授权)
+    private static final byte INS_BLOB_INFO = (byte) 0x85; // 查询数据块长度、状态和摘要命令
+    private static final byte INS_CIPHER_INIT = (byte) 0x86; // 开始分片加解密命令，P1区分方向 (需授权)
+    private static final byte INS_CIPHER_UPDATE = (byte) 0x87; // 加解密一段分片数据命令
+    private static final byte INS_CIPHER_FINAL = (byte) 0x88; // 结束分片加解密并生成或校验标签命令
+    private static final byte INS_GET_RESPONSE = (byte) 0xC0; // 取回剩余响应数据命令
 
     // 状态常量
     private static final short SW_RECORD_NOT_FOUND = (short) 0x6A83; // 记录未找到
     private static final short SW_FILE_FULL = ISO7816.SW_FILE_FULL; // 存储空间已满
     private static final short SW_SIGNATURE_INVALID = (short) 0x6982; // 签名无效
+    private static final short SW_RECORD_EXISTS = (short) 0x6A89; // 记录已存在，生成命令不覆盖已有记录
+    private static final short SW_NEEDS_COMPACTION = ISO7816.SW_CONDITIONS_NOT_SATISFIED; // 变长消息区需先整理
+    private static final short SW_VARIABLE_LENGTH = (short) 0x6981; // 定长条目的读取遇到变长消息，需改用单条读取
 
     // 存储限制常量
-    private static final byte MAX_RECORDS = 100; // 最大记录数量
+    private static final short DEFAULT_CAPACITY = 100; // 安装参数未指定容量时的默认记录数量
+    private static final byte INSTALL_FLAG_DENSE = 0x01; // 安装参数标志位: 紧凑存储模式
+    private static final byte INSTALL_FLAG_ROTATE = 0x02; // 安装参数标志位: 轮转分配，紧凑模式下无效
+    private static final short MAX_CAPACITY = 8192; // 哈希桶数组不超过16384项时的容量上限
+    private static final short BYTES_PER_RECORD = 19; // 安装时每条记录预分配的元数据(摘要2 + 哈希桶最多8 + 存在位和变长标志位图1 + 地址桶最多4 + 地址链2 + 排序索引2)
+    private static final short INSTALL_RESERVE = 512; // 为密钥对象等其他持久化对象预留的空间
     private static final byte RECORD_ID_LENGTH = 32; // record_id固定长度
     private static final byte ADDR_LENGTH = 20; // 地址固定长度
-    private static final byte MESSAGE_LENGTH = 32; // 消息固定长度
+    private static final byte MESSAGE_LENGTH = 32; // 定长消息长度，存放在槽位内
+    private static final short MAX_VALUE_LENGTH = 255; // 变长消息最大长度
     private static final byte MAX_SIGNATURE_LENGTH = 72; // ECDSA DER格式签名最大长度
 
+    // 分段存储常量 - 每个槽位在分段内按 [recordId(32)][addrRef(2)][message(32)][writes(2)] 连续存放
+    private static final short RECORD_SIZE = (short) (RECORD_ID_LENGTH + ADDR_LENGTH + MESSAGE_LENGTH); // 命令中单条记录长度
+    private static final short RECORD_ID_OFFSET = 0; // record_id在记录内的偏移
+    private static final short ADDR_REF_OFFSET = RECORD_ID_LENGTH; // 地址表条目号在记录内的偏移
+    private static final short MESSAGE_OFFSET = (short) (RECORD_ID_LENGTH + 2); // 消息在记录内的偏移
+    private static final short WRITES_OFFSET = (short) (MESSAGE_OFFSET + MESSAGE_LENGTH); // 槽位写入次数的偏移，之前为记录内容
+    private static final short SLOT_SIZE = (short) (WRITES_OFFSET + 2); // 分段内单个槽位长度
+    private static final short SEGMENT_SHIFT = 4; // 槽位号右移得到分段号
+    private static final short SEGMENT_RECORDS = (short) (1 << SEGMENT_SHIFT); // 每个分段的记录数
+    private static final short SEGMENT_SIZE = (short) (SEGMENT_RECORDS * SLOT_SIZE); // 每个分段的字节数
+
+    // 地址表常量 - 每个条目按 [addr(20)][refCount(2)][firstSlot+1(2)][next+1(2)] 存放，按分段在首次使用时分配
+    private static final short ADDR_REFS_OFFSET = ADDR_LENGTH; // 引用计数在条目内的偏移
+    private static final short ADDR_FIRST_OFFSET = (short) (ADDR_LENGTH + 2); // 该地址首个记录槽位号+1的偏移
+    private static final short ADDR_NEXT_OFFSET = (short) (ADDR_LENGTH + 4); // 同桶下一个条目号+1的偏移，空闲条目借用为空闲链表指针
+    private static final short ADDR_SLOT_SIZE = (short) (ADDR_LENGTH + 6); // 地址表单个条目长度
+    private static final short ADDR_SEGMENT_SIZE = (short) (SEGMENT_RECORDS * ADDR_SLOT_SIZE); // 地址表每个分段的字节数
+
+    // 变长消息区常量 - 每个块按 [owner槽位号+1(2)][length(2)][value] 连续存放，owner为0表示空闲块
+    private static final short ARENA_OWNER_OFFSET = 0; // 所属槽位号+1在块内的偏移
+    private static final short ARENA_LENGTH_OFFSET = 2; // 消息长度在块内的偏移
+    private static final short ARENA_HEADER_SIZE = 4; // 块头长度
+    private static final short ARENA_DEFAULT_SIZE = 2048; // 安装参数未指定时的变长消息区字节数
+    private static final short ARENA_MAX_SIZE = 32767; // 变长消息区字节数上限
+    private static final short ARENA_COMMIT_RESERVE = 128; // 整理时为槽位引用和事务开销预留的事务缓冲区
+    private static final byte ARENA_COMPACT_DOMAIN = (byte) 0x43; // 整理签名数据的首字节，区分其他签名数据
+
+    // 数据块常量 - 数据块表每项为 [record_id||addr(52)][length(2)][state(1)][digest(32)]
+    private static final short BLOB_SLOTS = 8; // 数据块数量上限
+    private static final short BLOB_KEY_OFFSET = 0; // 键在表项内的偏移
+    private static final short BLOB_LENGTH_OFFSET = 52; // 数据长度在表项内的偏移
+    private static final short BLOB_STATE_OFFSET = 54; // 状态在表项内的偏移
+    private static final short BLOB_DIGEST_OFFSET = 55; // SHA-256摘要在表项内的偏移
+    private static final short BLOB_ENTRY_SIZE = 87; // 数据块表单个表项长度
+    private static final byte BLOB_EMPTY = 0; // 数据块状态: 空闲，数据数组保留供复用
+    private static final byte BLOB_WRITING = 1; // 数据块状态: 写入中，只能写入和封存
+    private static final byte BLOB_SEALED = 2; // 数据块状态: 已封存，摘要有效，只能读取
+    private static final short BLOB_MAX_SIZE = 32767; // 单个数据块字节数上限
+
+    // 分片加解密常量 - 密文格式 [iv(16)][AES-256-CBC密文][HMAC-SHA256(iv||密文)(32)]，填充由主机完成
+    private static final byte CIPHER_ENCRYPT = 0x01; // CIPHER_INIT P1: 加密，芯片生成IV；需授权，未封装的生成记录除外
+    private static final byte CIPHER_DECRYPT = 0x02; // CIPHER_INIT P1: 解密，需授权；也表示解密的校验遍
+    private static final byte CIPHER_RELEASE = 0x03; // CIPHER_MODE取值: 标签已校验，解密的第二遍返回明文
+    private static final short CIPHER_IV_LENGTH = 16; // CBC初始向量长度
+    private static final short CIPHER_BLOCK_MASK = 0x0F; // 分段长度必须是16字节的整数倍
+    private static final short CIPHER_TAG_LENGTH = 32; // HMAC-SHA256标签长度
+    private static final byte CIPHER_ENC_DOMAIN = 0x01; // 加密密钥 = SHA256(0x01 || 记录消息)
+    private static final byte CIPHER_MAC_DOMAIN = 0x02; // 标签密钥 = SHA256(0x02 || 记录消息)
+    private static final byte GENERATE_KEEP_SECRET = 0x01; // GENERATE_AND_STORE P1位: 不返回生成的消息
+
+    // 会话授权常量
+    private static final byte SESSION_STEP_CHALLENGE = 0x00; // OPEN_SESSION P1: 生成芯片临时公钥
+    private static final byte SESSION_STEP_GRANT = 0x01; // OPEN_SESSION P1: 提交服务器签名的会话授权
+    private static final short EC_POINT_LENGTH = 65; // 未压缩EC公钥长度 (04||X||Y)
+    private static final short SESSION_KEY_LENGTH = 32; // 会话密钥长度
+    private static final short MAX_SESSION_OPS = 1024; // 单个会话允许的最大操作数
+    private static final byte AUTH_SESSION_TAG = (byte) 0xA1; // 授权块类型: 会话HMAC标签，DER签名以0x30开头
+    private static final short SESSION_AUTH_LENGTH = 35; // 会话授权块长度 [0xA1][counter(2)][tag(32)]
+    private static final short HMAC_BLOCK_SIZE = 64; // SHA-256分组长度
+    private static final byte SESSION_ACTIVE = 0; // sessionState下标: 会话是否有效
+    private static final byte SESSION_COUNTER = 1; // sessionState下标: 最后使用的操作计数
+    private static final byte SESSION_PENDING = 2; // sessionState下标: 是否有待确认的芯片临时公钥
+    private static final byte MERKLE_OPS = 3; // sessionState下标: Merkle根允许的操作，0表示未加载
+    private static final byte AUTH_CACHE_FILLED = 4; // sessionState下标: 授权缓存中的有效条目数
+    private static final byte AUTH_CACHE_NEXT = 5; // sessionState下标: 授权缓存下一个写入位置
+    private static final byte CIPHER_MODE = 6; // sessionState下标: 进行中的分片加解密方向，0表示无
+    private static final byte CIPHER_UNSEALED = 7; // sessionState下标: 本次加密未经授权，使用的是未封装的生成记录
+    private static final short SESSION_STATE_SIZE = 8; // sessionState长度
+
+    // Merkle授权常量
+    private static final byte AUTH_MERKLE_PROOF = (byte) 0xA2; // 授权块类型: Merkle包含证明
+    private static final byte MERKLE_ROOT_DOMAIN = (byte) 0x4D; // 根签名数据的首字节，区分其他签名数据
+    private static final byte MERKLE_OP_READ = 0x01; // 根授权操作位: 读取
+    private static final byte MERKLE_OP_DELETE = 0x02; // 根授权操作位: 删除
+    private static final byte MERKLE_LEAF_PREFIX = 0x00; // 叶子哈希前缀
+    private static final byte MERKLE_NODE_PREFIX = 0x01; // 内部节点哈希前缀
+    private static final byte MAX_MERKLE_DEPTH = 16; // 证明的最大深度
+    private static final short HASH_LENGTH = 32; // SHA-256摘要长度
+
+    // 长命令与分段响应常量
+    private static final short IO_BUFFER_SIZE = 1024; // 命令拼接和长响应缓冲区大小
+    private static final short IO_DATA_START = ISO7816.OFFSET_CDATA; // 拼接数据在缓冲区中的起始位置，与短APDU一致
+    private static final short SHORT_RESPONSE_MAX = 256; // 短APDU单次响应的最大长度
+    private static final byte IO_CHAIN_INS = 0; // ioState下标: 进行中的命令链指令 (INS|0x100)，0表示无
+    private static final byte IO_CHAIN_LENGTH = 1; // ioState下标: 命令链已接收的数据长度
+    private static final byte IO_IN_BUFFER = 2; // ioState下标: 当前命令数据是否在ioBuffer中
+    private static final byte IO_EXTENDED = 3; // ioState下标: 当前命令是否为扩展长度APDU
+    private static final byte IO_RESPONSE_OFFSET = 4; // ioState下标: 待取回响应在ioBuffer中的位置
+    private static final byte IO_RESPONSE_REMAINING = 5; // ioState下标: 待取回响应的剩余长度
+    private static final short IO_STATE_SIZE = 6; // ioState长度
+
+    // SELECT响应能力TLV常量，每项为 [tag(1)][length(1)][value]
+    private static final short APPLET_VERSION = 0x0300; // 协议版本 主版本.次版本
+    private static final byte CAP_TAG_VERSION = (byte) 0x80; // 版本 [major(1)][minor(1)]
+    private static final byte CAP_TAG_INSTRUCTIONS = (byte) 0x81; // 支持的INS列表
+    private static final byte CAP_TAG_BATCH_LIMITS = (byte) 0x82; // [batchStore(1)][batchRead(1)][listPage(1)]
+    private static final byte CAP_TAG_RECORD_COUNT = (byte) 0x83; // 当前记录数(2)
+    private static final byte CAP_TAG_CAPACITY = (byte) 0x84; // 记录容量(2)
+    private static final byte CAP_TAG_FREE_MEMORY = (byte) 0x85; // 剩余持久化存储字节数(4)
+    private static final byte CAP_TAG_MAX_DATA = (byte) 0x86; // 单条命令拼接后的最大数据长度(2)
+    private static final byte CAP_TAG_STORAGE_FLAGS = (byte) 0x87; // 存储模式标志(1)，与安装参数标志位相同
+    private static final byte CAP_TAG_ARENA = (byte) 0x88; // 变长消息区 [size(2)][top(2)][garbage(2)][epoch(2)]
+    private static final byte CAP_TAG_BLOBS = (byte) 0x89; // 数据块 [slots(1)][used(1)][readChunk(2)]
+
+    // 运行计数常量，计数为32位无符号数，以 [高16位][低16位] 存放，达到最大值后保持不变
+    private static final short METRIC_VERIFY_OK = 0; // ECDSA验证通过次数
+    private static final short METRIC_VERIFY_FAILED = 1; // ECDSA验证失败次数
+    private static final short METRIC_AUTH_CACHE_HITS = 2; // 授权缓存命中、跳过ECDSA验证的次数
+    private static final short METRIC_NVM_BYTES = 3; // 写入记录数据的字节数
+    private static final short METRIC_INSERTS = 4; // 新增记录次数
+    private static final short METRIC_OVERWRITES = 5; // 覆盖已有记录次数
+    private static final short METRIC_OTHER_INS = 6; // 不支持的指令和GET RESPONSE次数
+    private static final short METRIC_UNCHANGED = 7; // 覆盖时消息未变、跳过写入的次数
+    private static final short METRIC_INS_BASE = 8; // 之后按 SUPPORTED_INS 顺序为各指令次数
+    private static final short METRICS_FLUSH_INTERVAL = 16; // RAM中累计的命令数达到此值时写回EEPROM
+    private static final byte METRICS_RESET_DOMAIN = (byte) 0x52; // 清零签名数据的首字节，区分其他签名数据
+    private static final short METRIC_ENTRY_LENGTH = 5; // GET_METRICS条目 [id(1)][value(4)]
+
+    // 地址索引常量
+    private static final short ADDR_ENTRY_LENGTH = (short) (2 + RECORD_ID_LENGTH + MESSAGE_LENGTH); // 按地址读取的条目 [slot(2)][record_id][message]
+    private static final short ADDR_READ_MAX_ENTRIES = (short) ((short) (IO_BUFFER_SIZE - 3) / ADDR_ENTRY_LENGTH); // 按地址读取每页条目上限
+
+    // 记录目录常量
+    private static final short LIST_HEADER_LENGTH = 3; // 目录响应头 [nextCursor(2)][count(1)]
+    private static final short LIST_ENTRY_LENGTH = (short) (2 + RECORD_ID_LENGTH + ADDR_LENGTH); // 目录条目 [slot(2)][record_id][addr]
+    private static final short LIST_MAX_ENTRIES = (short) ((short) (IO_BUFFER_SIZE - LIST_HEADER_LENGTH) / LIST_ENTRY_LENGTH); // 每页条目上限
+    private static final short SORTED_REQUEST_HEADER = 2; // 有序列出请求头 [maxEntries(1)][prefixLength(1)]
+
+    // 槽位写入次数常量
+    private static final short WEAR_ENTRY_LENGTH = 2; // 写入次数条目 [writes(2)]，按槽位号连续排列
+    private static final short WEAR_MAX_ENTRIES = 255; // 每页条目上限，受响应头中1字节的条目数限制
+    private static final short WEAR_SATURATED = (short) 0xFFFF; // 写入次数上限，达到后保持不变
+
+    // 授权缓存常量
+    private static final short AUTH_CACHE_ENTRIES = 4; // 缓存的已验证签名数，必须为2的幂
+    private static final byte AUTH_CACHE_RECORD = 0x01; // 缓存键域: 单条记录 record_id||addr
+    private static final byte AUTH_CACHE_BATCH = 0x02; // 缓存键域: 批量读取的 record_id||addr 列表
+    private static final byte AUTH_CACHE_ADDR = 0x03; // 缓存键域: 按地址操作的 INS||addr
+    private static final byte AUTH_CACHE_ARENA = 0x04; // 缓存键域: 整理变长消息区的 domain||epoch
+
+    // 批量存储常量
+    private static final byte MAX_BATCH_RECORDS = 16; // 单条批量命令的记录数上限
+    private static final short KEY_LENGTH = (short) (RECORD_ID_LENGTH + ADDR_LENGTH); // 记录键 record_id||addr 的长度
+    private static final short BATCH_COMMIT_COST = 160; // 每条记录写入在事务缓冲区中的估算占用
+    private static final byte BATCH_INSERTED = 0x00; // 批量条目状态: 新增
+    private static final byte BATCH_OVERWRITTEN = 0x01; // 批量条目状态: 覆盖已有记录
+    private static final byte BATCH_FULL = 0x02; // 批量条目状态: 存储空间已满，未写入
+
+    // 哈希索引常量
+    private static final short MIN_HASH_TABLE_SIZE = 16; // 哈希桶最小数量
+    private static final short INDEX_EMPTY = 0; // 空桶标记，非空桶保存"槽位号+1"
+
+    // 槽位分配常量
+    private static final short NO_SLOT = -1; // 无可用槽位 / 空闲链表结束
+
+    // 排序索引日志常量 - 日志在记录事务中写入，JOURNAL_OP 是唯一的提交标记
+    private static final short JOURNAL_OP = 0; // 待执行的操作，JOURNAL_NONE表示排序索引已与记录一致
+    private static final short JOURNAL_PENDING = 1; // 插入: 待插入的槽位数
+    private static final short JOURNAL_POSITION = 2; // 插入点，或被删除条目在排序索引中的位置
+    private static final short JOURNAL_MOVED = 3; // 删除: 紧凑模式下被移动记录在删除后的位置，NO_SLOT表示没有移动
+    private static final short JOURNAL_SLOT = 4; // 删除: 被移动记录的新槽位
+    private static final short JOURNAL_BOUNDARY = 5; // 已移动与未移动部分的交界，插入时NO_SLOT表示尚未定位
+    private static final short JOURNAL_SLOTS = 6; // 插入: 待插入槽位列表的起始位置
+    private static final short JOURNAL_NONE = 0; // 操作: 无
+    private static final short JOURNAL_INSERT = 1; // 操作: 插入待插入列表中的槽位
+    private static final short JOURNAL_REMOVE = 2; // 操作: 删除指定位置的条目
+    private static final short SORTED_CHUNK_MAX = 128; // 排序索引每个事务最多移动的条目数
+    private static final short SORTED_COMMIT_RESERVE = 64; // 移动时为日志和事务开销预留的事务缓冲区
+
+    // SELECT响应中列出的指令，芯片缺少相应算法的指令不列出 (见 isInstructionAvailable)
+    private static final byte[] SUPPORTED_INS = {
+            INS_STORE_DATA, INS_BATCH_STORE_DATA, INS_READ_DATA, INS_BATCH_READ_DATA, INS_READ_BY_ADDR,
+            INS_DELETE_DATA, INS_DELETE_BY_ADDR, INS_OPEN_SESSION, INS_LOAD_AUTH_ROOT, INS_LIST_RECORDS,
+            INS_LIST_SORTED, INS_GET_METRICS, INS_RESET_METRICS, INS_COMPACT_ARENA, INS_BLOB_CREATE,
+            INS_BLOB_UPDATE, INS_BLOB_FINALIZE, INS_BLOB_READ, INS_BLOB_DELETE, INS_BLOB_INFO,
+            INS_GET_SLOT_WEAR, INS_GENERATE_AND_STORE, INS_CIPHER_INIT, INS_CIPHER_UPDATE, INS_CIPHER_FINAL
+    };
+
     // ECDSA公钥 (NIST P-256 / secp256r1曲线)
     private static final byte[] EC_PUBLIC_KEY_BYTES = {
             (byte) 0x04, (byte) 0xB6, (byte) 0x29, (byte) 0x04, (byte) 0x3F, (byte) 0x4C, (byte) 0xAC, (byte) 0x5B,
@@ -93,34 +327,184 @@ public class SecurityChipApplet extends Applet {
     private Signature ecSignature;
 
     // 数据存储结构
-    private byte[] recordIds; // 所有record_id存储数组
-    private byte[] addresses; // 所有地址存储数组
-    private byte[] messages; // 所有消息存储数组
-    private byte[] existFlags; // 记录存在标志数组
-    private byte recordCount; // 当前记录数量
-    private byte nextFreeSlot; // 下一个可用槽位
+    private Object[] segments; // 分段目录，元素为byte[]分段，未使用的分段为null
+    private byte[] existFlags; // 记录存在位图，每个槽位占1位
+    private short capacity; // 最大记录数量，安装时确定
+    private short recordCount; // 当前记录数量
+
+    // 槽位分配器 - 释放的槽位串成先进先出的空闲链表，链表指针借用空槽record_id的前2字节
+    // 从链表头复用、向链表尾释放，频繁增删时写入轮流落在所有空闲槽位上，而不是集中在最近释放的一个
+    private short freeListHead; // 空闲链表头，最早释放的槽位，NO_SLOT表示链表为空
+    private short freeListTail; // 空闲链表尾，最近释放的槽位
+    private short highWaterMark; // 从未使用过的最低槽位，之后的槽位全部空闲；紧凑模式下恒等于recordCount
+    private boolean denseMode; // 紧凑存储模式，删除时移动最后一条记录填补空槽，不使用空闲链表
+    private boolean rotateMode; // 轮转分配，空闲链表非空时也为高水位线提前分配分段，整个容量写过一轮后才复用
+    private byte batchLimit; // 单条批量命令的记录数上限，按事务缓冲区容量确定
+
+    // 哈希索引 - 线性探测开放寻址，键为 record_id || addr 的16位摘要
+    private short[] hashIndex; // 哈希桶，保存槽位号+1，桶数量为2的幂且不小于2倍容量
+    private short hashMask; // 桶下标掩码
+    private short[] slotHashes; // 每个槽位记录的完整16位摘要，用于快速排除冲突
+
+    // 地址表 - 相同地址只存一份，同桶条目和同地址记录分别用单向链表串联
+    private Object[] addrSegments; // 地址表分段目录，条目数不超过记录数，分段数与记录分段相同
+    private short addrFreeHead; // 地址表空闲链表头，NO_SLOT表示链表为空
+    private short addrHighWaterMark; // 从未使用过的最低地址表条目号
+    private short[] addrHeads; // 地址桶，保存链表首个条目号+1，桶数量为2的幂且不小于容量
+    private short addrMask; // 地址桶下标掩码
+    private short[] slotNextByAddr; // 每个槽位在同地址记录链表中的下一个槽位号+1，0表示链表结束
+
+    // 变长消息区 - 新块追加在末尾，释放的块留作空洞，由签名授权的整理命令回收
+    private byte[] arena; // 变长消息区，首次写入变长消息时分配
+    private short arenaSize; // 变长消息区字节数，安装时确定，0表示不支持变长消息
+    private short arenaTop; // 已使用区域的末尾，之后的空间全部空闲
+    private short arenaGarbage; // 已使用区域中空闲块的总字节数 (含块头)
+    private short arenaEpoch; // 整理完成次数，整理签名须覆盖当前值，防止重放
+    private short compactBudget; // 单条整理命令移动的字节数上限，按事务缓冲区容量确定
+    private byte[] arenaFlags; // 变长标志位图，置位的槽位消息区前2字节为块起始位置
+
+    // 数据块 - 表和数据数组在首次创建数据块时分配，删除后数组保留，下次创建同样大小的数据块时复用
+    private byte[] blobTable; // 数据块表，BLOB_SLOTS个表项
+    private Object[] blobData; // 各数据块的数据数组，元素为byte[]，未分配时为null
+
+    // 排序索引 - 按 record_id||addr 无符号字节序排列的槽位号
+    // 插入删除需要整体移动，按块分多个事务进行，避免占满事务缓冲区；每块与日志中的交界同时提交
+    private byte[] sortedSlots; // 有序槽位号数组，每项2字节
+    private short sortedChunk; // 每个事务移动的条目数，由事务缓冲区大小决定
+    private short sortedCount; // 有序数组中的条目数，日志为空时等于recordCount
+    private short[] sortedJournal; // 排序索引日志，记录已提交但尚未执行完的插入或删除
 
     // 临时缓冲区，用于构建签名数据
     private byte[] tempBuffer;
+    private short[] batchSlots; // 批量读取时暂存各条记录的槽位
+    private short[] memoryWords; // 读取剩余持久化存储的32位结果 (高16位, 低16位)
+
+    // 长命令与分段响应
+    private byte[] ioBuffer; // 命令链/超长命令的拼接区，也保存待GET RESPONSE取回的响应
+    private short[] ioState; // 命令链和分段响应状态，取消选择时清除
+
+    // 会话授权 - 芯片不支持ECDH时sessionKeyPair为null，会话功能不可用
+    private KeyPair sessionKeyPair; // 芯片临时密钥对，私钥取消选择时清除
+    private KeyAgreement keyAgreement; // ECDH密钥协商
+    private MessageDigest sha256; // SHA-256摘要，用于派生会话密钥和计算HMAC
+    private byte[] sessionKey; // 会话密钥，取消选择时清除
+    private short[] sessionState; // 会话状态，取消选择时清除
+    private byte[] sessionWork; // HMAC和Merkle证明计算的工作区 [pad(64)][digest(32)]
+
+    // 卡内生成消息 - 芯片没有可用的随机数发生器时为null，GENERATE_AND_STORE不可用
+    private RandomData keyRandom; // 生成消息的随机数发生器
+
+    // 分片加解密 - 芯片不支持AES时shareCipher为null，CIPHER_*指令不可用
+    private Cipher shareCipher; // AES-256-CBC，无填充
+    private AESKey shareKey; // 由记录消息派生的加密密钥，取消选择时清除
+    private MessageDigest shareDigest; // 跨命令累积HMAC内层摘要，不与sha256共用
+    private byte[] shareMacKey; // 由记录消息派生的标签密钥，取消选择时清除
+    private byte[] shareIv; // 解密的IV，校验遍结束后用于第二遍，取消选择时清除
+    private byte[] unsealedKey; // 最近以 GENERATE_KEEP_SECRET 生成、尚未完成加密的记录的 record_id||addr
+    private boolean hasUnsealed; // unsealedKey 是否有效，第一次加密完成时清除
+    private byte[] merkleRoot; // 已验签的Merkle授权根，取消选择时清除
+    private byte[] authCache; // 最近验证通过的 SHA256(域||长度||消息||签名) 环形缓存，取消选择时清除
+
+    // 运行计数 - 增量先累计在RAM中，定期和取消选择时批量写回，避免每条命令都写EEPROM
+    private short metricCount; // 计数项数量 = METRIC_INS_BASE + SUPPORTED_INS长度
+    private short[] metrics; // 持久化计数，每项 [高16位][低16位]
+    private short[] metricsPending; // 尚未写回的增量，最后一项为累计的命令数，复位时清除
+    private short metricsEpoch; // 清零次数，清零签名须覆盖当前值，防止重放
 
     /**
      * 私有构造方法 - 初始化Applet
+     * 
+     * @param recordCapacity 最大记录数量
+     * @param dense          是否使用紧凑存储模式
+     * @param rotate         是否使用轮转分配，紧凑模式下忽略
+     * @param arenaBytes     变长消息区字节数，0表示不支持变长消息
      */
-    private SecurityChipApplet() {
-        // 初始化存储结构 - 固定长度数组
-        recordIds = new byte[MAX_RECORDS * RECORD_ID_LENGTH];
-        addresses = new byte[MAX_RECORDS * ADDR_LENGTH];
-        messages = new byte[MAX_RECORDS * MESSAGE_LENGTH];
-        existFlags = new byte[MAX_RECORDS]; // 0表示空槽，1表示有效记录
+    private SecurityChipApplet(short recordCapacity, boolean dense, boolean rotate, short arenaBytes) {
+        capacity = recordCapacity;
+        denseMode = dense;
+        rotateMode = rotate && !dense;
+        arenaSize = arenaBytes;
+
+        // 初始化存储结构 - 只分配分段目录，记录数据在首次写入时按分段分配
+        segments = new Object[(short) ((short) (capacity + SEGMENT_RECORDS - 1) >> SEGMENT_SHIFT)];
+        existFlags = new byte[(short) ((short) (capacity + 7) >> 3)]; // 位为0表示空槽，1表示有效记录
         recordCount = 0;
-        nextFreeSlot = 0;
+        freeListHead = NO_SLOT;
+        freeListTail = NO_SLOT;
+        highWaterMark = 0;
+
+        short tableSize = MIN_HASH_TABLE_SIZE;
+        while (tableSize < (short) (capacity * 2)) {
+            tableSize = (short) (tableSize << 1);
+        }
+        hashIndex = new short[tableSize];
+        hashMask = (short) (tableSize - 1);
+        slotHashes = new short[capacity];
+
+        short addrTableSize = MIN_HASH_TABLE_SIZE;
+        while (addrTableSize < capacity) {
+            addrTableSize = (short) (addrTableSize << 1);
+        }
+        addrSegments = new Object[segments.length];
+        addrFreeHead = NO_SLOT;
+        addrHighWaterMark = 0;
+        addrHeads = new short[addrTableSize];
+        addrMask = (short) (addrTableSize - 1);
+        slotNextByAddr = new short[capacity];
+        sortedSlots = new byte[(short) (capacity * 2)];
+        sortedCount = 0;
+        sortedJournal = new short[(short) (JOURNAL_SLOTS + MAX_BATCH_RECORDS)];
+        sortedJournal[JOURNAL_BOUNDARY] = NO_SLOT;
+        arenaFlags = new byte[existFlags.length];
+        arenaTop = 0;
+        arenaGarbage = 0;
+        arenaEpoch = 0;
+
+        // 一条批量命令必须能在一个事务内提交，且能放入拼接缓冲区
+        short commitLimit = (short) (JCSystem.getMaxCommitCapacity() / BATCH_COMMIT_COST);
+        short bufferLimit = (short) ((short) (IO_BUFFER_SIZE - IO_DATA_START - 1) / RECORD_SIZE);
+        if (bufferLimit < commitLimit) {
+            commitLimit = bufferLimit;
+        }
+        batchLimit = commitLimit < MAX_BATCH_RECORDS ? (byte) commitLimit : MAX_BATCH_RECORDS;
+        if (batchLimit < 1) {
+            batchLimit = 1;
+        }
+        compactBudget = (short) (JCSystem.getMaxCommitCapacity() - ARENA_COMMIT_RESERVE);
+        // 事务中的数组复制按写入字节数的两倍估算事务缓冲区占用
+        sortedChunk = (short) ((short) (JCSystem.getMaxCommitCapacity() - SORTED_COMMIT_RESERVE) >> 2);
+        if (sortedChunk > SORTED_CHUNK_MAX) {
+            sortedChunk = SORTED_CHUNK_MAX;
+        }
+        if (sortedChunk < 1) {
+            sortedChunk = 1;
+        }
 
         // 初始化临时缓冲区 - 只需要存储record_id和地址用于构建签名消息
         tempBuffer = JCSystem.makeTransientByteArray((short) (RECORD_ID_LENGTH + ADDR_LENGTH),
                 JCSystem.CLEAR_ON_DESELECT);
+        batchSlots = JCSystem.makeTransientShortArray(MAX_BATCH_RECORDS, JCSystem.CLEAR_ON_DESELECT);
+
+        ioState = JCSystem.makeTransientShortArray(IO_STATE_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        memoryWords = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_DESELECT);
+
+        // 运行计数增量在取消选择时写回，因此使用复位才清除的RAM
+        metricCount = (short) (METRIC_INS_BASE + SUPPORTED_INS.length);
+        metrics = new short[(short) (metricCount * 2)];
+        metricsPending = JCSystem.makeTransientShortArray((short) (metricCount + 1), JCSystem.CLEAR_ON_RESET);
 
         // 初始化ECDSA验证
         initializeECDSA();
+        initializeSession();
+        initializeKeyRandom();
+        initializeShareCipher();
+
+        // 拼接缓冲区最后分配，其中会暂存签名、消息等秘密且每条长命令都会整块改写，只能放在RAM中
+        try {
+            ioBuffer = JCSystem.makeTransientByteArray(IO_BUFFER_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        } catch (SystemException e) {
+            ISOException.throwIt(SW_FILE_FULL);
+        }
 
         register();
     }
@@ -137,12 +521,7 @@ public class SecurityChipApplet extends Applet {
                 false);
 
         // 设置椭圆曲线参数
-        ecPublicKey.setFieldFP(P, (short) 0, (short) P.length);
-        ecPublicKey.setA(A, (short) 0, (short) A.length);
-        ecPublicKey.setB(B, (short) 0, (short) B.length);
-        ecPublicKey.setG(G, (short) 0, (short) G.length);
-        ecPublicKey.setR(N, (short) 0, (short) N.length);
-        ecPublicKey.setK(K);
+        setCurveParameters(ecPublicKey);
 
         // 设置公钥
         ecPublicKey.setW(EC_PUBLIC_KEY_BYTES, (short) 0, (short) EC_PUBLIC_KEY_BYTES.length);
@@ -151,11 +530,168 @@ public class SecurityChipApplet extends Applet {
         ecSignature.init(ecPublicKey, Signature.MODE_VERIFY);
     }
 
+    /**
+     * 初始化会话授权组件
+     * 
+     * 芯片不支持临时EC私钥或ECDH时不影响安装，OPEN_SESSION返回功能不支持，
+     * 读取和删除仍可使用逐条签名。
+     */
+    private void initializeSession() {
+        sha256 = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+        sessionKey = JCSystem.makeTransientByteArray(SESSION_KEY_LENGTH, JCSystem.CLEAR_ON_DESELECT);
+        sessionState = JCSystem.makeTransientShortArray(SESSION_STATE_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        authCache = JCSystem.makeTransientByteArray((short) (AUTH_CACHE_ENTRIES * HASH_LENGTH),
+                JCSystem.CLEAR_ON_DESELECT);
+        merkleRoot = JCSystem.makeTransientByteArray(HASH_LENGTH, JCSystem.CLEAR_ON_DESELECT);
+        sessionWork = JCSystem.makeTransientByteArray((short) (HMAC_BLOCK_SIZE + MessageDigest.LENGTH_SHA_256),
+                JCSystem.CLEAR_ON_DESELECT);
+
+        try {
+            ECPublicKey publicKey = (ECPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PUBLIC,
+                    KeyBuilder.LENGTH_EC_FP_256, false);
+            ECPrivateKey privateKey = (ECPrivateKey) KeyBuilder.buildKey(
+                    KeyBuilder.TYPE_EC_FP_PRIVATE_TRANSIENT_DESELECT, KeyBuilder.LENGTH_EC_FP_256, false);
+            setCurveParameters(publicKey);
+            setCurveParameters(privateKey);
+            keyAgreement = KeyAgreement.getInstance(KeyAgreement.ALG_EC_SVDP_DH_PLAIN, false);
+            sessionKeyPair = new KeyPair(publicKey, privateKey);
+        } catch (CryptoException e) {
+            sessionKeyPair = null;
+        }
+    }
+
+    /**
+     * 初始化卡内生成消息的随机数发生器
+     * 
+     * 优先使用密钥生成级别的算法，芯片不提供时退回真随机数发生器；两者都不支持时
+     * GENERATE_AND_STORE返回功能不支持，主机仍可自行生成后用STORE_DATA存储。
+     */
+    private void initializeKeyRandom() {
+        try {
+            keyRandom = RandomData.getInstance(RandomData.ALG_KEYGENERATION);
+        } catch (CryptoException e) {
+            try {
+                keyRandom = RandomData.getInstance(RandomData.ALG_TRNG);
+            } catch (CryptoException e2) {
+                keyRandom = null;
+            }
+        }
+    }
+
+    /**
+     * 初始化分片加解密组件
+     * 
+     * 芯片不支持AES或临时AES密钥时不影响安装，CIPHER_*指令返回功能不支持，
+     * 主机仍可读取消息后自行解密旧格式的分片。
+     */
+    private void initializeShareCipher() {
+        try {
+            shareKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT,
+                    KeyBuilder.LENGTH_AES_256, false);
+            shareDigest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+            shareCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+            shareMacKey = JCSystem.makeTransientByteArray(HASH_LENGTH, JCSystem.CLEAR_ON_DESELECT);
+            shareIv = JCSystem.makeTransientByteArray(CIPHER_IV_LENGTH, JCSystem.CLEAR_ON_DESELECT);
+            unsealedKey = new byte[KEY_LENGTH];
+        } catch (CryptoException e) {
+            shareCipher = null;
+        }
+    }
+
+    /**
+     * 设置secp256r1曲线参数
+     * 
+     * @param key EC公钥或私钥
+     */
+    private void setCurveParameters(ECKey key) {
+        key.setFieldFP(P, (short) 0, (short) P.length);
+        key.setA(A, (short) 0, (short) A.length);
+        key.setB(B, (short) 0, (short) B.length);
+        key.setG(G, (short) 0, (short) G.length);
+        key.setR(N, (short) 0, (short) N.length);
+        key.setK(K);
+    }
+
     /**
      * 安装方法 - JavaCard框架调用此静态方法安装Applet
+     * 
+     * 安装参数格式: [Li][AID][Lc][控制信息][La][容量(2字节，可选)][标志(1字节，可选)][变长消息区字节数(2字节，可选)]
+     * 未给出容量时使用 DEFAULT_CAPACITY；容量为0或超过 MAX_CAPACITY 时取 MAX_CAPACITY。
+     * 最终容量再按当前可用持久化存储截断。标志位 INSTALL_FLAG_DENSE 选择紧凑存储模式，INSTALL_FLAG_ROTATE 选择轮转分配。
+     * 变长消息区未给出时为 ARENA_DEFAULT_SIZE，为0时不支持变长消息；消息区在首次使用时才分配。
      */
     public static void install(byte[] bArray, short bOffset, byte bLength) {
-        new SecurityChipApplet();
+        short requested = DEFAULT_CAPACITY;
+        byte flags = 0;
+        short arenaBytes = ARENA_DEFAULT_SIZE;
+        if (bLength > 0) {
+            short offset = bOffset;
+            offset = (short) (offset + (short) (bArray[offset] & 0xFF) + 1); // 跳过AID
+            offset = (short) (offset + (short) (bArray[offset] & 0xFF) + 1); // 跳过控制信息
+            short dataLength = (short) (bArray[offset] & 0xFF);
+            if (dataLength >= 2) {
+                requested = Util.getShort(bArray, (short) (offset + 1));
+            }
+            if (dataLength >= 3) {
+                flags = bArray[(short) (offset + 3)];
+            }
+            if (dataLength >= 5) {
+                arenaBytes = Util.getShort(bArray, (short) (offset + 4));
+            }
+        }
+        if (arenaBytes < 0) {
+            arenaBytes = ARENA_MAX_SIZE;
+        }
+        if (requested <= 0 || requested > MAX_CAPACITY) {
+            requested = MAX_CAPACITY;
+        }
+
+        short[] memory = new short[2];
+        JCSystem.getAvailableMemory(memory, (short) 0, JCSystem.MEMORY_TYPE_PERSISTENT);
+        short affordable = recordsForMemory(memory[0], memory[1]);
+        if (requested > affordable) {
+            requested = affordable;
+        }
+        if (requested <= 0) {
+            ISOException.throwIt(SW_FILE_FULL);
+        }
+
+        new SecurityChipApplet(requested, (flags & INSTALL_FLAG_DENSE) != 0, (flags & INSTALL_FLAG_ROTATE) != 0,
+                arenaBytes);
+    }
+
+    /**
+     * 计算可用持久化存储能容纳的记录数量
+     * 
+     * 可用空间以32位无符号数(高16位, 低16位)给出，扣除 INSTALL_RESERVE 后除以 BYTES_PER_RECORD。
+     * 卡上没有int运算，按字节分两步做长除法，结果截断到 MAX_CAPACITY。
+     * 
+     * @param high 可用空间高16位
+     * @param low  可用空间低16位
+     * @return 可容纳的记录数量
+     */
+    private static short recordsForMemory(short high, short low) {
+        // 扣除预留空间，低16位无符号小于预留值时向高16位借位
+        if (low >= 0 && low < INSTALL_RESERVE) {
+            if (high == 0) {
+                return 0;
+            }
+            high--;
+        }
+        low = (short) (low - INSTALL_RESERVE);
+
+        if (high >= BYTES_PER_RECORD) {
+            return MAX_CAPACITY;
+        }
+        short part = (short) ((short) (high << 8) | (short) ((low >> 8) & 0x00FF));
+        short quotientHigh = (short) (part / BYTES_PER_RECORD);
+        part = (short) ((short) ((short) (part % BYTES_PER_RECORD) << 8) | (short) (low & 0x00FF));
+        short quotientLow = (short) (part / BYTES_PER_RECORD);
+        if (quotientHigh > (short) (MAX_CAPACITY >> 8)) {
+            return MAX_CAPACITY;
+        }
+        short records = (short) ((short) (quotientHigh << 8) + quotientLow);
+        return records > MAX_CAPACITY ? MAX_CAPACITY : records;
     }
 
     /**
@@ -163,21 +699,131 @@ public class SecurityChipApplet extends Applet {
      */
     public void process(APDU apdu) {
         if (selectingApplet()) {
+            // 上一次更新排序索引时掉电，选择时按日志补完，耗时与一次插入或删除相当
+            if (sortedJournal[JOURNAL_OP] != JOURNAL_NONE) {
+                applySortedJournal();
+            }
+            sendCapabilities(apdu);
             return;
         }
 
         byte[] apduBuffer = apdu.getBuffer();
         byte ins = apduBuffer[ISO7816.OFFSET_INS];
 
+        // 定期把RAM中的计数增量写回EEPROM，此时没有进行中的事务
+        metricsPending[metricCount]++;
+        if (metricsPending[metricCount] >= METRICS_FLUSH_INTERVAL) {
+            flushMetrics();
+        }
+
+        // 不带数据的命令
+        if (ins == INS_GET_RESPONSE) {
+            countMetric(METRIC_OTHER_INS, (short) 1);
+            processGetResponse(apdu);
+            return;
+        }
+        ioState[IO_RESPONSE_REMAINING] = 0; // 其他命令作废未取回的响应
+        short metric = METRIC_OTHER_INS;
+        for (short i = 0; i < (short) SUPPORTED_INS.length; i++) {
+            if (SUPPORTED_INS[i] == ins) {
+                metric = (short) (METRIC_INS_BASE + i);
+                break;
+            }
+        }
+        countMetric(metric, (short) 1);
+        if (metric == METRIC_OTHER_INS) {
+            ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+        }
+        if (ins == INS_OPEN_SESSION && apduBuffer[ISO7816.OFFSET_P1] == SESSION_STEP_CHALLENGE) {
+            processSessionChallenge(apdu);
+            return;
+        }
+
+        // 接收完整的命令数据，命令链的中间分段在此直接返回
+        short dataLength = receiveCommand(apdu);
+        byte[] buffer = ioState[IO_IN_BUFFER] != 0 ? ioBuffer : apduBuffer;
+        short offset = ioState[IO_IN_BUFFER] != 0 ? IO_DATA_START : apdu.getOffsetCdata();
+
+        // 默认选择的应用在复位后不经过SELECT命令，执行命令前再检查一次日志
+        if (sortedJournal[JOURNAL_OP] != JOURNAL_NONE) {
+            applySortedJournal();
+        }
+
         switch (ins) {
             case INS_STORE_DATA:
-                processStoreData(apdu);
+                processStoreData(apdu, buffer, offset, dataLength);
+                break;
+            case INS_BATCH_STORE_DATA:
+                processBatchStoreData(apdu, buffer, offset, dataLength);
+                break;
+            case INS_GENERATE_AND_STORE:
+                processGenerateAndStore(apdu, buffer, offset, dataLength);
                 break;
             case INS_READ_DATA:
-                processReadData(apdu);
+                processReadData(apdu, buffer, offset, dataLength);
+                break;
+            case INS_BATCH_READ_DATA:
+                processBatchReadData(apdu, buffer, offset, dataLength);
+                break;
+            case INS_READ_BY_ADDR:
+                processReadByAddr(apdu, buffer, offset, dataLength);
                 break;
             case INS_DELETE_DATA:
-                processDeleteData(apdu);
+                processDeleteData(apdu, buffer, offset, dataLength);
+                break;
+            case INS_DELETE_BY_ADDR:
+                processDeleteByAddr(apdu, buffer, offset, dataLength);
+                break;
+            case INS_OPEN_SESSION:
+                processOpenSession(apdu, buffer, offset, dataLength);
+                break;
+            case INS_LOAD_AUTH_ROOT:
+                processLoadAuthRoot(apdu, buffer, offset, dataLength);
+                break;
+            case INS_LIST_RECORDS:
+                processListRecords(apdu, buffer, offset, dataLength);
+                break;
+            case INS_LIST_SORTED:
+                processListSorted(apdu, buffer, offset, dataLength);
+                break;
+            case INS_GET_METRICS:
+                processGetMetrics(apdu, buffer);
+                break;
+            case INS_GET_SLOT_WEAR:
+                processGetSlotWear(apdu, buffer, offset, dataLength);
+                break;
+            case INS_COMPACT_ARENA:
+                processCompactArena(apdu, buffer, offset, dataLength);
+                break;
+            case INS_BLOB_CREATE:
+                processBlobCreate(apdu, buffer, offset, dataLength);
+                break;
+            case INS_BLOB_UPDATE:
+                processBlobUpdate(apdu, buffer, offset, dataLength);
+                break;
+            case INS_BLOB_FINALIZE:
+                processBlobFinalize(apdu, buffer, offset, dataLength);
+                break;
+            case INS_BLOB_READ:
+                processBlobRead(apdu, buffer, offset, dataLength);
+                break;
+            case INS_BLOB_DELETE:
+                processBlobDelete(apdu, buffer, offset, dataLength);
+                break;
+            case INS_BLOB_INFO:
+                processBlobInfo(apdu, buffer, offset, dataLength);
+                break;
+            case INS_CIPHER_INIT:
+                processCipherInit(apdu, buffer, offset, dataLength);
+                break;
+            case INS_CIPHER_UPDATE:
+                processCipherUpdate(apdu, buffer, offset, dataLength);
+                break;
+            case INS_CIPHER_FINAL:
+                processCipherFinal(apdu, buffer, offset, dataLength);
+                break;
+            case INS_RESET_METRICS:
+                processResetMetrics(apdu, buffer, offset, dataLength);
                 break;
             default:
                 ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
@@ -185,174 +831,1187 @@ public class SecurityChipApplet extends Applet {
     }
 
     /**
-     * 处理存储数据 - 一次性存储完整记录
+     * 取消选择时写回RAM中的计数增量
+     */
+    public void deselect() {
+        flushMetrics();
+    }
+
+    /**
+     * 发送SELECT响应 - 能力与状态TLV
+     * 
+     * 主机据此选择批量、长命令等快速路径，并在写入前判断剩余空间，不需要额外的往返。
+     * 未知的tag由主机跳过，之后的版本只追加新tag。
+     * 
+     * @param apdu APDU对象
+     */
+    private void sendCapabilities(APDU apdu) {
+        byte[] buffer = apdu.getBuffer();
+        short offset = 0;
+
+        buffer[offset++] = CAP_TAG_VERSION;
+        buffer[offset++] = 2;
+        offset = Util.setShort(buffer, offset, APPLET_VERSION);
+
+        buffer[offset++] = CAP_TAG_INSTRUCTIONS;
+        short lengthOffset = offset++;
+        for (short i = 0; i < (short) SUPPORTED_INS.length; i++) {
+            if (isInstructionAvailable(SUPPORTED_INS[i])) {
+                buffer[offset++] = SUPPORTED_INS[i];
+            }
+        }
+        buffer[lengthOffset] = (byte) (offset - lengthOffset - 1);
+
+        buffer[offset++] = CAP_TAG_BATCH_LIMITS;
+        buffer[offset++] = 3;
+        buffer[offset++] = batchLimit;
+        buffer[offset++] = MAX_BATCH_RECORDS;
+        buffer[offset++] = (byte) LIST_MAX_ENTRIES;
+
+        buffer[offset++] = CAP_TAG_RECORD_COUNT;
+        buffer[offset++] = 2;
+        offset = Util.setShort(buffer, offset, recordCount);
+
+        buffer[offset++] = CAP_TAG_CAPACITY;
+        buffer[offset++] = 2;
+        offset = Util.setShort(buffer, offset, capacity);
+
+        JCSystem.getAvailableMemory(memoryWords, (short) 0, JCSystem.MEMORY_TYPE_PERSISTENT);
+        buffer[offset++] = CAP_TAG_FREE_MEMORY;
+        buffer[offset++] = 4;
+        offset = Util.setShort(buffer, offset, memoryWords[0]);
+        offset = Util.setShort(buffer, offset, memoryWords[1]);
+
+        buffer[offset++] = CAP_TAG_MAX_DATA;
+        buffer[offset++] = 2;
+        offset = Util.setShort(buffer, offset, (short) (ioBuffer.length - IO_DATA_START));
+
+        buffer[offset++] = CAP_TAG_STORAGE_FLAGS;
+        buffer[offset++] = 1;
+        buffer[offset++] = (byte) ((denseMode ? INSTALL_FLAG_DENSE : 0) | (rotateMode ? INSTALL_FLAG_ROTATE : 0));
+
+        buffer[offset++] = CAP_TAG_ARENA;
+        buffer[offset++] = 8;
+        offset = Util.setShort(buffer, offset, arenaSize);
+        offset = Util.setShort(buffer, offset, arenaTop);
+        offset = Util.setShort(buffer, offset, arenaGarbage);
+        offset = Util.setShort(buffer, offset, arenaEpoch);
+
+        buffer[offset++] = CAP_TAG_BLOBS;
+        buffer[offset++] = 4;
+        buffer[offset++] = (byte) BLOB_SLOTS;
+        buffer[offset++] = (byte) countBlobs();
+        offset = Util.setShort(buffer, offset, IO_BUFFER_SIZE);
+
+        apdu.setOutgoingAndSend((short) 0, offset);
+    }
+
+    /**
+     * 判断指令在本芯片上是否可用，依赖可选算法的指令在算法缺失时不在SELECT响应中列出
+     * 
+     * @param ins 指令
+     * @return 是否可用
+     */
+    private boolean isInstructionAvailable(byte ins) {
+        if (ins == INS_OPEN_SESSION) {
+            return sessionKeyPair != null;
+        }
+        if (ins == INS_GENERATE_AND_STORE) {
+            return keyRandom != null;
+        }
+        if (ins == INS_CIPHER_INIT || ins == INS_CIPHER_UPDATE || ins == INS_CIPHER_FINAL) {
+            return shareCipher != null;
+        }
+        return true;
+    }
+
+    /**
+     * 接收完整的命令数据
+     * 
+     * 数据能整体放入APDU缓冲区时原地接收；命令链(CLA位0x10)或超出APDU缓冲区的扩展长度命令
+     * 拼接到 ioBuffer。命令链的中间分段只累积数据并直接返回9000，最后一个分段返回拼接后的总长度。
      * 
-     * APDU格式: [CLA][INS][P1][P2][Lc][recordId(32)][addr(20)][message(32)]
+     * @param apdu APDU对象
+     * @return 命令数据总长度，数据位置由 ioState[IO_IN_BUFFER] 指明
      */
-    private void processStoreData(APDU apdu) {
+    private short receiveCommand(APDU apdu) {
         byte[] apduBuffer = apdu.getBuffer();
-        short dataLength = apdu.setIncomingAndReceive();
+        byte ins = apduBuffer[ISO7816.OFFSET_INS];
+        boolean chained = apdu.isCommandChainingCLA();
+        boolean continuing = ioState[IO_CHAIN_INS] != 0;
+        if (continuing && (byte) ioState[IO_CHAIN_INS] != ins) {
+            resetChain();
+            ISOException.throwIt(ISO7816.SW_LAST_COMMAND_EXPECTED);
+        }
+
+        short received = apdu.setIncomingAndReceive();
+        short cdata = apdu.getOffsetCdata();
+        short total = apdu.getIncomingLength();
+        ioState[IO_EXTENDED] = (short) (cdata == ISO7816.OFFSET_EXT_CDATA ? 1 : 0);
+
+        if (!chained && !continuing && total <= (short) (apduBuffer.length - cdata)) {
+            short length = received;
+            while (length < total) {
+                length += apdu.receiveBytes((short) (cdata + length));
+            }
+            ioState[IO_IN_BUFFER] = 0;
+            return total;
+        }
 
-        // 验证数据长度
-        if (dataLength != (short) (RECORD_ID_LENGTH + ADDR_LENGTH + MESSAGE_LENGTH)) {
+        short position = (short) (IO_DATA_START + ioState[IO_CHAIN_LENGTH]);
+        if (total > (short) (ioBuffer.length - position)) {
+            resetChain();
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
+        while (received > 0) {
+            position = Util.arrayCopyNonAtomic(apduBuffer, cdata, ioBuffer, position, received);
+            received = apdu.receiveBytes(cdata);
+        }
+
+        if (chained) {
+            ioState[IO_CHAIN_INS] = (short) ((short) (ins & 0xFF) | 0x100);
+            ioState[IO_CHAIN_LENGTH] = (short) (position - IO_DATA_START);
+            ISOException.throwIt(ISO7816.SW_NO_ERROR);
+        }
+        resetChain();
+        ioState[IO_IN_BUFFER] = 1;
+        return (short) (position - IO_DATA_START);
+    }
+
+    /**
+     * 结束命令链
+     */
+    private void resetChain() {
+        ioState[IO_CHAIN_INS] = 0;
+        ioState[IO_CHAIN_LENGTH] = 0;
+    }
+
+    /**
+     * 发送响应数据
+     * 
+     * 扩展长度命令或不超过256字节的响应一次发出；短APDU的超长响应先发256字节，
+     * 其余保存在 ioBuffer 中，返回 61xx 由主机用 GET RESPONSE 取回。
+     * 
+     * @param apdu   APDU对象
+     * @param buffer 响应所在数组
+     * @param offset 响应起始位置
+     * @param length 响应长度
+     */
+    private void sendResponse(APDU apdu, byte[] buffer, short offset, short length) {
+        if (length <= SHORT_RESPONSE_MAX || ioState[IO_EXTENDED] != 0) {
+            sendBytes(apdu, buffer, offset, length);
+            return;
+        }
+        if (buffer != ioBuffer) {
+            Util.arrayCopyNonAtomic(buffer, offset, ioBuffer, (short) 0, length);
+            offset = 0;
+        }
+        ioState[IO_RESPONSE_OFFSET] = (short) (offset + SHORT_RESPONSE_MAX);
+        ioState[IO_RESPONSE_REMAINING] = (short) (length - SHORT_RESPONSE_MAX);
+        sendBytes(apdu, ioBuffer, offset, SHORT_RESPONSE_MAX);
+        throwBytesRemaining();
+    }
+
+    /**
+     * 处理GET RESPONSE - 取回上一条命令未发完的响应
+     */
+    private void processGetResponse(APDU apdu) {
+        short remaining = ioState[IO_RESPONSE_REMAINING];
+        if (remaining == 0) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        short offset = ioState[IO_RESPONSE_OFFSET];
+        short length = remaining > SHORT_RESPONSE_MAX ? SHORT_RESPONSE_MAX : remaining;
+        ioState[IO_RESPONSE_OFFSET] = (short) (offset + length);
+        ioState[IO_RESPONSE_REMAINING] = (short) (remaining - length);
+        sendBytes(apdu, ioBuffer, offset, length);
+        if (ioState[IO_RESPONSE_REMAINING] > 0) {
+            throwBytesRemaining();
+        }
+    }
+
+    /**
+     * 以 61xx 通知主机还有数据待取回，xx为剩余长度，超过255时为00
+     */
+    private void throwBytesRemaining() {
+        short remaining = ioState[IO_RESPONSE_REMAINING];
+        ISOException.throwIt((short) (ISO7816.SW_BYTES_REMAINING_00 | (remaining > 0xFF ? 0 : remaining)));
+    }
+
+    /**
+     * 从任意数组发送响应，APDU缓冲区内的数据直接发送，其他数组经 sendBytesLong 发送
+     */
+    private void sendBytes(APDU apdu, byte[] buffer, short offset, short length) {
+        if (buffer == apdu.getBuffer()) {
+            apdu.setOutgoingAndSend(offset, length);
+            return;
+        }
+        apdu.setOutgoing();
+        apdu.setOutgoingLength(length);
+        apdu.sendBytesLong(buffer, offset, length);
+    }
 
-        short offset = ISO7816.OFFSET_CDATA;
+    /**
+     * 处理存储数据 - 一次性存储完整记录
+     * 
+     * APDU格式: [CLA][INS][P1][P2][Lc][recordId(32)][addr(20)][message(1-255)]
+     * 32字节的消息存放在槽位内；其他长度存放在变长消息区，区内末尾空间不足但整理后足够时返回
+     * SW_NEEDS_COMPACTION，整理也不够时返回 SW_FILE_FULL。
+     * 覆盖已有记录且消息未变时不开启事务、不写EEPROM，直接返回原槽位。
+     * 
+     * @param apdu       APDU对象
+     * @param buffer     命令数据所在数组
+     * @param offset     命令数据起始位置
+     * @param dataLength 命令数据长度
+     */
+    private void processStoreData(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        // 验证数据长度，非32字节的消息需要变长消息区
+        short valueLength = (short) (dataLength - RECORD_ID_LENGTH - ADDR_LENGTH);
+        if (valueLength < 1 || valueLength > MAX_VALUE_LENGTH
+                || (valueLength != MESSAGE_LENGTH && arenaSize == 0)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
 
         // 检查是否已存在相同(recordId, addr)的记录
-        byte existingIndex = findRecord(
-                apduBuffer, offset,
-                apduBuffer, (short) (offset + RECORD_ID_LENGTH));
-
-        byte recordIndex;
-        if (existingIndex != -1) {
-            // 找到匹配记录，覆盖现有数据
-            recordIndex = existingIndex;
-        } else {
-            // 检查是否有空间存储新记录
-            if (recordCount >= MAX_RECORDS) {
+        short existingIndex = findRecord(
+                buffer, offset,
+                buffer, (short) (offset + RECORD_ID_LENGTH));
+        if (existingIndex != NO_SLOT
+                && valueEquals(existingIndex, buffer, (short) (offset + KEY_LENGTH), valueLength)) {
+            countMetric(METRIC_OVERWRITES, (short) 1);
+            countMetric(METRIC_UNCHANGED, (short) 1);
+            Util.setShort(buffer, (short) 0, existingIndex);
+            Util.setShort(buffer, (short) 2, recordCount);
+            sendResponse(apdu, buffer, (short) 0, (short) 4);
+            return;
+        }
+
+        short recordIndex = storeRecord(buffer, offset, existingIndex, valueLength);
+
+        // 构建响应：记录索引(2字节) + 记录总数(2字节)
+        Util.setShort(buffer, (short) 0, recordIndex);
+        Util.setShort(buffer, (short) 2, recordCount);
+
+        sendResponse(apdu, buffer, (short) 0, (short) 4);
+    }
+
+    /**
+     * 检查空间并写入一条记录，STORE_DATA和GENERATE_AND_STORE共用
+     * 
+     * 变长消息区或槽位空间不足时抛出 SW_NEEDS_COMPACTION / SW_FILE_FULL，此时尚未写入任何数据。
+     * 
+     * @param buffer        记录所在数组 [recordId(32)][addr(20)][message]
+     * @param offset        记录起始位置
+     * @param existingIndex 已有记录的槽位，新记录为NO_SLOT
+     * @param valueLength   消息长度
+     * @return 记录所在槽位
+     */
+    private short storeRecord(byte[] buffer, short offset, short existingIndex, short valueLength) {
+        // 长度不变的变长消息原地覆盖，其余情况需要在末尾分配新块
+        if (valueLength != MESSAGE_LENGTH
+                && (existingIndex == NO_SLOT || getValueLength(existingIndex) != valueLength)) {
+            if (!ensureArena()) {
                 ISOException.throwIt(SW_FILE_FULL);
             }
+            short needed = (short) (valueLength + ARENA_HEADER_SIZE);
+            if (needed > (short) (arenaSize - arenaTop)) {
+                ISOException.throwIt(needed > (short) (arenaSize - arenaTop + arenaGarbage) ? SW_FILE_FULL
+                        : SW_NEEDS_COMPACTION);
+            }
+        }
 
-            // 查找下一个可用槽位
-            recordIndex = findNextFreeSlot();
-            if (recordIndex == -1) {
+        short addrEntry = NO_SLOT;
+        if (existingIndex == -1) {
+            // 检查是否有空间存储新记录，新地址还需要地址表条目
+            if (recordCount >= capacity || !ensureNextSegment()) {
+                ISOException.throwIt(SW_FILE_FULL);
+            }
+            addrEntry = findAddrEntry(buffer, (short) (offset + RECORD_ID_LENGTH));
+            if (addrEntry == NO_SLOT && !ensureNextAddrSegment()) {
                 ISOException.throwIt(SW_FILE_FULL);
             }
-
-            existFlags[recordIndex] = 1; // 标记为已使用
-            recordCount++; // 增加记录数
         }
 
-        // 保存record_id
-        short recordIdOffset = (short) (recordIndex * RECORD_ID_LENGTH);
-        Util.arrayCopy(apduBuffer, offset, recordIds, recordIdOffset, RECORD_ID_LENGTH);
-        offset += RECORD_ID_LENGTH;
-
-        // 保存地址
-        short addrOffset = (short) (recordIndex * ADDR_LENGTH);
-        Util.arrayCopy(apduBuffer, offset, addresses, addrOffset, ADDR_LENGTH);
-        offset += ADDR_LENGTH;
-
-        // 保存消息
-        short messageOffset = (short) (recordIndex * MESSAGE_LENGTH);
-        Util.arrayCopy(apduBuffer, offset, messages, messageOffset, MESSAGE_LENGTH);
+        // 槽位、计数和索引在同一事务中更新，卡片掉电时整体回滚
+        JCSystem.beginTransaction();
+        short recordIndex = writeRecord(buffer, offset, existingIndex, addrEntry, valueLength);
+        JCSystem.commitTransaction();
+        applySortedJournal();
+        return recordIndex;
+    }
 
-        // 更新下一个可用槽位
-        updateNextFreeSlot();
+    /**
+     * 处理卡内生成并存储 - 用芯片随机数发生器生成32字节消息，存为新记录后返回
+     * 
+     * APDU格式: [CLA][INS][P1][P2][Lc][recordId(32)][addr(20)]
+     * 响应格式: [recordIndex(2)][recordCount(2)][message(32)]
+     * 消息只在本条响应中返回一次，已存在相同(recordId, addr)的记录时返回 SW_RECORD_EXISTS，
+     * 不覆盖已有消息。消息先生成到命令数据之后，与STORE_DATA走同一写入路径。
+     * P1置 GENERATE_KEEP_SECRET 时不返回消息，只能经授权读取或用于分片加解密；
+     * 该记录在第一次加密完成前可以不经授权加密一次 (见 processCipherInit)。
+     */
+    private void processGenerateAndStore(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        if (keyRandom == null) {
+            ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+        }
+        if (dataLength != KEY_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short existingIndex = findRecord(buffer, offset, buffer, (short) (offset + RECORD_ID_LENGTH));
+        if (existingIndex != NO_SLOT) {
+            ISOException.throwIt(SW_RECORD_EXISTS);
+        }
 
-        // 构建响应：记录索引 + 记录总数
-        apduBuffer[0] = recordIndex;
-        apduBuffer[1] = recordCount;
+        boolean keepSecret = (apdu.getBuffer()[ISO7816.OFFSET_P1] & GENERATE_KEEP_SECRET) != 0;
+        if (keepSecret && unsealedKey != null) {
+            // 先于记录写入标记，掉电时最多留下一个指向不存在记录的标记
+            Util.arrayCopy(buffer, offset, unsealedKey, (short) 0, KEY_LENGTH);
+            hasUnsealed = true;
+        }
+        short messageOffset = (short) (offset + KEY_LENGTH);
+        keyRandom.nextBytes(buffer, messageOffset, MESSAGE_LENGTH);
+        short recordIndex = storeRecord(buffer, offset, NO_SLOT, MESSAGE_LENGTH);
 
-        apdu.setOutgoingAndSend((short) 0, (short) 2);
+        short responseLength = 4;
+        if (keepSecret) {
+            Util.arrayFillNonAtomic(buffer, messageOffset, MESSAGE_LENGTH, (byte) 0);
+        } else {
+            // 命令数据至少从偏移5开始，消息前移到偏移4不会与自身重叠
+            Util.arrayCopyNonAtomic(buffer, messageOffset, buffer, (short) 4, MESSAGE_LENGTH);
+            responseLength += MESSAGE_LENGTH;
+        }
+        Util.setShort(buffer, (short) 0, recordIndex);
+        Util.setShort(buffer, (short) 2, recordCount);
+        sendResponse(apdu, buffer, (short) 0, responseLength);
     }
 
     /**
-     * 处理读取数据 - 一次性读取完整记录
+     * 处理批量存储数据 - 一条命令写入多条记录，所有写入在同一事务中提交
      * 
-     * APDU格式: [CLA][INS][P1][P2][Lc][recordId(32)][addr(20)][sign_DER(变长)]
-     * 注意: sign_DER是DER编码格式的ECDSA签名，最大长度为72字节
+     * APDU格式: [CLA][INS][P1][P2][Lc][count(1)][recordId(32)][addr(20)][message(32)] * count
+     * 响应格式: [recordCount(2)] + 每条记录 [recordIndex(2)][status(1)]
+     * 存储空间不足的条目状态为 BATCH_FULL，索引为 NO_SLOT，其余条目照常写入。
+     * 超过短APDU长度的批量数据通过扩展长度APDU或命令链发送。
      */
-    private void processReadData(APDU apdu) {
-        byte[] apduBuffer = apdu.getBuffer();
-        short dataLength = apdu.setIncomingAndReceive();
-
-        // 验证数据最小长度
-        if (dataLength < (short) (RECORD_ID_LENGTH + ADDR_LENGTH + 8)) {
-            // 8是DER签名的最小长度 (序列头2字节 + r至少3字节 + s至少3字节)
+    private void processBatchStoreData(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        if (dataLength < 1) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short count = (short) (buffer[offset] & 0xFF);
+        if (count == 0 || count > batchLimit) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        if (dataLength != (short) (1 + (short) (count * RECORD_SIZE))) {
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
 
-        short offset = ISO7816.OFFSET_CDATA;
+        // 每条结果3字节，从缓冲区偏移2处依次写回；结果总在当前记录之前，不会覆盖未处理的数据
+        offset++;
+        short resultEnd = 2;
+
+        JCSystem.beginTransaction();
+        for (short i = 0; i < count; i++) {
+            short existingIndex = findRecord(buffer, offset, buffer, (short) (offset + RECORD_ID_LENGTH));
+            short recordIndex = NO_SLOT;
+            byte status = BATCH_FULL;
+            if (existingIndex != -1) {
+                recordIndex = writeRecord(buffer, offset, existingIndex, NO_SLOT, MESSAGE_LENGTH);
+                status = BATCH_OVERWRITTEN;
+            } else if (recordCount < capacity && ensureNextSegment()) {
+                // 前面的条目可能已在本事务中加入同一地址，事务内的写入对查找可见
+                short addrEntry = findAddrEntry(buffer, (short) (offset + RECORD_ID_LENGTH));
+                if (addrEntry != NO_SLOT || ensureNextAddrSegment()) {
+                    recordIndex = writeRecord(buffer, offset, NO_SLOT, addrEntry, MESSAGE_LENGTH);
+                    status = BATCH_INSERTED;
+                }
+            }
+            resultEnd = Util.setShort(buffer, resultEnd, recordIndex);
+            buffer[resultEnd++] = status;
+            offset += RECORD_SIZE;
+        }
+        JCSystem.commitTransaction();
+        applySortedJournal();
 
-        // 准备验证签名
-        // 1. 复制record_id和地址到临时缓冲区，用于构建待签名的消息
-        Util.arrayCopy(apduBuffer, offset, tempBuffer, (short) 0, (short) (RECORD_ID_LENGTH + ADDR_LENGTH));
+        Util.setShort(buffer, (short) 0, recordCount);
+        sendResponse(apdu, buffer, (short) 0, resultEnd);
+    }
 
-        // 计算签名数据长度 (总数据长度减去record_id和地址的长度)
-        short signatureLength = (short) (dataLength - RECORD_ID_LENGTH - ADDR_LENGTH);
+    /**
+     * 在事务中写入一条记录
+     * 
+     * 新增记录时分配槽位、增加记录数并加入哈希索引和地址表；调用方需保证记录数未满、分段已分配，
+     * 地址不在地址表中时地址表分段已分配，且变长消息需要新块时变长消息区末尾空间足够。
+     * 覆盖时record_id和地址引用与原记录相同，不再写入；消息位置不变时只写入发生变化的字节区间。
+     * 
+     * @param buffer        记录所在数组，格式为 [recordId(32)][addr(20)][message]
+     * @param offset        记录在数组中的起始位置
+     * @param existingIndex 已存在记录的槽位，NO_SLOT表示新增
+     * @param addrEntry     新增记录的地址表条目，NO_SLOT表示地址不在表中；覆盖时忽略
+     * @param valueLength   消息长度
+     * @return 记录所在槽位
+     */
+    private short writeRecord(byte[] buffer, short offset, short existingIndex, short addrEntry,
+            short valueLength) {
+        short recordIndex = existingIndex;
+        if (recordIndex == NO_SLOT) {
+            recordIndex = allocateSlot();
+            recordCount++; // 增加记录数
+            indexInsert(recordIndex, buffer, offset, buffer, (short) (offset + RECORD_ID_LENGTH));
+            // 排序索引的插入记入日志，调用方提交事务后调用 applySortedJournal
+            short pending = sortedJournal[JOURNAL_PENDING];
+            sortedJournal[(short) (JOURNAL_SLOTS + pending)] = recordIndex;
+            sortedJournal[JOURNAL_PENDING] = (short) (pending + 1);
+            sortedJournal[JOURNAL_OP] = JOURNAL_INSERT;
+            if (addrEntry == NO_SLOT) {
+                addrEntry = allocateAddrEntry(buffer, (short) (offset + RECORD_ID_LENGTH));
+            }
+            addrLinkSlot(addrEntry, recordIndex);
+            countMetric(METRIC_INSERTS, (short) 1);
+        } else {
+            countMetric(METRIC_OVERWRITES, (short) 1);
+        }
 
-        // 2. 验证签名 - 现在签名已经是DER格式
-        if (!verifySignature(tempBuffer, (short) 0, (short) (RECORD_ID_LENGTH + ADDR_LENGTH),
-                apduBuffer, (short) (offset + RECORD_ID_LENGTH + ADDR_LENGTH), signatureLength)) {
-            ISOException.throwIt(SW_SIGNATURE_INVALID);
+        byte[] segment = getSegment(recordIndex);
+        short recordOffset = getRecordOffset(recordIndex);
+        short valueOffset = (short) (offset + KEY_LENGTH);
+
+        if (existingIndex == NO_SLOT) {
+            // 保存record_id和地址表条目号，地址本身只在地址表中存一份
+            Util.arrayCopy(buffer, offset, segment, (short) (recordOffset + RECORD_ID_OFFSET), RECORD_ID_LENGTH);
+            Util.setShort(segment, (short) (recordOffset + ADDR_REF_OFFSET), addrEntry);
+            countMetric(METRIC_NVM_BYTES, MESSAGE_OFFSET);
         }
 
-        // 查找匹配的记录
-        byte foundIndex = findRecord(
-                apduBuffer, offset,
-                apduBuffer, (short) (offset + RECORD_ID_LENGTH));
+        // 保存消息 - 定长消息写入槽位，变长消息写入变长消息区，长度变化时先释放旧块
+        boolean inArena = existingIndex != NO_SLOT && isValueInArena(recordIndex);
+        if (inArena && (valueLength == MESSAGE_LENGTH || getValueLength(recordIndex) != valueLength)) {
+            freeValue(recordIndex);
+            inArena = false;
+        }
+        byte[] valueArray = segment;
+        short valueDest = (short) (recordOffset + MESSAGE_OFFSET);
+        if (valueLength != MESSAGE_LENGTH) {
+            if (!inArena) {
+                allocateValue(recordIndex, valueLength);
+            }
+            valueArray = arena;
+            valueDest = (short) (getValueBlock(recordIndex) + ARENA_HEADER_SIZE);
+        }
+        // 目标中原有的字节(旧消息、新块中的残留)与新消息相同的部分不必重写，结果总与新消息一致
+        short written = writeChangedBytes(buffer, valueOffset, valueArray, valueDest, valueLength);
+        if (existingIndex != NO_SLOT && written == 0) {
+            countMetric(METRIC_UNCHANGED, (short) 1);
+        }
+        countMetric(METRIC_NVM_BYTES, written);
 
-        // 如果没有找到匹配记录，返回记录未找到状态
-        if (foundIndex == -1) {
-            ISOException.throwIt(SW_RECORD_NOT_FOUND);
+        // 只有槽位本身被改写时才计入；变长消息复用原有块时只写变长消息区，新分配块时槽位中的块位置改变
+        if (existingIndex == NO_SLOT || (valueArray == segment ? written != 0 : !inArena)) {
+            countSlotWrite(recordIndex);
         }
 
-        // 获取消息数据并返回
-        short messageOffset = (short) (foundIndex * MESSAGE_LENGTH);
-        Util.arrayCopyNonAtomic(messages, messageOffset, apduBuffer, (short) 0, MESSAGE_LENGTH);
+        return recordIndex;
+    }
 
-        // 发送响应
-        apdu.setOutgoingAndSend((short) 0, MESSAGE_LENGTH);
+    /**
+     * 只写入与目标不同的字节区间，调用方负责在事务中调用
+     * 
+     * 从两端找到第一个和最后一个不同的字节，用一次 Util.arrayCopy 写入两者之间的区间，
+     * 读取EEPROM比写入快得多，比较的开销远小于省下的写入和日志。
+     * 
+     * @return 写入的字节数，内容相同时为0
+     */
+    private short writeChangedBytes(byte[] src, short srcOffset, byte[] dest, short destOffset, short length) {
+        short first = 0;
+        while (first < length && src[(short) (srcOffset + first)] == dest[(short) (destOffset + first)]) {
+            first++;
+        }
+        if (first == length) {
+            return 0;
+        }
+        short last = (short) (length - 1);
+        while (src[(short) (srcOffset + last)] == dest[(short) (destOffset + last)]) {
+            last--;
+        }
+        short span = (short) (last - first + 1);
+        Util.arrayCopy(src, (short) (srcOffset + first), dest, (short) (destOffset + first), span);
+        return span;
     }
 
     /**
-     * 处理删除数据 - 根据record_id和地址删除记录
+     * 判断槽位中的消息是否与给定消息完全相同，存放位置(槽位内或变长消息区)也必须不变
+     * 
+     * @param slot        槽位索引
+     * @param buffer      消息所在数组
+     * @param valueOffset 消息起始位置
+     * @param valueLength 消息长度
+     * @return 消息是否相同
+     */
+    private boolean valueEquals(short slot, byte[] buffer, short valueOffset, short valueLength) {
+        if (valueLength == MESSAGE_LENGTH) {
+            return !isValueInArena(slot) && Util.arrayCompare(buffer, valueOffset, getSegment(slot),
+                    (short) (getRecordOffset(slot) + MESSAGE_OFFSET), MESSAGE_LENGTH) == 0;
+        }
+        return isValueInArena(slot) && getValueLength(slot) == valueLength && Util.arrayCompare(buffer,
+                valueOffset, arena, (short) (getValueBlock(slot) + ARENA_HEADER_SIZE), valueLength) == 0;
+    }
+
+    /**
+     * 处理读取数据 - 一次性读取完整记录
      * 
      * APDU格式: [CLA][INS][P1][P2][Lc][recordId(32)][addr(20)][sign_DER(变长)]
      * 注意: sign_DER是DER编码格式的ECDSA签名，最大长度为72字节
      */
-    private void processDeleteData(APDU apdu) {
+    private void processReadData(APDU apdu, byte[] buffer, short offset, short dataLength) {
         byte[] apduBuffer = apdu.getBuffer();
-        short dataLength = apdu.setIncomingAndReceive();
 
         // 验证数据最小长度
         if (dataLength < (short) (RECORD_ID_LENGTH + ADDR_LENGTH + 8)) {
-            // 8是DER签名的最小长度
+            // 8是DER签名的最小长度 (序列头2字节 + r至少3字节 + s至少3字节)
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
 
-        short offset = ISO7816.OFFSET_CDATA;
-
         // 准备验证签名
         // 1. 复制record_id和地址到临时缓冲区，用于构建待签名的消息
-        Util.arrayCopy(apduBuffer, offset, tempBuffer, (short) 0, (short) (RECORD_ID_LENGTH + ADDR_LENGTH));
+        Util.arrayCopy(buffer, offset, tempBuffer, (short) 0, (short) (RECORD_ID_LENGTH + ADDR_LENGTH));
 
-        // 计算签名数据长度
+        // 计算授权数据长度 (总数据长度减去record_id和地址的长度)
         short signatureLength = (short) (dataLength - RECORD_ID_LENGTH - ADDR_LENGTH);
 
-        // 2. 验证签名 - 现在签名已经是DER格式
-        if (!verifySignature(tempBuffer, (short) 0, (short) (RECORD_ID_LENGTH + ADDR_LENGTH),
-                apduBuffer, (short) (offset + RECORD_ID_LENGTH + ADDR_LENGTH), signatureLength)) {
+        // 2. 验证授权 - DER格式签名或会话HMAC标签
+        if (!authorize(apduBuffer[ISO7816.OFFSET_INS], tempBuffer, (short) 0,
+                buffer, (short) (offset + RECORD_ID_LENGTH + ADDR_LENGTH), signatureLength)) {
             ISOException.throwIt(SW_SIGNATURE_INVALID);
         }
 
-        // 查找匹配的记录
-        byte foundIndex = findRecord(
-                apduBuffer, offset,
-                apduBuffer, (short) (offset + RECORD_ID_LENGTH));
+        // 查找匹配的记录，P1P2为槽位提示
+        short foundIndex = findRecordWithHint(Util.getShort(apduBuffer, ISO7816.OFFSET_P1), buffer, offset);
 
         // 如果没有找到匹配记录，返回记录未找到状态
         if (foundIndex == -1) {
             ISOException.throwIt(SW_RECORD_NOT_FOUND);
         }
 
-        // 标记记录为已删除
-        existFlags[foundIndex] = 0;
-        recordCount--; // 减少记录数量
-
-        // 如果删除的是最低的索引，更新nextFreeSlot
-        if (foundIndex < nextFreeSlot) {
-            nextFreeSlot = foundIndex;
-        }
+        // 获取消息数据并返回，变长消息按实际长度返回
+        short responseLength = copyValue(foundIndex, buffer, (short) 0);
 
-        // 构建响应：删除的记录索引 + 剩余记录总数
-        apduBuffer[0] = foundIndex;
-        apduBuffer[1] = recordCount;
+        // 发送响应
+        sendResponse(apdu, buffer, (short) 0, responseLength);
+    }
+
+    /**
+     * 处理批量读取数据 - 一个签名授权多条记录
+     * 
+     * APDU格式: [CLA][INS][P1][P2][Lc][count(1)][recordId(32)][addr(20)] * count [signature(DER)]
+     * 签名数据为所有 recordId||addr 按顺序拼接的结果
+     * 响应格式: [message(32)] * count，顺序与请求一致
+     * 任意一条记录不存在时整条命令返回 SW_RECORD_NOT_FOUND，不返回部分结果；
+     * 任意一条记录为变长消息时返回 SW_VARIABLE_LENGTH，主机改用单条读取。
+     * 超过256字节的响应在短APDU下通过GET RESPONSE分段取回。
+     */
+    private void processBatchReadData(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        if (dataLength < 1) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short count = (short) (buffer[offset] & 0xFF);
+        if (count == 0 || count > MAX_BATCH_RECORDS) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        short keysLength = (short) (count * KEY_LENGTH);
+        // 8是DER签名的最小长度
+        if (dataLength < (short) (1 + keysLength + 8)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        offset++;
+        if (!verifySignatureCached(AUTH_CACHE_BATCH, buffer, offset, keysLength,
+                buffer, (short) (offset + keysLength), (short) (dataLength - 1 - keysLength))) {
+            ISOException.throwIt(SW_SIGNATURE_INVALID);
+        }
+
+        // 先确认所有记录都存在，再输出
+        for (short i = 0; i < count; i++) {
+            short keyOffset = (short) (offset + (short) (i * KEY_LENGTH));
+            short foundIndex = findRecord(buffer, keyOffset, buffer, (short) (keyOffset + RECORD_ID_LENGTH));
+            if (foundIndex == -1) {
+                ISOException.throwIt(SW_RECORD_NOT_FOUND);
+            }
+            if (isValueInArena(foundIndex)) {
+                ISOException.throwIt(SW_VARIABLE_LENGTH);
+            }
+            batchSlots[i] = foundIndex;
+        }
+
+        // 消息从缓冲区开头依次写入，写入位置总在未读取的请求数据之前
+        short outOffset = 0;
+        for (short i = 0; i < count; i++) {
+            short slot = batchSlots[i];
+            outOffset = Util.arrayCopyNonAtomic(getSegment(slot), (short) (getRecordOffset(slot) + MESSAGE_OFFSET),
+                    buffer, outOffset, MESSAGE_LENGTH);
+        }
+
+        sendResponse(apdu, buffer, (short) 0, outOffset);
+    }
+
+    /**
+     * 处理删除数据 - 根据record_id和地址删除记录
+     * 
+     * APDU格式: [CLA][INS][P1][P2][Lc][recordId(32)][addr(20)][sign_DER(变长)]
+     * 注意: sign_DER是DER编码格式的ECDSA签名，最大长度为72字节
+     */
+    private void processDeleteData(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        byte[] apduBuffer = apdu.getBuffer();
+
+        // 验证数据最小长度
+        if (dataLength < (short) (RECORD_ID_LENGTH + ADDR_LENGTH + 8)) {
+            // 8是DER签名的最小长度
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        // 准备验证签名
+        // 1. 复制record_id和地址到临时缓冲区，用于构建待签名的消息
+        Util.arrayCopy(buffer, offset, tempBuffer, (short) 0, (short) (RECORD_ID_LENGTH + ADDR_LENGTH));
+
+        // 计算授权数据长度
+        short signatureLength = (short) (dataLength - RECORD_ID_LENGTH - ADDR_LENGTH);
+
+        // 2. 验证授权 - DER格式签名或会话HMAC标签
+        if (!authorize(apduBuffer[ISO7816.OFFSET_INS], tempBuffer, (short) 0,
+                buffer, (short) (offset + RECORD_ID_LENGTH + ADDR_LENGTH), signatureLength)) {
+            ISOException.throwIt(SW_SIGNATURE_INVALID);
+        }
+
+        // 查找匹配的记录，P1P2为槽位提示
+        short foundIndex = findRecordWithHint(Util.getShort(apduBuffer, ISO7816.OFFSET_P1), buffer, offset);
+
+        // 如果没有找到匹配记录，返回记录未找到状态
+        if (foundIndex == -1) {
+            ISOException.throwIt(SW_RECORD_NOT_FOUND);
+        }
+
+        deleteRecord(foundIndex);
+
+        // 构建响应：删除的记录索引(2字节) + 剩余记录总数(2字节)
+        Util.setShort(buffer, (short) 0, foundIndex);
+        Util.setShort(buffer, (short) 2, recordCount);
+
+        sendResponse(apdu, buffer, (short) 0, (short) 4);
+    }
+
+    /**
+     * 处理按地址读取 - 一个签名读取某地址下的全部记录
+     * 
+     * APDU格式: [CLA][INS][P1P2=skip][Lc][addr(20)][signature(DER)]
+     * 签名数据为 INS(0x23) || addr，与单条读取的 record_id||addr 长度不同，不能互相替代。
+     * skip为跳过的匹配记录数，首页为0；翻页重发同一签名时命中授权缓存，不再验签。
+     * 响应: [nextSkip(2)][count(1)] + [slot(2)][record_id(32)][message(32)] * count，
+     * nextSkip为下一页的skip，读完时为0xFFFF。翻页期间该地址有记录增删时需从0重新读取。
+     * 本页遇到变长消息时返回 SW_VARIABLE_LENGTH，主机改用单条读取。
+     * 
+     * @param apdu       APDU对象
+     * @param buffer     命令数据所在数组
+     * @param offset     命令数据起始位置
+     * @param dataLength 命令数据长度
+     */
+    private void processReadByAddr(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        short skip = Util.getShort(apdu.getBuffer(), ISO7816.OFFSET_P1);
+        if (skip < 0) {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        verifyAddrAuthorization(INS_READ_BY_ADDR, buffer, offset, dataLength);
+
+        // 地址保存在tempBuffer[1..20]，地址表中没有该地址即没有记录
+        short addrEntry = findAddrEntry(tempBuffer, (short) 1);
+        if (addrEntry == NO_SLOT) {
+            ISOException.throwIt(SW_RECORD_NOT_FOUND);
+        }
+
+        // 同地址记录链表中只有该地址的记录，按skip跳过后条目写入ioBuffer
+        short outOffset = 3;
+        short count = 0;
+        short slot = getAddrFirstSlot(addrEntry);
+        for (short i = 0; i < skip && slot != NO_SLOT; i++) {
+            slot = (short) (slotNextByAddr[slot] - 1);
+        }
+        while (slot != NO_SLOT && count < ADDR_READ_MAX_ENTRIES) {
+            if (isValueInArena(slot)) {
+                ISOException.throwIt(SW_VARIABLE_LENGTH);
+            }
+            byte[] segment = getSegment(slot);
+            short recordOffset = getRecordOffset(slot);
+            outOffset = Util.setShort(ioBuffer, outOffset, slot);
+            outOffset = Util.arrayCopyNonAtomic(segment, (short) (recordOffset + RECORD_ID_OFFSET),
+                    ioBuffer, outOffset, RECORD_ID_LENGTH);
+            outOffset = Util.arrayCopyNonAtomic(segment, (short) (recordOffset + MESSAGE_OFFSET),
+                    ioBuffer, outOffset, MESSAGE_LENGTH);
+            count++;
+            slot = (short) (slotNextByAddr[slot] - 1);
+        }
+        boolean more = slot != NO_SLOT;
+
+        Util.setShort(ioBuffer, (short) 0, more ? (short) (skip + count) : NO_SLOT);
+        ioBuffer[2] = (byte) count;
+        sendResponse(apdu, ioBuffer, (short) 0, outOffset);
+    }
+
+    /**
+     * 处理按地址删除 - 一个签名删除某地址下的全部记录
+     * 
+     * APDU格式: [CLA][INS][P1][P2][Lc][addr(20)][signature(DER)]
+     * 签名数据为 INS(0x33) || addr。每条记录的删除各自在一个事务中完成，每条命令最多删除 batchLimit 条，
+     * 还有剩余时主机重发同一命令，重发命中授权缓存，不再验签。
+     * 响应: [deleted(1)][more(1)][recordCount(2)]
+     * 
+     * @param apdu       APDU对象
+     * @param buffer     命令数据所在数组
+     * @param offset     命令数据起始位置
+     * @param dataLength 命令数据长度
+     */
+    private void processDeleteByAddr(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        verifyAddrAuthorization(INS_DELETE_BY_ADDR, buffer, offset, dataLength);
+
+        short addrEntry = findAddrEntry(tempBuffer, (short) 1);
+        if (addrEntry == NO_SLOT) {
+            ISOException.throwIt(SW_RECORD_NOT_FOUND);
+        }
+
+        // 每次删除同地址记录链表的表头，不需要查找前驱；紧凑模式下移动的记录会改写链表，因此每次重新读取表头。
+        // 最后一条删除时地址表条目一并释放，其表头随之清零
+        short deleted = 0;
+        short slot = getAddrFirstSlot(addrEntry);
+        while (slot != NO_SLOT && deleted < batchLimit) {
+            deleteRecord(slot);
+            deleted++;
+            slot = getAddrFirstSlot(addrEntry);
+        }
+        boolean more = slot != NO_SLOT;
+        buffer[0] = (byte) deleted;
+        buffer[1] = (byte) (more ? 1 : 0);
+        Util.setShort(buffer, (short) 2, recordCount);
+        sendResponse(apdu, buffer, (short) 0, (short) 4);
+    }
+
+    /**
+     * 验证按地址操作的签名
+     * 
+     * 在 tempBuffer 中构造待签名数据 INS || addr，验证通过后地址留在 tempBuffer[1..20] 供调用方使用。
+     * 
+     * @param ins        操作指令，作为签名数据的首字节
+     * @param buffer     命令数据所在数组
+     * @param offset     命令数据起始位置 [addr(20)][signature]
+     * @param dataLength 命令数据长度
+     */
+    private void verifyAddrAuthorization(byte ins, byte[] buffer, short offset, short dataLength) {
+        // 8是DER签名的最小长度
+        if (dataLength < (short) (ADDR_LENGTH + 8)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        tempBuffer[0] = ins;
+        Util.arrayCopyNonAtomic(buffer, offset, tempBuffer, (short) 1, ADDR_LENGTH);
+        if (!verifySignatureCached(AUTH_CACHE_ADDR, tempBuffer, (short) 0, (short) (1 + ADDR_LENGTH),
+                buffer, (short) (offset + ADDR_LENGTH), (short) (dataLength - ADDR_LENGTH))) {
+            ISOException.throwIt(SW_SIGNATURE_INVALID);
+        }
+    }
+
+    /**
+     * 处理分页列出记录目录 - 按槽位顺序返回 (槽位, record_id, 地址)，不返回消息数据
+     * 
+     * APDU格式: [CLA][INS][P1P2=cursor][Lc][maxEntries(1)]，数据可省略
+     * cursor为开始查找的槽位，首页为0；maxEntries为0或省略时取每页上限。
+     * 响应: [nextCursor(2)][count(1)] + [slot(2)][record_id(32)][addr(20)] * count，
+     * nextCursor为下一页的cursor，列完时为0xFFFF。短APDU下超过256字节的响应通过GET RESPONSE取回。
+     * 
+     * @param apdu       APDU对象
+     * @param buffer     命令数据所在数组
+     * @param offset     命令数据起始位置
+     * @param dataLength 命令数据长度
+     */
+    private void processListRecords(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        if (dataLength > 1) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short maxEntries = dataLength == 1 ? (short) (buffer[offset] & 0xFF) : 0;
+        if (maxEntries == 0 || maxEntries > LIST_MAX_ENTRIES) {
+            maxEntries = LIST_MAX_ENTRIES;
+        }
+        short slot = Util.getShort(apdu.getBuffer(), ISO7816.OFFSET_P1);
+        if (slot < 0) {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+
+        // 条目写入ioBuffer，跳过整字节为0的存在位图可以快速越过空槽位区域
+        short outOffset = LIST_HEADER_LENGTH;
+        short count = 0;
+        while (slot < highWaterMark && count < maxEntries) {
+            if ((short) (slot & 0x07) == 0 && existFlags[(short) (slot >> 3)] == 0) {
+                slot += 8;
+                continue;
+            }
+            if (isSlotUsed(slot)) {
+                outOffset = Util.setShort(ioBuffer, outOffset, slot);
+                outOffset = Util.arrayCopyNonAtomic(getSegment(slot), (short) (getRecordOffset(slot) + RECORD_ID_OFFSET),
+                        ioBuffer, outOffset, RECORD_ID_LENGTH);
+                short addrEntry = getAddrRef(slot);
+                outOffset = Util.arrayCopyNonAtomic(getAddrSegment(addrEntry), getAddrOffset(addrEntry),
+                        ioBuffer, outOffset, ADDR_LENGTH);
+                count++;
+            }
+            slot++;
+        }
+
+        Util.setShort(ioBuffer, (short) 0, slot < highWaterMark ? slot : NO_SLOT);
+        ioBuffer[2] = (byte) count;
+        sendResponse(apdu, ioBuffer, (short) 0, outOffset);
+    }
+
+    /**
+     * 处理按键顺序列出记录目录
+     * 
+     * APDU格式: [CLA][INS][P1][P2][Lc][maxEntries(1)][prefixLength(1)][prefix][resumeKey(52，可省略)]
+     * 只列出 record_id||addr 以 prefix 开头的记录，按无符号字节序从小到大排列；prefixLength 为0时列出全部。
+     * 带 resumeKey 时从严格大于该键的记录开始，续传时传入上一页最后一条的 record_id||addr，
+     * 翻页期间有记录增删也不会重复或跳过其余记录。maxEntries 为0时取每页上限。
+     * 响应: [remaining(2)][count(1)] + [slot(2)][record_id(32)][addr(20)] * count，remaining 为本页之后仍匹配的记录数。
+     * 
+     * @param apdu       APDU对象
+     * @param buffer     命令数据所在数组
+     * @param offset     命令数据起始位置
+     * @param dataLength 命令数据长度
+     */
+    private void processListSorted(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        if (dataLength < SORTED_REQUEST_HEADER) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short maxEntries = (short) (buffer[offset] & 0xFF);
+        if (maxEntries == 0 || maxEntries > LIST_MAX_ENTRIES) {
+            maxEntries = LIST_MAX_ENTRIES;
+        }
+        short prefixLength = (short) (buffer[(short) (offset + 1)] & 0xFF);
+        if (prefixLength > KEY_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        short prefixOffset = (short) (offset + SORTED_REQUEST_HEADER);
+        short resumeLength = (short) (dataLength - SORTED_REQUEST_HEADER - prefixLength);
+        if (resumeLength != 0 && resumeLength != KEY_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        // 先确定范围再输出，命令数据在ioBuffer中时输出会覆盖它
+        short start = sortedLowerBound(buffer, prefixOffset, prefixLength, false);
+        short end = sortedLowerBound(buffer, prefixOffset, prefixLength, true);
+        if (resumeLength != 0) {
+            short resume = sortedLowerBound(buffer, (short) (prefixOffset + prefixLength), KEY_LENGTH, true);
+            if (resume > start) {
+                start = resume;
+            }
+        }
+        short count = (short) (end - start);
+        if (count < 0) {
+            count = 0;
+        } else if (count > maxEntries) {
+            count = maxEntries;
+        }
+
+        short outOffset = LIST_HEADER_LENGTH;
+        for (short i = 0; i < count; i++) {
+            short slot = getSortedSlot((short) (start + i));
+            outOffset = Util.setShort(ioBuffer, outOffset, slot);
+            outOffset = Util.arrayCopyNonAtomic(getSegment(slot), (short) (getRecordOffset(slot) + RECORD_ID_OFFSET),
+                    ioBuffer, outOffset, RECORD_ID_LENGTH);
+            short addrEntry = getAddrRef(slot);
+            outOffset = Util.arrayCopyNonAtomic(getAddrSegment(addrEntry), getAddrOffset(addrEntry),
+                    ioBuffer, outOffset, ADDR_LENGTH);
+        }
+
+        short remaining = (short) (end - start - count);
+        Util.setShort(ioBuffer, (short) 0, remaining > 0 ? remaining : 0);
+        ioBuffer[2] = (byte) count;
+        sendResponse(apdu, ioBuffer, (short) 0, outOffset);
+    }
+
+    /**
+     * 处理建立会话 - 一次ECDSA验证之后，读取和删除可以改用HMAC-SHA256标签授权
+     * 
+     * 第一步 P1=0x00: 芯片生成临时EC密钥对，响应 [cardPublicKey(65)]
+     * 第二步 P1=0x01: 数据为 [serverPublicKey(65)][signature(DER)]，签名数据为 cardPublicKey||serverPublicKey，
+     * 芯片验签后以ECDH共享秘密的SHA-256作为会话密钥，响应 [maxOps(2)]
+     * 会话密钥和状态保存在取消选择即清除的内存中，每个临时公钥只能使用一次。
+     */
+    private void processOpenSession(APDU apdu, byte[] buffer, short serverKeyOffset, short dataLength) {
+        if (sessionKeyPair == null) {
+            ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+        }
+        if (apdu.getBuffer()[ISO7816.OFFSET_P1] != SESSION_STEP_GRANT) {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        if (sessionState[SESSION_PENDING] == 0) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        if (dataLength < (short) (EC_POINT_LENGTH + 8)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        // 临时公钥只能使用一次，无论验签是否通过
+        sessionState[SESSION_PENDING] = 0;
+        ECPublicKey cardPublicKey = (ECPublicKey) sessionKeyPair.getPublic();
+        cardPublicKey.getW(sessionWork, (short) 0);
+
+        ecSignature.init(ecPublicKey, Signature.MODE_VERIFY);
+        ecSignature.update(sessionWork, (short) 0, EC_POINT_LENGTH);
+        boolean granted = countVerify(ecSignature.verify(buffer, serverKeyOffset, EC_POINT_LENGTH,
+                buffer, (short) (serverKeyOffset + EC_POINT_LENGTH), (short) (dataLength - EC_POINT_LENGTH)));
+        if (!granted) {
+            sessionKeyPair.getPrivate().clearKey();
+            ISOException.throwIt(SW_SIGNATURE_INVALID);
+        }
+
+        // 共享秘密为ECDH结果的X坐标，会话密钥取其SHA-256
+        keyAgreement.init(sessionKeyPair.getPrivate());
+        short secretLength = 0;
+        try {
+            secretLength = keyAgreement.generateSecret(buffer, serverKeyOffset, EC_POINT_LENGTH, sessionWork, (short) 0);
+        } catch (CryptoException e) {
+            sessionKeyPair.getPrivate().clearKey();
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        sha256.reset();
+        sha256.doFinal(sessionWork, (short) 0, secretLength, sessionKey, (short) 0);
+        Util.arrayFillNonAtomic(sessionWork, (short) 0, (short) sessionWork.length, (byte) 0);
+        sessionKeyPair.getPrivate().clearKey();
+
+        sessionState[SESSION_COUNTER] = 0;
+        sessionState[SESSION_ACTIVE] = 1;
+
+        Util.setShort(buffer, (short) 0, MAX_SESSION_OPS);
+        sendResponse(apdu, buffer, (short) 0, (short) 2);
+    }
+
+    /**
+     * 处理建立会话第一步 - 生成芯片临时EC密钥对并返回公钥
+     * 
+     * 重新获取挑战会结束当前会话。
+     */
+    private void processSessionChallenge(APDU apdu) {
+        if (sessionKeyPair == null) {
+            ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+        }
+        byte[] apduBuffer = apdu.getBuffer();
+        closeSession();
+        sessionKeyPair.genKeyPair();
+        sessionState[SESSION_PENDING] = 1;
+        short length = ((ECPublicKey) sessionKeyPair.getPublic()).getW(apduBuffer, (short) 0);
+        apdu.setOutgoingAndSend((short) 0, length);
+    }
+
+    /**
+     * 结束当前会话并清除会话密钥
+     */
+    private void closeSession() {
+        sessionState[SESSION_ACTIVE] = 0;
+        sessionState[SESSION_PENDING] = 0;
+        Util.arrayFillNonAtomic(sessionKey, (short) 0, SESSION_KEY_LENGTH, (byte) 0);
+    }
+
+    /**
+     * 验证读取或删除操作的授权
+     * 
+     * 授权块以0xA1开头时按会话标签验证，以0xA2开头时按Merkle包含证明验证，
+     * 否则按DER格式ECDSA签名验证。
+     * 
+     * @param ins        当前指令，会话标签对其签名以区分读取和删除
+     * @param keyBuffer  record_id||addr 所在数组
+     * @param keyOffset  record_id||addr 的起始位置
+     * @param authBuffer 授权块所在数组
+     * @param authOffset 授权块起始位置
+     * @param authLength 授权块长度
+     * @return 授权是否有效
+     */
+    private boolean authorize(byte ins, byte[] keyBuffer, short keyOffset,
+            byte[] authBuffer, short authOffset, short authLength) {
+        if (authBuffer[authOffset] == AUTH_SESSION_TAG) {
+            return verifySessionTag(ins, keyBuffer, keyOffset, authBuffer, authOffset, authLength);
+        }
+        if (authBuffer[authOffset] == AUTH_MERKLE_PROOF) {
+            return verifyMerkleProof(ins, keyBuffer, keyOffset, authBuffer, authOffset, authLength);
+        }
+        return verifySignatureCached(AUTH_CACHE_RECORD, keyBuffer, keyOffset, KEY_LENGTH,
+                authBuffer, authOffset, authLength);
+    }
+
+    /**
+     * 验证ECDSA签名，相同的消息和签名在本次选择期间只验证一次
+     * 
+     * 以 SHA256(域||消息长度||消息||签名) 作为缓存键，命中则直接通过；未命中时完整验证，
+     * 通过后写入环形缓存，覆盖最早的条目。读卡器重试时重发的相同命令因此不再重复验签。
+     * 域和长度固定消息与签名的分界，否则批量读取的 K1||K2 加签名 S 可被拆成 K1 加"签名" K2||S 命中缓存。
+     * 
+     * @param domain 签名消息的格式 (AUTH_CACHE_*)，不同格式的消息不会互相命中
+     */
+    private boolean verifySignatureCached(byte domain, byte[] messageBuffer, short messageOffset, short messageLength,
+            byte[] signatureBuffer, short signatureOffset, short signatureLength) {
+        short digestOffset = HMAC_BLOCK_SIZE;
+        sessionWork[digestOffset] = domain;
+        Util.setShort(sessionWork, (short) (digestOffset + 1), messageLength);
+        sha256.reset();
+        sha256.update(sessionWork, digestOffset, (short) 3);
+        sha256.update(messageBuffer, messageOffset, messageLength);
+        sha256.doFinal(signatureBuffer, signatureOffset, signatureLength, sessionWork, digestOffset);
+
+        short filled = sessionState[AUTH_CACHE_FILLED];
+        for (short i = 0; i < filled; i++) {
+            if (Util.arrayCompare(authCache, (short) (i * HASH_LENGTH), sessionWork, digestOffset, HASH_LENGTH) == 0) {
+                countMetric(METRIC_AUTH_CACHE_HITS, (short) 1);
+                return true;
+            }
+        }
+
+        if (!verifySignature(messageBuffer, messageOffset, messageLength,
+                signatureBuffer, signatureOffset, signatureLength)) {
+            return false;
+        }
+
+        short next = sessionState[AUTH_CACHE_NEXT];
+        Util.arrayCopyNonAtomic(sessionWork, digestOffset, authCache, (short) (next * HASH_LENGTH), HASH_LENGTH);
+        sessionState[AUTH_CACHE_NEXT] = (short) ((short) (next + 1) & (short) (AUTH_CACHE_ENTRIES - 1));
+        if (filled < AUTH_CACHE_ENTRIES) {
+            sessionState[AUTH_CACHE_FILLED] = (short) (filled + 1);
+        }
+        return true;
+    }
+
+    /**
+     * 验证会话HMAC标签
+     * 
+     * 授权块格式: [0xA1][counter(2)][HMAC-SHA256(sessionKey, ins||counter||recordId||addr)(32)]
+     * counter必须大于上一次接受的值且不超过 MAX_SESSION_OPS，防止标签重放。
+     */
+    private boolean verifySessionTag(byte ins, byte[] keyBuffer, short keyOffset,
+            byte[] authBuffer, short authOffset, short authLength) {
+        if (sessionState[SESSION_ACTIVE] == 0 || authLength != SESSION_AUTH_LENGTH) {
+            return false;
+        }
+        short counter = Util.getShort(authBuffer, (short) (authOffset + 1));
+        if (counter <= sessionState[SESSION_COUNTER] || counter > MAX_SESSION_OPS) {
+            return false;
+        }
+
+        // 内层: SHA256((K ^ ipad) || ins || counter || recordId || addr)
+        short digestOffset = HMAC_BLOCK_SIZE;
+        fillHmacPad(sessionKey, (byte) 0x36);
+        sha256.reset();
+        sha256.update(sessionWork, (short) 0, HMAC_BLOCK_SIZE);
+        sessionWork[digestOffset] = ins;
+        Util.setShort(sessionWork, (short) (digestOffset + 1), counter);
+        sha256.update(sessionWork, digestOffset, (short) 3);
+        sha256.doFinal(keyBuffer, keyOffset, KEY_LENGTH, sessionWork, digestOffset);
+
+        // 外层: SHA256((K ^ opad) || inner)
+        fillHmacPad(sessionKey, (byte) 0x5C);
+        sha256.update(sessionWork, (short) 0, HMAC_BLOCK_SIZE);
+        sha256.doFinal(sessionWork, digestOffset, MessageDigest.LENGTH_SHA_256, sessionWork, digestOffset);
+
+        // 逐字节累积差异，比较时间与标签内容无关
+        byte diff = 0;
+        short tagOffset = (short) (authOffset + 3);
+        for (short i = 0; i < MessageDigest.LENGTH_SHA_256; i++) {
+            diff |= (byte) (sessionWork[(short) (digestOffset + i)] ^ authBuffer[(short) (tagOffset + i)]);
+        }
+        if (diff != 0) {
+            return false;
+        }
+        sessionState[SESSION_COUNTER] = counter;
+        return true;
+    }
+
+    /**
+     * 处理加载Merkle授权根 - 服务器对一批 record_id||addr 建树后只签名根哈希
+     * 
+     * APDU格式: [CLA][INS][P1][P2][Lc][ops(1)][root(32)][signature(DER)]
+     * 签名数据为 0x4D || ops || root，ops 的位0授权读取、位1授权删除
+     * 根保存在取消选择即清除的内存中，之后的读取和删除可用包含证明授权。
+     */
+    private void processLoadAuthRoot(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        if (dataLength < (short) (1 + HASH_LENGTH + 8)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        byte ops = buffer[offset];
+        if (ops == 0 || (ops & (byte) ~(MERKLE_OP_READ | MERKLE_OP_DELETE)) != 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+
+        // 新根验签前先作废旧根
+        sessionState[MERKLE_OPS] = 0;
+        sessionWork[0] = MERKLE_ROOT_DOMAIN;
+        ecSignature.init(ecPublicKey, Signature.MODE_VERIFY);
+        ecSignature.update(sessionWork, (short) 0, (short) 1);
+        if (!countVerify(ecSignature.verify(buffer, offset, (short) (1 + HASH_LENGTH),
+                buffer, (short) (offset + 1 + HASH_LENGTH), (short) (dataLength - 1 - HASH_LENGTH)))) {
+            ISOException.throwIt(SW_SIGNATURE_INVALID);
+        }
+
+        Util.arrayCopyNonAtomic(buffer, (short) (offset + 1), merkleRoot, (short) 0, HASH_LENGTH);
+        sessionState[MERKLE_OPS] = ops;
+    }
+
+    /**
+     * 验证Merkle包含证明
+     * 
+     * 授权块格式: [0xA2][leafIndex(2)][depth(1)][sibling(32)] * depth
+     * 叶子为 SHA256(0x00||recordId||addr)，内部节点为 SHA256(0x01||left||right)，
+     * leafIndex 的第 i 位为1表示第 i 层当前节点在右侧。
+     */
+    private boolean verifyMerkleProof(byte ins, byte[] keyBuffer, short keyOffset,
+            byte[] authBuffer, short authOffset, short authLength) {
+        byte allowed = (byte) sessionState[MERKLE_OPS];
+        byte required = ins == INS_DELETE_DATA || ins == INS_BLOB_DELETE ? MERKLE_OP_DELETE : MERKLE_OP_READ;
+        if ((allowed & required) == 0 || authLength < 4) {
+            return false;
+        }
+        short leafIndex = Util.getShort(authBuffer, (short) (authOffset + 1));
+        short depth = authBuffer[(short) (authOffset + 3)];
+        if (depth < 0 || depth > MAX_MERKLE_DEPTH || authLength != (short) (4 + (short) (depth * HASH_LENGTH))) {
+            return false;
+        }
+        if (depth < MAX_MERKLE_DEPTH && (short) (leafIndex >>> depth) != 0) {
+            return false;
+        }
+
+        // 当前节点哈希保存在工作区 [64,96)，拼接缓冲区为 [0,65)
+        short current = HMAC_BLOCK_SIZE;
+        sessionWork[0] = MERKLE_LEAF_PREFIX;
+        sha256.reset();
+        sha256.update(sessionWork, (short) 0, (short) 1);
+        sha256.doFinal(keyBuffer, keyOffset, KEY_LENGTH, sessionWork, current);
+
+        short sibling = (short) (authOffset + 4);
+        for (short level = 0; level < depth; level++) {
+            sessionWork[0] = MERKLE_NODE_PREFIX;
+            if ((short) ((short) (leafIndex >>> level) & 0x01) == 0) {
+                Util.arrayCopyNonAtomic(sessionWork, current, sessionWork, (short) 1, HASH_LENGTH);
+                Util.arrayCopyNonAtomic(authBuffer, sibling, sessionWork, (short) (1 + HASH_LENGTH), HASH_LENGTH);
+            } else {
+                Util.arrayCopyNonAtomic(sessionWork, current, sessionWork, (short) (1 + HASH_LENGTH), HASH_LENGTH);
+                Util.arrayCopyNonAtomic(authBuffer, sibling, sessionWork, (short) 1, HASH_LENGTH);
+            }
+            sha256.doFinal(sessionWork, (short) 0, (short) (1 + 2 * HASH_LENGTH), sessionWork, current);
+            sibling += HASH_LENGTH;
+        }
+
+        return Util.arrayCompare(sessionWork, current, merkleRoot, (short) 0, HASH_LENGTH) == 0;
+    }
 
-        apdu.setOutgoingAndSend((short) 0, (short) 2);
+    /**
+     * 在工作区前64字节填充 key ^ pad，不足部分为 pad
+     * 
+     * @param key 32字节的HMAC密钥 (会话密钥或分片标签密钥)
+     * @param pad HMAC的ipad(0x36)或opad(0x5C)
+     */
+    private void fillHmacPad(byte[] key, byte pad) {
+        Util.arrayFillNonAtomic(sessionWork, SESSION_KEY_LENGTH, (short) (HMAC_BLOCK_SIZE - SESSION_KEY_LENGTH), pad);
+        for (short i = 0; i < SESSION_KEY_LENGTH; i++) {
+            sessionWork[i] = (byte) (key[i] ^ pad);
+        }
     }
 
     /**
@@ -373,68 +2032,1758 @@ public class SecurityChipApplet extends Applet {
         ecSignature.init(ecPublicKey, Signature.MODE_VERIFY);
 
         // 验证签名 - 直接使用DER格式
-        return ecSignature.verify(messageBuffer, messageOffset, messageLength,
-                signatureBuffer, signatureOffset, signatureLength);
+        return countVerify(ecSignature.verify(messageBuffer, messageOffset, messageLength,
+                signatureBuffer, signatureOffset, signatureLength));
     }
 
     /**
-     * 根据record_id和地址查找记录索引
+     * 记录一次ECDSA验证的结果
      * 
-     * @param recordIdArray  record_id所在的数组
-     * @param recordIdOffset record_id在数组中的起始位置
-     * @param addrArray      地址所在的数组
-     * @param addrOffset     地址在数组中的起始位置
-     * @return 找到的记录索引，未找到则返回 -1
+     * @param valid 验证是否通过
+     * @return 原样返回 valid
      */
-    private byte findRecord(byte[] recordIdArray, short recordIdOffset,
-            byte[] addrArray, short addrOffset) {
-        for (byte i = 0; i < MAX_RECORDS; i++) {
-            // 检查记录是否存在
-            if (existFlags[i] == 0) {
-                continue; // 跳过已删除的记录
-            }
-
-            // 比较record_id
-            short currentRecordIdOffset = (short) (i * RECORD_ID_LENGTH);
-            if (Util.arrayCompare(recordIdArray, recordIdOffset, recordIds, currentRecordIdOffset,
-                    RECORD_ID_LENGTH) == 0) {
-                // 比较地址
-                short currentAddrOffset = (short) (i * ADDR_LENGTH);
-                if (Util.arrayCompare(addrArray, addrOffset, addresses, currentAddrOffset, ADDR_LENGTH) == 0) {
-                    return i; // 找到匹配记录
-                }
-            }
-        }
-        return -1; // 未找到
+    private boolean countVerify(boolean valid) {
+        countMetric(valid ? METRIC_VERIFY_OK : METRIC_VERIFY_FAILED, (short) 1);
+        return valid;
     }
 
     /**
-     * 查找下一个可用槽位
+     * 累加运行计数增量
      * 
-     * @return 下一个可用槽位索引，如果没有可用槽位则返回 -1
+     * 增量只写RAM。每条命令的增量不超过约1KB，写回间隔内不会超出short范围。
+     * 
+     * @param metric 计数项
+     * @param amount 增量
      */
-    private byte findNextFreeSlot() {
-        // 从nextFreeSlot开始查找
-        for (byte i = nextFreeSlot; i < MAX_RECORDS; i++) {
-            if (existFlags[i] == 0) {
-                return i;
+    private void countMetric(short metric, short amount) {
+        metricsPending[metric] += amount;
+    }
+
+    /**
+     * 把RAM中的计数增量在一个事务内加到持久化计数上
+     */
+    private void flushMetrics() {
+        if (metricsPending[metricCount] == 0) {
+            return;
+        }
+        JCSystem.beginTransaction();
+        for (short i = 0; i < metricCount; i++) {
+            short amount = metricsPending[i];
+            if (amount != 0) {
+                addMetric(i, amount);
             }
         }
+        JCSystem.commitTransaction();
+        for (short i = 0; i <= metricCount; i++) {
+            metricsPending[i] = 0;
+        }
+    }
 
-        // 如果没有找到，从头开始查找
-        for (byte i = 0; i < nextFreeSlot; i++) {
-            if (existFlags[i] == 0) {
-                return i;
+    /**
+     * 把增量加到一项32位计数上，达到最大值后保持不变
+     * 
+     * @param metric 计数项
+     * @param amount 增量，按无符号数处理
+     */
+    private void addMetric(short metric, short amount) {
+        short index = (short) (metric * 2);
+        short high = metrics[index];
+        short low = metrics[(short) (index + 1)];
+        short sum = (short) (low + amount);
+        // 低16位按无符号比较，和小于原值说明产生进位
+        if ((short) (sum ^ (short) 0x8000) < (short) (low ^ (short) 0x8000)) {
+            if (high == (short) 0xFFFF) {
+                sum = (short) 0xFFFF;
+            } else {
+                high++;
             }
         }
+        metrics[index] = high;
+        metrics[(short) (index + 1)] = sum;
+    }
 
-        return -1; // 没有可用槽位
+    /**
+     * 处理读取运行计数
+     * 
+     * 响应: [epoch(2)][count(1)] + [id(1)][value(4)] * count
+     * id 0x01-0x08 依次为验签通过、验签失败、授权缓存命中、记录写入字节、新增、覆盖、其他指令、
+     * 覆盖时消息未变，其余条目的 id 为指令的INS。
+     * 
+     * @param apdu   APDU对象
+     * @param buffer 响应写入的数组
+     */
+    private void processGetMetrics(APDU apdu, byte[] buffer) {
+        flushMetrics();
+
+        short offset = Util.setShort(buffer, (short) 0, metricsEpoch);
+        buffer[offset++] = (byte) metricCount;
+        for (short i = 0; i < metricCount; i++) {
+            buffer[offset++] = i < METRIC_INS_BASE ? (byte) (i + 1) : SUPPORTED_INS[(short) (i - METRIC_INS_BASE)];
+            offset = Util.setShort(buffer, offset, metrics[(short) (i * 2)]);
+            offset = Util.setShort(buffer, offset, metrics[(short) (i * 2 + 1)]);
+        }
+        sendResponse(apdu, buffer, (short) 0, offset);
     }
 
     /**
-     * 更新下一个可用槽位变量
+     * 处理清零运行计数 - 需要服务器签名
+     * 
+     * APDU格式: [CLA][INS][P1][P2][Lc][epoch(2)][signature(DER)]
+     * 签名数据为 0x52 || epoch，epoch须等于当前值；清零后epoch加1，旧签名不能重放。
+     * 响应: [newEpoch(2)]
+     */
+    private void processResetMetrics(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        if (dataLength < (short) (2 + 8)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        if (Util.getShort(buffer, offset) != metricsEpoch) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+
+        sessionWork[0] = METRICS_RESET_DOMAIN;
+        ecSignature.init(ecPublicKey, Signature.MODE_VERIFY);
+        ecSignature.update(sessionWork, (short) 0, (short) 1);
+        if (!countVerify(ecSignature.verify(buffer, offset, (short) 2,
+                buffer, (short) (offset + 2), (short) (dataLength - 2)))) {
+            ISOException.throwIt(SW_SIGNATURE_INVALID);
+        }
+
+        JCSystem.beginTransaction();
+        for (short i = 0; i < (short) metrics.length; i++) {
+            metrics[i] = 0;
+        }
+        metricsEpoch++;
+        JCSystem.commitTransaction();
+        for (short i = 0; i <= metricCount; i++) {
+            metricsPending[i] = 0;
+        }
+
+        Util.setShort(buffer, (short) 0, metricsEpoch);
+        sendResponse(apdu, buffer, (short) 0, (short) 2);
+    }
+
+    /**
+     * 处理分页读取槽位写入次数
+     * 
+     * APDU格式: [CLA][INS][P1P2=cursor][Lc][maxEntries(1)]，数据可省略
+     * 从cursor开始按槽位号连续返回写入次数，包括空槽位，直到已分配分段的末尾；maxEntries为0或省略时取每页上限。
+     * 响应: [nextCursor(2)][count(1)] + [writes(2)] * count，nextCursor为下一页的cursor，读完时为0xFFFF。
+     * 紧凑模式下高水位线会随删除下降，因此按分段而不是高水位线确定范围。
+     * 
+     * @param apdu       APDU对象
+     * @param buffer     命令数据所在数组
+     * @param offset     命令数据起始位置
+     * @param dataLength 命令数据长度
+     */
+    private void processGetSlotWear(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        if (dataLength > 1) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short maxEntries = dataLength == 1 ? (short) (buffer[offset] & 0xFF) : 0;
+        if (maxEntries == 0) {
+            maxEntries = WEAR_MAX_ENTRIES;
+        }
+        short slot = Util.getShort(apdu.getBuffer(), ISO7816.OFFSET_P1);
+        if (slot < 0) {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+
+        short outOffset = LIST_HEADER_LENGTH;
+        short count = 0;
+        while (slot < capacity && count < maxEntries && segments[(short) (slot >> SEGMENT_SHIFT)] != null) {
+            outOffset = Util.setShort(ioBuffer, outOffset,
+                    Util.getShort(getSegment(slot), (short) (getRecordOffset(slot) + WRITES_OFFSET)));
+            count++;
+            slot++;
+        }
+
+        boolean more = slot < capacity && segments[(short) (slot >> SEGMENT_SHIFT)] != null;
+        Util.setShort(ioBuffer, (short) 0, more ? slot : NO_SLOT);
+        ioBuffer[2] = (byte) count;
+        sendResponse(apdu, ioBuffer, (short) 0, outOffset);
+    }
+
+    /**
+     * 处理整理变长消息区 - 需要服务器签名
+     * 
+     * APDU格式: [CLA][INS][P1][P2][Lc][epoch(2)][signature(DER)]
+     * 签名数据为 0x43 || epoch，epoch须等于当前值。有效块按地址顺序前移，空闲块合并到末尾。
+     * 每条命令移动的字节数受事务缓冲区限制，未整理完时把剩余空洞合并为一个空闲块，主机重发同一命令继续，
+     * 重发命中授权缓存，不再验签。整理完成后epoch加1，旧签名不能重放。
+     * 响应: [moved(2)][more(1)][arenaTop(2)][garbage(2)][epoch(2)]
+     * 
+     * @param apdu       APDU对象
+     * @param buffer     命令数据所在数组
+     * @param offset     命令数据起始位置
+     * @param dataLength 命令数据长度
+     */
+    private void processCompactArena(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        // 8是DER签名的最小长度
+        if (dataLength < (short) (2 + 8)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        if (Util.getShort(buffer, offset) != arenaEpoch) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        tempBuffer[0] = ARENA_COMPACT_DOMAIN;
+        Util.setShort(tempBuffer, (short) 1, arenaEpoch);
+        if (!verifySignatureCached(AUTH_CACHE_ARENA, tempBuffer, (short) 0, (short) 3,
+                buffer, (short) (offset + 2), (short) (dataLength - 2))) {
+            ISOException.throwIt(SW_SIGNATURE_INVALID);
+        }
+
+        // 跳过开头连续的有效块，它们已经在最终位置
+        short destination = 0;
+        while (destination < arenaTop && Util.getShort(arena, (short) (destination + ARENA_OWNER_OFFSET)) != 0) {
+            destination = (short) (destination + getBlockSize(destination));
+        }
+
+        short scan = destination;
+        short moved = 0;
+        short movedBytes = 0;
+        JCSystem.beginTransaction();
+        while (scan < arenaTop) {
+            short size = getBlockSize(scan);
+            short owner = Util.getShort(arena, (short) (scan + ARENA_OWNER_OFFSET));
+            if (owner != 0) {
+                if (moved > 0 && (short) (movedBytes + size) > compactBudget) {
+                    break;
+                }
+                // 同一数组内重叠复制，按先复制到临时区的语义执行
+                Util.arrayCopy(arena, scan, arena, destination, size);
+                Util.setShort(getSegment((short) (owner - 1)),
+                        (short) (getRecordOffset((short) (owner - 1)) + MESSAGE_OFFSET), destination);
+                destination = (short) (destination + size);
+                moved++;
+                movedBytes = (short) (movedBytes + size);
+            }
+            scan = (short) (scan + size);
+        }
+        boolean more = scan < arenaTop;
+        if (more) {
+            // 已扫描区域内的空洞合并为一个空闲块，空闲字节总数不变
+            Util.setShort(arena, (short) (destination + ARENA_OWNER_OFFSET), (short) 0);
+            Util.setShort(arena, (short) (destination + ARENA_LENGTH_OFFSET),
+                    (short) (scan - destination - ARENA_HEADER_SIZE));
+        } else {
+            arenaTop = destination;
+            arenaGarbage = 0;
+            arenaEpoch++;
+        }
+        JCSystem.commitTransaction();
+        countMetric(METRIC_NVM_BYTES, movedBytes);
+
+        short outOffset = Util.setShort(buffer, (short) 0, moved);
+        buffer[outOffset++] = (byte) (more ? 1 : 0);
+        outOffset = Util.setShort(buffer, outOffset, arenaTop);
+        outOffset = Util.setShort(buffer, outOffset, arenaGarbage);
+        outOffset = Util.setShort(buffer, outOffset, arenaEpoch);
+        sendResponse(apdu, buffer, (short) 0, outOffset);
+    }
+
+    /**
+     * 处理创建数据块 - 为之后的分块写入分配空间
+     * 
+     * APDU格式: [CLA][INS][P1][P2][Lc][recordId(32)][addr(20)][length(2)][auth(可选)]
+     * 新建或重写写入中的数据块不需要授权。键已对应已封存的数据块时，覆盖等同于删除，
+     * 须携带与删除数据块相同的授权，否则返回 SW_SIGNATURE_INVALID；通过后原数据块重新进入写入状态，原内容和摘要作废。
+     * 优先复用已删除数据块中足够大的数组，避免每次创建都分配EEPROM；数组不够大时重新分配，
+     * 旧数组在芯片支持时请求回收。
+     * 响应: [blobIndex(1)][used(1)]
+     * 
+     * @param apdu       APDU对象
+     * @param buffer     命令数据所在数组
+     * @param offset     命令数据起始位置
+     * @param dataLength 命令数据长度
+     */
+    private void processBlobCreate(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        short authLength = (short) (dataLength - KEY_LENGTH - 2);
+        // 8是DER签名的最小长度
+        if (authLength < 0 || (authLength > 0 && authLength < 8)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short length = Util.getShort(buffer, (short) (offset + KEY_LENGTH));
+        if (length <= 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        if (!ensureBlobTable()) {
+            ISOException.throwIt(SW_FILE_FULL);
+        }
+
+        short index = findBlob(buffer, offset);
+        if (index == -1) {
+            index = selectFreeBlob(length);
+            if (index == -1) {
+                ISOException.throwIt(SW_FILE_FULL);
+            }
+        } else if (blobTable[(short) ((short) (index * BLOB_ENTRY_SIZE) + BLOB_STATE_OFFSET)] == BLOB_SEALED) {
+            Util.arrayCopy(buffer, offset, tempBuffer, (short) 0, KEY_LENGTH);
+            if (authLength == 0 || !authorize(INS_BLOB_DELETE, tempBuffer, (short) 0,
+                    buffer, (short) (offset + KEY_LENGTH + 2), authLength)) {
+                ISOException.throwIt(SW_SIGNATURE_INVALID);
+            }
+        }
+
+        // 事务外分配，分配失败时数据块表不变
+        byte[] data = (byte[]) blobData[index];
+        boolean replaced = data != null && (short) data.length < length;
+        if (data == null || replaced) {
+            try {
+                data = new byte[length];
+            } catch (SystemException e) {
+                ISOException.throwIt(SW_FILE_FULL);
+            }
+        }
+
+        short entry = (short) (index * BLOB_ENTRY_SIZE);
+        JCSystem.beginTransaction();
+        blobData[index] = data;
+        Util.arrayCopy(buffer, offset, blobTable, (short) (entry + BLOB_KEY_OFFSET), KEY_LENGTH);
+        Util.setShort(blobTable, (short) (entry + BLOB_LENGTH_OFFSET), length);
+        blobTable[(short) (entry + BLOB_STATE_OFFSET)] = BLOB_WRITING;
+        JCSystem.commitTransaction();
+        if (replaced && JCSystem.isObjectDeletionSupported()) {
+            JCSystem.requestObjectDeletion();
+        }
+
+        buffer[0] = (byte) index;
+        buffer[1] = (byte) countBlobs();
+        sendResponse(apdu, buffer, (short) 0, (short) 2);
+    }
+
+    /**
+     * 处理写入数据块 - 把一段数据写入写入中的数据块
+     * 
+     * APDU格式: [CLA][INS][P1P2=offset][Lc][recordId(32)][addr(20)][chunk]
+     * 分段大小只受单条命令的数据长度限制，使用扩展长度APDU时一条命令可写入约1KB。
+     * 各分段直接写入EEPROM，不经过事务；掉电后数据块仍处于写入状态，主机从头重写后再封存。
+     * 响应: [endOffset(2)]，即下一段的偏移
+     * 
+     * @param apdu       APDU对象
+     * @param buffer     命令数据所在数组
+     * @param offset     命令数据起始位置
+     * @param dataLength 命令数据长度
+     */
+    private void processBlobUpdate(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        if (dataLength < KEY_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short index = requireBlob(buffer, offset, BLOB_WRITING);
+        short length = Util.getShort(blobTable, (short) ((short) (index * BLOB_ENTRY_SIZE) + BLOB_LENGTH_OFFSET));
+        short position = Util.getShort(apdu.getBuffer(), ISO7816.OFFSET_P1);
+        if (position < 0 || position > length) {
+            ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+        }
+        short chunk = (short) (dataLength - KEY_LENGTH);
+        if (chunk > (short) (length - position)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        short end = Util.arrayCopyNonAtomic(buffer, (short) (offset + KEY_LENGTH),
+                (byte[]) blobData[index], position, chunk);
+        countMetric(METRIC_NVM_BYTES, chunk);
+
+        Util.setShort(buffer, (short) 0, end);
+        sendResponse(apdu, buffer, (short) 0, (short) 2);
+    }
+
+    /**
+     * 处理封存数据块 - 计算整个数据块的SHA-256摘要，之后只能读取
+     * 
+     * APDU格式: [CLA][INS][P1][P2][Lc][recordId(32)][addr(20)][expectedDigest(32，可省略)]
+     * 带 expectedDigest 时与芯片计算的摘要比对，不一致返回 SW_WRONG_DATA，数据块保持写入状态，
+     * 主机可重写出错的分段后再次封存。
+     * 响应: [digest(32)]
+     * 
+     * @param apdu       APDU对象
+     * @param buffer     命令数据所在数组
+     * @param offset     命令数据起始位置
+     * @param dataLength 命令数据长度
+     */
+    private void processBlobFinalize(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        if (dataLength != KEY_LENGTH && dataLength != (short) (KEY_LENGTH + HASH_LENGTH)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short index = requireBlob(buffer, offset, BLOB_WRITING);
+        short entry = (short) (index * BLOB_ENTRY_SIZE);
+        short length = Util.getShort(blobTable, (short) (entry + BLOB_LENGTH_OFFSET));
+
+        short digestOffset = HMAC_BLOCK_SIZE;
+        sha256.reset();
+        sha256.doFinal((byte[]) blobData[index], (short) 0, length, sessionWork, digestOffset);
+        if (dataLength != KEY_LENGTH && Util.arrayCompare(buffer, (short) (offset + KEY_LENGTH),
+                sessionWork, digestOffset, HASH_LENGTH) != 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+
+        JCSystem.beginTransaction();
+        Util.arrayCopy(sessionWork, digestOffset, blobTable, (short) (entry + BLOB_DIGEST_OFFSET), HASH_LENGTH);
+        blobTable[(short) (entry + BLOB_STATE_OFFSET)] = BLOB_SEALED;
+        JCSystem.commitTransaction();
+
+        Util.arrayCopyNonAtomic(sessionWork, digestOffset, buffer, (short) 0, HASH_LENGTH);
+        sendResponse(apdu, buffer, (short) 0, HASH_LENGTH);
+    }
+
+    /**
+     * 处理读取数据块 - 从指定偏移返回一段已封存的数据
+     * 
+     * APDU格式: [CLA][INS][P1P2=offset][Lc][recordId(32)][addr(20)][auth]
+     * 授权与单条读取相同: 对 record_id||addr 的签名、会话标签或Merkle证明。
+     * 读取各分段时重发同一签名，命中授权缓存，只有第一段验签。
+     * 每段最多返回 IO_BUFFER_SIZE 字节，扩展长度APDU一次返回，短APDU经GET RESPONSE取回。
+     * 主机用 BLOB_INFO 取得长度和摘要，读完后自行校验。
+     * 
+     * @param apdu       APDU对象
+     * @param buffer     命令数据所在数组
+     * @param offset     命令数据起始位置
+     * @param dataLength 命令数据长度
+     */
+    private void processBlobRead(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        short index = authorizeBlob(apdu, buffer, offset, dataLength);
+        short length = Util.getShort(blobTable, (short) ((short) (index * BLOB_ENTRY_SIZE) + BLOB_LENGTH_OFFSET));
+        short position = Util.getShort(apdu.getBuffer(), ISO7816.OFFSET_P1);
+        if (position < 0 || position >= length) {
+            ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+        }
+        short chunk = (short) (length - position);
+        if (chunk > IO_BUFFER_SIZE) {
+            chunk = IO_BUFFER_SIZE;
+        }
+
+        // 授权已验证完毕，命令数据在ioBuffer中时可以覆盖
+        Util.arrayCopyNonAtomic((byte[]) blobData[index], position, ioBuffer, (short) 0, chunk);
+        sendResponse(apdu, ioBuffer, (short) 0, chunk);
+    }
+
+    /**
+     * 处理删除数据块
+     * 
+     * APDU格式: [CLA][INS][P1][P2][Lc][recordId(32)][addr(20)][auth]
+     * 授权与单条删除相同，Merkle根须授权删除操作。写入中的数据块也可删除。
+     * 数据数组保留，之后创建不超过其大小的数据块时复用。
+     * 响应: [used(1)]
+     * 
+     * @param apdu       APDU对象
+     * @param buffer     命令数据所在数组
+     * @param offset     命令数据起始位置
+     * @param dataLength 命令数据长度
+     */
+    private void processBlobDelete(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        short index = authorizeBlob(apdu, buffer, offset, dataLength);
+        blobTable[(short) ((short) (index * BLOB_ENTRY_SIZE) + BLOB_STATE_OFFSET)] = BLOB_EMPTY;
+
+        buffer[0] = (byte) countBlobs();
+        sendResponse(apdu, buffer, (short) 0, (short) 1);
+    }
+
+    /**
+     * 处理查询数据块
+     * 
+     * APDU格式: [CLA][INS][P1][P2][Lc][recordId(32)][addr(20)]
+     * 响应: [length(2)][state(1)][digest(32)]，写入中的数据块没有摘要，只返回前3字节
+     * 
+     * @param apdu       APDU对象
+     * @param buffer     命令数据所在数组
+     * @param offset     命令数据起始位置
+     * @param dataLength 命令数据长度
+     */
+    private void processBlobInfo(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        if (dataLength != KEY_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short index = findBlob(buffer, offset);
+        if (index == -1) {
+            ISOException.throwIt(SW_RECORD_NOT_FOUND);
+        }
+
+        short entry = (short) (index * BLOB_ENTRY_SIZE);
+        byte state = blobTable[(short) (entry + BLOB_STATE_OFFSET)];
+        short outLength = (short) (state == BLOB_SEALED ? 3 + HASH_LENGTH : 3);
+        Util.arrayCopyNonAtomic(blobTable, (short) (entry + BLOB_LENGTH_OFFSET), buffer, (short) 0, outLength);
+        sendResponse(apdu, buffer, (short) 0, outLength);
+    }
+
+    /**
+     * 验证读取或删除数据块的授权并返回数据块下标
+     * 
+     * 先验证授权再查找，未授权的主机不能探测数据块是否存在。读取只允许已封存的数据块。
+     * 
+     * @return 数据块下标
+     */
+    private short authorizeBlob(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        // 8是DER签名的最小长度
+        if (dataLength < (short) (KEY_LENGTH + 8)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        byte ins = apdu.getBuffer()[ISO7816.OFFSET_INS];
+        Util.arrayCopy(buffer, offset, tempBuffer, (short) 0, KEY_LENGTH);
+        if (!authorize(ins, tempBuffer, (short) 0,
+                buffer, (short) (offset + KEY_LENGTH), (short) (dataLength - KEY_LENGTH))) {
+            ISOException.throwIt(SW_SIGNATURE_INVALID);
+        }
+        return requireBlob(tempBuffer, (short) 0, ins == INS_BLOB_READ ? BLOB_SEALED : BLOB_EMPTY);
+    }
+
+    /**
+     * 查找数据块并检查状态
+     * 
+     * @param state 要求的状态，BLOB_EMPTY 表示不限
+     * @return 数据块下标，不存在时返回 SW_RECORD_NOT_FOUND，状态不符时返回 SW_CONDITIONS_NOT_SATISFIED
+     */
+    private short requireBlob(byte[] keyBuffer, short keyOffset, byte state) {
+        short index = findBlob(keyBuffer, keyOffset);
+        if (index == -1) {
+            ISOException.throwIt(SW_RECORD_NOT_FOUND);
+        }
+        if (state != BLOB_EMPTY
+                && blobTable[(short) ((short) (index * BLOB_ENTRY_SIZE) + BLOB_STATE_OFFSET)] != state) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        return index;
+    }
+
+    /**
+     * 按 record_id||addr 查找未删除的数据块
+     * 
+     * @return 数据块下标，未找到返回 -1
+     */
+    private short findBlob(byte[] keyBuffer, short keyOffset) {
+        if (blobTable == null) {
+            return -1;
+        }
+        for (short i = 0; i < BLOB_SLOTS; i++) {
+            short entry = (short) (i * BLOB_ENTRY_SIZE);
+            if (blobTable[(short) (entry + BLOB_STATE_OFFSET)] != BLOB_EMPTY
+                    && Util.arrayCompare(blobTable, (short) (entry + BLOB_KEY_OFFSET),
+                            keyBuffer, keyOffset, KEY_LENGTH) == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 为新数据块选择空闲表项
+     * 
+     * 依次优先: 数组足够大的空闲表项、尚未分配数组的空闲表项、数组需要重新分配的空闲表项。
+     * 
+     * @param length 数据块长度
+     * @return 数据块下标，没有空闲表项时返回 -1
+     */
+    private short selectFreeBlob(short length) {
+        short unallocated = -1;
+        short undersized = -1;
+        for (short i = 0; i < BLOB_SLOTS; i++) {
+            if (blobTable[(short) ((short) (i * BLOB_ENTRY_SIZE) + BLOB_STATE_OFFSET)] != BLOB_EMPTY) {
+                continue;
+            }
+            byte[] data = (byte[]) blobData[i];
+            if (data == null) {
+                if (unallocated == -1) {
+                    unallocated = i;
+                }
+            } else if ((short) data.length >= length) {
+                return i;
+            } else if (undersized == -1) {
+                undersized = i;
+            }
+        }
+        return unallocated != -1 ? unallocated : undersized;
+    }
+
+    /**
+     * 返回未删除的数据块数量
+     */
+    private short countBlobs() {
+        short count = 0;
+        if (blobTable != null) {
+            for (short i = 0; i < BLOB_SLOTS; i++) {
+                if (blobTable[(short) ((short) (i * BLOB_ENTRY_SIZE) + BLOB_STATE_OFFSET)] != BLOB_EMPTY) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 确保数据块表已经分配，首次创建数据块时分配
+     * 
+     * @return 数据块表是否可用，EEPROM不足时返回false
+     */
+    private boolean ensureBlobTable() {
+        if (blobTable != null) {
+            return true;
+        }
+        try {
+            blobData = new Object[BLOB_SLOTS];
+            blobTable = new byte[(short) (BLOB_SLOTS * BLOB_ENTRY_SIZE)];
+        } catch (SystemException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 处理开始分片加解密 - 由记录消息派生密钥，之后用 CIPHER_UPDATE 分段处理数据
+     * 
+     * 加密: [CLA][INS][P1=0x01][P2][Lc][recordId(32)][addr(20)][授权块]，响应 [iv(16)]
+     * 解密: [CLA][INS][P1=0x02][P2][Lc][recordId(32)][addr(20)][iv(16)][授权块]
+     * 授权同READ_DATA。否则任何主机都能用记录的密钥封装自选的分片，让合法的解密方接受。
+     * 唯一的例外是以 GENERATE_KEEP_SECRET 生成、尚未完成过加密的记录：生成它的主机此时还没有
+     * 服务器授权，可以省略授权块；第一次加密在 CIPHER_FINAL 完成后例外即失效，中途失败可以重试。
+     * 记录消息只在RAM中派生出加密密钥和标签密钥，不出芯片。重新初始化作废进行中的流。
+     * 
+     * @param apdu       APDU对象
+     * @param buffer     命令数据所在数组
+     * @param offset     命令数据起始位置
+     * @param dataLength 命令数据长度
+     */
+    private void processCipherInit(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        if (shareCipher == null) {
+            ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+        }
+        closeCipher();
+        byte[] apduBuffer = apdu.getBuffer();
+        byte mode = apduBuffer[ISO7816.OFFSET_P1];
+        short ivOffset = (short) (offset + KEY_LENGTH);
+        short authOffset;
+        if (mode == CIPHER_ENCRYPT) {
+            if (keyRandom == null) {
+                ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+            }
+            authOffset = ivOffset;
+        } else if (mode == CIPHER_DECRYPT) {
+            authOffset = (short) (ivOffset + CIPHER_IV_LENGTH);
+        } else {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+            return;
+        }
+
+        // 8是DER签名的最小长度，先验证授权再查找，未授权的主机不能探测记录是否存在
+        short authLength = (short) (dataLength - (short) (authOffset - offset));
+        boolean unsealed = false;
+        if (mode == CIPHER_ENCRYPT && authLength == 0) {
+            unsealed = hasUnsealed && Util.arrayCompare(buffer, offset, unsealedKey, (short) 0, KEY_LENGTH) == 0;
+            if (!unsealed) {
+                ISOException.throwIt(SW_SIGNATURE_INVALID);
+            }
+        } else {
+            if (authLength < 8) {
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+            Util.arrayCopy(buffer, offset, tempBuffer, (short) 0, KEY_LENGTH);
+            if (!authorize(apduBuffer[ISO7816.OFFSET_INS], tempBuffer, (short) 0, buffer, authOffset, authLength)) {
+                ISOException.throwIt(SW_SIGNATURE_INVALID);
+            }
+        }
+
+        short slot = findRecord(buffer, offset, buffer, (short) (offset + RECORD_ID_LENGTH));
+        if (slot == NO_SLOT) {
+            ISOException.throwIt(SW_RECORD_NOT_FOUND);
+        }
+        if (getValueLength(slot) != MESSAGE_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        if (mode == CIPHER_ENCRYPT) {
+            keyRandom.nextBytes(buffer, ivOffset, CIPHER_IV_LENGTH);
+        }
+
+        // 工作区 [64,96) 放记录消息，[0,32) 放派生的加密密钥，用完清零
+        short messageOffset = HMAC_BLOCK_SIZE;
+        copyValue(slot, sessionWork, messageOffset);
+        sessionWork[0] = CIPHER_ENC_DOMAIN;
+        sha256.reset();
+        sha256.update(sessionWork, (short) 0, (short) 1);
+        sha256.doFinal(sessionWork, messageOffset, MESSAGE_LENGTH, sessionWork, (short) 0);
+        shareKey.setKey(sessionWork, (short) 0);
+        sessionWork[0] = CIPHER_MAC_DOMAIN;
+        sha256.update(sessionWork, (short) 0, (short) 1);
+        sha256.doFinal(sessionWork, messageOffset, MESSAGE_LENGTH, shareMacKey, (short) 0);
+        Util.arrayFillNonAtomic(sessionWork, (short) 0, (short) sessionWork.length, (byte) 0);
+        startShareTag(buffer, ivOffset);
+        sessionState[CIPHER_MODE] = mode;
+
+        if (mode == CIPHER_ENCRYPT) {
+            sessionState[CIPHER_UNSEALED] = (short) (unsealed ? 1 : 0);
+            shareCipher.init(shareKey, Cipher.MODE_ENCRYPT, buffer, ivOffset, CIPHER_IV_LENGTH);
+            sendResponse(apdu, buffer, ivOffset, CIPHER_IV_LENGTH);
+        } else {
+            // 校验遍只计算标签，IV留到第二遍初始化解密
+            Util.arrayCopyNonAtomic(buffer, ivOffset, shareIv, (short) 0, CIPHER_IV_LENGTH);
+        }
+    }
+
+    /**
+     * 处理加解密一段分片数据
+     * 
+     * APDU格式: [CLA][INS][P1][P2][Lc][data(16的整数倍)]
+     * 标签按密文计算: 加密时累积输出，解密时累积输入。使用扩展长度APDU时一段约1KB。
+     * 解密分两遍发送同一密文: 第一遍 (校验遍) 只累积标签，响应无数据；CIPHER_FINAL 校验通过后
+     * 第二遍原地解密，响应与请求等长。明文因此只在整个密文的标签通过后才离开芯片。
+     */
+    private void processCipherUpdate(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        byte mode = (byte) sessionState[CIPHER_MODE];
+        if (mode == 0) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        if (dataLength == 0 || (dataLength & CIPHER_BLOCK_MASK) != 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        if (mode != CIPHER_ENCRYPT) {
+            shareDigest.update(buffer, offset, dataLength);
+        }
+        if (mode == CIPHER_DECRYPT) {
+            return;
+        }
+        short length = shareCipher.update(buffer, offset, dataLength, buffer, offset);
+        if (mode == CIPHER_ENCRYPT) {
+            shareDigest.update(buffer, offset, length);
+        }
+        sendResponse(apdu, buffer, offset, length);
+    }
+
+    /**
+     * 处理结束分片加解密 - 加密时返回标签，解密时校验标签
+     * 
+     * 加密: 请求无数据，响应 [剩余密文][tag(32)]
+     * 解密校验遍: 请求 [tag(32)]，通过时响应无数据并进入第二遍，失败时返回 SW_SIGNATURE_INVALID
+     * 解密第二遍: 请求 [tag(32)]，重新校验第二遍收到的密文，通过时响应 [剩余明文]
+     * 剩余部分只在芯片的AES实现缓存了最后一个分组时出现，通常为空。流结束或校验失败时派生的密钥都被清除。
+     * 第二遍的密文与校验遍不同时，已返回的明文来自未经校验的密文，主机收到 SW_SIGNATURE_INVALID 时必须丢弃。
+     */
+    private void processCipherFinal(APDU apdu, byte[] buffer, short offset, short dataLength) {
+        byte mode = (byte) sessionState[CIPHER_MODE];
+        if (mode == 0) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        if (dataLength != (mode == CIPHER_ENCRYPT ? 0 : CIPHER_TAG_LENGTH)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        short length = 0;
+        if (mode == CIPHER_ENCRYPT) {
+            length = shareCipher.doFinal(buffer, offset, (short) 0, buffer, offset);
+            shareDigest.update(buffer, offset, length);
+            computeShareTag(buffer, (short) (offset + length));
+            length += CIPHER_TAG_LENGTH;
+            if (sessionState[CIPHER_UNSEALED] != 0) {
+                hasUnsealed = false;
+            }
+        } else {
+            if (!checkShareTag(buffer, offset)) {
+                closeCipher();
+                ISOException.throwIt(SW_SIGNATURE_INVALID);
+            }
+            if (mode == CIPHER_DECRYPT) {
+                startShareTag(shareIv, (short) 0);
+                shareCipher.init(shareKey, Cipher.MODE_DECRYPT, shareIv, (short) 0, CIPHER_IV_LENGTH);
+                sessionState[CIPHER_MODE] = CIPHER_RELEASE;
+                return;
+            }
+            length = shareCipher.doFinal(buffer, offset, (short) 0, buffer, offset);
+        }
+        closeCipher();
+        sendResponse(apdu, buffer, offset, length);
+    }
+
+    /**
+     * 开始计算标签的HMAC内层: SHA256((K ^ ipad) || iv || 密文...)，跨命令累积在 shareDigest 中
+     * 
+     * @param iv       IV所在数组
+     * @param ivOffset IV起始位置
+     */
+    private void startShareTag(byte[] iv, short ivOffset) {
+        fillHmacPad(shareMacKey, (byte) 0x36);
+        shareDigest.reset();
+        shareDigest.update(sessionWork, (short) 0, HMAC_BLOCK_SIZE);
+        shareDigest.update(iv, ivOffset, CIPHER_IV_LENGTH);
+        Util.arrayFillNonAtomic(sessionWork, (short) 0, HMAC_BLOCK_SIZE, (byte) 0);
+    }
+
+    /**
+     * 完成标签计算并与主机发送的标签做常量时间比较
+     * 
+     * @param buffer 主机标签所在数组
+     * @param offset 主机标签起始位置
+     * @return 标签是否一致
+     */
+    private boolean checkShareTag(byte[] buffer, short offset) {
+        short digestOffset = HMAC_BLOCK_SIZE;
+        computeShareTag(sessionWork, digestOffset);
+        // 逐字节累积差异，比较时间与标签内容无关
+        byte diff = 0;
+        for (short i = 0; i < CIPHER_TAG_LENGTH; i++) {
+            diff |= (byte) (sessionWork[(short) (digestOffset + i)] ^ buffer[(short) (offset + i)]);
+        }
+        return diff == 0;
+    }
+
+    /**
+     * 完成HMAC: SHA256((K ^ opad) || inner)
+     * 
+     * @param dest       标签写入的数组
+     * @param destOffset 标签写入的位置
+     */
+    private void computeShareTag(byte[] dest, short destOffset) {
+        short innerOffset = HMAC_BLOCK_SIZE;
+        shareDigest.doFinal(sessionWork, (short) 0, (short) 0, sessionWork, innerOffset);
+        fillHmacPad(shareMacKey, (byte) 0x5C);
+        shareDigest.update(sessionWork, (short) 0, HMAC_BLOCK_SIZE);
+        shareDigest.doFinal(sessionWork, innerOffset, MessageDigest.LENGTH_SHA_256, dest, destOffset);
+    }
+
+    /**
+     * 结束进行中的分片加解密，清除派生的密钥
+     */
+    private void closeCipher() {
+        if (sessionState[CIPHER_MODE] == 0) {
+            return;
+        }
+        sessionState[CIPHER_MODE] = 0;
+        sessionState[CIPHER_UNSEALED] = 0;
+        shareKey.clearKey();
+        Util.arrayFillNonAtomic(shareMacKey, (short) 0, HASH_LENGTH, (byte) 0);
+        Util.arrayFillNonAtomic(sessionWork, (short) 0, (short) sessionWork.length, (byte) 0);
+    }
+
+    /**
+     * 根据record_id和地址查找记录索引
+     * 
+     * @param recordIdArray  record_id所在的数组
+     * @param recordIdOffset record_id在数组中的起始位置
+     * @param addrArray      地址所在的数组
+     * @param addrOffset     地址在数组中的起始位置
+     * @return 找到的记录索引，未找到则返回 -1
+     */
+    private short findRecord(byte[] recordIdArray, short recordIdOffset,
+            byte[] addrArray, short addrOffset) {
+        short hash = computeHash(recordIdArray, recordIdOffset, addrArray, addrOffset);
+        short bucket = (short) (hash & hashMask);
+
+        // 线性探测，遇到空桶即可判定记录不存在
+        for (short probe = 0; probe <= hashMask; probe++) {
+            short entry = hashIndex[bucket];
+            if (entry == INDEX_EMPTY) {
+                return -1;
+            }
+
+            short slot = (short) (entry - 1);
+            if (slotHashes[slot] == hash && matchesRecord(slot, recordIdArray, recordIdOffset, addrArray,
+                    addrOffset)) {
+                return slot; // 找到匹配记录
+            }
+            bucket = (short) ((short) (bucket + 1) & hashMask);
+        }
+        return -1; // 未找到
+    }
+
+    /**
+     * 按槽位提示查找记录，提示无效或不匹配时退回哈希查找
+     * 
+     * 提示为 STORE 返回的槽位号加1，0 表示没有提示。槽位可能已被删除或复用，
+     * 因此命中前仍需校验存在位和完整的 record_id||addr。
+     * 
+     * @param hint      槽位提示
+     * @param buffer    record_id||addr 所在数组
+     * @param keyOffset record_id||addr 的起始位置
+     * @return 找到的记录索引，未找到返回-1
+     */
+    private short findRecordWithHint(short hint, byte[] buffer, short keyOffset) {
+        short slot = (short) (hint - 1);
+        if (slot >= 0 && slot < highWaterMark && isSlotUsed(slot)
+                && matchesRecord(slot, buffer, keyOffset, buffer, (short) (keyOffset + RECORD_ID_LENGTH))) {
+            return slot;
+        }
+        return findRecord(buffer, keyOffset, buffer, (short) (keyOffset + RECORD_ID_LENGTH));
+    }
+
+    /**
+     * 比较指定槽位的record_id和地址
+     * 
+     * @param slot           槽位索引
+     * @param recordIdArray  record_id所在的数组
+     * @param recordIdOffset record_id在数组中的起始位置
+     * @param addrArray      地址所在的数组
+     * @param addrOffset     地址在数组中的起始位置
+     * @return 槽位中的记录是否与给定键相同
+     */
+    private boolean matchesRecord(short slot, byte[] recordIdArray, short recordIdOffset,
+            byte[] addrArray, short addrOffset) {
+        byte[] segment = getSegment(slot);
+        short recordOffset = getRecordOffset(slot);
+        if (Util.arrayCompare(recordIdArray, recordIdOffset, segment, (short) (recordOffset + RECORD_ID_OFFSET),
+                RECORD_ID_LENGTH) != 0) {
+            return false;
+        }
+        short addrEntry = Util.getShort(segment, (short) (recordOffset + ADDR_REF_OFFSET));
+        return Util.arrayCompare(addrArray, addrOffset, getAddrSegment(addrEntry), getAddrOffset(addrEntry),
+                ADDR_LENGTH) == 0;
+    }
+
+    /**
+     * 计算 record_id || addr 的16位摘要
+     * 
+     * 采用乘31累加并折叠高字节，只用于索引分桶，不承担任何安全属性。
+     * 
+     * @param recordIdArray  record_id所在的数组
+     * @param recordIdOffset record_id在数组中的起始位置
+     * @param addrArray      地址所在的数组
+     * @param addrOffset     地址在数组中的起始位置
+     * @return 16位摘要
+     */
+    private short computeHash(byte[] recordIdArray, short recordIdOffset,
+            byte[] addrArray, short addrOffset) {
+        short hash = 0;
+        for (short i = 0; i < RECORD_ID_LENGTH; i++) {
+            hash = (short) ((short) ((short) (hash << 5) - hash)
+                    + (short) (recordIdArray[(short) (recordIdOffset + i)] & 0xFF));
+        }
+        for (short i = 0; i < ADDR_LENGTH; i++) {
+            hash = (short) ((short) ((short) (hash << 5) - hash)
+                    + (short) (addrArray[(short) (addrOffset + i)] & 0xFF));
+        }
+        return (short) (hash ^ (short) ((hash >> 8) & 0x00FF));
+    }
+
+    /**
+     * 把新槽位加入哈希索引
+     * 
+     * 调用方负责在事务中调用，保证索引与槽位数据同时生效。
+     * 
+     * @param slot           新记录所在槽位
+     * @param recordIdArray  record_id所在的数组
+     * @param recordIdOffset record_id在数组中的起始位置
+     * @param addrArray      地址所在的数组
+     * @param addrOffset     地址在数组中的起始位置
+     */
+    private void indexInsert(short slot, byte[] recordIdArray, short recordIdOffset,
+            byte[] addrArray, short addrOffset) {
+        short hash = computeHash(recordIdArray, recordIdOffset, addrArray, addrOffset);
+        short bucket = (short) (hash & hashMask);
+        while (hashIndex[bucket] != INDEX_EMPTY) {
+            bucket = (short) ((short) (bucket + 1) & hashMask);
+        }
+        slotHashes[slot] = hash;
+        hashIndex[bucket] = (short) (slot + 1);
+    }
+
+    /**
+     * 从哈希索引中移除槽位
+     * 
+     * 使用向后移位删除，不留墓碑，频繁增删后探测长度不会退化。
+     * 调用方负责在事务中调用。
+     * 
+     * @param slot 待移除的槽位
+     */
+    private void indexRemove(short slot) {
+        // 定位槽位所在的桶
+        short hole = (short) (slotHashes[slot] & hashMask);
+        while (hashIndex[hole] != (short) (slot + 1)) {
+            hole = (short) ((short) (hole + 1) & hashMask);
+        }
+
+        // 把后续同簇中可以前移的条目回填到空洞
+        short next = (short) ((short) (hole + 1) & hashMask);
+        while (hashIndex[next] != INDEX_EMPTY) {
+            short home = (short) (slotHashes[(short) (hashIndex[next] - 1)] & hashMask);
+            if ((short) ((short) (next - home) & hashMask) >= (short) ((short) (next - hole) & hashMask)) {
+                hashIndex[hole] = hashIndex[next];
+                hole = next;
+            }
+            next = (short) ((short) (next + 1) & hashMask);
+        }
+        hashIndex[hole] = INDEX_EMPTY;
+    }
+
+    /**
+     * 计算地址所在的地址桶
+     * 
+     * @param addrArray  地址所在的数组
+     * @param addrOffset 地址在数组中的起始位置
+     * @return 地址桶下标
+     */
+    private short computeAddrHash(byte[] addrArray, short addrOffset) {
+        short hash = 0;
+        for (short i = 0; i < ADDR_LENGTH; i++) {
+            hash = (short) ((short) ((short) (hash << 5) - hash)
+                    + (short) (addrArray[(short) (addrOffset + i)] & 0xFF));
+        }
+        return (short) ((short) (hash ^ (short) ((hash >> 8) & 0x00FF)) & addrMask);
+    }
+
+    /**
+     * 在地址表中查找地址
+     * 
+     * @param addrArray  地址所在的数组
+     * @param addrOffset 地址在数组中的起始位置
+     * @return 地址表条目号，地址不在表中时返回 NO_SLOT
+     */
+    private short findAddrEntry(byte[] addrArray, short addrOffset) {
+        short entry = (short) (addrHeads[computeAddrHash(addrArray, addrOffset)] - 1);
+        while (entry != NO_SLOT) {
+            byte[] segment = getAddrSegment(entry);
+            short entryOffset = getAddrOffset(entry);
+            if (Util.arrayCompare(addrArray, addrOffset, segment, entryOffset, ADDR_LENGTH) == 0) {
+                return entry;
+            }
+            entry = (short) (Util.getShort(segment, (short) (entryOffset + ADDR_NEXT_OFFSET)) - 1);
+        }
+        return NO_SLOT;
+    }
+
+    /**
+     * 为新地址分配地址表条目并插在地址桶链表头部，引用计数为0
+     * 
+     * 调用方负责在事务中调用，并保证地址不在表中且 ensureNextAddrSegment 已返回true。
+     * 不同地址数不超过记录数，记录数未满时总有空闲条目。
+     * 
+     * @param addrArray  地址所在的数组
+     * @param addrOffset 地址在数组中的起始位置
+     * @return 新条目号
+     */
+    private short allocateAddrEntry(byte[] addrArray, short addrOffset) {
+        short entry;
+        if (addrFreeHead != NO_SLOT) {
+            entry = addrFreeHead;
+            addrFreeHead = (short) (Util.getShort(getAddrSegment(entry),
+                    (short) (getAddrOffset(entry) + ADDR_NEXT_OFFSET)) - 1);
+        } else {
+            entry = addrHighWaterMark;
+            addrHighWaterMark++;
+        }
+
+        byte[] segment = getAddrSegment(entry);
+        short entryOffset = getAddrOffset(entry);
+        short bucket = computeAddrHash(addrArray, addrOffset);
+        Util.arrayCopy(addrArray, addrOffset, segment, entryOffset, ADDR_LENGTH);
+        Util.setShort(segment, (short) (entryOffset + ADDR_REFS_OFFSET), (short) 0);
+        Util.setShort(segment, (short) (entryOffset + ADDR_FIRST_OFFSET), (short) 0);
+        Util.setShort(segment, (short) (entryOffset + ADDR_NEXT_OFFSET), addrHeads[bucket]);
+        addrHeads[bucket] = (short) (entry + 1);
+        countMetric(METRIC_NVM_BYTES, ADDR_SLOT_SIZE);
+        return entry;
+    }
+
+    /**
+     * 把槽位加入地址条目的记录链表头部，引用计数加1
+     * 
+     * 调用方负责在事务中调用。
+     * 
+     * @param entry 地址表条目号
+     * @param slot  新记录所在槽位
+     */
+    private void addrLinkSlot(short entry, short slot) {
+        byte[] segment = getAddrSegment(entry);
+        short entryOffset = getAddrOffset(entry);
+        slotNextByAddr[slot] = Util.getShort(segment, (short) (entryOffset + ADDR_FIRST_OFFSET));
+        Util.setShort(segment, (short) (entryOffset + ADDR_FIRST_OFFSET), (short) (slot + 1));
+        Util.setShort(segment, (short) (entryOffset + ADDR_REFS_OFFSET),
+                (short) (Util.getShort(segment, (short) (entryOffset + ADDR_REFS_OFFSET)) + 1));
+    }
+
+    /**
+     * 把槽位移出地址条目的记录链表，引用计数减1，减到0时释放条目
+     * 
+     * 单向链表需要从表头找到前驱，开销与该地址的记录数成正比。调用方负责在事务中调用。
+     * 
+     * @param entry 地址表条目号
+     * @param slot  待移除的槽位
+     */
+    private void addrUnlinkSlot(short entry, short slot) {
+        byte[] segment = getAddrSegment(entry);
+        short entryOffset = getAddrOffset(entry);
+        short link = (short) (slot + 1);
+        short first = Util.getShort(segment, (short) (entryOffset + ADDR_FIRST_OFFSET));
+        if (first == link) {
+            Util.setShort(segment, (short) (entryOffset + ADDR_FIRST_OFFSET), slotNextByAddr[slot]);
+        } else {
+            short previous = (short) (first - 1);
+            while (slotNextByAddr[previous] != link) {
+                previous = (short) (slotNextByAddr[previous] - 1);
+            }
+            slotNextByAddr[previous] = slotNextByAddr[slot];
+        }
+        slotNextByAddr[slot] = 0;
+
+        short refs = (short) (Util.getShort(segment, (short) (entryOffset + ADDR_REFS_OFFSET)) - 1);
+        Util.setShort(segment, (short) (entryOffset + ADDR_REFS_OFFSET), refs);
+        if (refs == 0) {
+            releaseAddrEntry(entry);
+        }
+    }
+
+    /**
+     * 把引用计数为0的地址表条目移出地址桶并压入空闲链表
+     * 
+     * 调用方负责在事务中调用。
+     * 
+     * @param entry 地址表条目号
+     */
+    private void releaseAddrEntry(short entry) {
+        byte[] segment = getAddrSegment(entry);
+        short entryOffset = getAddrOffset(entry);
+        short bucket = computeAddrHash(segment, entryOffset);
+        short next = Util.getShort(segment, (short) (entryOffset + ADDR_NEXT_OFFSET));
+        if (addrHeads[bucket] == (short) (entry + 1)) {
+            addrHeads[bucket] = next;
+        } else {
+            short previous = (short) (addrHeads[bucket] - 1);
+            while (true) {
+                byte[] previousSegment = getAddrSegment(previous);
+                short nextOffset = (short) (getAddrOffset(previous) + ADDR_NEXT_OFFSET);
+                short link = Util.getShort(previousSegment, nextOffset);
+                if (link == (short) (entry + 1)) {
+                    Util.setShort(previousSegment, nextOffset, next);
+                    break;
+                }
+                previous = (short) (link - 1);
+            }
+        }
+
+        // 空闲条目的next字段保存空闲链表中下一个条目号+1
+        Util.setShort(segment, (short) (entryOffset + ADDR_NEXT_OFFSET), (short) (addrFreeHead + 1));
+        addrFreeHead = entry;
+    }
+
+    /**
+     * 确保下一个待分配的地址表条目所在的分段已经分配
+     * 
+     * 与 ensureNextSegment 相同，只有取高水位线时才可能需要新分段。
+     * 
+     * @return 分段是否可用，EEPROM不足时返回false
+     */
+    private boolean ensureNextAddrSegment() {
+        if (addrFreeHead != NO_SLOT) {
+            return true;
+        }
+        short segmentIndex = (short) (addrHighWaterMark >> SEGMENT_SHIFT);
+        if (addrSegments[segmentIndex] != null) {
+            return true;
+        }
+        try {
+            addrSegments[segmentIndex] = new byte[ADDR_SEGMENT_SIZE];
+        } catch (SystemException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 获取地址表条目所在的分段
+     * 
+     * @param entry 地址表条目号
+     * @return 分段数组
+     */
+    private byte[] getAddrSegment(short entry) {
+        return (byte[]) addrSegments[(short) (entry >> SEGMENT_SHIFT)];
+    }
+
+    /**
+     * 计算地址表条目在其分段内的起始偏移
+     * 
+     * @param entry 地址表条目号
+     * @return 条目在分段内的起始偏移
+     */
+    private short getAddrOffset(short entry) {
+        return (short) ((short) (entry & (short) (SEGMENT_RECORDS - 1)) * ADDR_SLOT_SIZE);
+    }
+
+    /**
+     * 读取记录引用的地址表条目号
+     * 
+     * @param slot 槽位索引
+     * @return 地址表条目号
+     */
+    private short getAddrRef(short slot) {
+        return Util.getShort(getSegment(slot), (short) (getRecordOffset(slot) + ADDR_REF_OFFSET));
+    }
+
+    /**
+     * 读取地址条目记录链表的首个槽位
+     * 
+     * @param entry 地址表条目号
+     * @return 首个槽位，没有记录时返回 NO_SLOT
+     */
+    private short getAddrFirstSlot(short entry) {
+        return (short) (Util.getShort(getAddrSegment(entry), (short) (getAddrOffset(entry) + ADDR_FIRST_OFFSET)) - 1);
+    }
+
+    /**
+     * 按无符号字节序比较两段字节
+     * 
+     * Util.arrayCompare 按有符号字节比较，排序索引需要与主机一致的无符号顺序。
+     * 随机键通常在前一两个字节就能分出大小，逐字节比较的开销很小。
+     * 
+     * @return 小于、等于、大于分别返回 -1、0、1
+     */
+    private static short compareUnsigned(byte[] left, short leftOffset, byte[] right, short rightOffset, short length) {
+        for (short i = 0; i < length; i++) {
+            short a = (short) (left[(short) (leftOffset + i)] & 0xFF);
+            short b = (short) (right[(short) (rightOffset + i)] & 0xFF);
+            if (a != b) {
+                return a < b ? (short) -1 : (short) 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 比较槽位的 record_id||addr 前 length 字节与给定键
+     * 
+     * @param slot      槽位索引
+     * @param keyArray  键所在数组
+     * @param keyOffset 键的起始位置
+     * @param length    比较长度，不超过 KEY_LENGTH
+     * @return 槽位键小于、等于、大于给定键分别返回 -1、0、1
+     */
+    private short compareSlotKey(short slot, byte[] keyArray, short keyOffset, short length) {
+        short idLength = length < RECORD_ID_LENGTH ? length : RECORD_ID_LENGTH;
+        short result = compareUnsigned(getSegment(slot), (short) (getRecordOffset(slot) + RECORD_ID_OFFSET),
+                keyArray, keyOffset, idLength);
+        if (result != 0 || length <= RECORD_ID_LENGTH) {
+            return result;
+        }
+        short addrEntry = getAddrRef(slot);
+        return compareUnsigned(getAddrSegment(addrEntry), getAddrOffset(addrEntry),
+                keyArray, (short) (keyOffset + RECORD_ID_LENGTH), (short) (length - RECORD_ID_LENGTH));
+    }
+
+    /**
+     * 比较两个槽位的完整 record_id||addr
+     * 
+     * @param first  第一个槽位
+     * @param second 第二个槽位
+     * @return 第一个槽位的键小于、等于、大于第二个时分别返回 -1、0、1
+     */
+    private short compareSlots(short first, short second) {
+        short result = compareUnsigned(getSegment(first), (short) (getRecordOffset(first) + RECORD_ID_OFFSET),
+                getSegment(second), (short) (getRecordOffset(second) + RECORD_ID_OFFSET), RECORD_ID_LENGTH);
+        short firstEntry = getAddrRef(first);
+        short secondEntry = getAddrRef(second);
+        if (result != 0 || firstEntry == secondEntry) {
+            return result;
+        }
+        return compareUnsigned(getAddrSegment(firstEntry), getAddrOffset(firstEntry),
+                getAddrSegment(secondEntry), getAddrOffset(secondEntry), ADDR_LENGTH);
+    }
+
+    /**
+     * 在排序索引中二分查找
+     * 
+     * @param keyArray  键所在数组
+     * @param keyOffset 键的起始位置
+     * @param length    参与比较的键前缀长度
+     * @param strict    为false时返回第一个前缀不小于键的位置，为true时返回第一个前缀大于键的位置
+     * @return 排序索引中的位置，范围 [0, sortedCount]
+     */
+    private short sortedLowerBound(byte[] keyArray, short keyOffset, short length, boolean strict) {
+        short low = 0;
+        short high = sortedCount;
+        while (low < high) {
+            short middle = (short) ((short) (low + high) >> 1);
+            short result = compareSlotKey(getSortedSlot(middle), keyArray, keyOffset, length);
+            if (result < 0 || (strict && result == 0)) {
+                low = (short) (middle + 1);
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 读取排序索引中指定位置的槽位
+     * 
+     * @param position 排序索引中的位置
+     * @return 槽位索引
+     */
+    private short getSortedSlot(short position) {
+        return Util.getShort(sortedSlots, (short) (position * 2));
+    }
+
+    /**
+     * 执行排序索引日志中已提交的操作，每项完成后在一个小事务中更新条目数并清除日志
+     * 
+     * 条目按块移动，每块在一个事务中与日志中的交界一起提交，一次插入或删除的提交次数为
+     * 移动条目数除以 sortedChunk。中途掉电时回滚到上一块提交后的状态，恢复时从日志记下的交界继续，
+     * 不需要比较或扫描条目。
+     */
+    private void applySortedJournal() {
+        while (sortedJournal[JOURNAL_OP] == JOURNAL_INSERT) {
+            short pending = (short) (sortedJournal[JOURNAL_PENDING] - 1);
+            short slot = sortedJournal[(short) (JOURNAL_SLOTS + pending)];
+            short position = sortedInsert(slot);
+            JCSystem.beginTransaction();
+            Util.setShort(sortedSlots, (short) (position * 2), slot);
+            sortedCount++;
+            sortedJournal[JOURNAL_PENDING] = pending;
+            sortedJournal[JOURNAL_BOUNDARY] = NO_SLOT;
+            if (pending == 0) {
+                sortedJournal[JOURNAL_OP] = JOURNAL_NONE;
+            }
+            JCSystem.commitTransaction();
+        }
+        if (sortedJournal[JOURNAL_OP] == JOURNAL_REMOVE) {
+            sortedRemove();
+            // 改写被移动记录的槽位号与清除日志同时提交，重做删除时不会遇到改写后的条目
+            JCSystem.beginTransaction();
+            short movedPosition = sortedJournal[JOURNAL_MOVED];
+            if (movedPosition != NO_SLOT) {
+                Util.setShort(sortedSlots, (short) (movedPosition * 2), sortedJournal[JOURNAL_SLOT]);
+            }
+            sortedCount--;
+            sortedJournal[JOURNAL_BOUNDARY] = NO_SLOT;
+            sortedJournal[JOURNAL_OP] = JOURNAL_NONE;
+            JCSystem.commitTransaction();
+        }
+    }
+
+    /**
+     * 为新槽位腾出插入点，插入点之后的条目从末尾开始按块后移一项
+     * 
+     * 第一块提交前排序索引未改动，交界为NO_SLOT时重新二分定位；之后插入点和交界都从日志读取。
+     * 交界以下到插入点的条目尚未移动，交界处的条目在交界和交界+1各有一份。
+     * 
+     * @param slot 新记录所在槽位
+     * @return 插入点
+     */
+    private short sortedInsert(short slot) {
+        short position;
+        short boundary = sortedJournal[JOURNAL_BOUNDARY];
+        if (boundary == NO_SLOT) {
+            position = sortedPositionOf(slot);
+            boundary = sortedCount;
+        } else {
+            position = sortedJournal[JOURNAL_POSITION];
+        }
+        while (boundary > position) {
+            short start = (short) (boundary - sortedChunk);
+            if (start < position) {
+                start = position;
+            }
+            JCSystem.beginTransaction();
+            Util.arrayCopy(sortedSlots, (short) (start * 2), sortedSlots, (short) ((short) (start + 1) * 2),
+                    (short) ((short) (boundary - start) * 2));
+            sortedJournal[JOURNAL_POSITION] = position;
+            sortedJournal[JOURNAL_BOUNDARY] = start;
+            JCSystem.commitTransaction();
+            boundary = start;
+        }
+        return position;
+    }
+
+    /**
+     * 从排序索引中移除日志记下的条目，之后的条目从删除点开始按块前移一项
+     * 
+     * 被删除的记录已释放，不能再按键定位，位置由日志给出。交界之前的条目已前移。
+     */
+    private void sortedRemove() {
+        short last = (short) (sortedCount - 1);
+        short boundary = sortedJournal[JOURNAL_BOUNDARY];
+        while (boundary < last) {
+            short end = (short) (boundary + sortedChunk);
+            if (end > last) {
+                end = last;
+            }
+            JCSystem.beginTransaction();
+            Util.arrayCopy(sortedSlots, (short) ((short) (boundary + 1) * 2), sortedSlots, (short) (boundary * 2),
+                    (short) ((short) (end - boundary) * 2));
+            sortedJournal[JOURNAL_BOUNDARY] = end;
+            JCSystem.commitTransaction();
+            boundary = end;
+        }
+    }
+
+    /**
+     * 查找槽位中的记录在排序索引中的位置
+     * 
+     * 记录已在索引中时返回其位置，否则返回插入点。
+     * 
+     * @param slot 槽位索引
+     * @return 排序索引中的位置，范围 [0, sortedCount]
+     */
+    private short sortedPositionOf(short slot) {
+        short low = 0;
+        short high = sortedCount;
+        while (low < high) {
+            short middle = (short) ((short) (low + high) >> 1);
+            if (compareSlots(getSortedSlot(middle), slot) < 0) {
+                low = (short) (middle + 1);
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 判断槽位的消息是否保存在变长消息区
+     * 
+     * @param slot 槽位索引
+     * @return 变长标志位是否置位
+     */
+    private boolean isValueInArena(short slot) {
+        return (arenaFlags[(short) (slot >> 3)] & slotBitMask(slot)) != 0;
+    }
+
+    /**
+     * 设置或清除槽位的变长标志位，调用方负责在事务中调用
+     * 
+     * @param slot    槽位索引
+     * @param inArena 消息是否保存在变长消息区
+     */
+    private void setValueInArena(short slot, boolean inArena) {
+        short byteIndex = (short) (slot >> 3);
+        if (inArena) {
+            arenaFlags[byteIndex] = (byte) (arenaFlags[byteIndex] | slotBitMask(slot));
+        } else {
+            arenaFlags[byteIndex] = (byte) (arenaFlags[byteIndex] & (byte) ~slotBitMask(slot));
+        }
+    }
+
+    /**
+     * 读取槽位消息在变长消息区中的块起始位置，槽位消息区的前2字节借用来保存
+     * 
+     * @param slot 槽位索引
+     * @return 块起始位置
+     */
+    private short getValueBlock(short slot) {
+        return Util.getShort(getSegment(slot), (short) (getRecordOffset(slot) + MESSAGE_OFFSET));
+    }
+
+    /**
+     * 读取变长消息区中块的总长度 (含块头)
+     * 
+     * @param block 块起始位置
+     * @return 块长度
+     */
+    private short getBlockSize(short block) {
+        return (short) (Util.getShort(arena, (short) (block + ARENA_LENGTH_OFFSET)) + ARENA_HEADER_SIZE);
+    }
+
+    /**
+     * 读取槽位中消息的长度
+     * 
+     * @param slot 槽位索引
+     * @return 消息长度
+     */
+    private short getValueLength(short slot) {
+        if (!isValueInArena(slot)) {
+            return MESSAGE_LENGTH;
+        }
+        return Util.getShort(arena, (short) (getValueBlock(slot) + ARENA_LENGTH_OFFSET));
+    }
+
+    /**
+     * 复制槽位中的消息，定长消息来自分段，变长消息来自变长消息区
+     * 
+     * @param slot       槽位索引
+     * @param dest       目标数组
+     * @param destOffset 目标起始位置
+     * @return 复制后目标数组中的下一个位置
+     */
+    private short copyValue(short slot, byte[] dest, short destOffset) {
+        if (!isValueInArena(slot)) {
+            return Util.arrayCopyNonAtomic(getSegment(slot), (short) (getRecordOffset(slot) + MESSAGE_OFFSET),
+                    dest, destOffset, MESSAGE_LENGTH);
+        }
+        short block = getValueBlock(slot);
+        return Util.arrayCopyNonAtomic(arena, (short) (block + ARENA_HEADER_SIZE), dest, destOffset,
+                Util.getShort(arena, (short) (block + ARENA_LENGTH_OFFSET)));
+    }
+
+    /**
+     * 在变长消息区末尾为槽位分配一个块并置位变长标志，调用方负责在事务中调用并已确认空间足够
+     * 
+     * @param slot   槽位索引
+     * @param length 消息长度
+     */
+    private void allocateValue(short slot, short length) {
+        short block = arenaTop;
+        Util.setShort(arena, (short) (block + ARENA_OWNER_OFFSET), (short) (slot + 1));
+        Util.setShort(arena, (short) (block + ARENA_LENGTH_OFFSET), length);
+        arenaTop = (short) (block + length + ARENA_HEADER_SIZE);
+        Util.setShort(getSegment(slot), (short) (getRecordOffset(slot) + MESSAGE_OFFSET), block);
+        setValueInArena(slot, true);
+    }
+
+    /**
+     * 释放槽位在变长消息区中的块并清除变长标志，调用方负责在事务中调用
+     * 
+     * 末尾的块直接退回 arenaTop，其他块标记为空闲，等待整理。
+     * 
+     * @param slot 槽位索引
+     */
+    private void freeValue(short slot) {
+        short block = getValueBlock(slot);
+        short size = getBlockSize(block);
+        if ((short) (block + size) == arenaTop) {
+            arenaTop = block;
+        } else {
+            Util.setShort(arena, (short) (block + ARENA_OWNER_OFFSET), (short) 0);
+            arenaGarbage = (short) (arenaGarbage + size);
+        }
+        setValueInArena(slot, false);
+    }
+
+    /**
+     * 确保变长消息区已经分配，首次写入变长消息时分配
+     * 
+     * @return 变长消息区是否可用，未启用或EEPROM不足时返回false
+     */
+    private boolean ensureArena() {
+        if (arena != null) {
+            return true;
+        }
+        if (arenaSize == 0) {
+            return false;
+        }
+        try {
+            arena = new byte[arenaSize];
+        } catch (SystemException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 删除一条记录，自带事务
+     * 
+     * 哈希索引、地址表、槽位和记录数在一个事务中修改；排序索引的删除记入日志，在提交后执行，见 applySortedJournal。
+     * 紧凑模式下最后一条记录移入被删除的槽位，有效记录始终占据 [0, recordCount)。
+     * 
+     * @param slot 待删除记录所在槽位
+     */
+    private void deleteRecord(short slot) {
+        // 释放槽位会覆盖record_id，先定位其在排序索引中的位置；紧凑模式下最后一条记录移入该槽位
+        short sortedPosition = sortedPositionOf(slot);
+        short moved = NO_SLOT;
+        short movedPosition = NO_SLOT;
+        if (denseMode && slot != (short) (recordCount - 1)) {
+            moved = (short) (recordCount - 1);
+            movedPosition = sortedPositionOf(moved);
+            if (movedPosition > sortedPosition) {
+                movedPosition--;
+            }
+        }
+
+        JCSystem.beginTransaction();
+        indexRemove(slot);
+        addrUnlinkSlot(getAddrRef(slot), slot);
+        if (isValueInArena(slot)) {
+            freeValue(slot);
+        }
+        recordCount--;
+        if (!denseMode) {
+            releaseSlot(slot);
+        } else {
+            if (moved != NO_SLOT) {
+                moveSlot(moved, slot);
+            }
+            releaseLastSlot();
+        }
+        sortedJournal[JOURNAL_OP] = JOURNAL_REMOVE;
+        sortedJournal[JOURNAL_POSITION] = sortedPosition;
+        sortedJournal[JOURNAL_MOVED] = movedPosition;
+        sortedJournal[JOURNAL_SLOT] = slot;
+        sortedJournal[JOURNAL_BOUNDARY] = sortedPosition;
+        JCSystem.commitTransaction();
+
+        applySortedJournal();
+    }
+
+    /**
+     * 把记录从一个槽位移动到另一个已从索引中移除的槽位，并改写所有引用
+     * 
+     * 调用方负责在事务中调用。目标槽位的存在位保持置位，源槽位的存在位由调用方清除。
+     * 
+     * @param from 源槽位
+     * @param to   目标槽位
+     */
+    private void moveSlot(short from, short to) {
+        // 写入次数属于槽位，不随记录移动
+        Util.arrayCopy(getSegment(from), getRecordOffset(from), getSegment(to), getRecordOffset(to), WRITES_OFFSET);
+        countMetric(METRIC_NVM_BYTES, WRITES_OFFSET);
+        countSlotWrite(to);
+
+        // 哈希桶中的槽位号
+        short bucket = (short) (slotHashes[from] & hashMask);
+        while (hashIndex[bucket] != (short) (from + 1)) {
+            bucket = (short) ((short) (bucket + 1) & hashMask);
+        }
+        hashIndex[bucket] = (short) (to + 1);
+        slotHashes[to] = slotHashes[from];
+
+        // 同地址记录链表中的槽位号
+        short entry = getAddrRef(to);
+        byte[] segment = getAddrSegment(entry);
+        short firstOffset = (short) (getAddrOffset(entry) + ADDR_FIRST_OFFSET);
+        if (Util.getShort(segment, firstOffset) == (short) (from + 1)) {
+            Util.setShort(segment, firstOffset, (short) (to + 1));
+        } else {
+            short previous = (short) (Util.getShort(segment, firstOffset) - 1);
+            while (slotNextByAddr[previous] != (short) (from + 1)) {
+                previous = (short) (slotNextByAddr[previous] - 1);
+            }
+            slotNextByAddr[previous] = (short) (to + 1);
+        }
+        slotNextByAddr[to] = slotNextByAddr[from];
+        slotNextByAddr[from] = 0;
+
+        // 变长消息块的所属槽位号
+        if (isValueInArena(from)) {
+            Util.setShort(arena, (short) (getValueBlock(to) + ARENA_OWNER_OFFSET), (short) (to + 1));
+            setValueInArena(to, true);
+            setValueInArena(from, false);
+        }
+    }
+
+    /**
+     * 紧凑模式下释放最后一个槽位
+     * 
+     * 调用方负责在事务中调用，且已把 recordCount 减1。紧凑模式不使用空闲链表，下次分配直接取高水位线。
+     */
+    private void releaseLastSlot() {
+        short byteIndex = (short) (recordCount >> 3);
+        existFlags[byteIndex] = (byte) (existFlags[byteIndex] & (byte) ~slotBitMask(recordCount));
+        highWaterMark = recordCount;
+    }
+
+    /**
+     * 分配一个空闲槽位
+     * 
+     * 高水位线处的分段已分配时先取从未写过的新槽位，否则复用空闲链表头 (最早释放) 的槽位，两种情况都是常数时间。
+     * 默认只用完当前分段的新槽位，不为此分配新分段；轮转分配时 ensureNextSegment 会提前分配分段，
+     * 整个容量写过一轮后才开始复用。调用方负责在事务中调用，并保证记录数未满。
+     * 
+     * @return 分配到的槽位索引，没有可用槽位则返回 NO_SLOT
+     */
+    private short allocateSlot() {
+        short slot;
+        if (highWaterMark < capacity && (freeListHead == NO_SLOT
+                || segments[(short) (highWaterMark >> SEGMENT_SHIFT)] != null)) {
+            slot = highWaterMark;
+            highWaterMark++;
+        } else if (freeListHead != NO_SLOT) {
+            slot = freeListHead;
+            freeListHead = Util.getShort(getSegment(slot), (short) (getRecordOffset(slot) + RECORD_ID_OFFSET));
+            if (freeListHead == NO_SLOT) {
+                freeListTail = NO_SLOT;
+            }
+        } else {
+            return NO_SLOT;
+        }
+
+        short byteIndex = (short) (slot >> 3);
+        existFlags[byteIndex] = (byte) (existFlags[byteIndex] | slotBitMask(slot));
+        return slot;
+    }
+
+    /**
+     * 释放槽位并加入空闲链表尾
+     * 
+     * 调用方负责在事务中调用，且必须先把槽位移出哈希索引。
+     * 
+     * @param slot 待释放的槽位
+     */
+    private void releaseSlot(short slot) {
+        short byteIndex = (short) (slot >> 3);
+        existFlags[byteIndex] = (byte) (existFlags[byteIndex] & (byte) ~slotBitMask(slot));
+
+        // 空槽的record_id区域不再有效，借用前2字节保存链表指针
+        Util.setShort(getSegment(slot), (short) (getRecordOffset(slot) + RECORD_ID_OFFSET), NO_SLOT);
+        countSlotWrite(slot);
+        if (freeListTail == NO_SLOT) {
+            freeListHead = slot;
+        } else {
+            Util.setShort(getSegment(freeListTail), (short) (getRecordOffset(freeListTail) + RECORD_ID_OFFSET), slot);
+            countSlotWrite(freeListTail);
+        }
+        freeListTail = slot;
+    }
+
+    /**
+     * 槽位写入次数加1，达到 WEAR_SATURATED 后保持不变
+     * 
+     * 计数与被改写的内容在同一分段的相邻位置，通常落在同一个EEPROM页内，不额外增加擦写的页。
+     * 调用方负责在事务中调用。
+     * 
+     * @param slot 被改写的槽位
+     */
+    private void countSlotWrite(short slot) {
+        byte[] segment = getSegment(slot);
+        short writesOffset = (short) (getRecordOffset(slot) + WRITES_OFFSET);
+        short writes = Util.getShort(segment, writesOffset);
+        if (writes != WEAR_SATURATED) {
+            Util.setShort(segment, writesOffset, (short) (writes + 1));
+        }
+    }
+
+    /**
+     * 确保下一个待分配槽位所在的分段已经分配
+     * 
+     * 空闲链表中的槽位都曾被使用过，其分段必然存在，只有取高水位线时才可能需要新分段。
+     * 轮转分配时链表非空也先尝试分配高水位线处的分段，EEPROM不足时退回复用链表中的槽位。
+     * 单条存储在事务外调用；批量存储在事务内调用，新分段随事务一起生效。
+     * 
+     * @return 分段是否可用，EEPROM不足时返回false
+     */
+    private boolean ensureNextSegment() {
+        boolean reusable = freeListHead != NO_SLOT;
+        if ((reusable && !rotateMode) || highWaterMark >= capacity) {
+            return reusable;
+        }
+        short segmentIndex = (short) (highWaterMark >> SEGMENT_SHIFT);
+        if (segments[segmentIndex] != null) {
+            return true;
+        }
+        try {
+            segments[segmentIndex] = new byte[SEGMENT_SIZE];
+        } catch (SystemException e) {
+            return reusable;
+        }
+        return true;
+    }
+
+    /**
+     * 获取槽位所在的分段
+     * 
+     * @param slot 槽位索引
+     * @return 分段数组
+     */
+    private byte[] getSegment(short slot) {
+        return (byte[]) segments[(short) (slot >> SEGMENT_SHIFT)];
+    }
+
+    /**
+     * 计算槽位在其分段内的记录起始偏移
+     * 
+     * @param slot 槽位索引
+     * @return 记录在分段内的起始偏移
+     */
+    private short getRecordOffset(short slot) {
+        return (short) ((short) (slot & (short) (SEGMENT_RECORDS - 1)) * SLOT_SIZE);
+    }
+
+    /**
+     * 判断槽位是否保存着有效记录
+     * 
+     * @param slot 槽位索引
+     * @return 存在位是否置位
+     */
+    private boolean isSlotUsed(short slot) {
+        return (existFlags[(short) (slot >> 3)] & slotBitMask(slot)) != 0;
+    }
+
+    /**
+     * 计算槽位在存在位图字节中的掩码
+     * 
+     * @param slot 槽位索引
+     * @return 对应位的掩码
      */
-    private void updateNextFreeSlot() {
-        nextFreeSlot = findNextFreeSlot();
+    private byte slotBitMask(short slot) {
+        return (byte) (0x01 << (short) (slot & 0x07));
     }
 }
@@ -0,0 +1,91 @@
+package javacard.framework;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * APDU 的JVM替身，只实现 SecurityChipApplet 用到的接收和发送方法
+ * 
+ * 整条命令在构造时给出，receiveBytes 按APDU缓冲区大小分段复制；响应写入 response。
+ */
+public final class APDU {
+    private static final short BUFFER_SIZE = 261; // 短APDU缓冲区: 5字节头 + 255字节数据 + Le
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final byte[] command;
+    private final short incomingLength;
+    private final short dataOffset;
+    private final boolean extended;
+    private short received;
+
+    /** 本条命令的响应数据 */
+    public final ByteArrayOutputStream response = new ByteArrayOutputStream();
+
+    /**
+     * @param command  完整的命令APDU
+     * @param extended 是否为扩展长度APDU (Lc占3字节)
+     */
+    public APDU(byte[] command, boolean extended) {
+        this.command = command;
+        this.extended = extended;
+        if (extended) {
+            incomingLength = (short) (((command[5] & 0xFF) << 8) | (command[6] & 0xFF));
+            dataOffset = ISO7816.OFFSET_EXT_CDATA;
+        } else {
+            incomingLength = (short) (command.length > ISO7816.OFFSET_LC ? command[ISO7816.OFFSET_LC] & 0xFF : 0);
+            dataOffset = ISO7816.OFFSET_CDATA;
+        }
+        System.arraycopy(command, 0, buffer, 0, Math.min(dataOffset, command.length));
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public short getIncomingLength() {
+        return incomingLength;
+    }
+
+    public short getOffsetCdata() {
+        return dataOffset;
+    }
+
+    public boolean isCommandChainingCLA() {
+        return (buffer[ISO7816.OFFSET_CLA] & 0x10) != 0;
+    }
+
+    public short setIncomingAndReceive() {
+        received = 0;
+        return receiveBytes(dataOffset);
+    }
+
+    public short receiveBytes(short offset) {
+        short length = (short) Math.min(incomingLength - received, buffer.length - offset);
+        System.arraycopy(command, dataOffset + received, buffer, offset, length);
+        received += length;
+        return length;
+    }
+
+    public short setOutgoing() {
+        return (short) (extended ? 32767 : 256);
+    }
+
+    public void setOutgoingLength(short length) {
+        if (length < 0 || (!extended && length > 256)) {
+            APDUException.throwIt(APDUException.BAD_LENGTH);
+        }
+    }
+
+    public void sendBytes(short offset, short length) {
+        response.write(buffer, offset, length);
+    }
+
+    public void sendBytesLong(byte[] outData, short offset, short length) {
+        response.write(outData, offset, length);
+    }
+
+    public void setOutgoingAndSend(short offset, short length) {
+        setOutgoing();
+        setOutgoingLength(length);
+        sendBytes(offset, length);
+    }
+}
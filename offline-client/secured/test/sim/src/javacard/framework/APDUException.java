@@ -0,0 +1,16 @@
+package javacard.framework;
+
+/**
+ * APDUException 的JVM替身
+ */
+public class APDUException extends CardRuntimeException {
+    public static final short BAD_LENGTH = 3;
+
+    public APDUException(short reason) {
+        super(reason);
+    }
+
+    public static void throwIt(short reason) {
+        throw new APDUException(reason);
+    }
+}
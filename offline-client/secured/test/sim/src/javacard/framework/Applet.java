@@ -0,0 +1,35 @@
+package javacard.framework;
+
+/**
+ * Applet 的JVM替身，install 中 register 的实例保存在 registered，供模拟卡取用
+ */
+public abstract class Applet {
+    /** 最近一次注册的Applet */
+    public static Applet registered;
+    /** 当前命令是否为SELECT */
+    public static boolean selecting;
+
+    protected Applet() {
+    }
+
+    protected final void register() {
+        registered = this;
+    }
+
+    protected final void register(byte[] bArray, short bOffset, byte bLength) {
+        registered = this;
+    }
+
+    protected final boolean selectingApplet() {
+        return selecting;
+    }
+
+    public boolean select() {
+        return true;
+    }
+
+    public void deselect() {
+    }
+
+    public abstract void process(APDU apdu) throws ISOException;
+}
@@ -0,0 +1,25 @@
+package javacard.framework;
+
+/**
+ * CardRuntimeException 的JVM替身
+ */
+public class CardRuntimeException extends RuntimeException {
+    private short reason;
+
+    public CardRuntimeException(short reason) {
+        super(String.format("reason=0x%04X", reason & 0xFFFF));
+        this.reason = reason;
+    }
+
+    public short getReason() {
+        return reason;
+    }
+
+    public void setReason(short reason) {
+        this.reason = reason;
+    }
+
+    public static void throwIt(short reason) {
+        throw new CardRuntimeException(reason);
+    }
+}
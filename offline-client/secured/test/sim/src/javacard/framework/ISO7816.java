@@ -0,0 +1,30 @@
+package javacard.framework;
+
+/**
+ * ISO7816 常量的JVM替身，取值与JavaCard 3.0.5 API相同
+ */
+public interface ISO7816 {
+    short SW_NO_ERROR = (short) 0x9000;
+    short SW_BYTES_REMAINING_00 = 0x6100;
+    short SW_WRONG_LENGTH = 0x6700;
+    short SW_SECURITY_STATUS_NOT_SATISFIED = 0x6982;
+    short SW_CONDITIONS_NOT_SATISFIED = 0x6985;
+    short SW_LAST_COMMAND_EXPECTED = 0x6883;
+    short SW_WRONG_DATA = 0x6A80;
+    short SW_FUNC_NOT_SUPPORTED = 0x6A81;
+    short SW_RECORD_NOT_FOUND = 0x6A83;
+    short SW_FILE_FULL = 0x6A84;
+    short SW_INCORRECT_P1P2 = 0x6A86;
+    short SW_WRONG_P1P2 = 0x6B00;
+    short SW_INS_NOT_SUPPORTED = 0x6D00;
+    short SW_CLA_NOT_SUPPORTED = 0x6E00;
+    short SW_UNKNOWN = 0x6F00;
+
+    byte OFFSET_CLA = 0;
+    byte OFFSET_INS = 1;
+    byte OFFSET_P1 = 2;
+    byte OFFSET_P2 = 3;
+    byte OFFSET_LC = 4;
+    byte OFFSET_CDATA = 5;
+    byte OFFSET_EXT_CDATA = 7;
+}
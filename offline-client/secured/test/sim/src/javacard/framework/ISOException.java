@@ -0,0 +1,14 @@
+package javacard.framework;
+
+/**
+ * ISOException 的JVM替身
+ */
+public class ISOException extends CardRuntimeException {
+    public ISOException(short reason) {
+        super(reason);
+    }
+
+    public static void throwIt(short reason) {
+        throw new ISOException(reason);
+    }
+}
@@ -0,0 +1,156 @@
+package javacard.framework;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * JCSystem 的JVM替身
+ * 
+ * 事务只检查嵌套并统计提交次数，不做回滚。掉电只注入在事务开始前 (见 tearAt)，此时之前的事务
+ * 全部生效、之后的全部未生效，与真卡在事务中掉电并回滚后的状态相同。
+ * CLEAR_ON_DESELECT 数组登记后由 clearOnDeselect 清零，powerLoss 清零全部瞬态数组。
+ */
+public final class JCSystem {
+    public static final byte MEMORY_TYPE_PERSISTENT = 0;
+    public static final byte MEMORY_TYPE_TRANSIENT_RESET = 1;
+    public static final byte MEMORY_TYPE_TRANSIENT_DESELECT = 2;
+    public static final byte NOT_A_TRANSIENT_OBJECT = 0;
+    public static final byte CLEAR_ON_RESET = 1;
+    public static final byte CLEAR_ON_DESELECT = 2;
+
+    /** 模拟的可用持久化存储字节数，决定安装时的记录容量 */
+    public static int availablePersistent = 200000;
+    /** 模拟的可用瞬态存储字节数 */
+    public static int availableTransient = 4096;
+    /** 已提交的事务数 */
+    public static int commits;
+    /** 已提交事务数达到该值后，下一个事务开始时掉电；为负时不注入 */
+    public static int tearAt = -1;
+
+    private static boolean inTransaction;
+    private static final List<Object> deselectArrays = new ArrayList<Object>();
+    private static final List<Object> resetArrays = new ArrayList<Object>();
+
+    private JCSystem() {
+    }
+
+    public static void beginTransaction() {
+        if (tearAt >= 0 && commits >= tearAt) {
+            tearAt = -1;
+            throw new PowerLoss();
+        }
+        if (inTransaction) {
+            TransactionException.throwIt(TransactionException.IN_PROGRESS);
+        }
+        inTransaction = true;
+    }
+
+    public static void commitTransaction() {
+        if (!inTransaction) {
+            TransactionException.throwIt(TransactionException.NOT_IN_PROGRESS);
+        }
+        inTransaction = false;
+        commits++;
+    }
+
+    public static void abortTransaction() {
+        if (!inTransaction) {
+            TransactionException.throwIt(TransactionException.NOT_IN_PROGRESS);
+        }
+        inTransaction = false;
+    }
+
+    public static byte getTransactionDepth() {
+        return (byte) (inTransaction ? 1 : 0);
+    }
+
+    /**
+     * 命令因异常结束时由模拟卡调用，相当于卡片运行时中止未提交的事务
+     */
+    public static void endCommand() {
+        inTransaction = false;
+    }
+
+    public static short getMaxCommitCapacity() {
+        return 1024;
+    }
+
+    public static short getAvailableMemory(byte memoryType) {
+        int available = memoryType == MEMORY_TYPE_PERSISTENT ? availablePersistent : availableTransient;
+        return (short) Math.min(available, Short.MAX_VALUE);
+    }
+
+    public static void getAvailableMemory(short[] buffer, short offset, byte memoryType) {
+        int available = memoryType == MEMORY_TYPE_PERSISTENT ? availablePersistent : availableTransient;
+        buffer[offset] = (short) (available >>> 16);
+        buffer[(short) (offset + 1)] = (short) available;
+    }
+
+    public static boolean isObjectDeletionSupported() {
+        return true;
+    }
+
+    public static void requestObjectDeletion() {
+    }
+
+    public static byte[] makeTransientByteArray(short length, byte event) {
+        return registerTransient(new byte[allocateTransient(length, length)], event);
+    }
+
+    public static short[] makeTransientShortArray(short length, byte event) {
+        return registerTransient(new short[allocateTransient(length, 2 * length)], event);
+    }
+
+    /**
+     * 清零全部 CLEAR_ON_DESELECT 数组
+     */
+    public static void clearOnDeselect() {
+        clear(deselectArrays);
+    }
+
+    /**
+     * 掉电: 中止事务并清零全部瞬态数组，Applet 不会收到 deselect
+     */
+    public static void powerLoss() {
+        inTransaction = false;
+        clear(deselectArrays);
+        clear(resetArrays);
+    }
+
+    private static void clear(List<Object> arrays) {
+        for (Object array : arrays) {
+            if (array instanceof byte[]) {
+                Arrays.fill((byte[]) array, (byte) 0);
+            } else {
+                Arrays.fill((short[]) array, (short) 0);
+            }
+        }
+    }
+
+    private static int allocateTransient(int length, int bytes) {
+        if (bytes > availableTransient) {
+            SystemException.throwIt(SystemException.NO_TRANSIENT_SPACE);
+        }
+        availableTransient -= bytes;
+        return length;
+    }
+
+    private static <T> T registerTransient(T array, byte event) {
+        if (event == CLEAR_ON_DESELECT) {
+            deselectArrays.add(array);
+        } else {
+            resetArrays.add(array);
+        }
+        return array;
+    }
+
+    /**
+     * 注入的掉电，从 beginTransaction 抛出后由模拟卡捕获
+     */
+    public static final class PowerLoss extends RuntimeException {
+        PowerLoss() {
+            super("power loss");
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package javacard.framework;
+
+/**
+ * SystemException 的JVM替身
+ */
+public class SystemException extends CardRuntimeException {
+    public static final short NO_TRANSIENT_SPACE = 2;
+    public static final short NO_RESOURCE = 5;
+
+    public SystemException(short reason) {
+        super(reason);
+    }
+
+    public static void throwIt(short reason) {
+        throw new SystemException(reason);
+    }
+}
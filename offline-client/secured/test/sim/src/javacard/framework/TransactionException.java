@@ -0,0 +1,17 @@
+package javacard.framework;
+
+/**
+ * TransactionException 的JVM替身
+ */
+public class TransactionException extends CardRuntimeException {
+    public static final short IN_PROGRESS = 1;
+    public static final short NOT_IN_PROGRESS = 2;
+
+    public TransactionException(short reason) {
+        super(reason);
+    }
+
+    public static void throwIt(short reason) {
+        throw new TransactionException(reason);
+    }
+}
@@ -0,0 +1,53 @@
+package javacard.framework;
+
+/**
+ * Util 的JVM替身
+ */
+public class Util {
+    /** 已调用 arrayCompare 的次数，用于统计查找比较的字节区间数 */
+    public static int compares;
+
+    public static short arrayCopy(byte[] src, short srcOff, byte[] dest, short destOff, short length) {
+        System.arraycopy(src, srcOff, dest, destOff, length);
+        return (short) (destOff + length);
+    }
+
+    public static short arrayCopyNonAtomic(byte[] src, short srcOff, byte[] dest, short destOff, short length) {
+        System.arraycopy(src, srcOff, dest, destOff, length);
+        return (short) (destOff + length);
+    }
+
+    public static short arrayFillNonAtomic(byte[] bArray, short bOff, short bLen, byte bValue) {
+        java.util.Arrays.fill(bArray, bOff, bOff + bLen, bValue);
+        return (short) (bOff + bLen);
+    }
+
+    public static byte arrayCompare(byte[] src, short srcOff, byte[] dest, short destOff, short length) {
+        compares++;
+        if (srcOff < 0 || destOff < 0 || length < 0 || srcOff + length > src.length || destOff + length > dest.length) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        for (int i = 0; i < length; i++) {
+            int a = src[srcOff + i] & 0xFF;
+            int b = dest[destOff + i] & 0xFF;
+            if (a != b) {
+                return (byte) (a < b ? -1 : 1);
+            }
+        }
+        return 0;
+    }
+
+    public static short makeShort(byte b1, byte b2) {
+        return (short) (((b1 & 0xFF) << 8) | (b2 & 0xFF));
+    }
+
+    public static short getShort(byte[] bArray, short bOff) {
+        return makeShort(bArray[bOff], bArray[(short) (bOff + 1)]);
+    }
+
+    public static short setShort(byte[] bArray, short bOff, short sValue) {
+        bArray[bOff] = (byte) (sValue >> 8);
+        bArray[(short) (bOff + 1)] = (byte) sValue;
+        return (short) (bOff + 2);
+    }
+}
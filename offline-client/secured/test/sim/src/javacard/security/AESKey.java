@@ -0,0 +1,10 @@
+package javacard.security;
+
+/**
+ * AESKey 的JVM替身
+ */
+public interface AESKey extends SecretKey {
+    void setKey(byte[] keyData, short kOff);
+
+    byte getKey(byte[] keyData, short kOff);
+}
@@ -0,0 +1,21 @@
+package javacard.security;
+
+import javacard.framework.CardRuntimeException;
+
+/**
+ * CryptoException 的JVM替身
+ */
+public class CryptoException extends CardRuntimeException {
+    public static final short ILLEGAL_VALUE = 1;
+    public static final short UNINITIALIZED_KEY = 2;
+    public static final short NO_SUCH_ALGORITHM = 3;
+    public static final short ILLEGAL_USE = 5;
+
+    public CryptoException(short reason) {
+        super(reason);
+    }
+
+    public static void throwIt(short reason) {
+        throw new CryptoException(reason);
+    }
+}
@@ -0,0 +1,18 @@
+package javacard.security;
+
+/**
+ * ECKey 的JVM替身，曲线参数固定为 secp256r1，设置参数的方法不做任何事
+ */
+public interface ECKey {
+    void setFieldFP(byte[] buffer, short offset, short length);
+
+    void setA(byte[] buffer, short offset, short length);
+
+    void setB(byte[] buffer, short offset, short length);
+
+    void setG(byte[] buffer, short offset, short length);
+
+    void setR(byte[] buffer, short offset, short length);
+
+    void setK(short k);
+}
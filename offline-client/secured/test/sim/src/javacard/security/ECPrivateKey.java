@@ -0,0 +1,8 @@
+package javacard.security;
+
+/**
+ * ECPrivateKey 的JVM替身
+ */
+public interface ECPrivateKey extends PrivateKey, ECKey {
+    void setS(byte[] buffer, short offset, short length);
+}
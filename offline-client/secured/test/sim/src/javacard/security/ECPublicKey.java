@@ -0,0 +1,10 @@
+package javacard.security;
+
+/**
+ * ECPublicKey 的JVM替身
+ */
+public interface ECPublicKey extends PublicKey, ECKey {
+    void setW(byte[] buffer, short offset, short length);
+
+    short getW(byte[] buffer, short offset);
+}
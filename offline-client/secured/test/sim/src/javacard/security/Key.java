@@ -0,0 +1,14 @@
+package javacard.security;
+
+/**
+ * Key 的JVM替身
+ */
+public interface Key {
+    boolean isInitialized();
+
+    void clearKey();
+
+    byte getType();
+
+    short getSize();
+}
@@ -0,0 +1,52 @@
+package javacard.security;
+
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.KeyFactory;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPrivateKeySpec;
+import java.security.spec.ECPublicKeySpec;
+import java.util.Arrays;
+
+/**
+ * KeyAgreement 的JVM替身，ALG_EC_SVDP_DH_PLAIN 返回共享点的X坐标
+ */
+public class KeyAgreement {
+    public static final byte ALG_EC_SVDP_DH_PLAIN = 3;
+
+    private SimKeys.EC privateKey;
+
+    public static KeyAgreement getInstance(byte algorithm, boolean externalAccess) {
+        return new KeyAgreement();
+    }
+
+    public void init(PrivateKey privKey) {
+        privateKey = (SimKeys.EC) privKey;
+    }
+
+    public short generateSecret(byte[] publicData, short publicOffset, short publicLength,
+            byte[] secret, short secretOffset) {
+        if (publicLength != 65 || publicData[publicOffset] != 0x04) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        }
+        try {
+            AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+            parameters.init(new ECGenParameterSpec("secp256r1"));
+            ECParameterSpec spec = parameters.getParameterSpec(ECParameterSpec.class);
+            BigInteger x = new BigInteger(1, Arrays.copyOfRange(publicData, publicOffset + 1, publicOffset + 33));
+            BigInteger y = new BigInteger(1, Arrays.copyOfRange(publicData, publicOffset + 33, publicOffset + 65));
+            KeyFactory factory = KeyFactory.getInstance("EC");
+            javax.crypto.KeyAgreement agreement = javax.crypto.KeyAgreement.getInstance("ECDH");
+            agreement.init(factory.generatePrivate(new ECPrivateKeySpec(new BigInteger(1, privateKey.s), spec)));
+            agreement.doPhase(factory.generatePublic(new ECPublicKeySpec(new ECPoint(x, y), spec)), true);
+            byte[] shared = agreement.generateSecret();
+            System.arraycopy(shared, 0, secret, secretOffset, shared.length);
+            return (short) shared.length;
+        } catch (Exception e) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package javacard.security;
+
+/**
+ * KeyBuilder 的JVM替身
+ */
+public class KeyBuilder {
+    public static final byte TYPE_EC_FP_PUBLIC = 11;
+    public static final byte TYPE_EC_FP_PRIVATE = 12;
+    public static final byte TYPE_AES_TRANSIENT_DESELECT = 14;
+    public static final byte TYPE_AES = 15;
+    public static final byte TYPE_EC_FP_PRIVATE_TRANSIENT_DESELECT = 31;
+    public static final short LENGTH_AES_128 = 128;
+    public static final short LENGTH_AES_256 = 256;
+    public static final short LENGTH_EC_FP_256 = 256;
+
+    public static Key buildKey(byte keyType, short keyLength, boolean keyEncryption) {
+        if (keyType == TYPE_EC_FP_PUBLIC || keyType == TYPE_EC_FP_PRIVATE
+                || keyType == TYPE_EC_FP_PRIVATE_TRANSIENT_DESELECT) {
+            return new SimKeys.EC(keyType, keyLength);
+        }
+        return new SimKeys.Secret(keyType, keyLength);
+    }
+}
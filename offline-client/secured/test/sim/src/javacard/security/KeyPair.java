@@ -0,0 +1,40 @@
+package javacard.security;
+
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+
+/**
+ * KeyPair 的JVM替身，genKeyPair 生成 secp256r1 密钥对
+ */
+public final class KeyPair {
+    public static final byte ALG_EC_FP = 5;
+
+    private final SimKeys.EC publicKey;
+    private final SimKeys.EC privateKey;
+
+    public KeyPair(PublicKey publicKey, PrivateKey privateKey) {
+        this.publicKey = (SimKeys.EC) publicKey;
+        this.privateKey = (SimKeys.EC) privateKey;
+    }
+
+    public void genKeyPair() {
+        java.security.KeyPair pair = SimKeys.generate();
+        ECPublicKey pub = (ECPublicKey) pair.getPublic();
+        byte[] w = new byte[65];
+        w[0] = 0x04;
+        SimKeys.putUnsigned(pub.getW().getAffineX(), w, 1, 32);
+        SimKeys.putUnsigned(pub.getW().getAffineY(), w, 33, 32);
+        publicKey.w = w;
+        byte[] s = new byte[32];
+        SimKeys.putUnsigned(((ECPrivateKey) pair.getPrivate()).getS(), s, 0, 32);
+        privateKey.s = s;
+    }
+
+    public PublicKey getPublic() {
+        return publicKey;
+    }
+
+    public PrivateKey getPrivate() {
+        return privateKey;
+    }
+}
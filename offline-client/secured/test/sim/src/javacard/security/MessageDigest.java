@@ -0,0 +1,45 @@
+package javacard.security;
+
+/**
+ * MessageDigest 的JVM替身，只支持SHA-256
+ */
+public class MessageDigest {
+    public static final byte ALG_SHA_256 = 4;
+    public static final byte LENGTH_SHA_256 = 32;
+
+    private final java.security.MessageDigest digest;
+
+    private MessageDigest() {
+        try {
+            digest = java.security.MessageDigest.getInstance("SHA-256");
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static MessageDigest getInstance(byte algorithm, boolean externalAccess) {
+        if (algorithm != ALG_SHA_256) {
+            CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+        }
+        return new MessageDigest();
+    }
+
+    public void update(byte[] inBuff, short inOffset, short inLength) {
+        digest.update(inBuff, inOffset, inLength);
+    }
+
+    public short doFinal(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+        digest.update(inBuff, inOffset, inLength);
+        byte[] hash = digest.digest();
+        System.arraycopy(hash, 0, outBuff, outOffset, hash.length);
+        return (short) hash.length;
+    }
+
+    public void reset() {
+        digest.reset();
+    }
+
+    public byte getLength() {
+        return LENGTH_SHA_256;
+    }
+}
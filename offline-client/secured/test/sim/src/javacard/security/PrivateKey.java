@@ -0,0 +1,7 @@
+package javacard.security;
+
+/**
+ * PrivateKey 的JVM替身
+ */
+public interface PrivateKey extends Key {
+}
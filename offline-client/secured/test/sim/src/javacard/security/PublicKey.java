@@ -0,0 +1,7 @@
+package javacard.security;
+
+/**
+ * PublicKey 的JVM替身
+ */
+public interface PublicKey extends Key {
+}
@@ -0,0 +1,24 @@
+package javacard.security;
+
+import java.security.SecureRandom;
+
+/**
+ * RandomData 的JVM替身，所有算法都使用 SecureRandom
+ */
+public class RandomData {
+    public static final byte ALG_TRNG = 3;
+    public static final byte ALG_KEYGENERATION = 6;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    public static RandomData getInstance(byte algorithm) {
+        return new RandomData();
+    }
+
+    public short nextBytes(byte[] buffer, short offset, short length) {
+        byte[] bytes = new byte[length];
+        RANDOM.nextBytes(bytes);
+        System.arraycopy(bytes, 0, buffer, offset, length);
+        return (short) (offset + length);
+    }
+}
@@ -0,0 +1,7 @@
+package javacard.security;
+
+/**
+ * SecretKey 的JVM替身
+ */
+public interface SecretKey extends Key {
+}
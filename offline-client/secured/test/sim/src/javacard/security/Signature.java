@@ -0,0 +1,49 @@
+package javacard.security;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Signature 的JVM替身，只支持 ALG_ECDSA_SHA_256 验签
+ * 
+ * 验签使用 SimKeys.SIGNER 的公钥，init 传入的公钥被忽略。
+ */
+public class Signature {
+    public static final byte ALG_ECDSA_SHA_256 = 33;
+    public static final byte MODE_SIGN = 1;
+    public static final byte MODE_VERIFY = 2;
+
+    private final ByteArrayOutputStream message = new ByteArrayOutputStream();
+
+    public static Signature getInstance(byte algorithm, boolean externalAccess) {
+        if (algorithm != ALG_ECDSA_SHA_256) {
+            CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+        }
+        return new Signature();
+    }
+
+    public void init(Key theKey, byte theMode) {
+        message.reset();
+    }
+
+    public void update(byte[] inBuff, short inOffset, short inLength) {
+        message.write(inBuff, inOffset, inLength);
+    }
+
+    public boolean verify(byte[] inBuff, short inOffset, short inLength,
+            byte[] sigBuff, short sigOffset, short sigLength) {
+        message.write(inBuff, inOffset, inLength);
+        byte[] signed = message.toByteArray();
+        message.reset();
+        try {
+            java.security.Signature verifier = java.security.Signature.getInstance("SHA256withECDSA");
+            verifier.initVerify(SimKeys.SIGNER.getPublic());
+            verifier.update(signed);
+            return verifier.verify(Arrays.copyOfRange(sigBuff, sigOffset, sigOffset + sigLength));
+        } catch (java.security.SignatureException e) {
+            return false;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
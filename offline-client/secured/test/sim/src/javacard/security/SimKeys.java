@@ -0,0 +1,141 @@
+package javacard.security;
+
+import java.math.BigInteger;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+
+/**
+ * 模拟器的密钥实现和测试签名密钥
+ * 
+ * Applet 写入的ECDSA公钥被忽略，验签固定使用 SIGNER 的公钥，测试用 SIGNER 的私钥签名。
+ */
+public final class SimKeys {
+    /** 服务器签名密钥的替身 */
+    public static final java.security.KeyPair SIGNER = generate();
+
+    private SimKeys() {
+    }
+
+    static java.security.KeyPair generate() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            return generator.generateKeyPair();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 把无符号大整数写成定长大端字节
+     */
+    static void putUnsigned(BigInteger value, byte[] buffer, int offset, int length) {
+        byte[] bytes = value.toByteArray();
+        int copy = Math.min(bytes.length, length);
+        Arrays.fill(buffer, offset, offset + length, (byte) 0);
+        System.arraycopy(bytes, bytes.length - copy, buffer, offset + length - copy, copy);
+    }
+
+    /**
+     * secp256r1 公钥或私钥，W 为未压缩点，S 为私钥标量
+     */
+    static final class EC implements ECPublicKey, ECPrivateKey {
+        private final byte type;
+        private final short size;
+        byte[] w;
+        byte[] s;
+
+        EC(byte type, short size) {
+            this.type = type;
+            this.size = size;
+        }
+
+        public boolean isInitialized() {
+            return w != null || s != null;
+        }
+
+        public void clearKey() {
+            w = null;
+            s = null;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public short getSize() {
+            return size;
+        }
+
+        public void setFieldFP(byte[] buffer, short offset, short length) {
+        }
+
+        public void setA(byte[] buffer, short offset, short length) {
+        }
+
+        public void setB(byte[] buffer, short offset, short length) {
+        }
+
+        public void setG(byte[] buffer, short offset, short length) {
+        }
+
+        public void setR(byte[] buffer, short offset, short length) {
+        }
+
+        public void setK(short k) {
+        }
+
+        public void setW(byte[] buffer, short offset, short length) {
+            w = Arrays.copyOfRange(buffer, offset, offset + length);
+        }
+
+        public short getW(byte[] buffer, short offset) {
+            System.arraycopy(w, 0, buffer, offset, w.length);
+            return (short) w.length;
+        }
+
+        public void setS(byte[] buffer, short offset, short length) {
+            s = Arrays.copyOfRange(buffer, offset, offset + length);
+        }
+    }
+
+    /**
+     * 对称密钥
+     */
+    static final class Secret implements AESKey {
+        private final byte type;
+        private final short size;
+        byte[] key;
+
+        Secret(byte type, short size) {
+            this.type = type;
+            this.size = size;
+        }
+
+        public boolean isInitialized() {
+            return key != null;
+        }
+
+        public void clearKey() {
+            key = null;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public short getSize() {
+            return size;
+        }
+
+        public void setKey(byte[] keyData, short kOff) {
+            key = Arrays.copyOfRange(keyData, kOff, kOff + size / 8);
+        }
+
+        public byte getKey(byte[] keyData, short kOff) {
+            System.arraycopy(key, 0, keyData, kOff, key.length);
+            return (byte) key.length;
+        }
+    }
+}
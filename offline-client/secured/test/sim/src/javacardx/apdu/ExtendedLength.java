@@ -0,0 +1,7 @@
+package javacardx.apdu;
+
+/**
+ * ExtendedLength 标记接口的JVM替身
+ */
+public interface ExtendedLength {
+}
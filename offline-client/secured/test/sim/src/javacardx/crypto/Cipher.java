@@ -0,0 +1,81 @@
+package javacardx.crypto;
+
+import java.util.Arrays;
+
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import javacard.security.AESKey;
+import javacard.security.CryptoException;
+import javacard.security.Key;
+
+/**
+ * Cipher 的JVM替身，只支持 ALG_AES_BLOCK_128_CBC_NOPAD
+ */
+public class Cipher {
+    public static final byte ALG_AES_BLOCK_128_CBC_NOPAD = 13;
+    public static final byte MODE_DECRYPT = 1;
+    public static final byte MODE_ENCRYPT = 2;
+
+    private final javax.crypto.Cipher cipher;
+
+    private Cipher() {
+        try {
+            cipher = javax.crypto.Cipher.getInstance("AES/CBC/NoPadding");
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static Cipher getInstance(byte algorithm, boolean externalAccess) {
+        if (algorithm != ALG_AES_BLOCK_128_CBC_NOPAD) {
+            CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+        }
+        return new Cipher();
+    }
+
+    public void init(Key theKey, byte theMode, byte[] bArray, short bOff, short bLen) {
+        AESKey key = (AESKey) theKey;
+        if (!key.isInitialized()) {
+            CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+        }
+        byte[] keyData = new byte[key.getSize() / 8];
+        key.getKey(keyData, (short) 0);
+        try {
+            cipher.init(theMode == MODE_ENCRYPT ? javax.crypto.Cipher.ENCRYPT_MODE : javax.crypto.Cipher.DECRYPT_MODE,
+                    new SecretKeySpec(keyData, "AES"), new IvParameterSpec(bArray, bOff, bLen));
+        } catch (Exception e) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        }
+    }
+
+    public short update(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+        checkBlocks(inLength);
+        byte[] out = cipher.update(Arrays.copyOfRange(inBuff, inOffset, inOffset + inLength));
+        return copyOut(out, outBuff, outOffset);
+    }
+
+    public short doFinal(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+        checkBlocks(inLength);
+        try {
+            return copyOut(cipher.doFinal(Arrays.copyOfRange(inBuff, inOffset, inOffset + inLength)), outBuff, outOffset);
+        } catch (Exception e) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+            return 0;
+        }
+    }
+
+    private static void checkBlocks(short length) {
+        if (length % 16 != 0) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+        }
+    }
+
+    private static short copyOut(byte[] out, byte[] outBuff, short outOffset) {
+        if (out == null) {
+            return 0;
+        }
+        System.arraycopy(out, 0, outBuff, outOffset, out.length);
+        return (short) out.length;
+    }
+}
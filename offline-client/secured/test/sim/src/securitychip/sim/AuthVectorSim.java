@@ -0,0 +1,151 @@
+package securitychip.sim;
+
+import java.util.Arrays;
+
+/**
+ * 授权块固定向量检查，与 offline-server/ws 的 Go 单元测试使用同一组向量
+ *
+ * 服务器侧的 SESession 生成的会话标签和 SEMerkleTree 生成的包含证明必须被 Applet 接受。
+ * 会话部分直接写入会话密钥和会话状态，不经过 ECDH 建立会话，只检查标签格式: ins||counter||record_id||addr
+ * 的 HMAC、计数器递增和重放拒绝。Merkle 部分用测试签名密钥执行 LOAD_AUTH_ROOT，检查叶子和节点的前缀字节、
+ * 兄弟节点顺序和操作位。向量变化时两边的测试要一起更新。
+ */
+public final class AuthVectorSim {
+    private static final int SESSION_ACTIVE = 0; // sessionState 下标: 会话是否已建立
+    private static final byte[] RECORD_ID = fill(32, 0x11); // 会话向量的 record_id
+    private static final byte[] ADDRESS = fill(20, 0x22); // 所有向量共用的地址
+
+    // 会话密钥为 0x00..0x1F，READ_DATA 计数器1，DELETE_DATA 计数器2
+    private static final String SESSION_READ =
+            "a100016bae4d29be6d099e1a82bd8485dc650ccc2a06e011f14dd5f40294798b4c22cc";
+    private static final String SESSION_DELETE =
+            "a10002cc63042090c578dea75897e2de065e7097df2659e9ae801ee02141da72fedfe2";
+
+    // 三条记录的 record_id 分别为 0x01、0x02、0x03 重复32字节，第4个叶子补零，深度2
+    private static final String MERKLE_ROOT =
+            "c10359d1d5b58cf698cd383c8fe3da14da7377068fa96e1fb11d6da1d8b2f4d7";
+    private static final String MERKLE_PROOF_0 =
+            "a2000002033230dd08381e1ff175de1c390fd51472d964c2372f072930d159b53f3496"
+            + "299df05efdf7f281549f43ac23ac3ade77afec5c84b267dde58e145a911afb880d";
+    private static final String MERKLE_PROOF_2 =
+            "a20002020000000000000000000000000000000000000000000000000000000000000000"
+            + "ddcfa28c1883ccdcc3d5c9ad47df8516dc5f2c70c7f3a99dd3805540e3f8c877";
+
+    private AuthVectorSim() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        SimCard card = new SimCard(new byte[] {0x01, 0x00});
+        card.select();
+        checkSession(card);
+        checkMerkle(card);
+        System.out.println("PASS");
+    }
+
+    private static void checkSession(SimCard card) throws Exception {
+        byte[] key = SimCard.concat(RECORD_ID, ADDRESS);
+        byte[] message = SimCard.random(32);
+        card.send(0x10, 0, 0, SimCard.concat(key, message), false);
+        card.expect(0x9000);
+
+        // 没有会话时标签不被接受
+        card.send(0x20, 0, 0, SimCard.concat(key, hex(SESSION_READ)), false);
+        card.expect(0x6982);
+
+        byte[] sessionKey = (byte[]) card.get("sessionKey");
+        for (int i = 0; i < sessionKey.length; i++) {
+            sessionKey[i] = (byte) i;
+        }
+        ((short[]) card.get("sessionState"))[SESSION_ACTIVE] = 1;
+
+        // 读取标签不能用于删除
+        card.send(0x30, 0, 0, SimCard.concat(key, hex(SESSION_READ)), false);
+        card.expect(0x6982);
+        card.send(0x20, 0, 0, SimCard.concat(key, hex(SESSION_READ)), false);
+        card.expect(0x9000);
+        check(Arrays.equals(card.response(), message), "session read message");
+        card.send(0x20, 0, 0, SimCard.concat(key, hex(SESSION_READ)), false);
+        card.expect(0x6982); // 重放
+
+        byte[] tampered = hex(SESSION_DELETE);
+        tampered[tampered.length - 1] ^= 0x01;
+        card.send(0x30, 0, 0, SimCard.concat(key, tampered), false);
+        card.expect(0x6982);
+        card.send(0x30, 0, 0, SimCard.concat(key, hex(SESSION_DELETE)), false);
+        card.expect(0x9000);
+        card.send(0x20, 0, 0, SimCard.concat(key, SimCard.sign(key)), false);
+        card.expect(0x6A83);
+    }
+
+    private static void checkMerkle(SimCard card) throws Exception {
+        byte[][] keys = new byte[3][];
+        byte[][] messages = new byte[3][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = SimCard.concat(fill(32, i + 1), ADDRESS);
+            messages[i] = SimCard.random(32);
+            card.send(0x10, 0, 0, SimCard.concat(keys[i], messages[i]), false);
+            card.expect(0x9000);
+        }
+        byte[] root = hex(MERKLE_ROOT);
+
+        // 只授权读取的根不能用于删除
+        loadRoot(card, 0x01, root);
+        card.send(0x20, 0, 0, SimCard.concat(keys[0], hex(MERKLE_PROOF_0)), false);
+        card.expect(0x9000);
+        check(Arrays.equals(card.response(), messages[0]), "merkle read message");
+        card.send(0x30, 0, 0, SimCard.concat(keys[2], hex(MERKLE_PROOF_2)), false);
+        card.expect(0x6982);
+
+        loadRoot(card, 0x03, root);
+        // 证明绑定叶子位置和记录，换一条记录或篡改兄弟节点都不能通过
+        card.send(0x20, 0, 0, SimCard.concat(keys[1], hex(MERKLE_PROOF_0)), false);
+        card.expect(0x6982);
+        byte[] tampered = hex(MERKLE_PROOF_0);
+        tampered[4] ^= 0x01;
+        card.send(0x20, 0, 0, SimCard.concat(keys[0], tampered), false);
+        card.expect(0x6982);
+        card.send(0x20, 0, 0, SimCard.concat(keys[2], hex(MERKLE_PROOF_2)), false);
+        card.expect(0x9000);
+        check(Arrays.equals(card.response(), messages[2]), "merkle read third message");
+        card.send(0x30, 0, 0, SimCard.concat(keys[2], hex(MERKLE_PROOF_2)), false);
+        card.expect(0x9000);
+        card.send(0x20, 0, 0, SimCard.concat(keys[2], SimCard.sign(keys[2])), false);
+        card.expect(0x6A83);
+
+        // 取消选择后根被清除
+        card.deselect();
+        card.select();
+        card.send(0x20, 0, 0, SimCard.concat(keys[0], hex(MERKLE_PROOF_0)), false);
+        card.expect(0x6982);
+    }
+
+    /**
+     * 用测试签名密钥对 0x4D||ops||root 签名并执行 LOAD_AUTH_ROOT，等同于服务器的 SignRoot
+     */
+    private static void loadRoot(SimCard card, int ops, byte[] root) throws Exception {
+        byte[] signed = SimCard.concat(new byte[] {0x4D, (byte) ops}, root);
+        byte[] data = SimCard.concat(Arrays.copyOfRange(signed, 1, signed.length), SimCard.sign(signed));
+        card.send(0x42, 0, 0, data, false);
+        card.expect(0x9000);
+    }
+
+    private static byte[] fill(int length, int value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    private static byte[] hex(String text) {
+        byte[] bytes = new byte[text.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(text.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package securitychip.sim;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 分片加解密模拟，统计各分片大小的APDU条数和线路字节数
+ *
+ * 短APDU每段240字节，扩展长度按SELECT报告的单条命令数据上限对齐到分组。每个大小先加密，再核对密文格式与
+ * 主机参考实现 (AES-256-CBC + HMAC-SHA256) 一致，然后两遍解密并检查校验遍不返回明文、篡改的密文在校验遍被拒绝。
+ * 线路字节数按命令头、Lc、数据、响应数据和状态字计算，真卡耗时主要由它和APDU条数决定；JVM上的耗时没有意义，不输出。
+ */
+public final class CipherSim {
+    private static final int[] SIZES = {1024, 5120, 16384, 32000}; // 分片明文字节数
+    private static final int SHORT_CHUNK = 240; // 短APDU每段字节数
+    private static final int KEY_LENGTH = 52; // record_id||addr
+    private static final int RECORD_LENGTH = 84; // record_id||addr||message
+    private static final int IV_LENGTH = 16; // CBC初始向量长度
+    private static final int TAG_LENGTH = 32; // HMAC-SHA256标签长度
+    private static final int CAP_TAG_MAX_DATA = 0x86; // SELECT响应中单条命令数据上限的标签
+
+    private static int apdus;
+    private static long wireBytes;
+
+    private CipherSim() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        SimCard card = new SimCard(new byte[0]);
+        card.select();
+        int extendedChunk = maxCommandData(card.response()) / 16 * 16;
+
+        byte[] record = SimCard.random(RECORD_LENGTH);
+        byte[] key = Arrays.copyOf(record, KEY_LENGTH);
+        byte[] message = Arrays.copyOfRange(record, KEY_LENGTH, RECORD_LENGTH);
+        byte[] auth = SimCard.sign(key);
+        card.send(0x10, 0, 0, record, false);
+        card.expect(0x9000);
+
+        System.out.printf("  %-9s %6s %6s %9s %9s %10s %10s%n",
+                "mode", "size", "chunk", "enc APDUs", "dec APDUs", "enc bytes", "dec bytes");
+        for (boolean extended : new boolean[] {false, true}) {
+            int chunk = extended ? extendedChunk : SHORT_CHUNK;
+            for (int size : SIZES) {
+                byte[] plaintext = SimCard.random(size);
+                resetCounters();
+                byte[] sealed = seal(card, key, auth, plaintext, chunk, extended);
+                int encApdus = apdus;
+                long encBytes = wireBytes;
+                check(Arrays.equals(sealed, hostSeal(message, Arrays.copyOf(sealed, IV_LENGTH), plaintext)),
+                        "sealed format at " + size);
+
+                resetCounters();
+                byte[] opened = open(card, key, auth, sealed, chunk, extended);
+                check(opened != null && Arrays.equals(opened, plaintext), "round trip at " + size);
+                System.out.printf("  %-9s %6d %6d %9d %9d %10d %10d%n", extended ? "extended" : "short",
+                        size, chunk, encApdus, apdus, encBytes, wireBytes);
+
+                byte[] tampered = sealed.clone();
+                tampered[tampered.length / 2] ^= 1;
+                check(open(card, key, auth, tampered, chunk, extended) == null, "tampered share accepted at " + size);
+            }
+        }
+        System.out.println("PASS");
+    }
+
+    private static byte[] seal(SimCard card, byte[] key, byte[] auth, byte[] plaintext, int chunk, boolean extended) {
+        byte[] iv = send(card, 0x86, 0x01, SimCard.concat(key, auth), false);
+        card.expect(0x9000);
+        byte[] padded = pad(plaintext);
+        byte[] sealed = iv;
+        for (int offset = 0; offset < padded.length; offset += chunk) {
+            byte[] data = Arrays.copyOfRange(padded, offset, Math.min(padded.length, offset + chunk));
+            sealed = SimCard.concat(sealed, send(card, 0x87, 0, data, extended));
+            card.expect(0x9000);
+        }
+        byte[] tail = send(card, 0x88, 0, new byte[0], false);
+        card.expect(0x9000);
+        return SimCard.concat(sealed, tail);
+    }
+
+    /**
+     * 两遍解密，校验遍的标签不符时返回null
+     */
+    private static byte[] open(SimCard card, byte[] key, byte[] auth, byte[] sealed, int chunk, boolean extended) {
+        byte[] iv = Arrays.copyOf(sealed, IV_LENGTH);
+        byte[] ciphertext = Arrays.copyOfRange(sealed, IV_LENGTH, sealed.length - TAG_LENGTH);
+        byte[] tag = Arrays.copyOfRange(sealed, sealed.length - TAG_LENGTH, sealed.length);
+        send(card, 0x86, 0x02, SimCard.concat(SimCard.concat(key, iv), auth), false);
+        card.expect(0x9000);
+
+        byte[] verified = pass(card, ciphertext, tag, chunk, extended);
+        if (verified == null) {
+            return null;
+        }
+        check(verified.length == 0, "plaintext released before the tag was checked");
+        byte[] padded = pass(card, ciphertext, tag, chunk, extended);
+        check(padded != null, "second pass rejected");
+        return Arrays.copyOf(padded, padded.length - padded[padded.length - 1]);
+    }
+
+    private static byte[] pass(SimCard card, byte[] ciphertext, byte[] tag, int chunk, boolean extended) {
+        byte[] output = new byte[0];
+        for (int offset = 0; offset < ciphertext.length; offset += chunk) {
+            byte[] data = Arrays.copyOfRange(ciphertext, offset, Math.min(ciphertext.length, offset + chunk));
+            output = SimCard.concat(output, send(card, 0x87, 0, data, extended));
+            card.expect(0x9000);
+        }
+        byte[] tail = send(card, 0x88, 0, tag, false);
+        if (card.sw() == 0x6982) {
+            return null;
+        }
+        card.expect(0x9000);
+        return SimCard.concat(output, tail);
+    }
+
+    /**
+     * 发送命令并累计APDU条数和线路字节数
+     */
+    private static byte[] send(SimCard card, int ins, int p1, byte[] data, boolean extended) {
+        byte[] response = card.send(ins, p1, 0, data, extended);
+        apdus++;
+        wireBytes += 4 + (extended ? 3 : 1) + data.length + response.length + 2;
+        return response;
+    }
+
+    private static void resetCounters() {
+        apdus = 0;
+        wireBytes = 0;
+    }
+
+    /**
+     * 主机参考实现: [iv][AES-256-CBC(SHA256(0x01||msg))][HMAC-SHA256(SHA256(0x02||msg), iv||密文)]
+     */
+    private static byte[] hostSeal(byte[] message, byte[] iv, byte[] plaintext) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(derive(0x01, message), "AES"), new IvParameterSpec(iv));
+        byte[] ciphertext = cipher.doFinal(pad(plaintext));
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(derive(0x02, message), "HmacSHA256"));
+        mac.update(iv);
+        return SimCard.concat(SimCard.concat(iv, ciphertext), mac.doFinal(ciphertext));
+    }
+
+    private static byte[] derive(int domain, byte[] message) throws Exception {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        sha256.update((byte) domain);
+        return sha256.digest(message);
+    }
+
+    private static byte[] pad(byte[] data) {
+        int n = 16 - data.length % 16;
+        byte[] padded = Arrays.copyOf(data, data.length + n);
+        Arrays.fill(padded, data.length, padded.length, (byte) n);
+        return padded;
+    }
+
+    /**
+     * 从SELECT响应的TLV中取单条命令数据上限
+     */
+    private static int maxCommandData(byte[] select) {
+        for (int offset = 0; offset + 1 < select.length; offset += 2 + (select[offset + 1] & 0xFF)) {
+            if ((select[offset] & 0xFF) == CAP_TAG_MAX_DATA) {
+                return ((select[offset + 2] & 0xFF) << 8) | (select[offset + 3] & 0xFF);
+            }
+        }
+        throw new AssertionError("no max data tag in SELECT response");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
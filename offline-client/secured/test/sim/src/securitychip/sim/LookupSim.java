@@ -0,0 +1,86 @@
+package securitychip.sim;
+
+import java.util.Arrays;
+
+import javacard.framework.Util;
+
+/**
+ * 记录查找模拟，统计不同记录数下一次查找的 Util.arrayCompare 次数
+ *
+ * 按 LEVELS 逐级批量存入随机记录，每级对全部已存记录各查找一次 (命中)，再查找 MISSES 个不存在的键 (未命中)。
+ * 查找直接调用 findRecord，不经过验签，只统计比较次数: 命中时 record_id 和地址各比较一次，
+ * 只有16位摘要相同的槽位才会比较。比较次数不随记录数增长说明查找是常数开销；真卡耗时用 se-bench 测量。
+ */
+public final class LookupSim {
+    private static final int[] LEVELS = {10, 25, 50, 100, 250, 1000, 2000}; // 逐级累计的记录数
+    private static final int CAPACITY = 2048; // 安装参数请求的记录容量
+    private static final int MISSES = 1000; // 每级查找的不存在的键数
+    private static final int KEY_LENGTH = 52; // record_id||addr
+    private static final int RECORD_ID_LENGTH = 32; // record_id长度
+    private static final int RECORD_LENGTH = 84; // record_id||addr||message
+    private static final Class<?>[] FIND_TYPES = {byte[].class, short.class, byte[].class, short.class};
+
+    private LookupSim() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        SimCard card = new SimCard(new byte[] {(byte) (CAPACITY >> 8), (byte) CAPACITY});
+        card.select();
+        int limit = ((Number) card.get("batchLimit")).intValue();
+        byte[][] keys = new byte[LEVELS[LEVELS.length - 1]][];
+        int stored = 0;
+
+        System.out.printf("  %8s %10s %10s %10s %10s%n", "records", "hit avg", "hit max", "miss avg", "miss max");
+        for (int level : LEVELS) {
+            while (stored < level) {
+                int size = Math.min(limit, level - stored);
+                byte[] batch = {(byte) size};
+                for (int i = 0; i < size; i++) {
+                    byte[] record = SimCard.random(RECORD_LENGTH);
+                    keys[stored + i] = Arrays.copyOf(record, KEY_LENGTH);
+                    batch = SimCard.concat(batch, record);
+                }
+                card.send(0x11, 0, 0, batch, true);
+                card.expect(0x9000);
+                stored += size;
+            }
+            check(((Number) card.get("recordCount")).intValue() == level, "record count at " + level);
+
+            int hitTotal = 0;
+            int hitMax = 0;
+            for (int i = 0; i < level; i++) {
+                int compares = find(card, keys[i], true);
+                hitTotal += compares;
+                hitMax = Math.max(hitMax, compares);
+            }
+            int missTotal = 0;
+            int missMax = 0;
+            for (int i = 0; i < MISSES; i++) {
+                int compares = find(card, SimCard.random(KEY_LENGTH), false);
+                missTotal += compares;
+                missMax = Math.max(missMax, compares);
+            }
+            System.out.printf("  %8d %10.2f %10d %10.2f %10d%n", level,
+                    (double) hitTotal / level, hitMax, (double) missTotal / MISSES, missMax);
+            // 命中至少比较 record_id 和地址；摘要冲突时多比较几个槽位，但不应接近线性扫描
+            check(hitTotal < level * 3, "hit compares grow with record count at " + level);
+        }
+        System.out.println("PASS");
+    }
+
+    /**
+     * 查找一个键并返回本次的 Util.arrayCompare 次数
+     */
+    private static int find(SimCard card, byte[] key, boolean present) throws Exception {
+        int before = Util.compares;
+        short slot = (Short) card.call("findRecord", FIND_TYPES, key, (short) 0, key, (short) RECORD_ID_LENGTH);
+        check((slot >= 0) == present, (present ? "record not found" : "absent key found"));
+        return Util.compares - before;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
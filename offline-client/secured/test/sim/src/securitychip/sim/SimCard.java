@@ -0,0 +1,189 @@
+package securitychip.sim;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javacard.framework.APDU;
+import javacard.framework.Applet;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.security.SimKeys;
+
+/**
+ * 在JVM中安装并驱动 SecurityChipApplet 的模拟卡
+ * 
+ * 命令按卡片运行时的方式调用 process，ISOException 转为状态码，其他异常直接抛出。
+ * 内部状态通过反射读写，供测试构造掉电后的撕裂状态。
+ */
+final class SimCard {
+    private static final byte[] APPLET_AID = {
+        (byte) 0xA0, 0x00, 0x00, 0x00, 0x62, (byte) 0xCF, 0x01, 0x01
+    };
+    private static final int SW_SUCCESS = 0x9000;
+    private static final int TRANSIENT_SIZE = 4096; // 每张模拟卡的瞬态存储字节数
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Applet applet;
+    private int sw;
+    private boolean torn;
+    private byte[] response = new byte[0];
+
+    /**
+     * 安装Applet
+     * 
+     * @param installData 安装参数中的应用数据，见 SecurityChipApplet.install
+     */
+    SimCard(byte[] installData) throws Exception {
+        ByteArrayOutputStream params = new ByteArrayOutputStream();
+        params.write(APPLET_AID.length);
+        params.write(APPLET_AID);
+        params.write(0); // 控制信息
+        params.write(installData.length);
+        params.write(installData);
+        byte[] bArray = params.toByteArray();
+        // 每张模拟卡有自己的RAM，同一进程中先后安装的卡不共用瞬态存储
+        JCSystem.availableTransient = TRANSIENT_SIZE;
+        Class.forName("securitychip.SecurityChipApplet")
+                .getMethod("install", byte[].class, short.class, byte.class)
+                .invoke(null, bArray, (short) 0, (byte) bArray.length);
+        applet = Applet.registered;
+    }
+
+    /**
+     * 选择Applet，等同于卡片复位或重新上电后的第一条SELECT
+     */
+    void select() {
+        applet.select();
+        Applet.selecting = true;
+        try {
+            send(0xA4, 0x04, 0x00, APPLET_AID, false);
+        } finally {
+            Applet.selecting = false;
+        }
+        expect(SW_SUCCESS);
+    }
+
+    /**
+     * 模拟掉电后重新上电，瞬态数据清零，不调用 deselect
+     */
+    void powerCycle() {
+        JCSystem.powerLoss();
+    }
+
+    /**
+     * 取消选择，CLEAR_ON_DESELECT 数据清零
+     */
+    void deselect() {
+        applet.deselect();
+        JCSystem.clearOnDeselect();
+    }
+
+    /**
+     * 发送一条命令，返回响应数据
+     * 
+     * @param extended 是否使用扩展长度APDU，数据超过255字节时必须为true
+     */
+    byte[] send(int ins, int p1, int p2, byte[] data, boolean extended) {
+        ByteArrayOutputStream command = new ByteArrayOutputStream();
+        command.write(Applet.selecting ? 0x00 : 0x80);
+        command.write(ins);
+        command.write(p1);
+        command.write(p2);
+        if (extended) {
+            command.write(0);
+            command.write(data.length >> 8);
+        } else if (data.length > 255) {
+            throw new IllegalArgumentException("short APDU data too long: " + data.length);
+        }
+        command.write(data.length);
+        command.write(data, 0, data.length);
+
+        APDU apdu = new APDU(command.toByteArray(), extended);
+        torn = false;
+        try {
+            applet.process(apdu);
+            sw = SW_SUCCESS;
+        } catch (ISOException e) {
+            sw = e.getReason() & 0xFFFF;
+        } catch (JCSystem.PowerLoss e) {
+            sw = 0;
+            torn = true;
+        } finally {
+            JCSystem.endCommand();
+        }
+        response = apdu.response.toByteArray();
+        return response;
+    }
+
+    /**
+     * 检查上一条命令的状态码
+     */
+    void expect(int expected) {
+        if (sw != expected) {
+            throw new AssertionError(String.format("SW %04X, expected %04X", sw, expected));
+        }
+    }
+
+    /**
+     * 上一条命令是否因注入的掉电中断
+     */
+    boolean torn() {
+        return torn;
+    }
+
+    byte[] response() {
+        return response;
+    }
+
+    int sw() {
+        return sw;
+    }
+
+    Object get(String name) throws Exception {
+        return field(name).get(applet);
+    }
+
+    void set(String name, Object value) throws Exception {
+        field(name).set(applet, value);
+    }
+
+    Object call(String name, Class<?>[] types, Object... args) throws Exception {
+        Method method = applet.getClass().getDeclaredMethod(name, types);
+        method.setAccessible(true);
+        return method.invoke(applet, args);
+    }
+
+    private Field field(String name) throws Exception {
+        Field field = applet.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+
+    /**
+     * 随机字节，用于生成测试记录
+     */
+    static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        RANDOM.nextBytes(bytes);
+        return bytes;
+    }
+
+    static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    /**
+     * 用测试签名密钥对 record_id||addr 签名，等同于服务器的读取/删除签名
+     */
+    static byte[] sign(byte[] message) throws Exception {
+        java.security.Signature signer = java.security.Signature.getInstance("SHA256withECDSA");
+        signer.initSign(SimKeys.SIGNER.getPrivate());
+        signer.update(message);
+        return signer.sign();
+    }
+}
@@ -0,0 +1,104 @@
+package securitychip.sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 槽位磨损模拟，统计生成后立即销毁的循环中最热槽位的写入次数
+ *
+ * 256个槽位的卡先存入40条长期记录，再执行1000次"存储一条新记录、删除它"，前后各用 GET_SLOT_WEAR
+ * 读取全部写入计数取差值。默认分配、轮转分配和紧凑模式各运行一遍。紧凑模式总在末尾分配，
+ * 与旧的后进先出空闲链表一样由一个槽位承担几乎全部写入，作为对照。
+ */
+public final class SlotWearSim {
+    private static final int CAPACITY = 256; // 安装参数请求的记录容量
+    private static final int LIVE = 40; // 长期保留的记录数
+    private static final int CYCLES = 1000; // 存储+删除循环次数
+    private static final int PAGE = 100; // GET_SLOT_WEAR 每页条目数，响应不超过短APDU
+    private static final int KEY_LENGTH = 52; // record_id||addr
+    private static final int RECORD_LENGTH = 84; // record_id||addr||message
+
+    private SlotWearSim() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("%d slots, %d live records, %d store+delete cycles%n", CAPACITY, LIVE, CYCLES);
+        System.out.printf("  %-8s %8s %8s %8s %8s%n", "mode", "slots", "touched", "hottest", "total");
+        int def = run("default", (byte) 0x00);
+        int rotate = run("rotate", (byte) 0x02);
+        int dense = run("dense", (byte) 0x01);
+
+        // 每次循环写槽位3次: 写入记录、释放时的链表指针、链表尾部的链接
+        check(def <= CYCLES * 3 / 8 + 3, "default should spread over the fresh slots of a segment: " + def);
+        check(rotate <= CYCLES * 3 / (CAPACITY - LIVE) + 3, "rotate should spread over the capacity: " + rotate);
+        check(dense >= CYCLES, "dense keeps one hot slot: " + dense);
+        System.out.println("PASS");
+    }
+
+    /**
+     * @param flags 安装参数标志位
+     * @return 最热槽位在循环期间的写入次数
+     */
+    private static int run(String name, byte flags) throws Exception {
+        SimCard card = new SimCard(new byte[] {(byte) (CAPACITY >> 8), (byte) CAPACITY, flags});
+        card.select();
+        for (int i = 0; i < LIVE; i++) {
+            card.send(0x10, 0, 0, SimCard.random(RECORD_LENGTH), false);
+            card.expect(0x9000);
+        }
+
+        int[] before = wear(card);
+        for (int i = 0; i < CYCLES; i++) {
+            byte[] record = SimCard.random(RECORD_LENGTH);
+            card.send(0x10, 0, 0, record, false);
+            card.expect(0x9000);
+            byte[] key = Arrays.copyOf(record, KEY_LENGTH);
+            card.send(0x30, 0, 0, SimCard.concat(key, SimCard.sign(key)), false);
+            card.expect(0x9000);
+        }
+        int[] after = wear(card);
+
+        int hottest = 0;
+        int touched = 0;
+        long total = 0;
+        for (int i = 0; i < after.length; i++) {
+            int writes = after[i] - (i < before.length ? before[i] : 0);
+            if (writes > 0) {
+                touched++;
+            }
+            total += writes;
+            hottest = Math.max(hottest, writes);
+        }
+        System.out.printf("  %-8s %8d %8d %8d %8d%n", name, after.length, touched, hottest, total);
+        return hottest;
+    }
+
+    /**
+     * 分页读取全部已分配槽位的写入次数
+     */
+    private static int[] wear(SimCard card) {
+        List<Integer> writes = new ArrayList<Integer>();
+        int cursor = 0;
+        while (cursor != 0xFFFF) {
+            byte[] response = card.send(0x62, cursor >> 8, cursor & 0xFF, new byte[] {(byte) PAGE}, false);
+            card.expect(0x9000);
+            int count = response[2] & 0xFF;
+            for (int i = 0; i < count; i++) {
+                writes.add(((response[3 + 2 * i] & 0xFF) << 8) | (response[4 + 2 * i] & 0xFF));
+            }
+            cursor = ((response[0] & 0xFF) << 8) | (response[1] & 0xFF);
+        }
+        int[] result = new int[writes.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = writes.get(i);
+        }
+        return result;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
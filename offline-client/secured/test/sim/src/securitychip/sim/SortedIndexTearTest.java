@@ -0,0 +1,202 @@
+package securitychip.sim;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javacard.framework.JCSystem;
+
+/**
+ * 排序索引日志的掉电注入测试，在满容量 (8192条) 下统计按块移动的事务提交次数
+ *
+ * 每种操作先正常执行一次，得到它提交的事务数；再在其中每个事务开始前注入掉电，重新上电SELECT后
+ * 检查排序索引与记录一致、顺序正确、日志已清除，并统计恢复时提交的事务数。每次检查后执行相反操作回到
+ * 原来的记录集合。插入和删除都选在排序索引第一位，需要移动全部条目。稀疏模式和紧凑模式各运行一遍。
+ */
+public final class SortedIndexTearTest {
+    private static final int CAPACITY = 8192; // 安装参数请求的记录容量
+    private static final int KEY_LENGTH = 52; // record_id||addr
+    private static final int RECORD_LENGTH = 84; // record_id||addr||message
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private SortedIndexTearTest() {
+    }
+
+    /**
+     * 一条或几条命令，失败时由命令自己检查状态码
+     */
+    private interface Command {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        JCSystem.availablePersistent = 4000000;
+        run(false);
+        run(true);
+        System.out.println("PASS");
+    }
+
+    private static void run(boolean dense) throws Exception {
+        byte[] installData = dense
+                ? new byte[] {(byte) (CAPACITY >> 8), (byte) CAPACITY, 0x01}
+                : new byte[] {(byte) (CAPACITY >> 8), (byte) CAPACITY};
+        final SimCard card = new SimCard(installData);
+        card.select();
+        check(((Number) card.get("capacity")).intValue() == CAPACITY, "capacity");
+        int chunk = ((Number) card.get("sortedChunk")).intValue();
+
+        fill(card, CAPACITY - 4);
+        checkOrdered(card);
+        System.out.printf("%n%s mode, %d/%d records, %d entries per chunk%n",
+                dense ? "dense" : "sparse", recordCount(card), CAPACITY, chunk);
+        System.out.printf("  %-10s %8s %8s %10s%n", "operation", "entries", "commits", "recovery");
+
+        // record_id 全为0的记录排在第一位，插入和删除它都要移动全部条目
+        final byte[] first = concat(new byte[KEY_LENGTH], randomBytes(32));
+        final byte[] firstKey = Arrays.copyOf(first, KEY_LENGTH);
+        Command store = new Command() {
+            public void run() throws Exception {
+                card.send(0x10, 0, 0, first, false);
+            }
+        };
+        Command delete = new Command() {
+            public void run() throws Exception {
+                card.send(0x30, 0, 0, concat(firstKey, SimCard.sign(firstKey)), false);
+            }
+        };
+        tearEverywhere(card, "insert", 1, store, delete);
+        store.run();
+        card.expect(0x9000);
+        tearEverywhere(card, dense ? "delete+mv" : "delete", 1, delete, store);
+        delete.run();
+        card.expect(0x9000);
+
+        // 批量存储3条，每条各自移动一次
+        byte[] records = new byte[0];
+        for (int i = 0; i < 3; i++) {
+            records = concat(records, randomRecord((byte) (0x40 * (i + 1))));
+        }
+        final byte[] batch = concat(new byte[] {3}, records);
+        final byte[] batchRecords = records;
+        Command batchStore = new Command() {
+            public void run() throws Exception {
+                card.send(0x11, 0, 0, batch, true);
+            }
+        };
+        Command batchDelete = new Command() {
+            public void run() throws Exception {
+                for (int i = 0; i < 3; i++) {
+                    byte[] key = Arrays.copyOfRange(batchRecords, i * RECORD_LENGTH, i * RECORD_LENGTH + KEY_LENGTH);
+                    card.send(0x30, 0, 0, concat(key, SimCard.sign(key)), false);
+                    card.expect(0x9000);
+                }
+            }
+        };
+        tearEverywhere(card, "batch x3", 3, batchStore, batchDelete);
+    }
+
+    /**
+     * 在操作的每个事务开始前分别注入一次掉电，检查恢复结果并统计提交次数
+     *
+     * @param operations 操作包含的排序索引插入或删除次数
+     */
+    private static void tearEverywhere(SimCard card, String name, int operations, Command command, Command undo)
+            throws Exception {
+        int count = sortedCount(card);
+        int chunk = ((Number) card.get("sortedChunk")).intValue();
+
+        int commits = JCSystem.commits;
+        command.run();
+        card.expect(0x9000);
+        int total = JCSystem.commits - commits;
+        int applied = recordCount(card);
+        checkOrdered(card);
+        undo.run();
+        checkOrdered(card);
+        check(recordCount(card) == count, name + ": undo");
+        // 每次插入或删除: 按块移动 + 收尾的小事务；另加记录事务和运行计数写回
+        check(total <= operations * ((count + chunk - 1) / chunk + 1) + 2, name + ": " + total + " commits");
+
+        int worst = 0;
+        for (int torn = 0; torn < total; torn++) {
+            JCSystem.tearAt = JCSystem.commits + torn;
+            command.run();
+            check(card.torn(), name + ": no power loss at commit " + torn);
+            card.powerCycle();
+            commits = JCSystem.commits;
+            card.select();
+            worst = Math.max(worst, JCSystem.commits - commits);
+
+            check(((short[]) card.get("sortedJournal"))[0] == 0, name + ": journal not cleared at " + torn);
+            checkOrdered(card);
+            if (recordCount(card) != count) {
+                check(recordCount(card) == applied, name + ": record count " + recordCount(card));
+                undo.run();
+            }
+            checkOrdered(card);
+        }
+        check(worst <= total, name + ": recovery " + worst + " commits");
+        System.out.printf("  %-10s %8d %8d %10d%n", name, count, total, worst);
+    }
+
+    /**
+     * 用批量存储写入 count 条随机记录，record_id 首字节最低位为1，全0的 record_id 总是排在最前
+     */
+    private static void fill(SimCard card, int count) throws Exception {
+        int limit = ((Number) card.get("batchLimit")).intValue();
+        for (int done = 0; done < count; ) {
+            int size = Math.min(limit, count - done);
+            byte[] batch = {(byte) size};
+            for (int i = 0; i < size; i++) {
+                batch = concat(batch, randomRecord((byte) 0x01));
+            }
+            card.send(0x11, 0, 0, batch, true);
+            card.expect(0x9000);
+            done += size;
+        }
+    }
+
+    private static void checkOrdered(SimCard card) throws Exception {
+        int count = sortedCount(card);
+        check(count == recordCount(card), "sorted count " + count + " != record count " + recordCount(card));
+        Class<?>[] types = {short.class, short.class};
+        Class<?>[] position = {short.class};
+        short previous = (Short) card.call("getSortedSlot", position, (short) 0);
+        for (int i = 1; i < count; i++) {
+            short slot = (Short) card.call("getSortedSlot", position, (short) i);
+            check((Short) card.call("compareSlots", types, previous, slot) < 0, "order broken at " + i);
+            previous = slot;
+        }
+    }
+
+    private static int sortedCount(SimCard card) throws Exception {
+        return ((Number) card.get("sortedCount")).intValue();
+    }
+
+    private static int recordCount(SimCard card) throws Exception {
+        return ((Number) card.get("recordCount")).intValue();
+    }
+
+    private static byte[] randomRecord(byte prefix) {
+        byte[] record = randomBytes(RECORD_LENGTH);
+        record[0] |= prefix;
+        return record;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        RANDOM.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -43,15 +43,89 @@ func loadPrivateKey(filename string) (*ecdsa.PrivateKey, error) {
 // SignData 对 SE 授权数据签名。
 // recordID 是 32 字节记录编号的 hex 表示；Applet 看到的第一段字段仍为 32 字节。
 func SignData(recordID, address string) (string, error) {
+	data, err := encodeAuthorizationKey(recordID, address)
+	if err != nil {
+		return "", err
+	}
+	return signAuthorization(data)
+}
+
+// SignBatchData 对批量读取授权签名，签名数据为各条 record_id||addr 按顺序拼接。
+// Applet 的 BATCH_READ_DATA 只验签一次即返回全部记录。
+// 目前没有消息处理调用它，客户端的 SecurityService.ReadDataBatch 也暂无调用方，留作批量恢复的构件。
+func SignBatchData(recordIDs, addresses []string) (string, error) {
+	if len(recordIDs) == 0 || len(recordIDs) != len(addresses) {
+		return "", fmt.Errorf("record_id与地址数量不匹配")
+	}
+	data := make([]byte, 0, len(recordIDs)*52)
+	for i := range recordIDs {
+		key, err := encodeAuthorizationKey(recordIDs[i], addresses[i])
+		if err != nil {
+			return "", err
+		}
+		data = append(data, key...)
+	}
+	return signAuthorization(data)
+}
+
+// seMetricsResetDomain 清零运行计数签名数据的首字节，与 Applet 的 METRICS_RESET_DOMAIN 一致
+const seMetricsResetDomain = 0x52
+
+// SignMetricsReset 对清零安全芯片运行计数授权签名，签名数据为 0x52||epoch。
+// epoch 由 GET_METRICS 读出，清零后芯片将其加1，同一签名不能再次使用。
+func SignMetricsReset(epoch uint16) (string, error) {
+	return signAuthorization([]byte{seMetricsResetDomain, byte(epoch >> 8), byte(epoch)})
+}
+
+// seArenaCompactDomain 整理变长消息区签名数据的首字节，与 Applet 的 ARENA_COMPACT_DOMAIN 一致
+const seArenaCompactDomain = 0x43
+
+// SignArenaCompaction 对整理安全芯片变长消息区授权签名，签名数据为 0x43||epoch。
+// epoch 由 SELECT 响应的变长消息区状态读出，整理完成后芯片将其加1，同一签名不能再次使用。
+func SignArenaCompaction(epoch uint16) (string, error) {
+	return signAuthorization([]byte{seArenaCompactDomain, byte(epoch >> 8), byte(epoch)})
+}
+
+// 按地址操作签名数据的首字节，与 Applet 的指令 INS 一致，读取签名不能用于删除
+const (
+	seAddressReadOp   = 0x23 // READ_BY_ADDR
+	seAddressDeleteOp = 0x33 // DELETE_BY_ADDR
+)
+
+// SignAddressRead 授权读取某地址下的全部记录，签名数据为 0x23||addr。
+// 它和 SignAddressDelete 目前都没有消息处理调用，客户端的 ReadDataByAddr/DeleteDataByAddr 也暂无调用方。
+func SignAddressRead(address string) (string, error) {
+	return signAddressOperation(seAddressReadOp, address)
+}
+
+// SignAddressDelete 授权删除某地址下的全部记录，签名数据为 0x33||addr。
+func SignAddressDelete(address string) (string, error) {
+	return signAddressOperation(seAddressDeleteOp, address)
+}
+
+func signAddressOperation(op byte, address string) (string, error) {
+	addrBytes, err := hex.DecodeString(strings.TrimPrefix(address, "0x"))
+	if err != nil || len(addrBytes) != 20 {
+		return "", fmt.Errorf("地址格式错误")
+	}
+	return signAuthorization(append([]byte{op}, addrBytes...))
+}
+
+// encodeAuthorizationKey 解析并拼接 record_id(32字节)||addr(20字节)
+func encodeAuthorizationKey(recordID, address string) ([]byte, error) {
 	recordBytes, err := hex.DecodeString(strings.TrimPrefix(recordID, "0x"))
 	if err != nil || len(recordBytes) != 32 {
-		return "", fmt.Errorf("record_id必须是32字节hex")
+		return nil, fmt.Errorf("record_id必须是32字节hex")
 	}
 	addrBytes, err := hex.DecodeString(strings.TrimPrefix(address, "0x"))
 	if err != nil || len(addrBytes) != 20 {
-		return "", fmt.Errorf("地址格式错误")
+		return nil, fmt.Errorf("地址格式错误")
 	}
-	data := append(recordBytes, addrBytes...)
+	return append(recordBytes, addrBytes...), nil
+}
+
+// signAuthorization 对授权数据做 SHA-256 + ECDSA 签名，返回 base64 编码的 DER 签名
+func signAuthorization(data []byte) (string, error) {
 	// 计算消息哈希
 	hash := sha256.Sum256(data)
 
@@ -0,0 +1,95 @@
+package ws
+
+import (
+	"crypto/ecdsa"
+	"crypto/sha256"
+	"encoding/base64"
+	"encoding/hex"
+	"strings"
+	"testing"
+)
+
+// verifyTestSignature 用测试私钥的公钥验证 base64 DER 签名是否覆盖 data
+func verifyTestSignature(t *testing.T, signature string, data []byte) bool {
+	t.Helper()
+	signer, err := loadPrivateKey("./private_keys/ec_private_key.pem")
+	if err != nil {
+		t.Fatal(err)
+	}
+	der, err := base64.StdEncoding.DecodeString(signature)
+	if err != nil {
+		t.Fatalf("signature is not base64: %v", err)
+	}
+	digest := sha256.Sum256(data)
+	return ecdsa.VerifyASN1(&signer.PublicKey, digest[:], der)
+}
+
+func mustDecodeHex(t *testing.T, value string) []byte {
+	t.Helper()
+	data, err := hex.DecodeString(strings.TrimPrefix(value, "0x"))
+	if err != nil {
+		t.Fatal(err)
+	}
+	return data
+}
+
+func TestSignBatchDataCoversOrderedKeys(t *testing.T) {
+	writeTestPrivateKey(t)
+	recordIDs, addresses := testMerkleRecords(3)
+
+	signature, err := SignBatchData(recordIDs, addresses)
+	if err != nil {
+		t.Fatalf("SignBatchData failed: %v", err)
+	}
+	var data, reversed []byte
+	for i := range recordIDs {
+		key := append(mustDecodeHex(t, recordIDs[i]), mustDecodeHex(t, addresses[i])...)
+		data = append(data, key...)
+		reversed = append(key, reversed...)
+	}
+	if !verifyTestSignature(t, signature, data) {
+		t.Fatal("batch signature does not verify over record_id||addr concatenated in order")
+	}
+	if verifyTestSignature(t, signature, reversed) {
+		t.Fatal("batch signature should bind the record order")
+	}
+
+	if _, err := SignBatchData(recordIDs, addresses[:2]); err == nil {
+		t.Fatal("mismatched record and address counts should be rejected")
+	}
+	if _, err := SignBatchData(nil, nil); err == nil {
+		t.Fatal("empty batch should be rejected")
+	}
+}
+
+func TestSignAddressOperationsAreDomainSeparated(t *testing.T) {
+	writeTestPrivateKey(t)
+	address := mustDecodeHex(t, testSessionAddress)
+
+	read, err := SignAddressRead(testSessionAddress)
+	if err != nil {
+		t.Fatalf("SignAddressRead failed: %v", err)
+	}
+	del, err := SignAddressDelete(testSessionAddress)
+	if err != nil {
+		t.Fatalf("SignAddressDelete failed: %v", err)
+	}
+	readData := append([]byte{seAddressReadOp}, address...)
+	deleteData := append([]byte{seAddressDeleteOp}, address...)
+	if !verifyTestSignature(t, read, readData) {
+		t.Fatal("read signature does not verify over 0x23||addr")
+	}
+	if !verifyTestSignature(t, del, deleteData) {
+		t.Fatal("delete signature does not verify over 0x33||addr")
+	}
+	if verifyTestSignature(t, read, deleteData) {
+		t.Fatal("read signature must not authorize delete")
+	}
+
+	if _, err := SignAddressRead("0x1234"); err == nil {
+		t.Fatal("short address should be rejected")
+	}
+	if _, err := SignAddressDelete("not-hex"); err == nil {
+		t.Fatal("non-hex address should be rejected")
+	}
+}
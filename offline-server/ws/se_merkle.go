@@ -0,0 +1,107 @@
+package ws
+
+import (
+	"crypto/sha256"
+	"encoding/base64"
+	"fmt"
+)
+
+// SE Merkle 授权常量，与 Applet 的 LOAD_AUTH_ROOT 协议保持一致
+const (
+	seMerkleProofTag   = 0xA2 // 授权块类型: Merkle 包含证明
+	seMerkleRootDomain = 0x4D // 根签名数据首字节
+	seMerkleOpRead     = 0x01 // 根授权操作位: 读取
+	seMerkleOpDelete   = 0x02 // 根授权操作位: 删除
+	seMerkleMaxDepth   = 16   // Applet 接受的最大证明深度
+)
+
+// SEMerkleTree 一批 record_id||addr 授权的 Merkle 树。
+// 服务器只签名一次根哈希，芯片之后按包含证明逐条授权，不再做 EC 验证。
+// 目前还没有 WebSocket 消息下发根签名和证明；证明格式由 se_merkle_test.go 的向量固定，
+// 芯片侧用 ant auth-sim 检查同一组向量。
+type SEMerkleTree struct {
+	ops    byte
+	count  int
+	levels [][][sha256.Size]byte
+}
+
+// NewSEMerkleTree 按顺序为每个 (recordID, address) 建树，叶子数补齐到 2 的幂，空叶子为全零。
+// ops 为 seMerkleOpRead/seMerkleOpDelete 的组合。
+func NewSEMerkleTree(recordIDs, addresses []string, ops byte) (*SEMerkleTree, error) {
+	if len(recordIDs) == 0 || len(recordIDs) != len(addresses) {
+		return nil, fmt.Errorf("record_id与地址数量不匹配")
+	}
+	if ops == 0 || ops&^(seMerkleOpRead|seMerkleOpDelete) != 0 {
+		return nil, fmt.Errorf("授权操作无效: 0x%02X", ops)
+	}
+
+	width := 1
+	depth := 0
+	for width < len(recordIDs) {
+		width <<= 1
+		depth++
+	}
+	if depth > seMerkleMaxDepth {
+		return nil, fmt.Errorf("记录数过多: %d", len(recordIDs))
+	}
+
+	leaves := make([][sha256.Size]byte, width)
+	for i := range recordIDs {
+		key, err := encodeAuthorizationKey(recordIDs[i], addresses[i])
+		if err != nil {
+			return nil, err
+		}
+		leaves[i] = sha256.Sum256(append([]byte{0x00}, key...))
+	}
+
+	levels := [][][sha256.Size]byte{leaves}
+	for current := leaves; len(current) > 1; {
+		next := make([][sha256.Size]byte, len(current)/2)
+		for i := range next {
+			node := make([]byte, 0, 1+2*sha256.Size)
+			node = append(node, 0x01)
+			node = append(node, current[2*i][:]...)
+			node = append(node, current[2*i+1][:]...)
+			next[i] = sha256.Sum256(node)
+		}
+		levels = append(levels, next)
+		current = next
+	}
+
+	return &SEMerkleTree{ops: ops, count: len(recordIDs), levels: levels}, nil
+}
+
+// Root 返回根哈希。
+func (t *SEMerkleTree) Root() []byte {
+	root := t.levels[len(t.levels)-1][0]
+	return root[:]
+}
+
+// Ops 返回根授权的操作位。
+func (t *SEMerkleTree) Ops() byte {
+	return t.ops
+}
+
+// SignRoot 对 0x4D||ops||root 签名，返回 base64 DER 签名，供客户端执行 LOAD_AUTH_ROOT。
+func (t *SEMerkleTree) SignRoot() (string, error) {
+	data := append([]byte{seMerkleRootDomain, t.ops}, t.Root()...)
+	return signAuthorization(data)
+}
+
+// Proof 返回第 index 条记录的授权块 [0xA2][leafIndex(2)][depth(1)][sibling(32)]*depth，base64 编码，
+// 可直接放在 READ_DATA/DELETE_DATA 的签名位置。补齐的空叶子没有对应记录，不生成证明。
+func (t *SEMerkleTree) Proof(index int) (string, error) {
+	if index < 0 || index >= t.count {
+		return "", fmt.Errorf("叶子索引越界: %d", index)
+	}
+	depth := len(t.levels) - 1
+	block := make([]byte, 0, 4+depth*sha256.Size)
+	block = append(block, seMerkleProofTag, byte(index>>8), byte(index), byte(depth))
+	position := index
+	for level := 0; level < depth; level++ {
+		sibling := t.levels[level][position^1]
+		block = append(block, sibling[:]...)
+		position >>= 1
+	}
+	return base64.StdEncoding.EncodeToString(block), nil
+}
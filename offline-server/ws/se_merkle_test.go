@@ -0,0 +1,152 @@
+package ws
+
+import (
+	"bytes"
+	"crypto/ecdsa"
+	"crypto/sha256"
+	"encoding/base64"
+	"encoding/hex"
+	"fmt"
+	"strings"
+	"testing"
+)
+
+// 与 offline-client/secured 的 ant auth-sim 使用同一组向量，Applet 在模拟器上接受这两个证明
+const (
+	testMerkleRoot   = "c10359d1d5b58cf698cd383c8fe3da14da7377068fa96e1fb11d6da1d8b2f4d7"
+	testMerkleProof0 = "a2000002033230dd08381e1ff175de1c390fd51472d964c2372f072930d159b53f3496" +
+		"299df05efdf7f281549f43ac23ac3ade77afec5c84b267dde58e145a911afb880d"
+	testMerkleProof2 = "a20002020000000000000000000000000000000000000000000000000000000000000000" +
+		"ddcfa28c1883ccdcc3d5c9ad47df8516dc5f2c70c7f3a99dd3805540e3f8c877"
+)
+
+// testMerkleRecords 生成 n 条 record_id 为 (i+1) 重复32字节的记录，地址相同
+func testMerkleRecords(n int) ([]string, []string) {
+	recordIDs := make([]string, n)
+	addresses := make([]string, n)
+	for i := range recordIDs {
+		recordIDs[i] = "0x" + strings.Repeat(fmt.Sprintf("%02x", i+1), 32)
+		addresses[i] = testSessionAddress
+	}
+	return recordIDs, addresses
+}
+
+// verifyTestMerkleProof 按 Applet 的 verifyMerkleProof 重新计算根哈希
+func verifyTestMerkleProof(t *testing.T, root []byte, recordID, address, proof string) bool {
+	t.Helper()
+	block, err := base64.StdEncoding.DecodeString(proof)
+	if err != nil {
+		t.Fatalf("proof is not base64: %v", err)
+	}
+	key, err := encodeAuthorizationKey(recordID, address)
+	if err != nil {
+		t.Fatal(err)
+	}
+	if len(block) < 4 || block[0] != seMerkleProofTag {
+		return false
+	}
+	leafIndex := int(block[1])<<8 | int(block[2])
+	depth := int(block[3])
+	if depth > seMerkleMaxDepth || len(block) != 4+depth*sha256.Size || leafIndex>>depth != 0 {
+		return false
+	}
+
+	current := sha256.Sum256(append([]byte{0x00}, key...))
+	for level := 0; level < depth; level++ {
+		sibling := block[4+level*sha256.Size : 4+(level+1)*sha256.Size]
+		node := []byte{0x01}
+		if (leafIndex>>level)&1 == 0 {
+			node = append(append(node, current[:]...), sibling...)
+		} else {
+			node = append(append(node, sibling...), current[:]...)
+		}
+		current = sha256.Sum256(node)
+	}
+	return bytes.Equal(current[:], root)
+}
+
+func TestSEMerkleTreeMatchesAppletVectors(t *testing.T) {
+	recordIDs, addresses := testMerkleRecords(3)
+	tree, err := NewSEMerkleTree(recordIDs, addresses, seMerkleOpRead|seMerkleOpDelete)
+	if err != nil {
+		t.Fatalf("NewSEMerkleTree failed: %v", err)
+	}
+	if got := hex.EncodeToString(tree.Root()); got != testMerkleRoot {
+		t.Fatalf("root = %s, want %s", got, testMerkleRoot)
+	}
+
+	for index, want := range map[int]string{0: testMerkleProof0, 2: testMerkleProof2} {
+		proof, err := tree.Proof(index)
+		if err != nil {
+			t.Fatalf("Proof(%d) failed: %v", index, err)
+		}
+		if got := decodeAuthBlock(t, proof); got != want {
+			t.Fatalf("Proof(%d) = %s, want %s", index, got, want)
+		}
+	}
+
+	// 补齐的空叶子没有记录
+	if _, err := tree.Proof(3); err == nil {
+		t.Fatal("proof for padding leaf should be rejected")
+	}
+}
+
+func TestSEMerkleProofsVerifyLikeApplet(t *testing.T) {
+	for _, n := range []int{1, 2, 5, 8} {
+		recordIDs, addresses := testMerkleRecords(n)
+		tree, err := NewSEMerkleTree(recordIDs, addresses, seMerkleOpRead)
+		if err != nil {
+			t.Fatalf("NewSEMerkleTree(%d) failed: %v", n, err)
+		}
+		for i := 0; i < n; i++ {
+			proof, err := tree.Proof(i)
+			if err != nil {
+				t.Fatalf("Proof(%d) of %d failed: %v", i, n, err)
+			}
+			if !verifyTestMerkleProof(t, tree.Root(), recordIDs[i], addresses[i], proof) {
+				t.Fatalf("proof %d of %d does not verify", i, n)
+			}
+			// 证明绑定叶子位置，换一条记录不能通过
+			other := recordIDs[(i+1)%n]
+			if n > 1 && verifyTestMerkleProof(t, tree.Root(), other, addresses[i], proof) {
+				t.Fatalf("proof %d of %d verifies for another record", i, n)
+			}
+		}
+	}
+}
+
+func TestSEMerkleTreeSignRootAndValidation(t *testing.T) {
+	writeTestPrivateKey(t)
+	signer, err := loadPrivateKey("./private_keys/ec_private_key.pem")
+	if err != nil {
+		t.Fatal(err)
+	}
+
+	recordIDs, addresses := testMerkleRecords(3)
+	tree, err := NewSEMerkleTree(recordIDs, addresses, seMerkleOpDelete)
+	if err != nil {
+		t.Fatalf("NewSEMerkleTree failed: %v", err)
+	}
+	if tree.Ops() != seMerkleOpDelete {
+		t.Fatalf("ops = 0x%02X", tree.Ops())
+	}
+	signature, err := tree.SignRoot()
+	if err != nil {
+		t.Fatalf("SignRoot failed: %v", err)
+	}
+	der, err := base64.StdEncoding.DecodeString(signature)
+	if err != nil {
+		t.Fatalf("root signature is not base64: %v", err)
+	}
+	digest := sha256.Sum256(append([]byte{seMerkleRootDomain, seMerkleOpDelete}, tree.Root()...))
+	if !ecdsa.VerifyASN1(&signer.PublicKey, digest[:], der) {
+		t.Fatal("root signature does not verify over 0x4D||ops||root")
+	}
+
+	if _, err := NewSEMerkleTree(recordIDs, addresses, 0x04); err == nil {
+		t.Fatal("unknown op bits should be rejected")
+	}
+	if _, err := NewSEMerkleTree(recordIDs, addresses[:2], seMerkleOpRead); err == nil {
+		t.Fatal("mismatched record and address counts should be rejected")
+	}
+}
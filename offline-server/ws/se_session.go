@@ -0,0 +1,95 @@
+package ws
+
+import (
+	"crypto/ecdh"
+	"crypto/hmac"
+	"crypto/rand"
+	"crypto/sha256"
+	"encoding/base64"
+	"fmt"
+	"sync"
+)
+
+// SE 会话授权常量，与 Applet 的 OPEN_SESSION 协议保持一致
+const (
+	seInsReadData      = 0x20 // READ_DATA 指令，会话标签对其签名
+	seInsDeleteData    = 0x30 // DELETE_DATA 指令
+	seSessionAuthTag   = 0xA1 // 会话授权块类型
+	seSessionMaxOps    = 1024 // 单个会话允许的最大操作数
+	seECPointLength    = 65   // 未压缩 P-256 公钥长度
+	seSessionKeyLength = 32   // 会话密钥长度
+)
+
+// SESession 服务器与一张安全芯片之间的授权会话。
+// 建立会话只需芯片做一次 ECDSA 验证，之后每次读取/删除由服务器计算 HMAC-SHA256 标签授权。
+// 目前还没有 WebSocket 消息建立会话或下发标签，服务器仍对每次读取单独签名 (SignData)；
+// 标签格式由 se_session_test.go 的向量固定，芯片侧用 ant auth-sim 检查同一组向量。
+type SESession struct {
+	mu      sync.Mutex
+	key     []byte
+	counter uint16
+}
+
+// NewSESession 根据芯片 OPEN_SESSION 第一步返回的临时公钥建立会话。
+// 返回服务器临时公钥和对 cardPublicKey||serverPublicKey 的 base64 DER 签名，由客户端提交给芯片完成第二步。
+func NewSESession(cardPublicKey []byte) (*SESession, []byte, string, error) {
+	if len(cardPublicKey) != seECPointLength {
+		return nil, nil, "", fmt.Errorf("芯片临时公钥长度错误: %d", len(cardPublicKey))
+	}
+	cardKey, err := ecdh.P256().NewPublicKey(cardPublicKey)
+	if err != nil {
+		return nil, nil, "", fmt.Errorf("芯片临时公钥无效: %v", err)
+	}
+	serverKey, err := ecdh.P256().GenerateKey(rand.Reader)
+	if err != nil {
+		return nil, nil, "", fmt.Errorf("生成服务器临时密钥失败: %v", err)
+	}
+	serverPublicKey := serverKey.PublicKey().Bytes()
+
+	grant, err := signAuthorization(append(append([]byte{}, cardPublicKey...), serverPublicKey...))
+	if err != nil {
+		return nil, nil, "", err
+	}
+
+	// 共享秘密为 ECDH 结果的 X 坐标，会话密钥取其 SHA-256，与芯片一致
+	secret, err := serverKey.ECDH(cardKey)
+	if err != nil {
+		return nil, nil, "", fmt.Errorf("ECDH协商失败: %v", err)
+	}
+	key := sha256.Sum256(secret)
+
+	return &SESession{key: key[:seSessionKeyLength]}, serverPublicKey, grant, nil
+}
+
+// AuthorizeRead 生成 READ_DATA 的会话授权块，可直接放在 APDU 的签名位置。
+func (s *SESession) AuthorizeRead(recordID, address string) (string, error) {
+	return s.authorize(seInsReadData, recordID, address)
+}
+
+// AuthorizeDelete 生成 DELETE_DATA 的会话授权块。
+func (s *SESession) AuthorizeDelete(recordID, address string) (string, error) {
+	return s.authorize(seInsDeleteData, recordID, address)
+}
+
+// authorize 生成 [0xA1][counter(2)][HMAC-SHA256(key, ins||counter||record_id||addr)] 并以 base64 返回。
+// counter 每次递增，芯片只接受大于上次的值。
+func (s *SESession) authorize(ins byte, recordID, address string) (string, error) {
+	data, err := encodeAuthorizationKey(recordID, address)
+	if err != nil {
+		return "", err
+	}
+
+	s.mu.Lock()
+	defer s.mu.Unlock()
+	if s.counter >= seSessionMaxOps {
+		return "", fmt.Errorf("SE会话操作数已达上限 %d", seSessionMaxOps)
+	}
+	s.counter++
+	header := []byte{ins, byte(s.counter >> 8), byte(s.counter)}
+
+	mac := hmac.New(sha256.New, s.key)
+	mac.Write(header)
+	mac.Write(data)
+	block := append([]byte{seSessionAuthTag, header[1], header[2]}, mac.Sum(nil)...)
+	return base64.StdEncoding.EncodeToString(block), nil
+}
@@ -0,0 +1,124 @@
+package ws
+
+import (
+	"bytes"
+	"crypto/ecdh"
+	"crypto/ecdsa"
+	"crypto/rand"
+	"crypto/sha256"
+	"encoding/base64"
+	"encoding/hex"
+	"strings"
+	"testing"
+)
+
+// 与 offline-client/secured 的 ant auth-sim 使用同一组向量，Applet 在模拟器上接受这两个授权块
+const (
+	testSessionRecordID = "0x1111111111111111111111111111111111111111111111111111111111111111"
+	testSessionAddress  = "0x2222222222222222222222222222222222222222"
+	testSessionRead     = "a100016bae4d29be6d099e1a82bd8485dc650ccc2a06e011f14dd5f40294798b4c22cc"
+	testSessionDelete   = "a10002cc63042090c578dea75897e2de065e7097df2659e9ae801ee02141da72fedfe2"
+)
+
+func testSessionKey() []byte {
+	key := make([]byte, seSessionKeyLength)
+	for i := range key {
+		key[i] = byte(i)
+	}
+	return key
+}
+
+func decodeAuthBlock(t *testing.T, block string) string {
+	t.Helper()
+	raw, err := base64.StdEncoding.DecodeString(block)
+	if err != nil {
+		t.Fatalf("auth block is not base64: %v", err)
+	}
+	return hex.EncodeToString(raw)
+}
+
+func TestSESessionTagsMatchAppletVectors(t *testing.T) {
+	session := &SESession{key: testSessionKey()}
+
+	read, err := session.AuthorizeRead(testSessionRecordID, testSessionAddress)
+	if err != nil {
+		t.Fatalf("AuthorizeRead failed: %v", err)
+	}
+	if got := decodeAuthBlock(t, read); got != testSessionRead {
+		t.Fatalf("read tag = %s, want %s", got, testSessionRead)
+	}
+
+	del, err := session.AuthorizeDelete(testSessionRecordID, testSessionAddress)
+	if err != nil {
+		t.Fatalf("AuthorizeDelete failed: %v", err)
+	}
+	if got := decodeAuthBlock(t, del); got != testSessionDelete {
+		t.Fatalf("delete tag = %s, want %s", got, testSessionDelete)
+	}
+}
+
+func TestSESessionStopsAtMaxOps(t *testing.T) {
+	session := &SESession{key: testSessionKey(), counter: seSessionMaxOps - 1}
+	block, err := session.AuthorizeRead(testSessionRecordID, testSessionAddress)
+	if err != nil {
+		t.Fatalf("last operation rejected: %v", err)
+	}
+	if got := decodeAuthBlock(t, block); !strings.HasPrefix(got, "a10400") {
+		t.Fatalf("last counter should be 0x0400, got %s", got[:6])
+	}
+	if _, err := session.AuthorizeRead(testSessionRecordID, testSessionAddress); err == nil {
+		t.Fatal("operation beyond MAX_SESSION_OPS should be rejected")
+	}
+	if _, err := (&SESession{key: testSessionKey()}).AuthorizeDelete(testSessionRecordID, "0x1234"); err == nil {
+		t.Fatal("malformed address should be rejected")
+	}
+}
+
+func TestNewSESessionGrantAndSharedKey(t *testing.T) {
+	writeTestPrivateKey(t)
+	signer, err := loadPrivateKey("./private_keys/ec_private_key.pem")
+	if err != nil {
+		t.Fatal(err)
+	}
+
+	// 芯片一侧: 临时密钥对，收到服务器公钥后用同样的方式导出会话密钥
+	cardKey, err := ecdh.P256().GenerateKey(rand.Reader)
+	if err != nil {
+		t.Fatal(err)
+	}
+	cardPublicKey := cardKey.PublicKey().Bytes()
+
+	session, serverPublicKey, grant, err := NewSESession(cardPublicKey)
+	if err != nil {
+		t.Fatalf("NewSESession failed: %v", err)
+	}
+	if len(serverPublicKey) != seECPointLength || serverPublicKey[0] != 0x04 {
+		t.Fatalf("server public key should be an uncompressed P-256 point, got %d bytes", len(serverPublicKey))
+	}
+
+	signature, err := base64.StdEncoding.DecodeString(grant)
+	if err != nil {
+		t.Fatalf("grant is not base64: %v", err)
+	}
+	digest := sha256.Sum256(append(append([]byte{}, cardPublicKey...), serverPublicKey...))
+	if !ecdsa.VerifyASN1(&signer.PublicKey, digest[:], signature) {
+		t.Fatal("grant does not verify over cardPublicKey||serverPublicKey")
+	}
+
+	serverKey, err := ecdh.P256().NewPublicKey(serverPublicKey)
+	if err != nil {
+		t.Fatal(err)
+	}
+	secret, err := cardKey.ECDH(serverKey)
+	if err != nil {
+		t.Fatal(err)
+	}
+	want := sha256.Sum256(secret)
+	if !bytes.Equal(session.key, want[:]) {
+		t.Fatal("session key differs from SHA-256 of the ECDH X coordinate")
+	}
+
+	if _, _, _, err := NewSESession(cardPublicKey[:64]); err == nil {
+		t.Fatal("short card public key should be rejected")
+	}
+}